@@ -108,6 +108,7 @@ import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -154,6 +155,7 @@ public class BuildManager implements ApplicationComponent{
   private final Executor myPooledThreadExecutor = new PooledThreadExecutor();
   private final SequentialTaskExecutor myRequestsProcessor = new SequentialTaskExecutor(myPooledThreadExecutor);
   private final Map<String, ProjectData> myProjectDataMap = Collections.synchronizedMap(new HashMap<String, ProjectData>());
+  private final Map<String, KeptAliveProcess> myKeptAliveProcesses = Collections.synchronizedMap(new HashMap<String, KeptAliveProcess>());
 
   private final BuildManagerPeriodicTask myAutoMakeTask = new BuildManagerPeriodicTask() {
     @Override
@@ -572,7 +574,19 @@ public class BuildManager implements ApplicationComponent{
                      CmdlineProtoUtil.createForceCompileRequest(projectPath, scopes, paths, userData, globals, currentFSChanges);
           }
 
+          final int keepAliveTimeout = Registry.is("compiler.process.keep.alive") ? Registry.intValue("compiler.process.keep.alive.timeout") : 0;
           myMessageDispatcher.registerBuildMessageHandler(sessionId, new BuilderMessageHandlerWrapper(handler) {
+            @Override
+            public void handleBuildMessage(Channel channel, UUID sessionId, CmdlineRemoteProto.Message.BuilderMessage msg) {
+              if (keepAliveTimeout > 0) {
+                final KeptAliveProcess process = myKeptAliveProcesses.get(projectPath);
+                if (process != null) {
+                  process.channel = channel;
+                }
+              }
+              super.handleBuildMessage(channel, sessionId, msg);
+            }
+
             @Override
             public void sessionTerminated(UUID sessionId) {
               try {
@@ -582,7 +596,7 @@ public class BuildManager implements ApplicationComponent{
                 future.setDone();
               }
             }
-          }, params);
+          }, params, keepAliveTimeout > 0);
 
           try {
             projectTaskQueue.submit(new Runnable() {
@@ -594,36 +608,18 @@ public class BuildManager implements ApplicationComponent{
                     return;
                   }
                   myBuildsInProgress.put(projectPath, future);
+                  if (keepAliveTimeout > 0) {
+                    runInKeptAliveProcess(project, projectPath, sessionId, future, handler, keepAliveTimeout);
+                    return;
+                  }
+                  shutdownKeptAliveProcess(projectPath);
                   final OSProcessHandler processHandler = launchBuildProcess(project, myListenPort, sessionId);
                   final StringBuilder stdErrOutput = new StringBuilder();
-                  processHandler.addProcessListener(new ProcessAdapter() {
-                    @Override
-                    public void onTextAvailable(ProcessEvent event, Key outputType) {
-                      // re-translate builder's output to idea.log
-                      final String text = event.getText();
-                      if (!StringUtil.isEmptyOrSpaces(text)) {
-                        LOG.info("BUILDER_PROCESS [" + outputType.toString() + "]: " + text.trim());
-                        if (stdErrOutput.length() < 1024 && ProcessOutputTypes.STDERR.equals(outputType)) {
-                          stdErrOutput.append(text);
-                        }
-                      }
-                    }
-                  });
+                  processHandler.addProcessListener(createOutputLogger(stdErrOutput));
                   processHandler.startNotify();
                   final boolean terminated = processHandler.waitFor();
                   if (terminated) {
-                    final int exitValue = processHandler.getProcess().exitValue();
-                    if (exitValue != 0) {
-                      final StringBuilder msg = new StringBuilder();
-                      msg.append("Abnormal build process termination: ");
-                      if (stdErrOutput.length() > 0) {
-                        msg.append("\n").append(stdErrOutput);
-                      }
-                      else {
-                        msg.append("unknown error");
-                      }
-                      handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure(msg.toString(), null));
-                    }
+                    reportAbnormalTermination(processHandler, stdErrOutput, sessionId, handler);
                   }
                   else {
                     handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure("Disconnected from build process", null));
@@ -669,6 +665,121 @@ public class BuildManager implements ApplicationComponent{
     return null;
   }
 
+  private static ProcessAdapter createOutputLogger(final StringBuilder stdErrOutput) {
+    return new ProcessAdapter() {
+      @Override
+      public void onTextAvailable(ProcessEvent event, Key outputType) {
+        // re-translate builder's output to idea.log
+        final String text = event.getText();
+        if (!StringUtil.isEmptyOrSpaces(text)) {
+          LOG.info("BUILDER_PROCESS [" + outputType.toString() + "]: " + text.trim());
+          if (stdErrOutput.length() < 1024 && ProcessOutputTypes.STDERR.equals(outputType)) {
+            stdErrOutput.append(text);
+          }
+        }
+      }
+    };
+  }
+
+  private static void reportAbnormalTermination(OSProcessHandler processHandler, StringBuilder stdErrOutput, UUID sessionId,
+                                                DefaultMessageHandler handler) {
+    final int exitValue = processHandler.getProcess().exitValue();
+    if (exitValue != 0) {
+      final StringBuilder msg = new StringBuilder();
+      msg.append("Abnormal build process termination: ");
+      if (stdErrOutput.length() > 0) {
+        msg.append("\n").append(stdErrOutput);
+      }
+      else {
+        msg.append("unknown error");
+      }
+      handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure(msg.toString(), null));
+    }
+  }
+
+  /**
+   * Runs the session in the build process kept alive for the project, the process is started if there is none yet or the existing
+   * one cannot be reused. Returns when the session has terminated.
+   */
+  private void runInKeptAliveProcess(Project project, final String projectPath, final UUID sessionId, RequestFuture future,
+                                     DefaultMessageHandler handler, int keepAliveTimeout) throws ExecutionException {
+    final GeneralCommandLine cmdLine = createBuildProcessCommandLine(project, myListenPort, sessionId, keepAliveTimeout);
+    final String commandLine = StringUtil.replace(cmdLine.getCommandLineString(), sessionId.toString(), "");
+
+    KeptAliveProcess process = myKeptAliveProcesses.get(projectPath);
+    if (process != null && !process.canRunSession(commandLine, keepAliveTimeout)) {
+      shutdownKeptAliveProcess(projectPath);
+      process = null;
+    }
+
+    if (process != null) {
+      process.currentSession = sessionId;
+      if (!myMessageDispatcher.startSession(sessionId, process.channel)) {
+        return;
+      }
+    }
+    else {
+      final OSProcessHandler processHandler = startBuildProcess(cmdLine);
+      final KeptAliveProcess newProcess = new KeptAliveProcess(processHandler, commandLine);
+      processHandler.addProcessListener(createOutputLogger(newProcess.stdErrOutput));
+      processHandler.addProcessListener(new ProcessAdapter() {
+        @Override
+        public void processTerminated(ProcessEvent event) {
+          synchronized (myKeptAliveProcesses) {
+            if (myKeptAliveProcesses.get(projectPath) == newProcess) {
+              myKeptAliveProcesses.remove(projectPath);
+            }
+          }
+          final UUID session = newProcess.currentSession;
+          if (session != null && myMessageDispatcher.getAssociatedChannel(session) == null) {
+            // the process has exited before connecting, so the dispatcher cannot notice the session is over
+            final BuilderMessageHandler unregistered = myMessageDispatcher.unregisterBuildMessageHandler(session);
+            if (unregistered != null) {
+              unregistered.sessionTerminated(session);
+            }
+          }
+        }
+      });
+      newProcess.currentSession = sessionId;
+      myKeptAliveProcesses.put(projectPath, newProcess);
+      process = newProcess;
+      processHandler.startNotify();
+    }
+
+    future.waitFor();
+
+    process.currentSession = null;
+    process.lastSessionEnd = System.currentTimeMillis();
+    final Channel channel = process.channel;
+    if (channel == null || !channel.isConnected()) {
+      // the process has exited during the session or the connection is unusable for the next one
+      shutdownKeptAliveProcess(projectPath);
+      if (process.processHandler.isProcessTerminated()) {
+        reportAbnormalTermination(process.processHandler, process.stdErrOutput, sessionId, handler);
+      }
+    }
+  }
+
+  /**
+   * Shuts the process kept alive for the project down without waiting for it to exit. The shutdown goes through the requests queue,
+   * so builds scheduled after it cannot start another process for the project while the old one still has the storages open.
+   */
+  private Future<?> releaseKeptAliveProcess(final String projectPath) {
+    return myRequestsProcessor.submit(new Runnable() {
+      @Override
+      public void run() {
+        shutdownKeptAliveProcess(projectPath);
+      }
+    });
+  }
+
+  private void shutdownKeptAliveProcess(String projectPath) {
+    final KeptAliveProcess process = myKeptAliveProcesses.remove(projectPath);
+    if (process != null) {
+      process.shutdown();
+    }
+  }
+
   @Override
   public void initComponent() {
   }
@@ -718,6 +829,25 @@ public class BuildManager implements ApplicationComponent{
   }
 
   private OSProcessHandler launchBuildProcess(Project project, final int port, final UUID sessionId) throws ExecutionException {
+    return startBuildProcess(createBuildProcessCommandLine(project, port, sessionId, 0));
+  }
+
+  private OSProcessHandler startBuildProcess(GeneralCommandLine cmdLine) throws ExecutionException {
+    final Process process = cmdLine.createProcess();
+
+    return new OSProcessHandler(process, null, mySystemCharset) {
+      @Override
+      protected boolean shouldDestroyProcessRecursively() {
+        return true;
+      }
+    };
+  }
+
+  /**
+   * @param keepAliveTimeout seconds the process should wait for further build sessions, 0 if it should exit after the build
+   */
+  private GeneralCommandLine createBuildProcessCommandLine(Project project, final int port, final UUID sessionId, int keepAliveTimeout)
+    throws ExecutionException {
     final String compilerPath;
     final String vmExecutablePath;
     JavaSdkVersion sdkVersion = null;
@@ -851,6 +981,19 @@ public class BuildManager implements ApplicationComponent{
     if (Registry.is("compiler.process.use.external.javac")) {
       cmdLine.addParameter("-D"+ GlobalOptions.USE_EXTERNAL_JAVAC_OPTION);
     }
+    if (Registry.is("compiler.process.reuse.javac.file.managers")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.REUSE_JAVAC_FILE_MANAGERS_OPTION);
+    }
+    if (Registry.is("compiler.process.build.profile")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.BUILD_PROFILE_OPTION + "=true");
+    }
+    final String buildCacheDir = Registry.stringValue("compiler.process.build.cache.dir");
+    if (!StringUtil.isEmptyOrSpaces(buildCacheDir)) {
+      cmdLine.addParameter("-D" + GlobalOptions.BUILD_CACHE_DIR_OPTION + "=" + FileUtil.toSystemIndependentName(buildCacheDir.trim()));
+    }
+    if (keepAliveTimeout > 0) {
+      cmdLine.addParameter("-D" + GlobalOptions.KEEP_ALIVE_TIMEOUT_OPTION + "=" + keepAliveTimeout);
+    }
 
     // javac's VM should use the same default locale that IDEA uses in order for javac to print messages in 'correct' language
     if (mySystemCharset != null) {
@@ -891,14 +1034,7 @@ public class BuildManager implements ApplicationComponent{
 
     cmdLine.setWorkDirectory(workDirectory);
 
-    final Process process = cmdLine.createProcess();
-
-    return new OSProcessHandler(process, null, mySystemCharset) {
-      @Override
-      protected boolean shouldDestroyProcessRecursively() {
-        return true;
-      }
-    };
+    return cmdLine;
   }
 
   public File getBuildSystemDirectory() {
@@ -1008,6 +1144,18 @@ public class BuildManager implements ApplicationComponent{
     myProjectDataMap.remove(getProjectPath(project));
   }
 
+  @TestOnly
+  @Nullable
+  public ProcessHandler getKeptAliveProcessHandler(Project project) {
+    final KeptAliveProcess process = myKeptAliveProcesses.get(getProjectPath(project));
+    return process != null ? process.processHandler : null;
+  }
+
+  @TestOnly
+  public Future<?> releaseKeptAliveProcess(Project project) {
+    return releaseKeptAliveProcess(getProjectPath(project));
+  }
+
   private static String classpathToString(List<String> cp) {
     StringBuilder builder = new StringBuilder();
     for (String file : cp) {
@@ -1145,7 +1293,9 @@ public class BuildManager implements ApplicationComponent{
 
     @Override
     public void projectClosed(Project project) {
-      myProjectDataMap.remove(getProjectPath(project));
+      final String projectPath = getProjectPath(project);
+      myProjectDataMap.remove(projectPath);
+      releaseKeptAliveProcess(projectPath);
       final MessageBusConnection conn = myConnections.remove(project);
       if (conn != null) {
         conn.disconnect();
@@ -1153,6 +1303,55 @@ public class BuildManager implements ApplicationComponent{
     }
   }
 
+  /**
+   * Build process serving several build sessions of a project, it keeps the project loaded between builds and exits after being idle
+   * for the timeout passed in {@link GlobalOptions#KEEP_ALIVE_TIMEOUT_OPTION}
+   */
+  private static final class KeptAliveProcess {
+    private static final long TERMINATION_TIMEOUT = 30000L;
+    /**
+     * Time the process may still be idle for a session to be started in it, so that it does not exit while the session is sent
+     */
+    private static final long IDLE_MARGIN = 10000L;
+
+    final OSProcessHandler processHandler;
+    /**
+     * Command line the process was started with, without the session id. The process is restarted if a session needs another one,
+     * e.g. after the build process heap size or the JDK has changed.
+     */
+    final String commandLine;
+    final StringBuilder stdErrOutput = new StringBuilder();
+    volatile Channel channel;
+    volatile UUID currentSession;
+    volatile long lastSessionEnd;
+
+    private KeptAliveProcess(OSProcessHandler processHandler, String commandLine) {
+      this.processHandler = processHandler;
+      this.commandLine = commandLine;
+    }
+
+    boolean canRunSession(String commandLine, int keepAliveTimeout) {
+      final Channel channel = this.channel;
+      return channel != null && channel.isConnected() && !processHandler.isProcessTerminated() &&
+             this.commandLine.equals(commandLine) && System.currentTimeMillis() - lastSessionEnd < keepAliveTimeout * 1000L - IDLE_MARGIN;
+    }
+
+    /**
+     * Disconnects from the process, which makes it close the project storages and exit. The method waits for that, since another
+     * process for the same project must not open the storages meanwhile.
+     */
+    void shutdown() {
+      final Channel channel = this.channel;
+      if (channel != null) {
+        channel.close();
+      }
+      if (channel == null || !processHandler.waitFor(TERMINATION_TIMEOUT)) {
+        processHandler.destroyProcess();
+        processHandler.waitFor(TERMINATION_TIMEOUT);
+      }
+    }
+  }
+
   private static class ProjectData {
     final SequentialTaskExecutor taskQueue;
     private final Set<String> myChanged = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
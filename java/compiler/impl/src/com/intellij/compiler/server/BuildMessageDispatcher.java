@@ -40,7 +40,39 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
   public void registerBuildMessageHandler(UUID sessionId,
                                           BuilderMessageHandler handler,
                                           CmdlineRemoteProto.Message.ControllerMessage params) {
-    myMessageHandlers.put(sessionId, new SessionData(sessionId, handler, params));
+    registerBuildMessageHandler(sessionId, handler, params, false);
+  }
+
+  /**
+   * @param processKeptAlive whether the session runs in a build process serving several sessions, such a session is terminated
+   *                         by its last message rather than by closing the connection
+   */
+  public void registerBuildMessageHandler(UUID sessionId,
+                                          BuilderMessageHandler handler,
+                                          CmdlineRemoteProto.Message.ControllerMessage params,
+                                          boolean processKeptAlive) {
+    myMessageHandlers.put(sessionId, new SessionData(sessionId, handler, params, processKeptAlive));
+  }
+
+  /**
+   * Sends parameters of the registered session to a build process kept alive after its previous session
+   *
+   * @return false if the session is not registered anymore
+   */
+  public boolean startSession(UUID sessionId, Channel channel) {
+    final SessionData data = myMessageHandlers.get(sessionId);
+    final CmdlineRemoteProto.Message.ControllerMessage params = data != null ? data.params : null;
+    if (params == null) {
+      return false;
+    }
+    data.channel = channel;
+    data.params = null;
+    data.handler.buildStarted(sessionId);
+    Channels.write(channel, CmdlineProtoUtil.toMessage(sessionId, params));
+    if (myCanceledSessions.contains(sessionId)) {
+      Channels.write(channel, CmdlineProtoUtil.toMessage(sessionId, CmdlineProtoUtil.createCancelCommand()));
+    }
+    return true;
   }
 
   @Nullable
@@ -77,11 +109,14 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     final CmdlineRemoteProto.Message message = (CmdlineRemoteProto.Message)e.getMessage();
 
     SessionData sessionData = (SessionData)ctx.getAttachment();
+    final CmdlineRemoteProto.Message.UUID id = message.getSessionId();
 
     UUID sessionId;
-    if (sessionData == null) {
-      // this is the first message for this session, so fill session data with missing info
-      final CmdlineRemoteProto.Message.UUID id = message.getSessionId();
+    if (sessionData == null ||
+        sessionData.sessionId.getMostSignificantBits() != id.getMostSigBits() ||
+        sessionData.sessionId.getLeastSignificantBits() != id.getLeastSigBits()) {
+      // this is the first message for this session, so fill session data with missing info;
+      // a build process kept alive runs its sessions one after another over the same connection
       sessionId = new UUID(id.getMostSigBits(), id.getLeastSigBits());
 
       sessionData = myMessageHandlers.get(sessionId);
@@ -108,6 +143,9 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     switch (messageType) {
       case FAILURE:
         handler.handleFailure(sessionId, message.getFailure());
+        if (sessionData.processKeptAlive) {
+          terminateSession(sessionId);
+        }
         break;
 
       case BUILDER_MESSAGE:
@@ -126,6 +164,10 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
         }
         else {
           handler.handleBuildMessage(ctx.getChannel(), sessionId, builderMessage);
+          if (sessionData.processKeptAlive && msgType == CmdlineRemoteProto.Message.BuilderMessage.Type.BUILD_EVENT &&
+              builderMessage.getBuildEvent().getEventType() == CmdlineRemoteProto.Message.BuilderMessage.BuildEvent.Type.BUILD_COMPLETED) {
+            terminateSession(sessionId);
+          }
         }
         break;
 
@@ -135,6 +177,13 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     }
   }
 
+  private void terminateSession(UUID sessionId) {
+    final BuilderMessageHandler handler = unregisterBuildMessageHandler(sessionId);
+    if (handler != null) {
+      handler.sessionTerminated(sessionId);
+    }
+  }
+
   @Override
   public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
     try {
@@ -183,13 +232,16 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
   private static final class SessionData {
     final UUID sessionId;
     final BuilderMessageHandler handler;
+    final boolean processKeptAlive;
     volatile CmdlineRemoteProto.Message.ControllerMessage params;
     volatile Channel channel;
 
-    private SessionData(UUID sessionId, BuilderMessageHandler handler, CmdlineRemoteProto.Message.ControllerMessage params) {
+    private SessionData(UUID sessionId, BuilderMessageHandler handler, CmdlineRemoteProto.Message.ControllerMessage params,
+                        boolean processKeptAlive) {
       this.sessionId = sessionId;
       this.handler = handler;
       this.params = params;
+      this.processKeptAlive = processKeptAlive;
     }
   }
 }
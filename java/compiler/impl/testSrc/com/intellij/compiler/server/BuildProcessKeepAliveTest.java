@@ -0,0 +1,71 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.compiler.server;
+
+import com.intellij.compiler.BaseCompilerTestCase;
+import com.intellij.execution.process.ProcessHandler;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.intellij.util.io.TestFileSystemBuilder.fs;
+
+public class BuildProcessKeepAliveTest extends BaseCompilerTestCase {
+  @Override
+  protected boolean useExternalCompiler() {
+    return true;
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Registry.get("compiler.process.keep.alive").setValue(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      Registry.get("compiler.process.keep.alive").resetToDefault();
+      BuildManager.getInstance().releaseKeptAliveProcess(myProject).get(1, TimeUnit.MINUTES);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testProcessIsReusedAndShutDown() throws Exception {
+    VirtualFile file = createFile("src/A.java", "class A{}");
+    Module module = addModule("a", file.getParent());
+    make(module);
+    assertOutput(module, fs().file("A.class"));
+
+    BuildManager buildManager = BuildManager.getInstance();
+    ProcessHandler process = buildManager.getKeptAliveProcessHandler(myProject);
+    assertNotNull(process);
+    assertFalse(process.isProcessTerminated());
+
+    createFile("src/B.java", "class B{}");
+    make(module);
+    assertOutput(module, fs().file("A.class").file("B.class"));
+    assertSame(process, buildManager.getKeptAliveProcessHandler(myProject));
+
+    buildManager.releaseKeptAliveProcess(myProject).get(1, TimeUnit.MINUTES);
+    assertNull(buildManager.getKeptAliveProcessHandler(myProject));
+    assertTrue(process.isProcessTerminated());
+  }
+}
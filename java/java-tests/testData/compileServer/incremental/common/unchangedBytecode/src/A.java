@@ -0,0 +1,3 @@
+public class A {
+  public int foo() { return 1; } // first version
+}
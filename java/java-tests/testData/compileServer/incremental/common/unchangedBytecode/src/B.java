@@ -0,0 +1,5 @@
+public class B {
+  public int bar(A a) {
+    return a.foo();
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon;
+
+import com.intellij.codeInsight.daemon.impl.Divider;
+import com.intellij.codeInsight.daemon.impl.analysis.HighlightLevelUtil;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiJavaFile;
+import com.intellij.psi.PsiMethod;
+import com.intellij.testFramework.fixtures.LightCodeInsightFixtureTestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+public class DividerTest extends LightCodeInsightFixtureTestCase {
+  private static final String TEXT = "class Foo {\n" +
+                                     "  void m1() { int a = 1; }\n" +
+                                     "  void m2() { int b = 2; }\n" +
+                                     "  void m3() { int c = 3; }\n" +
+                                     "\n" +
+                                     "\n" +
+                                     "  void m4() { int d = 4; }\n" +
+                                     "  void m5() { int e = 5; }\n" +
+                                     "}\n";
+
+  public void testWholeFileIsSortedOutwardFromRange() {
+    PsiMethod[] methods = configure();
+    List<PsiElement> outside = doTest(0, myFixture.getFile().getTextLength(), methods[2].getTextRange(), false);
+    assertOrder(outside, methods[1], methods[3], methods[0], methods[4], methods[0].getParent());
+  }
+
+  public void testPartOfFileWithParentsIsSortedOutwardFromRange() {
+    PsiMethod[] methods = configure();
+    TextRange restricted = new TextRange(methods[1].getTextRange().getStartOffset(), methods[3].getTextRange().getEndOffset());
+    List<PsiElement> outside = doTest(restricted.getStartOffset(), restricted.getEndOffset(), methods[2].getTextRange(), true);
+    assertFalse(outside.contains(methods[0]));
+    assertFalse(outside.contains(methods[4]));
+    assertOrder(outside, methods[1], methods[3], methods[0].getParent());
+  }
+
+  private PsiMethod[] configure() {
+    PsiFile file = myFixture.configureByText("Foo.java", TEXT);
+    return ((PsiJavaFile)file).getClasses()[0].getMethods();
+  }
+
+  private List<PsiElement> doTest(int startOffset, int endOffset, TextRange range, boolean includeParents) {
+    List<PsiElement> inside = new ArrayList<PsiElement>();
+    List<PsiElement> outside = new ArrayList<PsiElement>();
+    Divider.divideInsideAndOutside(myFixture.getFile(), startOffset, endOffset, range, inside, outside,
+                                   HighlightLevelUtil.AnalysisLevel.HIGHLIGHT, includeParents);
+    assertFalse(inside.isEmpty());
+    List<PsiElement> insideBefore = new ArrayList<PsiElement>(inside);
+    List<PsiElement> outsideBefore = new ArrayList<PsiElement>(outside);
+    assertChildrenBeforeParents(outsideBefore);
+
+    Divider.sortByDistanceFromRange(outside, range);
+
+    assertEquals(insideBefore, inside);
+    assertEquals(outsideBefore.size(), outside.size());
+    assertEquals(new HashSet<PsiElement>(outsideBefore), new HashSet<PsiElement>(outside));
+    assertChildrenBeforeParents(outside);
+
+    // subtrees lying entirely on one side of the range come nearest first, the elements overlapping the range go last
+    int lastDistance = 0;
+    boolean enclosingSeen = false;
+    for (PsiElement element : outside) {
+      int distance = distance(element.getTextRange(), range);
+      if (distance < 0) {
+        enclosingSeen = true;
+        continue;
+      }
+      assertFalse(element.toString(), enclosingSeen);
+      PsiElement parent = element.getParent();
+      if (parent instanceof PsiFile || distance(parent.getTextRange(), range) < 0) {
+        assertTrue(element + " at " + distance + " after " + lastDistance, distance >= lastDistance);
+        lastDistance = distance;
+      }
+    }
+    assertTrue(enclosingSeen);
+    assertTrue(lastDistance > 0);
+    return outside;
+  }
+
+  private static void assertOrder(List<PsiElement> elements, PsiElement... expected) {
+    int lastIndex = -1;
+    for (PsiElement element : expected) {
+      int index = elements.indexOf(element);
+      assertTrue(element + " at " + index + " must follow " + lastIndex, index > lastIndex);
+      lastIndex = index;
+    }
+  }
+
+  private static int distance(TextRange elementRange, TextRange range) {
+    if (elementRange.getEndOffset() <= range.getStartOffset()) return range.getStartOffset() - elementRange.getEndOffset();
+    if (elementRange.getStartOffset() >= range.getEndOffset()) return elementRange.getStartOffset() - range.getEndOffset();
+    return -1;
+  }
+
+  private static void assertChildrenBeforeParents(List<PsiElement> elements) {
+    for (int i = 0; i < elements.size(); i++) {
+      PsiElement element = elements.get(i);
+      int parentIndex = elements.indexOf(element.getParent());
+      assertTrue(element + " must precede its parent", parentIndex == -1 || parentIndex > i);
+    }
+  }
+}
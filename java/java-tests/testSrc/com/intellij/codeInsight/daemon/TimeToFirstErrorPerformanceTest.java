@@ -0,0 +1,179 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon;
+
+import com.intellij.codeHighlighting.HighlightDisplayLevel;
+import com.intellij.codeInsight.daemon.impl.HighlightInfo;
+import com.intellij.codeInspection.LocalInspectionTool;
+import com.intellij.codeInspection.LocalInspectionToolSession;
+import com.intellij.codeInspection.ProblemsHolder;
+import com.intellij.lang.annotation.HighlightSeverity;
+import com.intellij.openapi.editor.ex.MarkupModelEx;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
+import com.intellij.openapi.editor.impl.DocumentMarkupModel;
+import com.intellij.openapi.editor.impl.event.MarkupModelListener;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.psi.JavaElementVisitor;
+import com.intellij.psi.PsiElementVisitor;
+import com.intellij.psi.PsiLiteralExpression;
+import com.intellij.util.TimeoutUtil;
+import org.jetbrains.annotations.Nls;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Measures how soon errors outside the visible area of a 10k-line file get to the editor.
+ */
+public class TimeToFirstErrorPerformanceTest extends LightDaemonAnalyzerTestCase {
+  private static final int METHODS = 2500; // four lines each
+  private static final int ERROR_METHOD = 50;
+  private static final long STREAMED_ERROR_TIMEOUT_MS = 10000;
+  private static final String ERROR_LITERAL_MESSAGE = "Error literal";
+
+  private volatile boolean myMeasuring;
+  private volatile long myFirstErrorTime;
+  private volatile long myInspectionErrorTime;
+  private volatile long myInspectionFinishedTime;
+
+  @NotNull
+  @Override
+  protected LocalInspectionTool[] configureLocalInspectionTools() {
+    return new LocalInspectionTool[]{new ErrorLiteralInspection()};
+  }
+
+  public void testErrorsOutsideVisibleAreaAreStreamed() throws IOException {
+    // the first highlighting of a file loads a lot of classes
+    configureFromFileText("Warmup.java", generateClass("Warmup", 100));
+    assertEquals(2, highlightErrors().size());
+
+    configureFromFileText("A.java", generateClass("A", METHODS));
+    assertEquals(METHODS * 4 + 2, getEditor().getDocument().getLineCount());
+    MarkupModelEx markup = (MarkupModelEx)DocumentMarkupModel.forDocument(getEditor().getDocument(), getProject(), true);
+    markup.addMarkupModelListener(getTestRootDisposable(), new MarkupModelListener() {
+      @Override
+      public void afterAdded(@NotNull RangeHighlighterEx highlighter) {
+        Object tooltip = highlighter.getErrorStripeTooltip();
+        if (!myMeasuring || !(tooltip instanceof HighlightInfo)) return;
+        HighlightInfo info = (HighlightInfo)tooltip;
+        if (info.getSeverity() != HighlightSeverity.ERROR) return;
+        long now = System.currentTimeMillis();
+        if (myFirstErrorTime == 0) {
+          myFirstErrorTime = now;
+        }
+        if (ERROR_LITERAL_MESSAGE.equals(info.description) && myInspectionErrorTime == 0) {
+          myInspectionErrorTime = now;
+        }
+      }
+
+      @Override
+      public void beforeRemoved(@NotNull RangeHighlighterEx highlighter) {
+      }
+
+      @Override
+      public void attributesChanged(@NotNull RangeHighlighterEx highlighter) {
+      }
+    });
+
+    myMeasuring = true;
+    long start = System.currentTimeMillis();
+    List<HighlightInfo> errors;
+    try {
+      errors = highlightErrors();
+    }
+    finally {
+      myMeasuring = false;
+    }
+    long finish = System.currentTimeMillis();
+    assertEquals(2, errors.size());
+
+    // the light test editor shows no lines, so both errors are found while the passes visit elements outside the visible area
+    long timeToFirstError = myFirstErrorTime - start;
+    String message = "Time to first error in a file of " + METHODS * 4 + " lines: " + timeToFirstError + "ms" +
+                     ", to the inspection error: " + (myInspectionErrorTime - start) + "ms" +
+                     ", whole highlighting: " + (finish - start) + "ms";
+    System.out.println(message);
+    assertTrue(message, myFirstErrorTime != 0 && timeToFirstError < (finish - start) / 4);
+    assertTrue("the inspection error was not streamed to the editor",
+               myInspectionErrorTime != 0 && myInspectionErrorTime < myInspectionFinishedTime);
+  }
+
+  @NotNull
+  private static String generateClass(@NotNull String name, int methods) {
+    StringBuilder text = new StringBuilder("class " + name + " {\n");
+    for (int i = 0; i < methods; i++) {
+      text.append("  int m").append(i).append("() {\n");
+      text.append("    String s = \"").append(i == ERROR_METHOD ? "error" : "s" + i).append("\";\n");
+      text.append("    return s.").append(i == ERROR_METHOD ? "size" : "length").append("();\n");
+      text.append("  }\n");
+    }
+    return text.append("}").toString();
+  }
+
+  private class ErrorLiteralInspection extends LocalInspectionTool {
+    @Nls
+    @NotNull
+    @Override
+    public String getGroupDisplayName() {
+      return "TimeToFirstError";
+    }
+
+    @Nls
+    @NotNull
+    @Override
+    public String getDisplayName() {
+      return "Error literal";
+    }
+
+    @NotNull
+    @Override
+    public String getShortName() {
+      return "ErrorLiteral";
+    }
+
+    @NotNull
+    @Override
+    public HighlightDisplayLevel getDefaultLevel() {
+      return HighlightDisplayLevel.ERROR;
+    }
+
+    @NotNull
+    @Override
+    public PsiElementVisitor buildVisitor(@NotNull final ProblemsHolder holder, boolean isOnTheFly) {
+      return new JavaElementVisitor() {
+        @Override
+        public void visitLiteralExpression(PsiLiteralExpression expression) {
+          if ("error".equals(expression.getValue())) {
+            holder.registerProblem(expression, ERROR_LITERAL_MESSAGE);
+          }
+        }
+      };
+    }
+
+    @Override
+    public void inspectionFinished(LocalInspectionToolSession session, ProblemsHolder problemsHolder) {
+      if (!myMeasuring) return;
+      // results collected until now reach the editor only with the whole pass unless they are streamed
+      long deadline = System.currentTimeMillis() + STREAMED_ERROR_TIMEOUT_MS;
+      while (myInspectionErrorTime == 0 && System.currentTimeMillis() < deadline) {
+        ProgressManager.checkCanceled();
+        TimeoutUtil.sleep(10);
+      }
+      myInspectionFinishedTime = System.currentTimeMillis();
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.ide.highlighter.JavaFileHighlighter;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.ex.DocumentEx;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.impl.EditorHighlighterCache;
+import com.intellij.testFramework.LightPlatformCodeInsightTestCase;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+public class LexerEditorHighlighterRelexingTest extends LightPlatformCodeInsightTestCase {
+  private int myOldTimeBudget;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // relex only the visible area synchronously
+    myOldTimeBudget = LexerEditorHighlighter.setRelexingTimeBudgetInTests(0);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    LexerEditorHighlighter.setRelexingTimeBudgetInTests(myOldTimeBudget);
+    super.tearDown();
+  }
+
+  public void testBulkChangeIsRelexedInBackground() throws Exception {
+    LexerEditorHighlighter highlighter = configure();
+    replaceInBulkMode("int", "long");
+    // the document is lexed up to the offset of the first iterator created after the bulk change
+    highlighter.createIterator(0);
+    assertEquals(LexerEditorHighlighter.NOT_LEXED, highlighter.createIterator(myEditor.getDocument().getTextLength() - 1).getTokenType());
+
+    waitForRelexing(highlighter);
+    checkTokens(highlighter);
+  }
+
+  public void testTypingWhileRelexingInBackground() throws Exception {
+    LexerEditorHighlighter highlighter = configure();
+    replaceInBulkMode("int", "long");
+    highlighter.createIterator(0);
+    assertTrue(highlighter.isRelexingInProgress());
+
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        myEditor.getDocument().insertString(0, "/** doc */\n");
+        myEditor.getDocument().insertString(myEditor.getDocument().getTextLength() / 2, "\"string\" ");
+      }
+    });
+
+    waitForRelexing(highlighter);
+    checkTokens(highlighter);
+  }
+
+  public void testTypingUnclosedCommentNearTheTop() throws Exception {
+    LexerEditorHighlighter highlighter = configure();
+    Document document = myEditor.getDocument();
+    assertSame(highlighter, EditorHighlighterCache.getEditorHighlighterForCachesBuilding(document));
+
+    insertString(document.getLineStartOffset(2), "/* ");
+    assertTrue(highlighter.isRelexingInProgress());
+    checkTokensCoverDocument(highlighter);
+    // the tokens after the comment start are stale, they must not get into the indices
+    assertFalse(highlighter.isValid());
+    assertNull(EditorHighlighterCache.getEditorHighlighterForCachesBuilding(document));
+
+    // the comment is closed while the rest of the document is still waiting to be relexed
+    insertString(document.getLineStartOffset(5), "*/ ");
+    checkTokensCoverDocument(highlighter);
+    insertString(document.getLineStartOffset(3), "/* ");
+    checkTokensCoverDocument(highlighter);
+    waitForRelexing(highlighter);
+    checkTokens(highlighter);
+    assertTrue(highlighter.isValid());
+    assertSame(highlighter, EditorHighlighterCache.getEditorHighlighterForCachesBuilding(document));
+  }
+
+  @NotNull
+  private static LexerEditorHighlighter configure() throws Exception {
+    StringBuilder text = new StringBuilder("class Foo {\n");
+    for (int i = 0; i < 10000; i++) {
+      text.append("  int field").append(i).append(" = ").append(i).append("; // comment\n");
+    }
+    text.append("}");
+    configureFromFileText("Foo.java", text.toString());
+
+    LexerEditorHighlighter highlighter = createHighlighter();
+    ((EditorEx)myEditor).setHighlighter(highlighter);
+    return highlighter;
+  }
+
+  @NotNull
+  private static LexerEditorHighlighter createHighlighter() {
+    return new LexerEditorHighlighter(new JavaFileHighlighter(), EditorColorsManager.getInstance().getGlobalScheme());
+  }
+
+  private static void insertString(final int offset, @NotNull final String s) {
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        myEditor.getDocument().insertString(offset, s);
+      }
+    });
+  }
+
+  private static void replaceInBulkMode(@NotNull final String from, @NotNull final String to) {
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        DocumentEx document = (DocumentEx)myEditor.getDocument();
+        document.setInBulkUpdate(true);
+        try {
+          for (int offset = document.getText().lastIndexOf(from); offset >= 0; offset = document.getText().lastIndexOf(from, offset - 1)) {
+            document.replaceString(offset, offset + from.length(), to);
+          }
+        }
+        finally {
+          document.setInBulkUpdate(false);
+        }
+      }
+    });
+  }
+
+  private static void waitForRelexing(@NotNull LexerEditorHighlighter highlighter) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 30000;
+    while (highlighter.isRelexingInProgress()) {
+      assertTrue("Background relexing takes too long", System.currentTimeMillis() < deadline);
+      UIUtil.dispatchAllInvocationEvents();
+      Thread.sleep(10);
+    }
+  }
+
+  private static void checkTokensCoverDocument(@NotNull LexerEditorHighlighter highlighter) {
+    HighlighterIterator iterator = highlighter.createIterator(0);
+    int end = 0;
+    while (!iterator.atEnd()) {
+      assertEquals(end, iterator.getStart());
+      assertTrue(iterator.getEnd() > end);
+      end = iterator.getEnd();
+      iterator.advance();
+    }
+    assertEquals(myEditor.getDocument().getTextLength(), end);
+  }
+
+  private static void checkTokens(@NotNull LexerEditorHighlighter highlighter) {
+    LexerEditorHighlighter expected = createHighlighter();
+    expected.setText(myEditor.getDocument().getCharsSequence());
+
+    HighlighterIterator expectedIterator = expected.createIterator(0);
+    HighlighterIterator iterator = highlighter.createIterator(0);
+    while (!expectedIterator.atEnd()) {
+      assertFalse(iterator.atEnd());
+      assertEquals(expectedIterator.getStart(), iterator.getStart());
+      assertEquals(expectedIterator.getEnd(), iterator.getEnd());
+      assertEquals(expectedIterator.getTokenType(), iterator.getTokenType());
+      expectedIterator.advance();
+      iterator.advance();
+    }
+    assertTrue(iterator.atEnd());
+  }
+}
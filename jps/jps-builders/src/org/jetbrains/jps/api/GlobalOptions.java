@@ -25,4 +25,24 @@ public interface GlobalOptions {
   String GENERATE_CLASSPATH_INDEX_OPTION = "generate.classpath.index";
   String COMPILE_PARALLEL_OPTION = "compile.parallel";
   String COMPILE_PARALLEL_MAX_THREADS_OPTION = "compile.parallel.max.threads";
+  /**
+   * Seconds the build process stays idle with the project loaded waiting for the next build request; if not set, the process
+   * exits after a single build
+   */
+  String KEEP_ALIVE_TIMEOUT_OPTION = "compile.server.keep.alive.timeout";
+  /**
+   * If set, javac file managers are not closed after a compilation and are reused by subsequent compilations with the same
+   * options and classpath, so that opened library jars are not read again
+   */
+  String REUSE_JAVAC_FILE_MANAGERS_OPTION = "compile.reuse.javac.file.managers";
+  /**
+   * Path to a directory where outputs of module targets are stored keyed by the contents of their sources and classpath; a module
+   * whose outputs are found there is not compiled. The directory may be shared between checkouts of the project
+   */
+  String BUILD_CACHE_DIR_OPTION = "compile.build.cache.dir";
+  /**
+   * If set, the build process measures time spent in targets, builders, javac, dependency analysis and storage flushes, and reports
+   * it at the end of the build in Chrome trace format
+   */
+  String BUILD_PROFILE_OPTION = "compile.build.profile";
 }
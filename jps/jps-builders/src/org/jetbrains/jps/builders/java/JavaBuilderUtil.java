@@ -77,6 +77,7 @@ public class JavaBuilderUtil {
 
       final Mappings globalMappings = context.getProjectDescriptor().dataManager.getMappings();
 
+      final long differentiateStart = BuildProfiler.now();
       if (!context.isProjectRebuild()) {
         if (context.shouldDifferentiate(chunk)) {
           context.processMessage(new ProgressMessage("Checking dependencies... [" + chunk.getName() + "]"));
@@ -98,6 +99,7 @@ public class JavaBuilderUtil {
             delta, removedPaths, filesToCompile, allCompiledFiles, allAffectedFiles, moduleBasedFilter,
             CONSTANT_SEARCH_SERVICE.get(context)
           );
+          BuildProfiler.record(context, BuildProfiler.DEPENDENCY_ANALYSIS, "differentiate", chunk.getName(), differentiateStart);
 
           if (LOG.isDebugEnabled()) {
             LOG.debug("Differentiate Results:");
@@ -155,15 +157,19 @@ public class JavaBuilderUtil {
         }
         else {
           globalMappings.differentiateOnNonIncrementalMake(delta, removedPaths, filesToCompile);
+          BuildProfiler.record(context, BuildProfiler.DEPENDENCY_ANALYSIS, "differentiate", chunk.getName(), differentiateStart);
         }
       }
       else {
         globalMappings.differentiateOnRebuild(delta);
+        BuildProfiler.record(context, BuildProfiler.DEPENDENCY_ANALYSIS, "differentiate", chunk.getName(), differentiateStart);
       }
 
       context.processMessage(new ProgressMessage("Updating dependency information... [" + chunk.getName() + "]"));
 
+      final long integrateStart = BuildProfiler.now();
       globalMappings.integrate(delta);
+      BuildProfiler.record(context, BuildProfiler.DEPENDENCY_ANALYSIS, "integrate", chunk.getName(), integrateStart);
 
       return additionalPassRequired;
     }
@@ -43,6 +43,7 @@ public class ClassRepr extends Proto {
   private final int myOuterClassName;
   private final boolean myIsLocal;
   private final boolean myIsAnonymous;
+  private final long myClassfileHash;
 
   public Set<MethodRepr> getMethods() {
     return myMethods;
@@ -64,6 +65,14 @@ public class ClassRepr extends Proto {
     return myIsAnonymous;
   }
 
+  public int getFileName() {
+    return myFileName;
+  }
+
+  public long getClassfileHash() {
+    return myClassfileHash;
+  }
+
   public TypeRepr.ClassType getSuperClass() {
     return mySuperClass;
   }
@@ -226,7 +235,8 @@ public class ClassRepr extends Proto {
                    final int outerClassName,
                    final boolean localClassFlag,
                    final boolean anonymousClassFlag,
-                   final Set<UsageRepr.Usage> usages) {
+                   final Set<UsageRepr.Usage> usages,
+                   final long classfileHash) {
     super(a, sig, n);
     this.myContext = context;
     myFileName = fn;
@@ -240,6 +250,7 @@ public class ClassRepr extends Proto {
     this.myIsLocal = localClassFlag;
     this.myIsAnonymous = anonymousClassFlag;
     this.myUsages = usages;
+    this.myClassfileHash = classfileHash;
   }
 
   public ClassRepr(final DependencyContext context, final DataInput in) {
@@ -261,6 +272,7 @@ public class ClassRepr extends Proto {
       myIsLocal = in.readBoolean();
       myIsAnonymous = in.readBoolean();
       myUsages =(Set<UsageRepr.Usage>)RW.read(UsageRepr.externalizer(context), new HashSet<UsageRepr.Usage>(), in);
+      myClassfileHash = in.readLong();
     }
     catch (IOException e) {
       throw new RuntimeException(e);
@@ -282,12 +294,22 @@ public class ClassRepr extends Proto {
       out.writeBoolean(myIsLocal);
       out.writeBoolean(myIsAnonymous);
       RW.save(myUsages, UsageRepr.externalizer(myContext), out);
+      out.writeLong(myClassfileHash);
     }
     catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * @return an independent instance with the same content; instances read from persistent maplets may be shared through their caches
+   */
+  public ClassRepr copy() {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    save(new DataOutputStream(bytes));
+    return new ClassRepr(myContext, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
   public boolean isAnnotation() {
     return (access & Opcodes.ACC_ANNOTATION) > 0;
   }
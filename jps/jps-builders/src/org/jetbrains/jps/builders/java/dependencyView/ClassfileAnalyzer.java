@@ -23,6 +23,7 @@ import org.jetbrains.asm4.signature.SignatureVisitor;
 
 import java.lang.annotation.RetentionPolicy;
 import java.util.*;
+import java.util.zip.CRC32;
 
 /**
  * @author: db
@@ -286,6 +287,7 @@ class ClassfileAnalyzer {
     private Boolean myTakeIntoAccount = false;
 
     private final int myFileName;
+    private final long myClassfileHash;
     private int myAccess;
     private int myName;
     private String mySuperClass;
@@ -311,9 +313,10 @@ class ClassfileAnalyzer {
     final Map<TypeRepr.ClassType, TIntHashSet> myAnnotationArguments = new HashMap<TypeRepr.ClassType, TIntHashSet>();
     final Map<TypeRepr.ClassType, Set<ElemType>> myAnnotationTargets = new HashMap<TypeRepr.ClassType, Set<ElemType>>();
 
-    public ClassCrawler(final int fn) {
+    public ClassCrawler(final int fn, final long classfileHash) {
       super(Opcodes.ASM4);
       myFileName = fn;
+      myClassfileHash = classfileHash;
     }
 
     private boolean notPrivate(final int access) {
@@ -326,7 +329,8 @@ class ClassfileAnalyzer {
           myContext, myAccess, myFileName, myName, myContext.get(mySignature), myContext.get(mySuperClass), myInterfaces,
           myFields,
           myMethods, myTargets, myRetentionPolicy, myContext
-          .get(myOuterClassName.get()), myLocalClassFlag.get(), myAnonymousClassFlag.get(), myUsages) : null;
+          .get(myOuterClassName.get()), myLocalClassFlag.get(), myAnonymousClassFlag.get(), myUsages,
+          myClassfileHash) : null;
 
       if (repr != null) {
         repr.updateClassUsages(myContext, myUsages);
@@ -578,10 +582,50 @@ class ClassfileAnalyzer {
   }
 
   public Pair<ClassRepr, Set<UsageRepr.Usage>> analyze(final int fileName, final ClassReader cr) {
-    final ClassCrawler visitor = new ClassCrawler(fileName);
+    return analyze(fileName, cr, computeClassfileHash(cr));
+  }
+
+  public Pair<ClassRepr, Set<UsageRepr.Usage>> analyze(final int fileName, final ClassReader cr, final long classfileHash) {
+    final ClassCrawler visitor = new ClassCrawler(fileName, classfileHash);
 
     cr.accept(visitor, 0);
 
     return visitor.getResult();
   }
-}
\ No newline at end of file
+
+  /**
+   * Cheap hash of the class file: {@code cr.b} is hashed up to the end of the class without decoding anything. The array may
+   * be longer than the class (e.g. it is the buffer javac wrote the class into), so the end is found by skipping over
+   * the member tables. Equal hashes mean that the full analysis would produce the same result.
+   */
+  public static long computeClassfileHash(final ClassReader cr) {
+    final byte[] b = cr.b;
+    int end = cr.header + 6;
+    end += 2 + 2 * cr.readUnsignedShort(end); // interfaces
+    for (int members = 0; members < 2; members++) { // fields, then methods
+      int count = cr.readUnsignedShort(end);
+      end += 2;
+      for (; count > 0; count--) {
+        end = skipAttributes(cr, end + 6);
+      }
+    }
+    end = skipAttributes(cr, end);
+
+    final CRC32 crc = new CRC32();
+    crc.update(b, 0, end);
+    int h = 0;
+    for (int i = 0; i < end; i++) {
+      h = 31 * h + b[i];
+    }
+    return (crc.getValue() << 32) | (h & 0xFFFFFFFFL);
+  }
+
+  private static int skipAttributes(final ClassReader cr, int index) {
+    int count = cr.readUnsignedShort(index);
+    index += 2;
+    for (; count > 0; count--) {
+      index += 6 + cr.readInt(index + 2);
+    }
+    return index;
+  }
+}
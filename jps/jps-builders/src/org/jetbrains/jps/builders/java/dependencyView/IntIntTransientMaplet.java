@@ -15,7 +15,7 @@
  */
 package org.jetbrains.jps.builders.java.dependencyView;
 
-import gnu.trove.TIntIntHashMap;
+import com.intellij.util.containers.IntIntOpenHashMap;
 import gnu.trove.TIntIntProcedure;
 
 /**
@@ -23,7 +23,7 @@ import gnu.trove.TIntIntProcedure;
  * Date: 05.11.11
  */
 public class IntIntTransientMaplet extends IntIntMaplet {
-  private final TIntIntHashMap myMap = new TIntIntHashMap();
+  private final IntIntOpenHashMap myMap = new IntIntOpenHashMap();
   
   @Override
   public boolean containsKey(final int key) {
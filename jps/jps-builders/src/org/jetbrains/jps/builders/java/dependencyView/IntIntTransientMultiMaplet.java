@@ -15,17 +15,16 @@
  */
 package org.jetbrains.jps.builders.java.dependencyView;
 
+import com.intellij.util.containers.IntToIntSetOpenHashMap;
 import gnu.trove.TIntHashSet;
-import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TIntObjectProcedure;
-import gnu.trove.TIntProcedure;
 
 /**
  * @author: db
  * Date: 08.03.11
  */
 class IntIntTransientMultiMaplet extends IntIntMultiMaplet {
-  private final TIntObjectHashMap<TIntHashSet> myMap = new TIntObjectHashMap<TIntHashSet>();
+  private final IntToIntSetOpenHashMap myMap = new IntToIntSetOpenHashMap();
 
 
   @Override
@@ -51,71 +50,27 @@ class IntIntTransientMultiMaplet extends IntIntMultiMaplet {
 
   @Override
   public void put(final int key, final TIntHashSet value) {
-    final TIntHashSet x = myMap.get(key);
-    if (x == null) {
-      myMap.put(key, value);
-    }
-    else {
-      value.forEach(new TIntProcedure() {
-        @Override
-        public boolean execute(int value) {
-          x.add(value);
-          return true;
-        }
-      });
-    }
+    myMap.addAll(key, value);
   }
 
   @Override
   public void replace(int key, TIntHashSet value) {
-    if (value == null || value.isEmpty()) {
-      myMap.remove(key);
-    }
-    else {
-      myMap.put(key, value);
-    }
+    myMap.replace(key, value);
   }
 
   @Override
   public void put(final int key, final int value) {
-    final TIntHashSet collection = myMap.get(key);
-    if (collection == null) {
-      final TIntHashSet x = new TIntHashSet();
-      x.add(value);
-      myMap.put(key, x);
-    }
-    else {
-      collection.add(value);
-    }
+    myMap.add(key, value);
   }
 
   @Override
   public void removeFrom(final int key, final int value) {
-    final TIntHashSet collection = myMap.get(key);
-    if (collection != null) {
-      if (collection.remove(value)) {
-        if (collection.isEmpty()) {
-          myMap.remove(key);
-        }
-      }
-    }
+    myMap.remove(key, value);
   }
 
   @Override
   public void removeAll(int key, TIntHashSet values) {
-    final TIntHashSet collection = myMap.get(key);
-    if (collection != null) {
-      values.forEach(new TIntProcedure() {
-        @Override
-        public boolean execute(int value) {
-          collection.remove(value);
-          return true;
-        }
-      });
-      if (collection.isEmpty()) {
-        myMap.remove(key);
-      }
-    }
+    myMap.removeAll(key, values);
   }
 
   @Override
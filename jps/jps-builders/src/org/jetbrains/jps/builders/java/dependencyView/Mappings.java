@@ -23,6 +23,7 @@ import com.intellij.util.io.IntInlineKeyDescriptor;
 import gnu.trove.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.asm4.Opcodes;
 import org.jetbrains.jps.incremental.storage.FileKeyDescriptor;
@@ -32,6 +33,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.annotation.RetentionPolicy;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.util.*;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -50,6 +55,15 @@ public class Mappings {
   private static final IntInlineKeyDescriptor INT_KEY_DESCRIPTOR = new IntInlineKeyDescriptor();
   private static final int DEFAULT_SET_CAPACITY = 32;
   private static final float DEFAULT_SET_LOAD_FACTOR = 0.98f;
+  /**
+   * A transient delta is moved to disk once the heap occupancy (in percents of the max heap) exceeds this value
+   */
+  public static final String DELTA_SPILL_HEAP_PERCENT_OPTION = "jps.mappings.delta.spill.heap.percent";
+  /**
+   * Number of associated classes after which a transient delta checks the heap occupancy again
+   */
+  public static final String DELTA_SPILL_CHECK_INTERVAL_OPTION = "jps.mappings.delta.spill.check.interval";
+  private static final String DELTA_DIRECTORY_PREFIX = "myDelta";
   private static final CollectionFactory<ClassRepr> ourClassSetConstructor = new CollectionFactory<ClassRepr>() {
     public Set<ClassRepr> create() {
       return new HashSet<ClassRepr>(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
@@ -57,7 +71,14 @@ public class Mappings {
   };
 
   private final boolean myIsDelta;
-  private final boolean myDeltaIsTransient;
+  private boolean myDeltaIsTransient;
+  private final int myDeltaSpillHeapPercent;
+  private final int myDeltaSpillCheckInterval;
+  private int myAssociatedSinceSpillCheck = 0;
+  /**
+   * for a delta: the number of class representations reused by it, for other mappings: by all deltas integrated into them
+   */
+  private int myReusedReprCount = 0;
   private boolean myIsDifferentiated = false;
   private boolean myIsRebuild = false;
 
@@ -65,7 +86,15 @@ public class Mappings {
   private final THashSet<File> myChangedFiles;
   private final Set<ClassRepr> myDeletedClasses;
   private final Object myLock;
-  private final File myRootDir;
+  /**
+   * for a delta: its own directory under the mappings directory, created only when the delta is stored on disk
+   */
+  private File myRootDir;
+  /**
+   * the mappings this delta is going to be integrated into, null for non-delta mappings
+   */
+  @Nullable
+  private final Mappings myBaseMappings;
 
   private DependencyContext myContext;
   private final int myInitName;
@@ -92,11 +121,15 @@ public class Mappings {
   private Mappings(final Mappings base) throws IOException {
     myLock = base.myLock;
     myIsDelta = true;
+    myBaseMappings = base;
     myChangedClasses = new TIntHashSet(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
     myChangedFiles = new THashSet(FileUtil.FILE_HASHING_STRATEGY);
     myDeletedClasses = new HashSet<ClassRepr>(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
     myDeltaIsTransient = base.myDeltaIsTransient;
-    myRootDir = new File(FileUtil.toSystemIndependentName(base.myRootDir.getAbsolutePath()) + File.separatorChar + "myDelta");
+    // read for every delta, so that the build process need not be restarted when the options change
+    myDeltaSpillHeapPercent = Integer.parseInt(System.getProperty(DELTA_SPILL_HEAP_PERCENT_OPTION, "80"));
+    myDeltaSpillCheckInterval = Integer.parseInt(System.getProperty(DELTA_SPILL_CHECK_INTERVAL_OPTION, "512"));
+    myRootDir = myDeltaIsTransient ? null : createDeltaDirectory(base);
     myContext = base.myContext;
     myInitName = myContext.get("<init>");
     myEmptyName = myContext.get("");
@@ -108,11 +141,15 @@ public class Mappings {
   public Mappings(final File rootDir, final boolean transientDelta) throws IOException {
     myLock = new Object();
     myIsDelta = false;
+    myBaseMappings = null;
     myChangedClasses = null;
     myChangedFiles = null;
     myDeletedClasses = null;
     myDeltaIsTransient = transientDelta;
+    myDeltaSpillHeapPercent = 0;
+    myDeltaSpillCheckInterval = 0;
     myRootDir = rootDir;
+    deleteDeltaDirectories(rootDir);
     createImplementation();
     myInitName = myContext.get("<init>");
     myEmptyName = myContext.get("");
@@ -148,6 +185,95 @@ public class Mappings {
     }
   }
 
+  /**
+   * Moves the content of a transient delta to persistent maplets in the delta directory, so that a large compilation round
+   * does not have to keep all the collected data on heap.
+   */
+  private void spillDeltaToDisk() throws IOException {
+    assert myBaseMappings != null;
+    myRootDir = createDeltaDirectory(myBaseMappings);
+
+    final IntIntMultiMaplet classToSubclasses = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_SUBCLASSES), INT_KEY_DESCRIPTOR);
+    classToSubclasses.replaceAll(myClassToSubclasses);
+    myClassToSubclasses.close();
+    myClassToSubclasses = classToSubclasses;
+
+    final IntIntMultiMaplet classToClassDependency = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_CLASS), INT_KEY_DESCRIPTOR);
+    classToClassDependency.replaceAll(myClassToClassDependency);
+    myClassToClassDependency.close();
+    myClassToClassDependency = classToClassDependency;
+
+    final ObjectObjectMultiMaplet<File, ClassRepr> sourceFileToClasses = new ObjectObjectPersistentMultiMaplet<File, ClassRepr>(
+      DependencyContext.getTableFile(myRootDir, SOURCE_TO_CLASS), new FileKeyDescriptor(), ClassRepr.externalizer(myContext),
+      ourClassSetConstructor
+    );
+    sourceFileToClasses.replaceAll(mySourceFileToClasses);
+    mySourceFileToClasses.close();
+    mySourceFileToClasses = sourceFileToClasses;
+
+    final IntObjectMaplet<File> classToSourceFile = new IntObjectPersistentMaplet<File>(DependencyContext.getTableFile(myRootDir, CLASS_TO_SOURCE), new FileKeyDescriptor());
+    classToSourceFile.putAll(myClassToSourceFile);
+    myClassToSourceFile.close();
+    myClassToSourceFile = classToSourceFile;
+
+    myDeltaIsTransient = false;
+  }
+
+  private void spillDeltaIfMemoryIsLow() {
+    if (!myIsDelta || !myDeltaIsTransient || ++myAssociatedSinceSpillCheck < myDeltaSpillCheckInterval) {
+      return;
+    }
+    myAssociatedSinceSpillCheck = 0;
+    final long max = Runtime.getRuntime().maxMemory();
+    final long used = getHeapUsedAfterLastCollection();
+    if (used * 100 > max * myDeltaSpillHeapPercent) {
+      LOG.info("Heap usage after GC is " + (used >> 20) + "M of " + (max >> 20) + "M, moving dependency delta to disk");
+      try {
+        spillDeltaToDisk();
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Every delta stored on disk gets a directory of its own: deltas of different chunks may exist at the same time
+   */
+  private static File createDeltaDirectory(final Mappings base) throws IOException {
+    return FileUtil.createTempDirectory(base.myRootDir, DELTA_DIRECTORY_PREFIX, null);
+  }
+
+  /**
+   * A delta directory is deleted when the delta is closed, directories left by a build process which was killed are deleted
+   * when the mappings are opened next time
+   */
+  private static void deleteDeltaDirectories(final File rootDir) {
+    final File[] files = rootDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory() && file.getName().startsWith(DELTA_DIRECTORY_PREFIX)) {
+          FileUtil.delete(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Heap occupied by the objects that survived the most recent collection of each pool: unlike
+   * {@code totalMemory() - freeMemory()} this does not count garbage which is not collected yet
+   */
+  private static long getHeapUsedAfterLastCollection() {
+    long used = 0L;
+    for (MemoryPoolMXBean bean : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (bean.getType() == MemoryType.HEAP) {
+        final MemoryUsage usage = bean.getCollectionUsage();
+        used += (usage != null ? usage : bean.getUsage()).getUsed();
+      }
+    }
+    return used;
+  }
+
   public Mappings createDelta() {
     synchronized (myLock) {
       try {
@@ -2005,6 +2131,7 @@ public class Mappings {
       try {
         assert (delta.isDifferentiated());
 
+        myReusedReprCount += delta.myReusedReprCount;
         final Collection<String> removed = delta.myRemovedFiles;
 
         delta.runPostPasses();
@@ -2086,6 +2213,10 @@ public class Mappings {
             public boolean execute(final File fileName) {
               final Collection<ClassRepr> classes = delta.mySourceFileToClasses.get(fileName);
               mySourceFileToClasses.replace(fileName, classes);
+              if (delta.myDeltaIsTransient) {
+                // not needed any more, let it be collected while the rest is merged
+                delta.mySourceFileToClasses.remove(fileName);
+              }
               return true;
             }
           });
@@ -2096,45 +2227,22 @@ public class Mappings {
           mySourceFileToClasses.replaceAll(delta.mySourceFileToClasses);
         }
 
-        // updating classToClass dependencies
-
-        final TIntHashSet affectedClasses = new TIntHashSet();
+        // updating classToClass dependencies: entries of the delta are merged one by one,
+        // the keys present in the trash bin only are processed afterwards
 
-        addAllKeys(affectedClasses, dependenciesTrashBin);
-        addAllKeys(affectedClasses, delta.myClassToClassDependency);
+        delta.myClassToClassDependency.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+          @Override
+          public boolean execute(int aClass, TIntHashSet now) {
+            mergeClassDependencies(aClass, now, dependenciesTrashBin.get(aClass));
+            dependenciesTrashBin.remove(aClass);
+            return true;
+          }
+        });
 
-        affectedClasses.forEach(new TIntProcedure() {
+        dependenciesTrashBin.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
           @Override
-          public boolean execute(int aClass) {
-            final TIntHashSet now = delta.myClassToClassDependency.get(aClass);
-            final TIntHashSet toRemove = dependenciesTrashBin.get(aClass);
-            final boolean hasDataToAdd = now != null && !now.isEmpty();
-
-            if (toRemove != null && !toRemove.isEmpty()) {
-              final TIntHashSet current = myClassToClassDependency.get(aClass);
-              if (current != null && !current.isEmpty()) {
-                final TIntHashSet before = new TIntHashSet();
-                addAll(before, current);
-
-                final boolean removed = current.removeAll(toRemove.toArray());
-                final boolean added = hasDataToAdd && current.addAll(now.toArray());
-
-                if ((removed && !added) || (!removed && added) || !before.equals(current)) {
-                  myClassToClassDependency.replace(aClass, current);
-                }
-              }
-              else {
-                if (hasDataToAdd) {
-                  myClassToClassDependency.put(aClass, now);
-                }
-              }
-            }
-            else {
-              // nothing to remove for this class
-              if (hasDataToAdd) {
-                myClassToClassDependency.put(aClass, now);
-              }
-            }
+          public boolean execute(int aClass, TIntHashSet toRemove) {
+            mergeClassDependencies(aClass, null, toRemove);
             return true;
           }
         });
@@ -2145,16 +2253,83 @@ public class Mappings {
     }
   }
 
+  private void mergeClassDependencies(final int aClass, @Nullable final TIntHashSet now, @Nullable final TIntHashSet toRemove) {
+    final boolean hasDataToAdd = now != null && !now.isEmpty();
+
+    if (toRemove != null && !toRemove.isEmpty()) {
+      final TIntHashSet current = myClassToClassDependency.get(aClass);
+      if (current != null && !current.isEmpty()) {
+        final TIntHashSet before = new TIntHashSet();
+        addAll(before, current);
+
+        final boolean removed = current.removeAll(toRemove.toArray());
+        final boolean added = hasDataToAdd && current.addAll(now.toArray());
+
+        if ((removed && !added) || (!removed && added) || !before.equals(current)) {
+          myClassToClassDependency.replace(aClass, current);
+        }
+      }
+      else {
+        if (hasDataToAdd) {
+          myClassToClassDependency.put(aClass, now);
+        }
+      }
+    }
+    else {
+      // nothing to remove for this class
+      if (hasDataToAdd) {
+        myClassToClassDependency.put(aClass, now);
+      }
+    }
+  }
+
+  /**
+   * If the class file has not changed since it was analyzed last time, the stored representation is reused instead of
+   * running the full analysis. The differentiation will find no difference for such a class.
+   */
+  @Nullable
+  private ClassRepr getUnchangedRepr(final int classFileName, final File sourceFile, final ClassReader cr, final long classfileHash) {
+    if (myBaseMappings == null) {
+      return null;
+    }
+    final ClassRepr past = myBaseMappings.getReprByName(sourceFile, myContext.get(cr.getClassName()));
+    if (past == null || past.getFileName() != classFileName || past.getClassfileHash() != classfileHash) {
+      return null;
+    }
+    myReusedReprCount++;
+    return past.copy();
+  }
+
+  /**
+   * @return how many class representations were reused because their class files had not changed
+   */
+  @TestOnly
+  public int getReusedReprCount() {
+    synchronized (myLock) {
+      return myReusedReprCount;
+    }
+  }
+
   public Callbacks.Backend getCallback() {
     return new Callbacks.Backend() {
       public void associate(final String classFileName, final String sourceFileName, final ClassReader cr) {
         synchronized (myLock) {
           final int classFileNameS = myContext.get(classFileName);
-          final Pair<ClassRepr, Set<UsageRepr.Usage>> result = new ClassfileAnalyzer(myContext).analyze(classFileNameS, cr);
-          final ClassRepr repr = result.first;
+          final File sourceFile = new File(sourceFileName);
+          final long classfileHash = ClassfileAnalyzer.computeClassfileHash(cr);
+
+          ClassRepr repr = getUnchangedRepr(classFileNameS, sourceFile, cr, classfileHash);
+          final Set<UsageRepr.Usage> localUsages;
+          if (repr != null) {
+            localUsages = repr.getUsages();
+          }
+          else {
+            final Pair<ClassRepr, Set<UsageRepr.Usage>> result = new ClassfileAnalyzer(myContext).analyze(classFileNameS, cr, classfileHash);
+            repr = result.first;
+            localUsages = result.second;
+          }
+
           if (repr != null) {
-            final Set<UsageRepr.Usage> localUsages = result.second;
-            final File sourceFile = new File(sourceFileName);
             final int className = repr.name;
 
             myClassToSourceFile.put(className, sourceFile);
@@ -2171,6 +2346,8 @@ public class Mappings {
                 myClassToClassDependency.put(owner, className);
               }
             }
+
+            spillDeltaIfMemoryIsLow();
           }
         }
       }
@@ -2236,7 +2413,7 @@ public class Mappings {
         }
       }
       else {
-        if (!myDeltaIsTransient) {
+        if (myRootDir != null) {
           FileUtil.delete(myRootDir);
         }
       }
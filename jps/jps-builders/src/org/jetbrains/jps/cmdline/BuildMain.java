@@ -31,11 +31,14 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.api.CmdlineProtoUtil;
 import org.jetbrains.jps.api.CmdlineRemoteProto;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.incremental.Utils;
 import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
 import java.net.InetSocketAddress;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.UUID;
 
 /**
@@ -46,6 +49,10 @@ public class BuildMain {
   public static final Key<String> FORCE_MODEL_LOADING_PARAMETER = Key.create("_force_model_loading");
   private static final String LOG_FILE_NAME = "log.xml";
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.cmdline.BuildMain");
+  /**
+   * Milliseconds the process waits for the next build session keeping the project loaded, 0 if it serves a single session only
+   */
+  private static final long KEEP_ALIVE_TIMEOUT = Long.getLong(GlobalOptions.KEEP_ALIVE_TIMEOUT_OPTION, 0L) * 1000L;
   private static NioClientSocketChannelFactory ourChannelFactory;
 
   public static void main(String[] args){
@@ -96,6 +103,8 @@ public class BuildMain {
   private static class MyMessageHandler extends SimpleChannelHandler {
     private final UUID mySessionId;
     private volatile BuildSession mySession;
+    private final Timer myIdleTimer = KEEP_ALIVE_TIMEOUT > 0 ? new Timer("Build process idle timer", true) : null;
+    private TimerTask myIdleTask;
 
     private MyMessageHandler(UUID sessionId) {
       mySessionId = sessionId;
@@ -113,17 +122,26 @@ public class BuildMain {
 
           case BUILD_PARAMETERS: {
             if (mySession == null) {
+              // a process kept alive gets parameters of further sessions without asking for them
+              final UUID sessionId = message.hasSessionId() ? toJavaUUID(message.getSessionId()) : mySessionId;
               final CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta = controllerMessage.hasFsEvent()? controllerMessage.getFsEvent() : null;
-              final BuildSession session = new BuildSession(mySessionId, channel, controllerMessage.getParamsMessage(), delta);
+              final BuildSession session = new BuildSession(sessionId, channel, controllerMessage.getParamsMessage(), delta, myIdleTimer != null);
               mySession = session;
+              cancelIdleTask();
               SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
                 public void run() {
                   try {
                     session.run();
                   }
                   finally {
-                    channel.close();
-                    System.exit(0);
+                    if (myIdleTimer == null) {
+                      channel.close();
+                      System.exit(0);
+                    }
+                    else {
+                      mySession = null;
+                      scheduleIdleTask(channel);
+                    }
                   }
                 }
               });
@@ -167,6 +185,28 @@ public class BuildMain {
       Channels.write(channel, CmdlineProtoUtil.toMessage(mySessionId, CmdlineProtoUtil.createFailure("Unsupported message type: " + type.name(), null)));
     }
 
+    private synchronized void scheduleIdleTask(final Channel channel) {
+      cancelIdleTask();
+      myIdleTask = new TimerTask() {
+        @Override
+        public void run() {
+          if (mySession == null) {
+            LOG.info("No build requests for " + KEEP_ALIVE_TIMEOUT / 1000 + " seconds, exiting");
+            // closing the channel terminates the process and releases the loaded project
+            channel.close();
+          }
+        }
+      };
+      myIdleTimer.schedule(myIdleTask, KEEP_ALIVE_TIMEOUT);
+    }
+
+    private synchronized void cancelIdleTask() {
+      if (myIdleTask != null) {
+        myIdleTask.cancel();
+        myIdleTask = null;
+      }
+    }
+
     @Override
     public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
       try {
@@ -176,6 +216,7 @@ public class BuildMain {
         new Thread("Shutdown thread") {
           public void run() {
             try {
+              LoadedProjectState.releaseLoadedProject();
               ourChannelFactory.releaseExternalResources();
             }
             finally {
@@ -197,6 +238,10 @@ public class BuildMain {
     }
   }
 
+  private static UUID toJavaUUID(CmdlineRemoteProto.Message.UUID id) {
+    return new UUID(id.getMostSigBits(), id.getLeastSigBits());
+  }
+
   private static void initLoggers() {
     if (new File(LOG_FILE_NAME).exists()) {
       DOMConfigurator.configure(LOG_FILE_NAME);
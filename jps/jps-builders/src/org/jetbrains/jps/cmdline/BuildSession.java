@@ -73,13 +73,23 @@ final class BuildSession implements Runnable, CanceledStatus {
   private final BuildRunner myBuildRunner;
   private final boolean myForceModelLoading;
   private BuildType myBuildType;
-
+  private final String myGlobalOptionsPath;
+  private final Map<String, String> myPathVars;
+  private final boolean myKeepProjectLoaded;
+  private LoadedProjectState myLoadedProject;
+  private Map<File, Long> myConfigurationStamps;
+
+  /**
+   * @param keepProjectLoaded whether the process serves further sessions, so the loaded project should be kept for them
+   */
   BuildSession(UUID sessionId,
                Channel channel,
                CmdlineRemoteProto.Message.ControllerMessage.ParametersMessage params,
-               @Nullable CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta) {
+               @Nullable CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta,
+               boolean keepProjectLoaded) {
     mySessionId = sessionId;
     myChannel = channel;
+    myKeepProjectLoaded = keepProjectLoaded;
 
     // globals
     Map<String, String> pathVars = new HashMap<String, String>();
@@ -91,6 +101,8 @@ final class BuildSession implements Runnable, CanceledStatus {
     // session params
     myProjectPath = FileUtil.toCanonicalPath(params.getProjectId());
     String globalOptionsPath = FileUtil.toCanonicalPath(globals.getGlobalOptionsPath());
+    myGlobalOptionsPath = globalOptionsPath;
+    myPathVars = pathVars;
     myBuildType = convertCompileType(params.getBuildType());
     List<TargetTypeBuildScope> scopes = params.getScopeList();
     List<String> filePaths = params.getFilePathList();
@@ -180,9 +192,19 @@ final class BuildSession implements Runnable, CanceledStatus {
     if (!dataStorageRoot.exists()) {
       // invoked the very first time for this project. Force full rebuild
       myBuildType = BuildType.PROJECT_REBUILD;
+      // storages of a project loaded by a previous session are gone as well
+      LoadedProjectState.releaseLoadedProject();
+    }
+
+    if (myKeepProjectLoaded) {
+      myLoadedProject = LoadedProjectState.take(myProjectPath, myGlobalOptionsPath, myPathVars);
+      if (myLoadedProject == null) {
+        myConfigurationStamps = new HashMap<File, Long>();
+        LoadedProjectState.collectConfigurationStamps(myProjectPath, myGlobalOptionsPath, myConfigurationStamps);
+      }
     }
 
-    final DataInputStream fsStateStream = createFSDataStream(dataStorageRoot);
+    final DataInputStream fsStateStream = myLoadedProject == null ? createFSDataStream(dataStorageRoot) : null;
 
     if (fsStateStream != null) {
       // optimization: check whether we can skip the build
@@ -193,24 +215,39 @@ final class BuildSession implements Runnable, CanceledStatus {
       }
     }
 
-    final BuildFSState fsState = new BuildFSState(false);
+    final BuildFSState fsState = myLoadedProject != null ? myLoadedProject.getDescriptor().fsState : new BuildFSState(false);
+    boolean completed = false;
     try {
-      final ProjectDescriptor pd = myBuildRunner.load(msgHandler, dataStorageRoot, fsState);
-      myProjectDescriptor = pd;
-      if (fsStateStream != null) {
-        try {
+      final ProjectDescriptor pd;
+      if (myLoadedProject != null) {
+        pd = myLoadedProject.getDescriptor();
+        myProjectDescriptor = pd;
+        if (myInitialFSDelta != null && myInitialFSDelta.getOrdinal() == myLoadedProject.getLastEventOrdinal() + 1L) {
+          applyFSEvent(pd, myInitialFSDelta, false);
+        }
+        else {
+          // the controller requested a rescan or some events were not delivered to this process
+          fsState.clearAll();
+        }
+      }
+      else {
+        pd = myBuildRunner.load(msgHandler, dataStorageRoot, fsState);
+        myProjectDescriptor = pd;
+        if (fsStateStream != null) {
           try {
-            fsState.load(fsStateStream, pd.getModel(), pd.getBuildRootIndex());
-            applyFSEvent(pd, myInitialFSDelta, false);
+            try {
+              fsState.load(fsStateStream, pd.getModel(), pd.getBuildRootIndex());
+              applyFSEvent(pd, myInitialFSDelta, false);
+            }
+            finally {
+              fsStateStream.close();
+            }
           }
-          finally {
-            fsStateStream.close();
+          catch (Throwable e) {
+            LOG.error(e);
+            fsState.clearAll();
           }
         }
-        catch (Throwable e) {
-          LOG.error(e);
-          fsState.clearAll();
-        }
       }
       myLastEventOrdinal = myInitialFSDelta != null? myInitialFSDelta.getOrdinal() : 0L;
 
@@ -220,9 +257,10 @@ final class BuildSession implements Runnable, CanceledStatus {
       myEventsProcessor.startProcessing();
 
       myBuildRunner.runBuild(pd, cs, myConstantSearch, msgHandler, myBuildType);
+      completed = true;
     }
     finally {
-      saveData(fsState, dataStorageRoot);
+      saveData(fsState, dataStorageRoot, completed);
     }
   }
 
@@ -236,13 +274,21 @@ final class BuildSession implements Runnable, CanceledStatus {
     return true;
   }
 
-  private void saveData(final BuildFSState fsState, File dataStorageRoot) {
+  private void saveData(final BuildFSState fsState, File dataStorageRoot, boolean completed) {
     final boolean wasInterrupted = Thread.interrupted();
     try {
       saveFsState(dataStorageRoot, fsState);
       final ProjectDescriptor pd = myProjectDescriptor;
       if (pd != null) {
-        pd.release();
+        if (myKeepProjectLoaded && completed) {
+          keepProjectLoaded(pd);
+        }
+        else {
+          pd.release();
+        }
+      }
+      else if (myLoadedProject != null) {
+        myLoadedProject.release();
       }
     }
     finally {
@@ -252,6 +298,21 @@ final class BuildSession implements Runnable, CanceledStatus {
     }
   }
 
+  private void keepProjectLoaded(ProjectDescriptor pd) {
+    // storages stay open, so make sure everything is on disk in case the process is killed while idle
+    pd.getTargetsState().save();
+    pd.timestamps.getStorage().force();
+    pd.dataManager.flush(false);
+
+    LoadedProjectState state = myLoadedProject;
+    if (state == null) {
+      LoadedProjectState.collectModuleStamps(pd.getProject(), myConfigurationStamps);
+      state = new LoadedProjectState(myProjectPath, myGlobalOptionsPath, myPathVars, myConfigurationStamps, pd);
+    }
+    state.setLastEventOrdinal(myLastEventOrdinal);
+    LoadedProjectState.put(state);
+  }
+
   public void processFSEvent(final CmdlineRemoteProto.Message.ControllerMessage.FSEvent event) {
     myEventsProcessor.submit(new Runnable() {
       @Override
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.cmdline;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Comparing;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.model.JpsProject;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.model.serialization.JpsModelSerializationDataService;
+import org.jetbrains.jps.model.serialization.PathMacroUtil;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Project kept loaded by a build process serving several build sessions, see
+ * {@link org.jetbrains.jps.api.GlobalOptions#KEEP_ALIVE_TIMEOUT_OPTION}: the model, the build root index and the opened
+ * storages of the {@link ProjectDescriptor} are reused as long as the project is built with the same settings and none of
+ * the project, module or global configuration files has changed.
+ */
+final class LoadedProjectState {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.cmdline.LoadedProjectState");
+  private static LoadedProjectState ourState;
+
+  private final String myProjectPath;
+  private final String myGlobalOptionsPath;
+  private final Map<String, String> myPathVars;
+  private final Map<File, Long> myConfigurationStamps;
+  private final ProjectDescriptor myDescriptor;
+  private long myLastEventOrdinal;
+
+  LoadedProjectState(String projectPath, String globalOptionsPath, Map<String, String> pathVars,
+                     Map<File, Long> configurationStamps, ProjectDescriptor descriptor) {
+    myProjectPath = projectPath;
+    myGlobalOptionsPath = globalOptionsPath;
+    myPathVars = pathVars;
+    myConfigurationStamps = configurationStamps;
+    myDescriptor = descriptor;
+  }
+
+  public ProjectDescriptor getDescriptor() {
+    return myDescriptor;
+  }
+
+  /**
+   * @return ordinal of the last file system event applied to the file system state of the descriptor
+   */
+  public long getLastEventOrdinal() {
+    return myLastEventOrdinal;
+  }
+
+  public void setLastEventOrdinal(long ordinal) {
+    myLastEventOrdinal = ordinal;
+  }
+
+  /**
+   * Takes the loaded project for a build session, the caller should either {@link #put} it back after the build or release it.
+   *
+   * @return null if no project is loaded, or the loaded project cannot be reused for the given settings
+   */
+  @Nullable
+  public static synchronized LoadedProjectState take(String projectPath, String globalOptionsPath, Map<String, String> pathVars) {
+    final LoadedProjectState state = ourState;
+    ourState = null;
+    if (state == null) {
+      return null;
+    }
+    if (state.myProjectPath.equals(projectPath) && Comparing.equal(state.myGlobalOptionsPath, globalOptionsPath) &&
+        state.myPathVars.equals(pathVars) && !state.isConfigurationChanged()) {
+      return state;
+    }
+    LOG.info("Project configuration has changed, reloading " + projectPath);
+    state.release();
+    return null;
+  }
+
+  public static synchronized void put(@NotNull LoadedProjectState state) {
+    if (ourState != null && ourState != state) {
+      ourState.release();
+    }
+    ourState = state;
+  }
+
+  /**
+   * Closes storages of the loaded project and drops it, e.g. when the build process has been idle for too long
+   */
+  public static synchronized void releaseLoadedProject() {
+    if (ourState != null) {
+      ourState.release();
+      ourState = null;
+    }
+  }
+
+  public void release() {
+    myDescriptor.release();
+  }
+
+  private boolean isConfigurationChanged() {
+    final Map<File, Long> current = new HashMap<File, Long>();
+    collectConfigurationStamps(myProjectPath, myGlobalOptionsPath, current);
+    collectModuleStamps(myDescriptor.getProject(), current);
+    return !current.equals(myConfigurationStamps);
+  }
+
+  /**
+   * Collects modification stamps of project and global configuration files, should be called before the model is loaded
+   * so that changes made while loading are not missed.
+   */
+  public static void collectConfigurationStamps(String projectPath, @Nullable String globalOptionsPath, Map<File, Long> stamps) {
+    final File file = new File(FileUtil.toCanonicalPath(projectPath));
+    if (file.isFile()) {
+      addStamp(file, stamps);
+      addStamp(new File(file.getParentFile(), FileUtil.getNameWithoutExtension(file) + ".iws"), stamps);
+    }
+    else {
+      addStamps(file.getName().equals(PathMacroUtil.DIRECTORY_STORE_NAME) ? file : new File(file, PathMacroUtil.DIRECTORY_STORE_NAME),
+                true, stamps);
+    }
+    if (globalOptionsPath != null) {
+      addStamps(new File(globalOptionsPath), false, stamps);
+    }
+  }
+
+  public static void collectModuleStamps(JpsProject project, Map<File, Long> stamps) {
+    for (JpsModule module : project.getModules()) {
+      addModuleStamp(module, stamps);
+    }
+  }
+
+  private static void addModuleStamp(JpsModule module, Map<File, Long> stamps) {
+    final File baseDir = JpsModelSerializationDataService.getBaseDirectory(module);
+    if (baseDir != null) {
+      addStamp(new File(baseDir, module.getName() + ".iml"), stamps);
+    }
+  }
+
+  private static void addStamps(File dir, boolean recursive, Map<File, Long> stamps) {
+    final File[] children = dir.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        if (child.isDirectory()) {
+          if (recursive) {
+            addStamps(child, true, stamps);
+          }
+        }
+        else {
+          addStamp(child, stamps);
+        }
+      }
+    }
+  }
+
+  private static void addStamp(File file, Map<File, Long> stamps) {
+    stamps.put(file, file.lastModified());
+  }
+}
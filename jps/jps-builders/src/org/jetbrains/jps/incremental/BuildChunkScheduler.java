@@ -0,0 +1,180 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.SmartList;
+import com.intellij.util.containers.MultiMap;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.impl.BuildTargetChunk;
+
+import java.util.*;
+
+/**
+ * Decides when chunks of a parallel build are started. A chunk becomes ready when all chunks it depends on are built; ready chunks
+ * on longer chains of dependent chunks go first, so that the chunks the rest of the build waits for are not delayed by chunks
+ * nothing depends on, e.g. resources or tests of leaf modules.
+ * <p/>
+ * The scheduler does not run anything itself and is not thread-safe, callers synchronize access to it.
+ */
+class BuildChunkScheduler {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.BuildChunkScheduler");
+  private static final Comparator<Task> CRITICAL_CHAIN_FIRST = new Comparator<Task>() {
+    @Override
+    public int compare(Task o1, Task o2) {
+      if (o1.myChainLength != o2.myChainLength) {
+        return o2.myChainLength - o1.myChainLength;
+      }
+      return o1.myIndex - o2.myIndex;
+    }
+  };
+
+  private final List<Task> myTasks;
+  private final PriorityQueue<Task> myReadyTasks = new PriorityQueue<Task>(11, CRITICAL_CHAIN_FIRST);
+  private final int myMaxRunningTasks;
+  private int myRunningTasks;
+
+  static class Task {
+    private final BuildTargetChunk myChunk;
+    private final int myIndex;
+    private final Set<Task> myNotBuiltDependencies = new THashSet<Task>();
+    private final List<Task> myDependencies = new ArrayList<Task>();
+    private final List<Task> myTasksDependsOnThis = new ArrayList<Task>();
+    /**
+     * Number of chunks in the longest chain of chunks depending on this one, including the chunk itself
+     */
+    private int myChainLength = 1;
+    volatile long myReadyNanos;
+    volatile long myStartTime;
+    volatile long myFinishTime;
+
+    private Task(BuildTargetChunk chunk, int index) {
+      myChunk = chunk;
+      myIndex = index;
+    }
+
+    public BuildTargetChunk getChunk() {
+      return myChunk;
+    }
+
+    public List<Task> getDependencies() {
+      return myDependencies;
+    }
+
+    private void addDependency(Task dependency) {
+      if (myNotBuiltDependencies.add(dependency)) {
+        myDependencies.add(dependency);
+        dependency.myTasksDependsOnThis.add(this);
+      }
+    }
+  }
+
+  /**
+   * @param chunks       chunks to build, sorted so that dependencies go first
+   * @param dependencies targets each target of the chunks depends on; targets outside the chunks are ignored
+   */
+  BuildChunkScheduler(List<BuildTargetChunk> chunks, MultiMap<BuildTarget<?>, BuildTarget<?>> dependencies, int maxRunningTasks) {
+    myMaxRunningTasks = maxRunningTasks;
+    myTasks = new ArrayList<Task>(chunks.size());
+    final Map<BuildTarget<?>, Task> targetToTask = new THashMap<BuildTarget<?>, Task>();
+    for (BuildTargetChunk chunk : chunks) {
+      final Task task = new Task(chunk, myTasks.size());
+      myTasks.add(task);
+      for (BuildTarget<?> target : chunk.getTargets()) {
+        targetToTask.put(target, task);
+      }
+    }
+
+    for (Task task : myTasks) {
+      for (BuildTarget<?> target : task.getChunk().getTargets()) {
+        for (BuildTarget<?> dependency : dependencies.get(target)) {
+          final Task depTask = targetToTask.get(dependency);
+          if (depTask != null && depTask != task) {
+            task.addDependency(depTask);
+          }
+        }
+      }
+    }
+
+    for (int i = myTasks.size() - 1; i >= 0; i--) {
+      final Task task = myTasks.get(i);
+      for (Task dependent : task.myTasksDependsOnThis) {
+        task.myChainLength = Math.max(task.myChainLength, dependent.myChainLength + 1);
+      }
+    }
+  }
+
+  List<Task> getTasks() {
+    return myTasks;
+  }
+
+  /**
+   * Queues the chunks which do not depend on other chunks
+   *
+   * @return the queued tasks
+   */
+  List<Task> queueInitialTasks() {
+    final List<Task> initialTasks = new ArrayList<Task>();
+    for (Task task : myTasks) {
+      if (task.myNotBuiltDependencies.isEmpty()) {
+        initialTasks.add(task);
+      }
+    }
+    queue(initialTasks);
+    return initialTasks;
+  }
+
+  /**
+   * @return the ready task to run next, or null if there is none or the maximum number of tasks are already running
+   */
+  @Nullable
+  Task startNextTask() {
+    if (myRunningTasks >= myMaxRunningTasks || myReadyTasks.isEmpty()) {
+      return null;
+    }
+    myRunningTasks++;
+    return myReadyTasks.poll();
+  }
+
+  /**
+   * Queues the chunks which were waiting only for the finished one
+   *
+   * @return the queued tasks
+   */
+  List<Task> finishTask(Task task) {
+    myRunningTasks--;
+    final List<Task> nextTasks = new SmartList<Task>();
+    for (Task dependent : task.myTasksDependsOnThis) {
+      final boolean removed = dependent.myNotBuiltDependencies.remove(task);
+      LOG.assertTrue(removed, dependent.getChunk().toString() + " didn't have " + task.getChunk().toString());
+      if (dependent.myNotBuiltDependencies.isEmpty()) {
+        nextTasks.add(dependent);
+      }
+    }
+    queue(nextTasks);
+    return nextTasks;
+  }
+
+  private void queue(List<Task> tasks) {
+    for (Task task : tasks) {
+      task.myReadyNanos = BuildProfiler.now();
+      myReadyTasks.add(task);
+    }
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.incremental.messages.CustomBuilderMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long the build spends in targets, builders, javac, dependency analysis, storage flushes and waiting for threads.
+ * Enabled by the {@link GlobalOptions#BUILD_PROFILE_OPTION} option; when the build finishes the collected spans are written to
+ * {@link #REPORT_FILE_NAME} in the data storage root in Chrome trace event format (viewable in chrome://tracing) and sent to the
+ * IDE as a {@link CustomBuilderMessage} of {@link #REPORT_MESSAGE_TYPE} type.
+ * <p/>
+ * Measured code takes the start with {@link #now()} and passes it to {@link #record}, which does nothing if profiling is off.
+ */
+public class BuildProfiler {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.BuildProfiler");
+  private static final GlobalContextKey<BuildProfiler> KEY = GlobalContextKey.create("_build_profiler_");
+  private static final long MIN_TRACED_SPAN_NANOS = 1000000L;
+  private static final int TOTALS_TO_LOG = 20;
+  private static final Map<String, BoundedTaskExecutor> ourExecutors = new ConcurrentHashMap<String, BoundedTaskExecutor>();
+
+  public static final String BUILDER_ID = "build.profiler";
+  public static final String REPORT_MESSAGE_TYPE = "chrome.trace";
+  public static final String REPORT_FILE_NAME = "build-profile.json";
+
+  public static final String TARGET = "target";
+  public static final String BUILDER = "builder";
+  public static final String JAVAC = "javac";
+  public static final String DEPENDENCY_ANALYSIS = "dependency analysis";
+  public static final String STORAGE_FLUSH = "storage flush";
+  public static final String THREAD_WAIT = "waiting for thread";
+
+  private final long myStartNanos = System.nanoTime();
+  private final Queue<Span> mySpans = new ConcurrentLinkedQueue<Span>();
+  private final ConcurrentMap<String, Totals> myTotals = new ConcurrentHashMap<String, Totals>();
+  private final Map<Long, String> myThreadNames = new ConcurrentHashMap<Long, String>();
+  private final Map<String, long[]> myExecutorStatsAtStart = new HashMap<String, long[]>();
+
+  private BuildProfiler() {
+    for (Map.Entry<String, BoundedTaskExecutor> entry : ourExecutors.entrySet()) {
+      final BoundedTaskExecutor executor = entry.getValue();
+      myExecutorStatsAtStart.put(entry.getKey(), new long[]{executor.getTotalWaitTimeNanos(), executor.getStartedTaskCount()});
+    }
+  }
+
+  /**
+   * Registers a pool whose tasks' waiting for a free thread is reported in the profile
+   */
+  public static void registerExecutor(@NotNull String name, @NotNull BoundedTaskExecutor executor) {
+    ourExecutors.put(name, executor);
+  }
+
+  static void install(CompileContext context) {
+    if (Boolean.parseBoolean(System.getProperty(GlobalOptions.BUILD_PROFILE_OPTION, "false"))) {
+      KEY.set(context, new BuildProfiler());
+    }
+  }
+
+  public static long now() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Records an activity which started at {@code startNanos} obtained from {@link #now()} and ends now
+   *
+   * @param detail what the activity was performed on, e.g. the target a builder was run for
+   */
+  public static void record(CompileContext context, @NotNull String category, @NotNull String name, @Nullable String detail, long startNanos) {
+    final BuildProfiler profiler = KEY.get(context);
+    if (profiler != null) {
+      profiler.addSpan(category, name, detail, startNanos, System.nanoTime());
+    }
+  }
+
+  private void addSpan(String category, String name, String detail, long startNanos, long endNanos) {
+    final long duration = endNanos - startNanos;
+    getTotals(category, name).add(duration, 1);
+    if (duration >= MIN_TRACED_SPAN_NANOS) {
+      final Thread thread = Thread.currentThread();
+      myThreadNames.put(thread.getId(), thread.getName());
+      mySpans.add(new Span(category, name, detail, thread.getId(), startNanos - myStartNanos, duration));
+    }
+  }
+
+  private Totals getTotals(String category, String name) {
+    final String key = category + ": " + name;
+    Totals totals = myTotals.get(key);
+    if (totals == null) {
+      final Totals newTotals = new Totals(category, name);
+      totals = myTotals.putIfAbsent(key, newTotals);
+      if (totals == null) {
+        totals = newTotals;
+      }
+    }
+    return totals;
+  }
+
+  /**
+   * Writes the report of the build and sends it to the IDE
+   */
+  static void reportBuildFinished(@Nullable CompileContext context) {
+    final BuildProfiler profiler = context != null ? KEY.get(context) : null;
+    if (profiler == null) {
+      return;
+    }
+    KEY.set(context, null);
+    profiler.collectExecutorStats();
+    profiler.logTotals();
+    final String report = profiler.createChromeTrace();
+    final File reportFile = new File(context.getProjectDescriptor().dataManager.getDataPaths().getDataStorageRoot(), REPORT_FILE_NAME);
+    try {
+      FileUtil.writeToFile(reportFile, report);
+      LOG.info("Build profile written to " + reportFile);
+    }
+    catch (IOException e) {
+      LOG.info("Cannot write build profile to " + reportFile, e);
+    }
+    context.processMessage(new CustomBuilderMessage(BUILDER_ID, REPORT_MESSAGE_TYPE, report));
+  }
+
+  private void collectExecutorStats() {
+    for (Map.Entry<String, BoundedTaskExecutor> entry : ourExecutors.entrySet()) {
+      final BoundedTaskExecutor executor = entry.getValue();
+      final long[] atStart = myExecutorStatsAtStart.get(entry.getKey());
+      final long waitNanos = executor.getTotalWaitTimeNanos() - (atStart != null ? atStart[0] : 0);
+      final long tasks = executor.getStartedTaskCount() - (atStart != null ? atStart[1] : 0);
+      if (tasks > 0) {
+        getTotals(THREAD_WAIT, entry.getKey()).add(waitNanos, tasks);
+      }
+    }
+  }
+
+  private List<Totals> getSortedTotals() {
+    final List<Totals> totals = new ArrayList<Totals>(myTotals.values());
+    Collections.sort(totals, new Comparator<Totals>() {
+      @Override
+      public int compare(Totals o1, Totals o2) {
+        final long t1 = o1.myNanos.get();
+        final long t2 = o2.myNanos.get();
+        return t1 < t2 ? 1 : t1 == t2 ? 0 : -1;
+      }
+    });
+    return totals;
+  }
+
+  private void logTotals() {
+    final StringBuilder builder = new StringBuilder("Build profile, total time by activity (activities of nested targets overlap):");
+    final List<Totals> totals = getSortedTotals();
+    for (Totals t : totals.subList(0, Math.min(TOTALS_TO_LOG, totals.size()))) {
+      builder.append("\n  ").append(t.myCategory).append(": ").append(t.myName).append(": ").append(t.myNanos.get() / 1000000L)
+        .append(" ms, ").append(t.myCount.get()).append(" times");
+    }
+    LOG.info(builder.toString());
+  }
+
+  private String createChromeTrace() {
+    final StringBuilder out = new StringBuilder();
+    out.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+    boolean first = true;
+    for (Map.Entry<Long, String> entry : myThreadNames.entrySet()) {
+      if (!first) {
+        out.append(',');
+      }
+      first = false;
+      out.append("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(entry.getKey()).append(",\"args\":{\"name\":");
+      appendString(out, entry.getValue()).append("}}");
+    }
+    for (Span span : mySpans) {
+      if (!first) {
+        out.append(',');
+      }
+      first = false;
+      out.append("\n{\"name\":");
+      appendString(out, span.myName).append(",\"cat\":");
+      appendString(out, span.myCategory).append(",\"ph\":\"X\",\"pid\":1,\"tid\":").append(span.myThreadId);
+      out.append(",\"ts\":").append(span.myStartNanos / 1000L).append(",\"dur\":").append(span.myDurationNanos / 1000L);
+      if (span.myDetail != null) {
+        out.append(",\"args\":{\"detail\":");
+        appendString(out, span.myDetail).append('}');
+      }
+      out.append('}');
+    }
+    out.append("\n],\"totals\":[");
+    first = true;
+    for (Totals t : getSortedTotals()) {
+      if (!first) {
+        out.append(',');
+      }
+      first = false;
+      out.append("\n{\"cat\":");
+      appendString(out, t.myCategory).append(",\"name\":");
+      appendString(out, t.myName).append(",\"ms\":").append(t.myNanos.get() / 1000000L).append(",\"count\":").append(t.myCount.get()).append('}');
+    }
+    out.append("\n]}");
+    return out.toString();
+  }
+
+  private static StringBuilder appendString(StringBuilder out, String s) {
+    out.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.append('\\').append(c);
+      }
+      else if (c < 0x20) {
+        out.append(String.format("\\u%04x", (int)c));
+      }
+      else {
+        out.append(c);
+      }
+    }
+    return out.append('"');
+  }
+
+  private static class Span {
+    final String myCategory;
+    final String myName;
+    final String myDetail;
+    final long myThreadId;
+    final long myStartNanos;
+    final long myDurationNanos;
+
+    private Span(String category, String name, String detail, long threadId, long startNanos, long durationNanos) {
+      myCategory = category;
+      myName = name;
+      myDetail = detail;
+      myThreadId = threadId;
+      myStartNanos = startNanos;
+      myDurationNanos = durationNanos;
+    }
+  }
+
+  private static class Totals {
+    final String myCategory;
+    final String myName;
+    final AtomicLong myNanos = new AtomicLong();
+    final AtomicLong myCount = new AtomicLong();
+
+    private Totals(String category, String name) {
+      myCategory = category;
+      myName = name;
+    }
+
+    void add(long nanos, long count) {
+      myNanos.addAndGet(nanos);
+      myCount.addAndGet(count);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.util.io.FileSystemUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import org.jetbrains.jps.builders.BuildRootDescriptor;
+import org.jetbrains.jps.builders.BuildRootIndex;
+import org.jetbrains.jps.service.SharedThreadPool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Walks build roots on several threads: every directory is listed by a separate task, the task lists the directory, takes
+ * modification stamps of accepted files and forks tasks for the subdirectories. Found files are collected per task and handed
+ * to the caller at once, so the file system state and the timestamp storage are only accessed by the calling thread.
+ */
+class BuildRootsScanner {
+  private static final BoundedTaskExecutor ourExecutor =
+    new BoundedTaskExecutor(SharedThreadPool.getInstance(), Runtime.getRuntime().availableProcessors());
+  static {
+    BuildProfiler.registerExecutor("build roots scanning", ourExecutor);
+  }
+
+  private final BuildRootIndex myRootIndex;
+  private final Queue<Future<?>> myTasks = new ConcurrentLinkedQueue<Future<?>>();
+  private final Queue<List<ScannedFile>> myResults = new ConcurrentLinkedQueue<List<ScannedFile>>();
+
+  BuildRootsScanner(BuildRootIndex rootIndex) {
+    myRootIndex = rootIndex;
+  }
+
+  static class ScannedFile {
+    final File file;
+    final BuildRootDescriptor root;
+    final long stamp;
+
+    private ScannedFile(File file, BuildRootDescriptor root, long stamp) {
+      this.file = file;
+      this.root = root;
+      this.stamp = stamp;
+    }
+  }
+
+  void scan(BuildRootDescriptor rd, FSCache fsCache) {
+    fork(rd, rd.getRootFile(), fsCache, true);
+  }
+
+  /**
+   * Waits for all roots passed to {@link #scan} to be walked
+   *
+   * @return accepted files under the roots, in no particular order
+   */
+  Collection<ScannedFile> getResults() {
+    try {
+      // a task forks its subtasks before it completes, so the queue is empty only when the whole walk is done
+      Future<?> task;
+      while ((task = myTasks.poll()) != null) {
+        task.get();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new RuntimeException(cause);
+    }
+
+    final List<ScannedFile> result = new ArrayList<ScannedFile>();
+    for (List<ScannedFile> files : myResults) {
+      result.addAll(files);
+    }
+    return result;
+  }
+
+  private void fork(final BuildRootDescriptor rd, final File dir, final FSCache fsCache, final boolean isRoot) {
+    myTasks.add(ourExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        walk(rd, dir, fsCache, isRoot);
+      }
+    }));
+  }
+
+  private void walk(BuildRootDescriptor rd, File file, FSCache fsCache, boolean isRoot) {
+    final File[] children = fsCache.getChildren(file);
+    if (children == null) {
+      if (isRoot) {
+        // the root itself is a file
+        final List<ScannedFile> files = new ArrayList<ScannedFile>(1);
+        processFile(rd, file, files);
+        myResults.add(files);
+      }
+      return;
+    }
+    if (children.length == 0 || !myRootIndex.isDirectoryAccepted(file, rd)) {
+      return;
+    }
+
+    final List<ScannedFile> files = new ArrayList<ScannedFile>(children.length);
+    File lastSubdirectory = null;
+    for (File child : children) {
+      final File[] grandChildren = fsCache.getChildren(child);
+      if (grandChildren != null) {
+        if (lastSubdirectory != null) {
+          fork(rd, lastSubdirectory, fsCache, false);
+        }
+        lastSubdirectory = child;
+      }
+      else {
+        processFile(rd, child, files);
+      }
+    }
+    if (!files.isEmpty()) {
+      myResults.add(files);
+    }
+    if (lastSubdirectory != null) {
+      // continue with the last subdirectory on this thread instead of forking a task for it
+      walk(rd, lastSubdirectory, fsCache, false);
+    }
+  }
+
+  private void processFile(BuildRootDescriptor rd, File file, List<ScannedFile> files) {
+    if (myRootIndex.isFileAccepted(file, rd)) {
+      files.add(new ScannedFile(file, rd, FileSystemUtil.lastModified(file)));
+    }
+  }
+}
@@ -15,14 +15,11 @@
  */
 package org.jetbrains.jps.incremental;
 
-import com.intellij.openapi.util.io.FileSystemUtil;
 import com.intellij.openapi.util.io.FileUtil;
 import gnu.trove.THashSet;
-import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.ModuleChunk;
 import org.jetbrains.jps.builders.BuildRootDescriptor;
-import org.jetbrains.jps.builders.BuildRootIndex;
 import org.jetbrains.jps.builders.BuildTarget;
 import org.jetbrains.jps.builders.FileProcessor;
 import org.jetbrains.jps.builders.impl.BuildTargetChunk;
@@ -36,7 +33,9 @@ import org.jetbrains.jps.model.module.JpsModule;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -141,50 +140,41 @@ public class FSOperations {
                              boolean forceMarkDirty,
                              @Nullable THashSet<File> currentFiles,
                              @Nullable FileFilter filter) throws IOException {
-    for (BuildRootDescriptor rd : context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context)) {
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final BuildRootsScanner scanner = new BuildRootsScanner(pd.getBuildRootIndex());
+    for (BuildRootDescriptor rd : pd.getBuildRootIndex().getTargetRoots(target, context)) {
       if (!rd.getRootFile().exists() ||
           //temp roots are managed by compilers themselves
           (rd instanceof JavaSourceRootDescriptor && ((JavaSourceRootDescriptor)rd).isTemp)) {
         continue;
       }
       if (filter == null) {
-        context.getProjectDescriptor().fsState.clearRecompile(rd);
+        pd.fsState.clearRecompile(rd);
       }
-      final FSCache fsCache = rd.canUseFileCache() ? context.getProjectDescriptor().getFSCache() : FSCache.NO_CACHE;
-      traverseRecursively(context, rd, rd.getRootFile(), timestamps, forceMarkDirty, currentFiles, filter, fsCache);
+      final FSCache fsCache = rd.canUseFileCache() ? pd.getFSCache() : FSCache.NO_CACHE;
+      scanner.scan(rd, fsCache);
     }
-  }
 
-  private static void traverseRecursively(CompileContext context,
-                                          final BuildRootDescriptor rd,
-                                          final File file,
-                                          @NotNull final Timestamps tsStorage,
-                                          final boolean forceDirty,
-                                          @Nullable Set<File> currentFiles, @Nullable FileFilter filter, @NotNull FSCache fsCache) throws IOException {
-    BuildRootIndex rootIndex = context.getProjectDescriptor().getBuildRootIndex();
-    final File[] children = fsCache.getChildren(file);
-    if (children != null) { // is directory
-      if (children.length > 0 && rootIndex.isDirectoryAccepted(file, rd)) {
-        for (File child : children) {
-          traverseRecursively(context, rd, child, tsStorage, forceDirty, currentFiles, filter, fsCache);
-        }
+    // if it is full project rebuild, all storages are already completely cleared;
+    // so passing null because there is no need to access the storage to clear non-existing data
+    final Timestamps marker = context.isProjectRebuild() ? null : timestamps;
+    final List<BuildRootsScanner.ScannedFile> scannedFiles = new ArrayList<BuildRootsScanner.ScannedFile>();
+    final List<File> files = new ArrayList<File>();
+    for (BuildRootsScanner.ScannedFile scanned : scanner.getResults()) {
+      if (filter == null || filter.accept(scanned.file)) {
+        scannedFiles.add(scanned);
+        files.add(scanned.file);
       }
     }
-    else { // is file
-      if (rootIndex.isFileAccepted(file, rd) && (filter == null || filter.accept(file))) {
-        boolean markDirty = forceDirty;
-        if (!markDirty) {
-          markDirty = tsStorage.getStamp(file, rd.getTarget()) != FileSystemUtil.lastModified(file);
-        }
-        if (markDirty) {
-          // if it is full project rebuild, all storages are already completely cleared;
-          // so passing null because there is no need to access the storage to clear non-existing data
-          final Timestamps marker = context.isProjectRebuild() ? null : tsStorage;
-          context.getProjectDescriptor().fsState.markDirty(context, file, rd, marker, false);
-        }
-        if (currentFiles != null) {
-          currentFiles.add(file);
-        }
+    // all the roots belong to the target, so the saved stamps are read in one batch
+    final long[] savedStamps = forceMarkDirty ? null : timestamps.getStamps(files, target);
+    for (int i = 0; i < scannedFiles.size(); i++) {
+      final BuildRootsScanner.ScannedFile scanned = scannedFiles.get(i);
+      if (savedStamps == null || savedStamps[i] != scanned.stamp) {
+        pd.fsState.markDirty(context, scanned.file, scanned.root, marker, false);
+      }
+      if (currentFiles != null) {
+        currentFiles.add(scanned.file);
       }
     }
   }
@@ -21,14 +21,11 @@ import com.intellij.openapi.util.UserDataHolder;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
-import com.intellij.util.SmartList;
-import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.containers.ConcurrentHashSet;
 import com.intellij.util.containers.MultiMap;
 import com.intellij.util.containers.MultiMapBasedOnSet;
 import com.intellij.util.io.MappingFailedException;
 import com.intellij.util.io.PersistentEnumerator;
-import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -82,7 +79,7 @@ public class IncProjectBuilder {
   private static final GlobalContextKey<Set<BuildTarget<?>>> TARGET_WITH_CLEARED_OUTPUT = GlobalContextKey.create("_targets_with_cleared_output_");
   private static final int MAX_BUILDER_THREADS;
   static {
-    int maxThreads = 6;
+    int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
     try {
       maxThreads = Math.max(2, Integer.parseInt(System.getProperty(GlobalOptions.COMPILE_PARALLEL_MAX_THREADS_OPTION, Integer.toString(maxThreads))));
     }
@@ -109,6 +106,7 @@ public class IncProjectBuilder {
   private final float myTotalTargetsWork;
   private final int myTotalModuleLevelBuilderCount;
   private final List<Future> myAsyncTasks = Collections.synchronizedList(new ArrayList<Future>());
+  @Nullable private final ModuleBuildCache myBuildCache = ModuleBuildCache.create();
 
   public IncProjectBuilder(ProjectDescriptor pd, BuilderRegistry builderRegistry, Map<String, String> builderParams, CanceledStatus cs,
                            @Nullable Callbacks.ConstantAffectionResolver constantSearch) {
@@ -219,14 +217,17 @@ public class IncProjectBuilder {
           }
         }
       }
+      BuildProfiler.reportBuildFinished(context);
     }
   }
 
   private static void flushContext(CompileContext context) {
     if (context != null) {
+      final long start = BuildProfiler.now();
       final ProjectDescriptor pd = context.getProjectDescriptor();
       pd.timestamps.getStorage().force();
       pd.dataManager.flush(false);
+      BuildProfiler.record(context, BuildProfiler.STORAGE_FLUSH, "build finished", null, start);
     }
     final ExternalJavacDescriptor descriptor = ExternalJavacDescriptor.KEY.get(context);
     if (descriptor != null) {
@@ -327,6 +328,7 @@ public class IncProjectBuilder {
     // in make mode it is critical to traverse file system as fast as possible, so we choose speed over memory savings
     myProjectDescriptor.setFSCache(isProjectRebuild? FSCache.NO_CACHE : new FSCache());
     JavaBuilderUtil.CONSTANT_SEARCH_SERVICE.set(context, myConstantSearch);
+    BuildProfiler.install(context);
     return context;
   }
 
@@ -515,8 +517,10 @@ public class IncProjectBuilder {
           }
           finally {
             context.updateCompilationStartStamp();
+            final long flushStart = BuildProfiler.now();
             pd.dataManager.closeSourceToOutputStorages(Collections.singleton(chunk));
             pd.dataManager.flush(true);
+            BuildProfiler.record(context, BuildProfiler.STORAGE_FLUSH, "chunk built", chunk.toString(), flushStart);
           }
         }
       }
@@ -526,52 +530,12 @@ public class IncProjectBuilder {
     }
   }
 
-  private static class BuildChunkTask {
-    private final BuildTargetChunk myChunk;
-    private final Set<BuildChunkTask> myNotBuiltDependencies = new THashSet<BuildChunkTask>();
-    private final List<BuildChunkTask> myTasksDependsOnThis = new ArrayList<BuildChunkTask>();
-
-    private BuildChunkTask(BuildTargetChunk chunk) {
-      myChunk = chunk;
-    }
-
-    public BuildTargetChunk getChunk() {
-      return myChunk;
-    }
-
-    public boolean isReady() {
-      return myNotBuiltDependencies.isEmpty();
-    }
-
-    public void addDependency(BuildChunkTask dependency) {
-      if (myNotBuiltDependencies.add(dependency)) {
-        dependency.myTasksDependsOnThis.add(this);
-      }
-    }
-
-    public List<BuildChunkTask> markAsFinishedAndGetNextReadyTasks() {
-      List<BuildChunkTask> nextTasks = new SmartList<BuildChunkTask>();
-      for (BuildChunkTask task : myTasksDependsOnThis) {
-        final boolean removed = task.myNotBuiltDependencies.remove(this);
-        LOG.assertTrue(removed, task.getChunk().toString() + " didn't have " + getChunk().toString());
-
-        if (task.isReady()) {
-          nextTasks.add(task);
-        }
-      }
-      return nextTasks;
-    }
-  }
-
   private class BuildParallelizer {
-    private final BoundedTaskExecutor myParallelBuildExecutor =
-      new BoundedTaskExecutor(SharedThreadPool.getInstance(),
-                              Math.min(MAX_BUILDER_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors())));
     private final CompileContext myContext;
     private final AtomicReference<Throwable> myException = new AtomicReference<Throwable>();
     private final Object myQueueLock = new Object();
+    private final BuildChunkScheduler myScheduler;
     private final CountDownLatch myTasksCountDown;
-    private final List<BuildChunkTask> myTasks;
 
     private BuildParallelizer(CompileContext context) {
       myContext = context;
@@ -579,38 +543,24 @@ public class IncProjectBuilder {
       final BuildTargetIndex targetIndex = pd.getBuildTargetIndex();
 
       List<BuildTargetChunk> chunks = targetIndex.getSortedTargetChunks(myContext);
-      myTasks = new ArrayList<BuildChunkTask>(chunks.size());
-      Map<BuildTarget<?>, BuildChunkTask> targetToTask = new THashMap<BuildTarget<?>, BuildChunkTask>();
+      MultiMap<BuildTarget<?>, BuildTarget<?>> dependencies = new MultiMap<BuildTarget<?>, BuildTarget<?>>();
       for (BuildTargetChunk chunk : chunks) {
-        BuildChunkTask task = new BuildChunkTask(chunk);
-        myTasks.add(task);
         for (BuildTarget<?> target : chunk.getTargets()) {
-          targetToTask.put(target, task);
-        }
-      }
-
-      for (BuildChunkTask task : myTasks) {
-        for (BuildTarget<?> target : task.getChunk().getTargets()) {
-          for (BuildTarget<?> dependency : targetIndex.getDependencies(target, myContext)) {
-            BuildChunkTask depTask = targetToTask.get(dependency);
-            if (depTask != null && depTask != task) {
-              task.addDependency(depTask);
-            }
-          }
+          dependencies.putValues(target, targetIndex.getDependencies(target, myContext));
         }
       }
-
-      myTasksCountDown = new CountDownLatch(myTasks.size());
+      myScheduler = new BuildChunkScheduler(chunks, dependencies, MAX_BUILDER_THREADS);
+      myTasksCountDown = new CountDownLatch(chunks.size());
     }
 
     public void buildInParallel() throws IOException, ProjectBuildException {
-      List<BuildChunkTask> initialTasks = new ArrayList<BuildChunkTask>();
-      for (BuildChunkTask task : myTasks) {
-        if (task.isReady()) {
-          initialTasks.add(task);
-        }
+      final long start = System.currentTimeMillis();
+      final List<BuildChunkScheduler.Task> initialTasks;
+      synchronized (myQueueLock) {
+        initialTasks = myScheduler.queueInitialTasks();
       }
-      queueTasks(initialTasks);
+      logQueuedTasks(initialTasks);
+      runReadyTasks();
 
       try {
         myTasksCountDown.await();
@@ -626,18 +576,15 @@ public class IncProjectBuilder {
       else if (throwable != null) {
         throw new ProjectBuildException(throwable);
       }
+      logCriticalPath(start);
     }
 
-    private void queueTasks(List<BuildChunkTask> tasks) {
-      List<BuildTargetChunk> chunksToLog = LOG.isDebugEnabled() ? new ArrayList<BuildTargetChunk>() : null;
-      for (BuildChunkTask task : tasks) {
-        if (chunksToLog != null) {
+    private void logQueuedTasks(List<BuildChunkScheduler.Task> tasks) {
+      if (LOG.isDebugEnabled() && !tasks.isEmpty()) {
+        List<BuildTargetChunk> chunksToLog = new ArrayList<BuildTargetChunk>();
+        for (BuildChunkScheduler.Task task : tasks) {
           chunksToLog.add(task.getChunk());
         }
-        queueTask(task);
-      }
-
-      if (chunksToLog != null && !chunksToLog.isEmpty()) {
         final StringBuilder logBuilder = new StringBuilder("Queuing " + chunksToLog.size() + " chunks in parallel: ");
         Collections.sort(chunksToLog, new Comparator<BuildTargetChunk>() {
           public int compare(final BuildTargetChunk o1, final BuildTargetChunk o2) {
@@ -651,11 +598,26 @@ public class IncProjectBuilder {
       }
     }
 
-    private void queueTask(final BuildChunkTask task) {
+    private void runReadyTasks() {
+      while (true) {
+        final BuildChunkScheduler.Task task;
+        synchronized (myQueueLock) {
+          task = myScheduler.startNextTask();
+        }
+        if (task == null) {
+          return;
+        }
+        runTask(task);
+      }
+    }
+
+    private void runTask(final BuildChunkScheduler.Task task) {
       final CompileContext chunkLocalContext = createContextWrapper(myContext);
-      myParallelBuildExecutor.execute(new Runnable() {
+      SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
         @Override
         public void run() {
+          task.myStartTime = System.currentTimeMillis();
+          BuildProfiler.record(myContext, BuildProfiler.THREAD_WAIT, "chunk scheduling", task.getChunk().toString(), task.myReadyNanos);
           try {
             try {
               if (myException.get() == null) {
@@ -664,8 +626,10 @@ public class IncProjectBuilder {
             }
             finally {
               myContext.updateCompilationStartStamp();
+              final long flushStart = BuildProfiler.now();
               myProjectDescriptor.dataManager.closeSourceToOutputStorages(Collections.singletonList(task.getChunk()));
               myProjectDescriptor.dataManager.flush(true);
+              BuildProfiler.record(myContext, BuildProfiler.STORAGE_FLUSH, "chunk built", task.getChunk().toString(), flushStart);
             }
           }
           catch (Throwable e) {
@@ -673,19 +637,65 @@ public class IncProjectBuilder {
             LOG.info(e);
           }
           finally {
+            task.myFinishTime = System.currentTimeMillis();
             LOG.debug("Finished compilation of " + task.getChunk().toString());
-            myTasksCountDown.countDown();
-            List<BuildChunkTask> nextTasks;
+            final List<BuildChunkScheduler.Task> nextTasks;
             synchronized (myQueueLock) {
-              nextTasks = task.markAsFinishedAndGetNextReadyTasks();
-            }
-            if (!nextTasks.isEmpty()) {
-              queueTasks(nextTasks);
+              nextTasks = myScheduler.finishTask(task);
             }
+            logQueuedTasks(nextTasks);
+            runReadyTasks();
+            myTasksCountDown.countDown();
           }
         }
       });
     }
+
+    /**
+     * Logs the chain of chunks which determined the build duration: starting from the chunk finished last, each chunk in the
+     * chain is preceded by its dependency finished last. Time a chunk waited for a free thread after its dependencies had been
+     * built is reported separately, it shows where more threads would help.
+     */
+    private void logCriticalPath(long buildStart) {
+      BuildChunkScheduler.Task last = null;
+      for (BuildChunkScheduler.Task task : myScheduler.getTasks()) {
+        if (last == null || task.myFinishTime > last.myFinishTime) {
+          last = task;
+        }
+      }
+      if (last == null) {
+        return;
+      }
+
+      final List<BuildChunkScheduler.Task> path = new ArrayList<BuildChunkScheduler.Task>();
+      for (BuildChunkScheduler.Task task = last; task != null; ) {
+        path.add(task);
+        BuildChunkScheduler.Task previous = null;
+        for (BuildChunkScheduler.Task dependency : task.getDependencies()) {
+          if (previous == null || dependency.myFinishTime > previous.myFinishTime) {
+            previous = dependency;
+          }
+        }
+        task = previous;
+      }
+      Collections.reverse(path);
+
+      long building = 0;
+      final StringBuilder builder = new StringBuilder();
+      long readyTime = buildStart;
+      for (BuildChunkScheduler.Task task : path) {
+        final long duration = task.myFinishTime - task.myStartTime;
+        building += duration;
+        builder.append("\n  ").append(task.getChunk().toString()).append(": ").append(duration).append(" ms");
+        final long waited = task.myStartTime - readyTime;
+        if (waited > 0) {
+          builder.append(", waited for a thread ").append(waited).append(" ms");
+        }
+        readyTime = task.myFinishTime;
+      }
+      LOG.info("Critical path of " + path.size() + " chunks: " + building + " ms of " + (last.myFinishTime - buildStart) +
+               " ms total with " + MAX_BUILDER_THREADS + " threads" + builder);
+    }
   }
 
   private void buildChunkIfAffected(CompileContext context, CompileScope scope, BuildTargetChunk chunk) throws ProjectBuildException {
@@ -732,7 +742,9 @@ public class IncProjectBuilder {
 
     final List<TargetBuilder<?, ?>> builders = BuilderRegistry.getInstance().getTargetBuilders();
     for (TargetBuilder<?, ?> builder : builders) {
+      final long start = BuildProfiler.now();
       BuildOperations.buildTarget(target, context, builder);
+      BuildProfiler.record(context, BuildProfiler.BUILDER, builder.getPresentableName(), target.getPresentableName(), start);
       updateDoneFraction(context, 1.0f / builders.size());
     }
     return true;
@@ -746,6 +758,7 @@ public class IncProjectBuilder {
 
   private void buildTargetsChunk(CompileContext context, final BuildTargetChunk chunk) throws ProjectBuildException {
     boolean doneSomething;
+    final long start = BuildProfiler.now();
     try {
       Utils.ERRORS_DETECTED_KEY.set(context, Boolean.FALSE);
 
@@ -757,10 +770,21 @@ public class IncProjectBuilder {
 
       myProjectDescriptor.fsState.beforeChunkBuildStart(context, chunk);
 
-      doneSomething |= runBuildersForChunk(context, chunk);
+      final ModuleBuildCache.CacheKey cacheKey = myBuildCache != null ? myBuildCache.computeKey(context, chunk) : null;
+      if (cacheKey != null && myBuildCache.restore(context, cacheKey)) {
+        doneSomething = true;
+        updateDoneFraction(context, 1.0f);
+      }
+      else {
+        doneSomething |= runBuildersForChunk(context, chunk);
+      }
 
       onChunkBuildComplete(context, chunk);
 
+      if (cacheKey != null && !Utils.errorsDetected(context) && !context.getCancelStatus().isCanceled()) {
+        myBuildCache.store(context, cacheKey);
+      }
+
       //if (doneSomething && GENERATE_CLASSPATH_INDEX) {
       //  myAsyncTasks.add(SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
       //    @Override
@@ -801,6 +825,7 @@ public class IncProjectBuilder {
       }
       finally {
         Utils.REMOVED_SOURCES_KEY.set(context, null);
+        BuildProfiler.record(context, BuildProfiler.TARGET, chunk.toString(), null, start);
       }
     }
   }
@@ -980,7 +1005,9 @@ public class IncProjectBuilder {
 
           for (ModuleLevelBuilder builder : builders) {
             processDeletedPaths(context, chunk.getTargets());
+            final long builderStart = BuildProfiler.now();
             final ModuleLevelBuilder.ExitCode buildResult = builder.build(context, chunk, dirtyFilesHolder, outputConsumer);
+            BuildProfiler.record(context, BuildProfiler.BUILDER, builder.getPresentableName(), chunk.getName(), builderStart);
 
             doneSomething |= (buildResult != ModuleLevelBuilder.ExitCode.NOTHING_DONE);
 
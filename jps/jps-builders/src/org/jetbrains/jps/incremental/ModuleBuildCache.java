@@ -0,0 +1,657 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileSystemUtil;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.Processor;
+import com.intellij.util.containers.MultiMap;
+import com.intellij.util.containers.SLRUMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.asm4.*;
+import org.jetbrains.jps.ModuleChunk;
+import org.jetbrains.jps.ProjectPaths;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.DirtyFilesHolder;
+import org.jetbrains.jps.builders.FileProcessor;
+import org.jetbrains.jps.builders.impl.BuildOutputConsumerImpl;
+import org.jetbrains.jps.builders.impl.BuildTargetChunk;
+import org.jetbrains.jps.builders.impl.DirtyFilesHolderBase;
+import org.jetbrains.jps.builders.java.JavaBuilderUtil;
+import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
+import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
+import org.jetbrains.jps.builders.java.dependencyView.Mappings;
+import org.jetbrains.jps.builders.storage.SourceToOutputMapping;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.messages.FileDeletedEvent;
+import org.jetbrains.jps.incremental.messages.ProgressMessage;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.java.LanguageLevel;
+import org.jetbrains.jps.model.java.compiler.JpsJavaCompilerConfiguration;
+import org.jetbrains.jps.model.java.compiler.JpsJavaCompilerOptions;
+import org.jetbrains.jps.model.java.compiler.ProcessorConfigProfile;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.model.serialization.JpsModelSerializationDataService;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Local content-addressed store of module build outputs, shared between checkouts of a project. An entry is keyed by the contents
+ * of the target's sources, the compiler settings and the ABI of the compilation classpath, and holds the output files produced
+ * for the sources; a dirty target whose key is found in the store gets its outputs copied from there instead of being compiled.
+ * <p/>
+ * The dependency information is not kept in the store: it refers to absolute paths of the checkout, so it is built anew from the
+ * restored class files the same way it is built after a compilation.
+ */
+class ModuleBuildCache {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.ModuleBuildCache");
+  private static final int FORMAT_VERSION = 1;
+  private static final String SOURCES_ENTRY_NAME = "sources";
+  private static final String OUTPUT_ENTRY_PREFIX = "out/";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int DIGEST_CACHE_SIZE = 8192;
+  // the build process is kept alive between builds, so the digests of files which haven't changed since the previous build are reused
+  private static final SLRUMap<String, FileDigest> ourContentDigests =
+    new SLRUMap<String, FileDigest>(DIGEST_CACHE_SIZE, DIGEST_CACHE_SIZE);
+  private static final SLRUMap<String, FileDigest> ourAbiDigests =
+    new SLRUMap<String, FileDigest>(DIGEST_CACHE_SIZE, DIGEST_CACHE_SIZE);
+
+  private final File myStoreDir;
+
+  private ModuleBuildCache(@NotNull File storeDir) {
+    myStoreDir = storeDir;
+  }
+
+  @Nullable
+  static ModuleBuildCache create() {
+    final String path = System.getProperty(GlobalOptions.BUILD_CACHE_DIR_OPTION);
+    return StringUtil.isEmptyOrSpaces(path) ? null : new ModuleBuildCache(new File(path));
+  }
+
+  static class CacheKey {
+    final ModuleBuildTarget myTarget;
+    final String myDigest;
+    final File myBaseDir;
+    final Set<File> mySources;
+
+    private CacheKey(ModuleBuildTarget target, String digest, File baseDir, Set<File> sources) {
+      myTarget = target;
+      myDigest = digest;
+      myBaseDir = baseDir;
+      mySources = sources;
+    }
+  }
+
+  /**
+   * @return key of the chunk's outputs or null if the chunk cannot be taken from the store: it is not a single module target,
+   * it has nothing to recompile, or its outputs depend on something the key does not cover
+   */
+  @Nullable
+  CacheKey computeKey(CompileContext context, BuildTargetChunk chunk) throws IOException {
+    if (chunk.getTargets().size() != 1) {
+      return null;
+    }
+    final BuildTarget<?> buildTarget = chunk.getTargets().iterator().next();
+    if (!(buildTarget instanceof ModuleBuildTarget) || !hasFilesToRecompile(context, (ModuleBuildTarget)buildTarget)) {
+      return null;
+    }
+    return computeKey(context, (ModuleBuildTarget)buildTarget);
+  }
+
+  @Nullable
+  private static CacheKey computeKey(CompileContext context, ModuleBuildTarget target) throws IOException {
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final JpsModule module = target.getModule();
+    final File baseDir = JpsModelSerializationDataService.getBaseDirectory(module);
+    final ModuleChunk chunk = new ModuleChunk(Collections.singleton(target));
+    final JpsJavaCompilerConfiguration config = JpsJavaExtensionService.getInstance().getOrCreateCompilerConfiguration(pd.getProject());
+    final ProcessorConfigProfile profile = config.getAnnotationProcessingProfile(module);
+    if (baseDir == null || target.getOutputDir() == null || profile != null && profile.isEnabled()) {
+      // annotation processors may produce anything anywhere
+      return null;
+    }
+
+    final DigestBuilder digest = new DigestBuilder();
+    digest.add("version", FORMAT_VERSION);
+    digest.add("target", target.getTargetType().getTypeId(), module.getName());
+    for (BuilderCategory category : BuilderCategory.values()) {
+      for (ModuleLevelBuilder builder : BuilderRegistry.getInstance().getBuilders(category)) {
+        digest.add("builder", builder.getPresentableName());
+      }
+    }
+    final LanguageLevel level = JpsJavaExtensionService.getInstance().getLanguageLevel(module);
+    digest.add("language level", level != null ? level.name() : null);
+    digest.add("bytecode target", config.getByteCodeTargetLevel(module.getName()));
+    digest.add("compiler", config.getJavaCompilerId());
+    final JpsJavaCompilerOptions options = config.getCurrentCompilerOptions();
+    digest.add("options", options.DEBUGGING_INFO, options.GENERATE_NO_WARNINGS, options.DEPRECATION, options.ADDITIONAL_OPTIONS_STRING);
+    digest.add("not-null assertions", config.isAddNotNullAssertions());
+    digest.add("encoding", pd.getEncodingConfiguration().getPreferredModuleChunkEncoding(chunk));
+
+    final BuildRootsScanner scanner = new BuildRootsScanner(pd.getBuildRootIndex());
+    for (JavaSourceRootDescriptor rd : pd.getBuildRootIndex().getTargetRoots(target, context)) {
+      if (rd.isTemp) {
+        // temp roots are managed by compilers themselves
+        continue;
+      }
+      final String rootPath = getRelativePath(baseDir, rd.getRootFile());
+      if (rootPath == null) {
+        return null;
+      }
+      digest.add("root", rootPath, rd.getPackagePrefix(), rd.isGenerated());
+      if (rd.getRootFile().exists()) {
+        scanner.scan(rd, rd.canUseFileCache() ? pd.getFSCache() : FSCache.NO_CACHE);
+      }
+    }
+    final Map<String, BuildRootsScanner.ScannedFile> sources = new TreeMap<String, BuildRootsScanner.ScannedFile>();
+    for (BuildRootsScanner.ScannedFile scanned : scanner.getResults()) {
+      final String path = getRelativePath(baseDir, scanned.file);
+      if (path == null || !context.getScope().isAffected(target, scanned.file)) {
+        return null;
+      }
+      sources.put(path, scanned);
+    }
+    final Set<File> sourceFiles = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+    for (Map.Entry<String, BuildRootsScanner.ScannedFile> entry : sources.entrySet()) {
+      final BuildRootsScanner.ScannedFile scanned = entry.getValue();
+      digest.add("source", entry.getKey(), getContentDigest(scanned.file, scanned.stamp));
+      sourceFiles.add(scanned.file);
+    }
+
+    final Collection<File> outputRoots = target.getOutputRoots(context);
+    for (File file : ProjectPaths.getPlatformCompilationClasspath(chunk, false)) {
+      // entries ordered before the JDK are in the platform classpath too, the module's own output among them
+      if (outputRoots.contains(file)) {
+        continue;
+      }
+      if (file.isDirectory()) {
+        digest.add("platform classes", getDirectoryAbiDigest(file));
+      }
+      else {
+        // JDK jars are big and do not change without changing their size
+        digest.add("platform", file.getName(), file.length());
+      }
+    }
+    for (File file : ProjectPaths.getCompilationClasspath(chunk, false)) {
+      if (outputRoots.contains(file)) {
+        continue;
+      }
+      if (file.isDirectory()) {
+        digest.add("classes", getDirectoryAbiDigest(file));
+      }
+      else if (file.isFile()) {
+        digest.add("library", getContentDigest(file, FileSystemUtil.lastModified(file)));
+      }
+      else {
+        digest.add("missing");
+      }
+    }
+
+    return new CacheKey(target, digest.build(), baseDir, sourceFiles);
+  }
+
+  /**
+   * Replaces outputs of the target with the ones stored under the key and updates the dependency information as if the target
+   * was compiled
+   *
+   * @return true if the outputs were restored, false if the key is not in the store or the entry could not be read; in the latter
+   * case all sources of the target are marked for recompilation
+   */
+  boolean restore(final CompileContext context, @NotNull CacheKey key) throws IOException {
+    final File entryFile = getEntryFile(key);
+    if (!entryFile.isFile()) {
+      return false;
+    }
+    final ModuleBuildTarget target = key.myTarget;
+    final ModuleChunk chunk = new ModuleChunk(Collections.singleton(target));
+    final ZipFile zipFile;
+    final MultiMap<String, String> sourceToOutputs;
+    try {
+      zipFile = new ZipFile(entryFile);
+    }
+    catch (IOException e) {
+      LOG.info("Cannot open build cache entry " + entryFile, e);
+      return false;
+    }
+    try {
+      try {
+        sourceToOutputs = readSources(zipFile, key);
+      }
+      catch (IOException e) {
+        LOG.info("Cannot read build cache entry " + entryFile, e);
+        return false;
+      }
+
+      context.processMessage(new ProgressMessage("Restoring outputs from build cache... [" + target.getPresentableName() + "]"));
+      final ProjectDescriptor pd = context.getProjectDescriptor();
+      final SourceToOutputMapping mapping = pd.dataManager.getSourceToOutputMap(target);
+      final Set<String> deletedPaths = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
+      for (String sourcePath : new ArrayList<String>(mapping.getSources())) {
+        final Collection<String> outputs = mapping.getOutputs(sourcePath);
+        if (outputs != null) {
+          for (String outputPath : outputs) {
+            if (FileUtil.delete(new File(outputPath))) {
+              deletedPaths.add(outputPath);
+            }
+          }
+        }
+        mapping.remove(sourcePath);
+      }
+
+      try {
+        final Mappings delta = pd.dataManager.getMappings().createDelta();
+        final Callbacks.Backend callback = delta.getCallback();
+        final BuildOutputConsumerImpl outputConsumer = new BuildOutputConsumerImpl(target, context);
+        final File outputDir = target.getOutputDir();
+        for (Map.Entry<String, Collection<String>> entry : sourceToOutputs.entrySet()) {
+          final String sourcePath = entry.getKey();
+          for (String relativePath : entry.getValue()) {
+            final ZipEntry zipEntry = zipFile.getEntry(OUTPUT_ENTRY_PREFIX + relativePath);
+            if (zipEntry == null) {
+              throw new IOException("No content for " + relativePath);
+            }
+            final byte[] content = loadBytes(zipFile, zipEntry);
+            final File outputFile = new File(outputDir, relativePath);
+            FileUtil.writeToFile(outputFile, content);
+            final String outputPath = FileUtil.toSystemIndependentName(outputFile.getPath());
+            deletedPaths.remove(outputPath);
+            if (relativePath.endsWith(".class")) {
+              callback.associate(outputPath, sourcePath, new ClassReader(content));
+            }
+            outputConsumer.registerOutputFile(outputFile, Collections.singleton(sourcePath));
+          }
+        }
+        try {
+          JavaBuilderUtil.updateMappings(context, delta, createDirtyFilesHolder(context, chunk), chunk, key.mySources, key.mySources);
+        }
+        finally {
+          JavaBuilderUtil.cleanupChunkResources(context);
+        }
+        outputConsumer.fireFileGeneratedEvent();
+      }
+      catch (IOException e) {
+        LOG.info("Cannot restore outputs of " + target.getPresentableName() + " from build cache entry " + entryFile, e);
+        for (String sourcePath : new ArrayList<String>(mapping.getSources())) {
+          mapping.remove(sourcePath);
+        }
+        FSOperations.markDirty(context, chunk, null);
+        return false;
+      }
+      finally {
+        if (!deletedPaths.isEmpty()) {
+          context.processMessage(new FileDeletedEvent(deletedPaths));
+        }
+      }
+    }
+    finally {
+      zipFile.close();
+    }
+    LOG.info("Outputs of " + target.getPresentableName() + " restored from build cache entry " + entryFile);
+    return true;
+  }
+
+  /**
+   * Puts outputs of the just built target into the store, unless the store already has them or the sources changed during the build
+   */
+  void store(CompileContext context, @NotNull CacheKey key) {
+    final ModuleBuildTarget target = key.myTarget;
+    final File entryFile = getEntryFile(key);
+    if (entryFile.exists()) {
+      return;
+    }
+    File tempFile = null;
+    try {
+      final CacheKey actualKey = computeKey(context, target);
+      if (actualKey == null || !actualKey.myDigest.equals(key.myDigest)) {
+        return;
+      }
+      final File outputDir = target.getOutputDir();
+      final SourceToOutputMapping mapping = context.getProjectDescriptor().dataManager.getSourceToOutputMap(target);
+      final StringBuilder sourcesText = new StringBuilder();
+      final Map<String, File> outputs = new TreeMap<String, File>();
+      for (String sourcePath : mapping.getSources()) {
+        final File sourceFile = new File(sourcePath);
+        final String relativeSourcePath = getRelativePath(key.myBaseDir, sourceFile);
+        final Collection<String> outputPaths = mapping.getOutputs(sourcePath);
+        if (relativeSourcePath == null || !key.mySources.contains(sourceFile)) {
+          return;
+        }
+        if (outputPaths == null) {
+          continue;
+        }
+        for (String outputPath : outputPaths) {
+          final File outputFile = new File(outputPath);
+          final String relativeOutputPath = getRelativePath(outputDir, outputFile);
+          if (relativeOutputPath == null || !outputFile.isFile()) {
+            return;
+          }
+          sourcesText.append(relativeSourcePath).append('\t').append(relativeOutputPath).append('\n');
+          outputs.put(relativeOutputPath, outputFile);
+        }
+      }
+
+      final File entryDir = entryFile.getParentFile();
+      if (!entryDir.isDirectory() && !entryDir.mkdirs()) {
+        LOG.info("Cannot create build cache directory " + entryDir);
+        return;
+      }
+      // the entry is written under a temporary name and renamed, so that a concurrent build never sees a partially written entry
+      tempFile = FileUtil.createTempFile(entryDir, key.myDigest, ".tmp", true);
+      final ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        out.putNextEntry(new ZipEntry(SOURCES_ENTRY_NAME));
+        out.write(sourcesText.toString().getBytes(UTF_8));
+        out.closeEntry();
+        for (Map.Entry<String, File> entry : outputs.entrySet()) {
+          out.putNextEntry(new ZipEntry(OUTPUT_ENTRY_PREFIX + entry.getKey()));
+          out.write(FileUtil.loadFileBytes(entry.getValue()));
+          out.closeEntry();
+        }
+      }
+      finally {
+        out.close();
+      }
+      if (tempFile.renameTo(entryFile)) {
+        tempFile = null;
+        LOG.info("Outputs of " + target.getPresentableName() + " stored to build cache entry " + entryFile);
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot store outputs of " + target.getPresentableName() + " to build cache", e);
+    }
+    finally {
+      if (tempFile != null) {
+        FileUtil.delete(tempFile);
+      }
+    }
+  }
+
+  private File getEntryFile(CacheKey key) {
+    return new File(new File(myStoreDir, key.myDigest.substring(0, 2)), key.myDigest + ".zip");
+  }
+
+  private static MultiMap<String, String> readSources(ZipFile zipFile, CacheKey key) throws IOException {
+    final ZipEntry sourcesEntry = zipFile.getEntry(SOURCES_ENTRY_NAME);
+    if (sourcesEntry == null) {
+      throw new IOException("No " + SOURCES_ENTRY_NAME + " entry");
+    }
+    final MultiMap<String, String> sourceToOutputs = new MultiMap<String, String>();
+    for (String line : StringUtil.splitByLines(new String(loadBytes(zipFile, sourcesEntry), UTF_8))) {
+      final int tab = line.indexOf('\t');
+      if (tab < 0) {
+        throw new IOException("Malformed line: " + line);
+      }
+      final File sourceFile = new File(key.myBaseDir, line.substring(0, tab));
+      sourceToOutputs.putValue(FileUtil.toSystemIndependentName(sourceFile.getPath()), line.substring(tab + 1));
+    }
+    return sourceToOutputs;
+  }
+
+  private static byte[] loadBytes(ZipFile zipFile, ZipEntry entry) throws IOException {
+    final InputStream input = zipFile.getInputStream(entry);
+    try {
+      return FileUtil.loadBytes(input);
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  private static boolean hasFilesToRecompile(CompileContext context, ModuleBuildTarget target) throws IOException {
+    // the processor stops at the first file, so a stopped traversal means there is something to recompile
+    return !context.getProjectDescriptor().fsState.processFilesToRecompile(context, target, new FileProcessor<JavaSourceRootDescriptor, ModuleBuildTarget>() {
+      @Override
+      public boolean apply(ModuleBuildTarget target, File file, JavaSourceRootDescriptor root) throws IOException {
+        return false;
+      }
+    });
+  }
+
+  private static DirtyFilesHolder<JavaSourceRootDescriptor, ModuleBuildTarget> createDirtyFilesHolder(final CompileContext context,
+                                                                                                     final ModuleChunk chunk) {
+    return new DirtyFilesHolderBase<JavaSourceRootDescriptor, ModuleBuildTarget>(context) {
+      @Override
+      public void processDirtyFiles(@NotNull FileProcessor<JavaSourceRootDescriptor, ModuleBuildTarget> processor) throws IOException {
+        FSOperations.processFilesToRecompile(context, chunk, processor);
+      }
+    };
+  }
+
+  @Nullable
+  private static String getRelativePath(File baseDir, File file) {
+    final String path = FileUtil.getRelativePath(FileUtil.toSystemIndependentName(baseDir.getPath()),
+                                                 FileUtil.toSystemIndependentName(file.getPath()), '/');
+    return path == null || path.startsWith("../") ? null : path;
+  }
+
+  private static String getContentDigest(File file, long stamp) throws IOException {
+    final long length = file.length();
+    final String cached = getCachedDigest(ourContentDigests, file, stamp, length);
+    if (cached != null) {
+      return cached;
+    }
+    final DigestBuilder digest = new DigestBuilder();
+    digest.addBytes(FileUtil.loadFileBytes(file));
+    final String result = digest.build();
+    cacheDigest(ourContentDigests, file, new FileDigest(stamp, length, result));
+    return result;
+  }
+
+  private static String getDirectoryAbiDigest(final File dir) throws IOException {
+    final Map<String, File> classFiles = new TreeMap<String, File>();
+    FileUtil.processFilesRecursively(dir, new Processor<File>() {
+      @Override
+      public boolean process(File file) {
+        if (file.getName().endsWith(".class") && file.isFile()) {
+          classFiles.put(getRelativePath(dir, file), file);
+        }
+        return true;
+      }
+    });
+    final DigestBuilder digest = new DigestBuilder();
+    for (Map.Entry<String, File> entry : classFiles.entrySet()) {
+      digest.add(entry.getKey(), getAbiDigest(entry.getValue()));
+    }
+    return digest.build();
+  }
+
+  private static String getAbiDigest(File classFile) throws IOException {
+    final long stamp = FileSystemUtil.lastModified(classFile);
+    final long length = classFile.length();
+    final String cached = getCachedDigest(ourAbiDigests, classFile, stamp, length);
+    if (cached != null) {
+      return cached;
+    }
+    final DigestBuilder digest = new DigestBuilder();
+    new ClassReader(FileUtil.loadFileBytes(classFile)).accept(new AbiDigestVisitor(digest),
+                                                              ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    final String result = digest.build();
+    cacheDigest(ourAbiDigests, classFile, new FileDigest(stamp, length, result));
+    return result;
+  }
+
+  @Nullable
+  private static String getCachedDigest(SLRUMap<String, FileDigest> cache, File file, long stamp, long length) {
+    final FileDigest cached;
+    synchronized (cache) {
+      cached = cache.get(file.getPath());
+    }
+    return cached != null && cached.myStamp == stamp && cached.myLength == length ? cached.myDigest : null;
+  }
+
+  private static void cacheDigest(SLRUMap<String, FileDigest> cache, File file, FileDigest digest) {
+    synchronized (cache) {
+      cache.put(file.getPath(), digest);
+    }
+  }
+
+  private static class FileDigest {
+    final long myStamp;
+    final long myLength;
+    final String myDigest;
+
+    private FileDigest(long stamp, long length, String digest) {
+      myStamp = stamp;
+      myLength = length;
+      myDigest = digest;
+    }
+  }
+
+  private static class DigestBuilder {
+    private final MessageDigest myDigest;
+
+    private DigestBuilder() {
+      try {
+        myDigest = MessageDigest.getInstance("SHA-1");
+      }
+      catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    void add(Object... values) {
+      for (Object value : values) {
+        addBytes(String.valueOf(value).getBytes(UTF_8));
+        myDigest.update((byte)0);
+      }
+      myDigest.update((byte)'\n');
+    }
+
+    void addBytes(byte[] bytes) {
+      myDigest.update(bytes);
+    }
+
+    String build() {
+      final StringBuilder builder = new StringBuilder();
+      for (byte b : myDigest.digest()) {
+        builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return builder.toString();
+    }
+  }
+
+  /**
+   * Feeds everything a dependent class may be compiled against to the digest: the class header, non-private members with constant
+   * values and annotation defaults, and annotations; method bodies and private members are skipped
+   */
+  private static class AbiDigestVisitor extends ClassVisitor {
+    private final DigestBuilder myDigest;
+
+    private AbiDigestVisitor(DigestBuilder digest) {
+      super(Opcodes.ASM4);
+      myDigest = digest;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+      myDigest.add("class", access, name, signature, superName, interfaces != null ? Arrays.asList(interfaces) : null);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+      myDigest.add("annotation", desc, visible);
+      return new AbiAnnotationVisitor(myDigest);
+    }
+
+    @Override
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+      myDigest.add("inner", name, outerName, innerName, access);
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+      if ((access & Opcodes.ACC_PRIVATE) == 0) {
+        myDigest.add("field", access, name, desc, signature, value);
+      }
+      return null;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+      if ((access & Opcodes.ACC_PRIVATE) != 0) {
+        return null;
+      }
+      myDigest.add("method", access, name, desc, signature, exceptions != null ? Arrays.asList(exceptions) : null);
+      return new MethodVisitor(Opcodes.ASM4) {
+        @Override
+        public AnnotationVisitor visitAnnotationDefault() {
+          myDigest.add("default");
+          return new AbiAnnotationVisitor(myDigest);
+        }
+      };
+    }
+  }
+
+  private static class AbiAnnotationVisitor extends AnnotationVisitor {
+    private final DigestBuilder myDigest;
+
+    private AbiAnnotationVisitor(DigestBuilder digest) {
+      super(Opcodes.ASM4);
+      myDigest = digest;
+    }
+
+    @Override
+    public void visit(String name, Object value) {
+      myDigest.add("value", name, value instanceof Type ? ((Type)value).getDescriptor() : valueToString(value));
+    }
+
+    @Override
+    public void visitEnum(String name, String desc, String value) {
+      myDigest.add("enum", name, desc, value);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String name, String desc) {
+      myDigest.add("annotation", name, desc);
+      return this;
+    }
+
+    @Override
+    public AnnotationVisitor visitArray(String name) {
+      myDigest.add("array", name);
+      return this;
+    }
+
+    @Override
+    public void visitEnd() {
+      myDigest.add("end");
+    }
+
+    private static String valueToString(Object value) {
+      if (value != null && value.getClass().isArray()) {
+        final StringBuilder builder = new StringBuilder();
+        final int length = java.lang.reflect.Array.getLength(value);
+        for (int i = 0; i < length; i++) {
+          builder.append(java.lang.reflect.Array.get(value, i)).append(',');
+        }
+        return builder.toString();
+      }
+      return String.valueOf(value);
+    }
+  }
+}
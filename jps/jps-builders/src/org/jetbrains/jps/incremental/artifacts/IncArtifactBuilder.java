@@ -15,10 +15,12 @@
  */
 package org.jetbrains.jps.incremental.artifacts;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.containers.MultiMap;
+import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
@@ -35,6 +37,7 @@ import org.jetbrains.jps.incremental.artifacts.instructions.*;
 import org.jetbrains.jps.incremental.fs.BuildFSState;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
+import org.jetbrains.jps.incremental.messages.FileDeletedEvent;
 import org.jetbrains.jps.incremental.messages.ProgressMessage;
 import org.jetbrains.jps.model.artifact.JpsArtifact;
 import org.jetbrains.jps.service.JpsServiceManager;
@@ -47,7 +50,9 @@ import java.util.*;
  * @author nik
  */
 public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, ArtifactBuildTarget> {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.artifacts.IncArtifactBuilder");
   public static final String BUILDER_NAME = "Artifacts builder";
+  private static final String PREVIOUS_JARS_DIR_NAME = "previous-jars";
 
   public IncArtifactBuilder() {
     super(Collections.singletonList(ArtifactBuildTargetType.INSTANCE));
@@ -124,51 +129,135 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
         }
       });
 
-      BuildOperations.cleanOutputsCorrespondingToChangedFiles(context, holder);
-      for (String outputPath : changedOutputPaths) {
-        outSrcMapping.remove(outputPath);
+      final File previousJarsDir = new File(pd.dataManager.getDataPaths().getTargetDataRoot(target), PREVIOUS_JARS_DIR_NAME);
+      final Map<String, File> previousJars = preservePreviousJars(context, target, previousJarsDir, changedOutputPaths, filesToDelete.keySet());
+      try {
+        buildChangedFiles(context, target, outputConsumer, holder, pd, srcOutMapping, outSrcMapping, filesToProcess, filesToDelete,
+                          changedOutputPaths, previousJars);
       }
-      if (filesToDelete.isEmpty() && filesToProcess.isEmpty()) {
-        return;
+      finally {
+        FileUtil.delete(previousJarsDir);
       }
+    }
+    catch (IOException e) {
+      throw new ProjectBuildException(e);
+    }
+  }
 
-      deleteOutdatedFiles(filesToDelete, context, srcOutMapping, outSrcMapping);
-      context.checkCanceled();
+  private static void buildChangedFiles(CompileContext context,
+                                        ArtifactBuildTarget target,
+                                        BuildOutputConsumer outputConsumer,
+                                        DirtyFilesHolder<ArtifactRootDescriptor, ArtifactBuildTarget> holder,
+                                        ProjectDescriptor pd,
+                                        SourceToOutputMapping srcOutMapping,
+                                        ArtifactOutputToSourceMapping outSrcMapping,
+                                        TIntObjectHashMap<Set<String>> filesToProcess,
+                                        MultiMap<String, String> filesToDelete,
+                                        Set<String> changedOutputPaths,
+                                        Map<String, File> previousJars) throws IOException, ProjectBuildException {
+    BuildOperations.cleanOutputsCorrespondingToChangedFiles(context, holder);
+    for (String outputPath : changedOutputPaths) {
+      outSrcMapping.remove(outputPath);
+    }
+    if (filesToDelete.isEmpty() && filesToProcess.isEmpty()) {
+      return;
+    }
 
-      final Set<JarInfo> changedJars = new THashSet<JarInfo>();
-      for (ArtifactRootDescriptor descriptor : pd.getBuildRootIndex().getTargetRoots(target, context)) {
-        context.checkCanceled();
-        final Set<String> sourcePaths = filesToProcess.get(descriptor.getRootIndex());
-        if (sourcePaths == null) continue;
+    deleteOutdatedFiles(filesToDelete, context, srcOutMapping, outSrcMapping);
+    context.checkCanceled();
 
-        for (String sourcePath : sourcePaths) {
-          if (!descriptor.getFilter().shouldBeCopied(sourcePath, pd)) {
-            continue;
-          }
-          DestinationInfo destination = descriptor.getDestinationInfo();
-          if (destination instanceof ExplodedDestinationInfo) {
-            descriptor.copyFromRoot(sourcePath, descriptor.getRootIndex(), destination.getOutputPath(), context,
-                                    outputConsumer, outSrcMapping);
-          }
-          else {
-            List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> sources = outSrcMapping.getState(destination.getOutputFilePath());
-            if (sources == null || sources.size() > 0 && sources.get(0).getRootIndex() == descriptor.getRootIndex()) {
-              outSrcMapping.update(destination.getOutputFilePath(),
-                                   Collections.<ArtifactOutputToSourceMapping.SourcePathAndRootIndex>emptyList());
-              changedJars.add(((JarDestinationInfo)destination).getJarInfo());
-            }
+    final Set<JarInfo> changedJars = new THashSet<JarInfo>();
+    for (ArtifactRootDescriptor descriptor : pd.getBuildRootIndex().getTargetRoots(target, context)) {
+      context.checkCanceled();
+      final Set<String> sourcePaths = filesToProcess.get(descriptor.getRootIndex());
+      if (sourcePaths == null) continue;
+
+      for (String sourcePath : sourcePaths) {
+        if (!descriptor.getFilter().shouldBeCopied(sourcePath, pd)) {
+          continue;
+        }
+        DestinationInfo destination = descriptor.getDestinationInfo();
+        if (destination instanceof ExplodedDestinationInfo) {
+          descriptor.copyFromRoot(sourcePath, descriptor.getRootIndex(), destination.getOutputPath(), context,
+                                  outputConsumer, outSrcMapping);
+        }
+        else {
+          List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> sources = outSrcMapping.getState(destination.getOutputFilePath());
+          if (sources == null || sources.size() > 0 && sources.get(0).getRootIndex() == descriptor.getRootIndex()) {
+            outSrcMapping.update(destination.getOutputFilePath(),
+                                 Collections.<ArtifactOutputToSourceMapping.SourcePathAndRootIndex>emptyList());
+            changedJars.add(((JarDestinationInfo)destination).getJarInfo());
           }
         }
       }
-      context.checkCanceled();
+    }
+    context.checkCanceled();
 
-      JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping);
-      builder.buildJars();
-      runArtifactTasks(context, artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase.POST_PROCESSING);
+    JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping, previousJars);
+    builder.buildJars();
+    runArtifactTasks(context, target.getArtifact(), ArtifactBuildTaskProvider.ArtifactBuildPhase.POST_PROCESSING);
+  }
+
+  /**
+   * Top-level jars which are going to be deleted because their content has changed are moved aside, so that JarsBuilder can
+   * update them in place instead of packing all their entries again.
+   */
+  private static Map<String, File> preservePreviousJars(CompileContext context, ArtifactBuildTarget target, File previousJarsDir,
+                                                        Set<String> changedOutputPaths, Set<String> outputPathsToDelete) {
+    final Map<String, File> previousJars = new THashMap<String, File>(FileUtil.PATH_HASHING_STRATEGY);
+    final List<String> movedOutputs = new ArrayList<String>();
+    FileUtil.delete(previousJarsDir);
+    for (ArtifactRootDescriptor descriptor : context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context)) {
+      DestinationInfo destination = descriptor.getDestinationInfo();
+      while (destination instanceof JarDestinationInfo) {
+        final DestinationInfo jarDestination = ((JarDestinationInfo)destination).getJarInfo().getDestination();
+        if (!(jarDestination instanceof JarDestinationInfo)) {
+          break;
+        }
+        destination = jarDestination;
+      }
+      if (!(destination instanceof JarDestinationInfo)) {
+        continue;
+      }
+      final String jarPath = ((JarDestinationInfo)destination).getJarInfo().getDestination().getOutputFilePath();
+      if (previousJars.containsKey(jarPath) || !changedOutputPaths.contains(jarPath) && !outputPathsToDelete.contains(jarPath)) {
+        continue;
+      }
+      final File jarFile = new File(FileUtil.toSystemDependentName(jarPath));
+      final File copy = new File(previousJarsDir, previousJars.size() + ".jar");
+      if (jarFile.isFile() && FileUtil.createParentDirs(copy) && moveJar(jarFile, copy)) {
+        previousJars.put(jarPath, copy);
+        if (changedOutputPaths.contains(jarPath)) {
+          movedOutputs.add(jarPath);
+        }
+      }
+    }
+
+    // report the moved jars the same way BuildOperations.cleanOutputsCorrespondingToChangedFiles would report them deleted
+    if (!movedOutputs.isEmpty()) {
+      final ProjectBuilderLogger logger = context.getLoggingManager().getProjectBuilderLogger();
+      if (context.isMake() && logger.isEnabled()) {
+        logger.logDeletedFiles(movedOutputs);
+      }
+      context.processMessage(new FileDeletedEvent(movedOutputs));
+    }
+    return previousJars;
+  }
+
+  /**
+   * The jar is copied if it cannot be renamed, e.g. because the output and the build data directory are on different file systems
+   */
+  private static boolean moveJar(File jarFile, File copy) {
+    try {
+      FileUtil.rename(jarFile, copy);
+      if (!jarFile.exists()) return true;
+      LOG.info("Cannot delete " + jarFile + " after copying it to " + copy + ", the jar will be built from scratch");
     }
     catch (IOException e) {
-      throw new ProjectBuildException(e);
+      LOG.info("Cannot move " + jarFile + " to " + copy + ", the jar will be built from scratch", e);
     }
+    FileUtil.delete(copy);
+    return false;
   }
 
   private static void runArtifactTasks(CompileContext context, JpsArtifact artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase phase)
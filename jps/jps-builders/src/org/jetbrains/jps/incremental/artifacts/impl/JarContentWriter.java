@@ -0,0 +1,36 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Receives the entries of a jar being built. Each path is passed at most once, paths of directories end with '/'.
+ */
+interface JarContentWriter {
+  void addDirectory(@NotNull String path) throws IOException;
+
+  void addFile(@NotNull String path, @NotNull File file) throws IOException;
+
+  void addEntry(@NotNull String path, @NotNull InputStream input, @NotNull ZipEntry sourceEntry, long timestamp) throws IOException;
+
+  void close() throws IOException;
+}
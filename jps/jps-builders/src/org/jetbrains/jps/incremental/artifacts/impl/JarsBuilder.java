@@ -23,6 +23,7 @@ import com.intellij.openapi.util.io.FileSystemUtil;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.graph.CachingSemiGraph;
 import com.intellij.util.graph.DFSTBuilder;
 import com.intellij.util.graph.GraphGenerator;
@@ -33,6 +34,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.logging.ProjectBuilderLogger;
+import org.jetbrains.jps.incremental.BuildProfiler;
 import org.jetbrains.jps.incremental.CompileContext;
 import org.jetbrains.jps.incremental.ProjectBuildException;
 import org.jetbrains.jps.incremental.artifacts.ArtifactOutputToSourceMapping;
@@ -41,30 +43,48 @@ import org.jetbrains.jps.incremental.artifacts.instructions.*;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
 import org.jetbrains.jps.incremental.messages.ProgressMessage;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * @author nik
  */
 public class JarsBuilder {
   private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.impl.packagingCompiler.JarsBuilder");
+  private static final BoundedTaskExecutor ourJarsExecutor = new BoundedTaskExecutor(SharedThreadPool.getInstance(), Runtime.getRuntime().availableProcessors());
+  static {
+    BuildProfiler.registerExecutor("artifact jars", ourJarsExecutor);
+  }
   private final Set<JarInfo> myJarsToBuild;
   private final CompileContext myContext;
   private Map<JarInfo, File> myBuiltJars;
   private final BuildOutputConsumer myOutputConsumer;
   private final ArtifactOutputToSourceMapping myOutSrcMapping;
+  private final Map<String, File> myPreviousJars;
 
   public JarsBuilder(Set<JarInfo> jarsToBuild, CompileContext context, BuildOutputConsumer outputConsumer,
                      ArtifactOutputToSourceMapping outSrcMapping) {
+    this(jarsToBuild, context, outputConsumer, outSrcMapping, Collections.<String, File>emptyMap());
+  }
+
+  /**
+   * @param previousJars copies of previously built top-level jars by their output paths; such jars are updated in place instead
+   *                     of being built from scratch
+   */
+  public JarsBuilder(Set<JarInfo> jarsToBuild, CompileContext context, BuildOutputConsumer outputConsumer,
+                     ArtifactOutputToSourceMapping outSrcMapping, Map<String, File> previousJars) {
     myOutputConsumer = outputConsumer;
     myOutSrcMapping = outSrcMapping;
+    myPreviousJars = previousJars;
     DependentJarsEvaluator evaluator = new DependentJarsEvaluator();
     for (JarInfo jarInfo : jarsToBuild) {
       evaluator.addJarWithDependencies(jarInfo);
@@ -83,9 +103,9 @@ public class JarsBuilder {
 
     myBuiltJars = new HashMap<JarInfo, File>();
     try {
-      for (JarInfo jar : sortedJars) {
+      for (List<JarInfo> jars : groupByNestingLevel(sortedJars)) {
         myContext.checkCanceled();
-        buildJar(jar);
+        buildJars(jars);
       }
 
       myContext.processMessage(new ProgressMessage("Copying archives..."));
@@ -99,6 +119,101 @@ public class JarsBuilder {
     return true;
   }
 
+  /**
+   * @return groups of jars which may be built independently; a jar goes after all the jars nested into it
+   */
+  private static List<List<JarInfo>> groupByNestingLevel(JarInfo[] sortedJars) {
+    final Map<JarInfo, Integer> levels = new HashMap<JarInfo, Integer>();
+    final List<List<JarInfo>> result = new ArrayList<List<JarInfo>>();
+    for (JarInfo jar : sortedJars) {
+      int level = 0;
+      for (Pair<String, Object> pair : jar.getContent()) {
+        final Integer nestedLevel = pair.getSecond() instanceof JarInfo ? levels.get((JarInfo)pair.getSecond()) : null;
+        if (nestedLevel != null) {
+          level = Math.max(level, nestedLevel + 1);
+        }
+      }
+      levels.put(jar, level);
+      while (result.size() <= level) {
+        result.add(new ArrayList<JarInfo>());
+      }
+      result.get(level).add(jar);
+    }
+    return result;
+  }
+
+  private void buildJars(List<JarInfo> jars) throws IOException, ProjectBuildException {
+    if (jars.size() == 1) {
+      registerBuiltJar(buildJar(jars.get(0)));
+      return;
+    }
+
+    final List<Future<BuiltJar>> futures = new ArrayList<Future<BuiltJar>>();
+    for (final JarInfo jar : jars) {
+      futures.add(ourJarsExecutor.submit(new Callable<BuiltJar>() {
+        @Override
+        public BuiltJar call() throws Exception {
+          myContext.checkCanceled();
+          return buildJar(jar);
+        }
+      }));
+    }
+
+    // jars are registered after the whole group is built: the tasks read myBuiltJars to find nested jars
+    final List<BuiltJar> builtJars = new ArrayList<BuiltJar>();
+    Throwable error = null;
+    for (Future<BuiltJar> future : futures) {
+      try {
+        builtJars.add(future.get());
+      }
+      catch (ExecutionException e) {
+        if (error == null) {
+          error = e.getCause();
+        }
+      }
+      catch (InterruptedException e) {
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+    for (BuiltJar builtJar : builtJars) {
+      registerBuiltJar(builtJar);
+    }
+    if (error instanceof IOException) {
+      throw (IOException)error;
+    }
+    if (error instanceof ProjectBuildException) {
+      throw (ProjectBuildException)error;
+    }
+    if (error != null) {
+      throw new ProjectBuildException(error);
+    }
+  }
+
+  /**
+   * Called on the main thread: the output consumer and the logger are not thread-safe.
+   */
+  private void registerBuiltJar(@Nullable BuiltJar builtJar) throws IOException {
+    if (builtJar == null) {
+      return;
+    }
+    final String targetJarPath = builtJar.myJar.getDestination().getOutputFilePath();
+    if (!builtJar.mySources.isEmpty()) {
+      myOutSrcMapping.appendData(targetJarPath, builtJar.mySources);
+    }
+    if (builtJar.myFile == null) {
+      return;
+    }
+    myBuiltJars.put(builtJar.myJar, builtJar.myFile);
+
+    final ProjectBuilderLogger logger = myContext.getLoggingManager().getProjectBuilderLogger();
+    if (logger.isEnabled()) {
+      logger.logCompiledPaths(builtJar.myPackedFilePaths, IncArtifactBuilder.BUILDER_NAME, "Packing files:");
+    }
+    myOutputConsumer.registerOutputFile(new File(targetJarPath), builtJar.myPackedFilePaths);
+  }
+
   private void deleteTemporaryJars() {
     for (File file : myBuiltJars.values()) {
       FileUtil.delete(file);
@@ -134,22 +249,44 @@ public class JarsBuilder {
     return jars;
   }
 
-  private void buildJar(final JarInfo jar) throws IOException {
+  @Nullable
+  private BuiltJar buildJar(final JarInfo jar) throws IOException {
     final String emptyArchiveMessage = "Archive '" + jar.getPresentableDestination() + "' doesn't contain files so it won't be created";
     if (jar.getContent().isEmpty()) {
       myContext.processMessage(new CompilerMessage(IncArtifactBuilder.BUILDER_NAME, BuildMessage.Kind.WARNING, emptyArchiveMessage));
-      return;
+      return null;
     }
 
     myContext.processMessage(new ProgressMessage("Building " + jar.getPresentableDestination() + "..."));
-    File jarFile = FileUtil.createTempFile("artifactCompiler", "tmp");
-    myBuiltJars.put(jar, jarFile);
+    final List<String> manifestPaths = new ArrayList<String>();
+    final Manifest manifest = loadManifest(jar, manifestPaths);
+
+    final File previousJar = jar.getDestination() instanceof ExplodedDestinationInfo
+                             ? myPreviousJars.get(jar.getDestination().getOutputFilePath()) : null;
+    if (previousJar != null) {
+      final UpdatingJarContentWriter writer = UpdatingJarContentWriter.open(previousJar, manifest);
+      if (writer != null) {
+        try {
+          return writeJar(jar, previousJar, writer, manifest, manifestPaths, emptyArchiveMessage);
+        }
+        catch (IOException e) {
+          LOG.info("Cannot update " + jar.getPresentableDestination() + " in place, it will be rebuilt", e);
+        }
+      }
+      FileUtil.delete(previousJar);
+    }
 
+    File jarFile = FileUtil.createTempFile("artifactCompiler", "tmp");
     FileUtil.createParentDirs(jarFile);
-    final String targetJarPath = jar.getDestination().getOutputFilePath();
-    List<String> packedFilePaths = new ArrayList<String>();
-    Manifest manifest = loadManifest(jar, packedFilePaths);
-    final JarOutputStream jarOutputStream = createJarOutputStream(jarFile, manifest);
+    return writeJar(jar, jarFile, new StreamingJarContentWriter(createJarOutputStream(jarFile, manifest)), manifest, manifestPaths,
+                    emptyArchiveMessage);
+  }
+
+  @NotNull
+  private BuiltJar writeJar(JarInfo jar, File jarFile, JarContentWriter writer, @Nullable Manifest manifest, List<String> manifestPaths,
+                            String emptyArchiveMessage) throws IOException {
+    final BuiltJar result = new BuiltJar(jar);
+    result.myPackedFilePaths.addAll(manifestPaths);
 
     final THashSet<String> writtenPaths = new THashSet<String>();
     try {
@@ -163,23 +300,20 @@ public class JarsBuilder {
           final ArtifactRootDescriptor descriptor = (ArtifactRootDescriptor)pair.getSecond();
           final int rootIndex = descriptor.getRootIndex();
           if (descriptor instanceof FileBasedArtifactRootDescriptor) {
-            addFileToJar(jarOutputStream, jarFile, descriptor.getRootFile(), descriptor.getFilter(), relativePath, targetJarPath, writtenPaths,
-                         packedFilePaths, rootIndex);
+            addFileToJar(writer, jarFile, descriptor.getRootFile(), descriptor.getFilter(), relativePath, writtenPaths, result, rootIndex);
           }
           else {
             final String filePath = FileUtil.toSystemIndependentName(descriptor.getRootFile().getAbsolutePath());
-            packedFilePaths.add(filePath);
-            myOutSrcMapping.appendData(targetJarPath, Collections
-              .singletonList(new ArtifactOutputToSourceMapping.SourcePathAndRootIndex(filePath, rootIndex)));
-            extractFileAndAddToJar(jarOutputStream, (JarBasedArtifactRootDescriptor)descriptor, relativePath, writtenPaths);
+            result.myPackedFilePaths.add(filePath);
+            result.mySources.add(new ArtifactOutputToSourceMapping.SourcePathAndRootIndex(filePath, rootIndex));
+            extractFileAndAddToJar(writer, (JarBasedArtifactRootDescriptor)descriptor, relativePath, writtenPaths);
           }
         }
         else {
           JarInfo nestedJar = (JarInfo)pair.getSecond();
           File nestedJarFile = myBuiltJars.get(nestedJar);
           if (nestedJarFile != null) {
-            addFileToJar(jarOutputStream, jarFile, nestedJarFile, SourceFileFilter.ALL, relativePath, targetJarPath, writtenPaths,
-                         packedFilePaths, -1);
+            addFileToJar(writer, jarFile, nestedJarFile, SourceFileFilter.ALL, relativePath, writtenPaths, result, -1);
           }
           else {
             LOG.debug("nested jar file " + relativePath + " for " + jar.getPresentableDestination() + " not found");
@@ -189,28 +323,22 @@ public class JarsBuilder {
 
       if (writtenPaths.isEmpty()) {
         myContext.processMessage(new CompilerMessage(IncArtifactBuilder.BUILDER_NAME, BuildMessage.Kind.WARNING, emptyArchiveMessage));
-        return;
+        return result;
       }
-
-      final ProjectBuilderLogger logger = myContext.getLoggingManager().getProjectBuilderLogger();
-      if (logger.isEnabled()) {
-        logger.logCompiledPaths(packedFilePaths, IncArtifactBuilder.BUILDER_NAME, "Packing files:");
-      }
-      myOutputConsumer.registerOutputFile(new File(targetJarPath), packedFilePaths);
-
+      result.myFile = jarFile;
+      return result;
     }
     finally {
       if (writtenPaths.isEmpty()) {
         try {
-          jarOutputStream.close();
+          writer.close();
         }
         catch (IOException ignored) {
         }
         FileUtil.delete(jarFile);
-        myBuiltJars.remove(jar);
       }
       else {
-        jarOutputStream.close();
+        writer.close();
       }
     }
   }
@@ -279,54 +407,43 @@ public class JarsBuilder {
     }
   }
 
-  private static void extractFileAndAddToJar(final JarOutputStream jarOutputStream, final JarBasedArtifactRootDescriptor root,
+  private static void extractFileAndAddToJar(final JarContentWriter writer, final JarBasedArtifactRootDescriptor root,
                                              final String relativeOutputPath, final Set<String> writtenPaths)
     throws IOException {
     final long timestamp = FileSystemUtil.lastModified(root.getRootFile());
     root.processEntries(new JarBasedArtifactRootDescriptor.EntryProcessor() {
       @Override
       public void process(@Nullable InputStream inputStream, @NotNull String relativePath, ZipEntry entry) throws IOException {
-        String pathInJar = addParentDirectories(jarOutputStream, writtenPaths, JpsArtifactPathUtil
-          .appendToPath(relativeOutputPath, relativePath));
+        String pathInJar = addParentDirectories(writer, writtenPaths, JpsArtifactPathUtil.appendToPath(relativeOutputPath, relativePath));
 
         if (inputStream == null) {
-          addDirectoryEntry(jarOutputStream, pathInJar + "/", writtenPaths);
+          addDirectoryEntry(writer, pathInJar + "/", writtenPaths);
         }
         else if (writtenPaths.add(pathInJar)) {
-          ZipEntry newEntry = new ZipEntry(pathInJar);
-          newEntry.setTime(timestamp);
-          if (entry.getMethod() == ZipEntry.STORED) {
-            newEntry.setMethod(ZipEntry.STORED);
-            newEntry.setSize(entry.getSize());
-            newEntry.setCrc(entry.getCrc());
-          }
-          jarOutputStream.putNextEntry(newEntry);
-          FileUtil.copy(inputStream, jarOutputStream);
-          jarOutputStream.closeEntry();
+          writer.addEntry(pathInJar, inputStream, entry, timestamp);
         }
       }
     });
 
   }
 
-  private void addFileToJar(final @NotNull JarOutputStream jarOutputStream, final @NotNull File jarFile, @NotNull File file,
-                            SourceFileFilter filter, @NotNull String relativePath, String targetJarPath,
-                            final @NotNull Set<String> writtenPaths, List<String> packedFilePaths, final int rootIndex) throws IOException {
+  private void addFileToJar(final @NotNull JarContentWriter writer, final @NotNull File jarFile, @NotNull File file,
+                            SourceFileFilter filter, @NotNull String relativePath,
+                            final @NotNull Set<String> writtenPaths, BuiltJar result, final int rootIndex) throws IOException {
     if (!file.exists() || FileUtil.isAncestor(file, jarFile, false)) {
       return;
     }
 
-    relativePath = addParentDirectories(jarOutputStream, writtenPaths, relativePath);
-    addFileOrDirRecursively(jarOutputStream, file, filter, relativePath, targetJarPath, writtenPaths, packedFilePaths, rootIndex);
+    relativePath = addParentDirectories(writer, writtenPaths, relativePath);
+    addFileOrDirRecursively(writer, file, filter, relativePath, writtenPaths, result, rootIndex);
   }
 
-  private void addFileOrDirRecursively(@NotNull ZipOutputStream jarOutputStream,
+  private void addFileOrDirRecursively(@NotNull JarContentWriter writer,
                                        @NotNull File file,
                                        SourceFileFilter filter,
                                        @NotNull String relativePath,
-                                       String targetJarPath,
                                        @NotNull Set<String> writtenItemRelativePaths,
-                                       List<String> packedFilePaths,
+                                       BuiltJar result,
                                        int rootIndex) throws IOException {
     final String filePath = FileUtil.toSystemIndependentName(file.getAbsolutePath());
     if (!filter.accept(filePath) || !filter.shouldBeCopied(filePath, myContext.getProjectDescriptor())) {
@@ -336,29 +453,31 @@ public class JarsBuilder {
     if (file.isDirectory()) {
       final String directoryPath = relativePath.length() == 0 ? "" : relativePath + "/";
       if (!directoryPath.isEmpty()) {
-        addDirectoryEntry(jarOutputStream, directoryPath, writtenItemRelativePaths);
+        addDirectoryEntry(writer, directoryPath, writtenItemRelativePaths);
       }
       final File[] children = file.listFiles();
       if (children != null) {
         for (File child : children) {
-          addFileOrDirRecursively(jarOutputStream, child, filter, directoryPath + child.getName(), targetJarPath, writtenItemRelativePaths,
-                                  packedFilePaths, rootIndex);
+          addFileOrDirRecursively(writer, child, filter, directoryPath + child.getName(), writtenItemRelativePaths, result, rootIndex);
         }
       }
       return;
     }
 
-    final boolean added = ZipUtil.addFileToZip(jarOutputStream, file, relativePath, writtenItemRelativePaths, null);
+    final boolean added = writtenItemRelativePaths.add(relativePath);
+    if (added) {
+      writer.addFile(relativePath, file);
+    }
     if (rootIndex != -1) {
-      myOutSrcMapping.appendData(targetJarPath, Collections.singletonList(new ArtifactOutputToSourceMapping.SourcePathAndRootIndex(filePath, rootIndex)));
+      result.mySources.add(new ArtifactOutputToSourceMapping.SourcePathAndRootIndex(filePath, rootIndex));
       if (added) {
-        packedFilePaths.add(filePath);
+        result.myPackedFilePaths.add(filePath);
       }
     }
   }
 
 
-  private static String addParentDirectories(JarOutputStream jarOutputStream, Set<String> writtenPaths, String relativePath) throws IOException {
+  private static String addParentDirectories(JarContentWriter writer, Set<String> writtenPaths, String relativePath) throws IOException {
     while (StringUtil.startsWithChar(relativePath, '/')) {
       relativePath = relativePath.substring(1);
     }
@@ -366,22 +485,70 @@ public class JarsBuilder {
     while (i != -1) {
       String prefix = relativePath.substring(0, i+1);
       if (prefix.length() > 1) {
-        addDirectoryEntry(jarOutputStream, prefix, writtenPaths);
+        addDirectoryEntry(writer, prefix, writtenPaths);
       }
       i = relativePath.indexOf('/', i + 1);
     }
     return relativePath;
   }
 
-  private static void addDirectoryEntry(final ZipOutputStream output, @NonNls final String relativePath, Set<String> writtenPaths) throws IOException {
+  private static void addDirectoryEntry(final JarContentWriter writer, @NonNls final String relativePath, Set<String> writtenPaths) throws IOException {
     if (!writtenPaths.add(relativePath)) return;
 
-    ZipEntry e = new ZipEntry(relativePath);
-    e.setMethod(ZipEntry.STORED);
-    e.setSize(0);
-    e.setCrc(0);
-    output.putNextEntry(e);
-    output.closeEntry();
+    writer.addDirectory(relativePath);
+  }
+
+  private static class BuiltJar {
+    private final JarInfo myJar;
+    @Nullable private File myFile;
+    private final List<String> myPackedFilePaths = new ArrayList<String>();
+    private final List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> mySources = new ArrayList<ArtifactOutputToSourceMapping.SourcePathAndRootIndex>();
+
+    private BuiltJar(JarInfo jar) {
+      myJar = jar;
+    }
+  }
+
+  private static class StreamingJarContentWriter implements JarContentWriter {
+    private final JarOutputStream myOutput;
+
+    private StreamingJarContentWriter(JarOutputStream output) {
+      myOutput = output;
+    }
+
+    @Override
+    public void addDirectory(@NotNull String path) throws IOException {
+      ZipEntry e = new ZipEntry(path);
+      e.setMethod(ZipEntry.STORED);
+      e.setSize(0);
+      e.setCrc(0);
+      myOutput.putNextEntry(e);
+      myOutput.closeEntry();
+    }
+
+    @Override
+    public void addFile(@NotNull String path, @NotNull File file) throws IOException {
+      ZipUtil.addFileToZip(myOutput, file, path, null, null);
+    }
+
+    @Override
+    public void addEntry(@NotNull String path, @NotNull InputStream input, @NotNull ZipEntry sourceEntry, long timestamp) throws IOException {
+      ZipEntry newEntry = new ZipEntry(path);
+      newEntry.setTime(timestamp);
+      if (sourceEntry.getMethod() == ZipEntry.STORED) {
+        newEntry.setMethod(ZipEntry.STORED);
+        newEntry.setSize(sourceEntry.getSize());
+        newEntry.setCrc(sourceEntry.getCrc());
+      }
+      myOutput.putNextEntry(newEntry);
+      FileUtil.copy(input, myOutput);
+      myOutput.closeEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+      myOutput.close();
+    }
   }
 
   private class JarsGraph implements GraphGenerator.SemiGraph<JarInfo> {
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.io.zip.JBZipEntry;
+import com.intellij.util.io.zip.JBZipFile;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Updates a previously built jar in place: entries whose content hasn't changed are left untouched in the archive, new and
+ * changed entries are compressed and appended, entries which are not written anymore are removed from the central directory.
+ */
+class UpdatingJarContentWriter implements JarContentWriter {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.artifacts.impl.UpdatingJarContentWriter");
+  private static final int MAX_ENTRIES_COUNT = 0xFFFF;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int ALLOWED_UNUSED_SPACE = 64 * 1024;
+  private final JBZipFile myZipFile;
+  private final Set<String> myWrittenPaths = new THashSet<String>();
+  private final CRC32 myCrc = new CRC32();
+
+  private UpdatingJarContentWriter(JBZipFile zipFile, @Nullable Manifest manifest) {
+    myZipFile = zipFile;
+    if (manifest != null) {
+      myWrittenPaths.add(JarFile.MANIFEST_NAME);
+    }
+  }
+
+  /**
+   * @return null if the jar cannot be updated in place, e.g. if its manifest has changed (the manifest must remain the first entry)
+   * or if replaced entries already take too much space in it
+   */
+  @Nullable
+  public static UpdatingJarContentWriter open(@NotNull File jarFile, @Nullable Manifest manifest) {
+    JBZipFile zipFile = null;
+    try {
+      zipFile = new JBZipFile(jarFile);
+      if (hasLittleUnusedSpace(zipFile, jarFile) && isSameManifest(zipFile, manifest)) {
+        return new UpdatingJarContentWriter(zipFile, manifest);
+      }
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+    }
+    if (zipFile != null) {
+      try {
+        zipFile.close();
+      }
+      catch (IOException ignored) {
+      }
+    }
+    return null;
+  }
+
+  private static boolean hasLittleUnusedSpace(JBZipFile zipFile, File jarFile) {
+    final List<JBZipEntry> entries = zipFile.getEntries();
+    if (entries.isEmpty() || entries.size() >= MAX_ENTRIES_COUNT) {
+      return false;
+    }
+    long usedSpace = 0;
+    for (JBZipEntry entry : entries) {
+      usedSpace += entry.getCompressedSize() + LOCAL_HEADER_SIZE + CENTRAL_HEADER_SIZE + 2 * (entry.getName().length() + entry.getExtra().length);
+    }
+    return jarFile.length() <= 2 * usedSpace + ALLOWED_UNUSED_SPACE;
+  }
+
+  private static boolean isSameManifest(JBZipFile zipFile, @Nullable Manifest manifest) throws IOException {
+    final JBZipEntry entry = zipFile.getEntry(JarFile.MANIFEST_NAME);
+    if (manifest == null || entry == null) {
+      return manifest == null && entry == null;
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    manifest.write(bytes);
+    return Arrays.equals(bytes.toByteArray(), entry.getData());
+  }
+
+  @Override
+  public void addDirectory(@NotNull String path) throws IOException {
+    myWrittenPaths.add(path);
+    if (myZipFile.getEntry(path) == null) {
+      final JBZipEntry entry = myZipFile.getOrCreateEntry(path);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setData(ArrayUtil.EMPTY_BYTE_ARRAY, System.currentTimeMillis());
+    }
+  }
+
+  @Override
+  public void addFile(@NotNull String path, @NotNull File file) throws IOException {
+    final byte[] content = FileUtil.loadFileBytes(file);
+    writeEntry(path, content, file.lastModified(), content.length == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED);
+  }
+
+  @Override
+  public void addEntry(@NotNull String path, @NotNull InputStream input, @NotNull ZipEntry sourceEntry, long timestamp) throws IOException {
+    final JBZipEntry entry = myZipFile.getEntry(path);
+    if (entry != null && sourceEntry.getCrc() != -1 && entry.getCrc() == sourceEntry.getCrc() && entry.getSize() == sourceEntry.getSize()) {
+      myWrittenPaths.add(path);
+      return;
+    }
+    final byte[] content = FileUtil.loadBytes(input);
+    writeEntry(path, content, timestamp, sourceEntry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED);
+  }
+
+  private void writeEntry(String path, byte[] content, long timestamp, int method) throws IOException {
+    myWrittenPaths.add(path);
+    final JBZipEntry existing = myZipFile.getEntry(path);
+    if (existing != null && existing.getSize() == content.length) {
+      myCrc.reset();
+      myCrc.update(content);
+      if (existing.getCrc() == myCrc.getValue()) {
+        return;
+      }
+    }
+    final JBZipEntry entry = myZipFile.getOrCreateEntry(path);
+    entry.setMethod(method);
+    entry.setData(content, timestamp);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      for (JBZipEntry entry : new ArrayList<JBZipEntry>(myZipFile.getEntries())) {
+        if (!myWrittenPaths.contains(entry.getName())) {
+          entry.erase();
+        }
+      }
+    }
+    finally {
+      myZipFile.close();
+    }
+  }
+}
@@ -266,7 +266,9 @@ public class JavaBuilder extends ModuleLevelBuilder {
               LOG.debug("  " + file.getAbsolutePath());
             }
           }
+          final long start = BuildProfiler.now();
           compiledOk = compileJava(context, chunk, files, classpath, platformCp, srcPath, diagnosticSink, outputSink);
+          BuildProfiler.record(context, BuildProfiler.JAVAC, "compile", chunkName, start);
         }
 
         context.checkCanceled();
@@ -37,10 +37,11 @@ import java.util.Map;
  *         Date: 10/7/11
  */
 public class BuildDataManager implements StorageOwner {
-  private static final int VERSION = 19;
+  private static final int VERSION = 21;
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.storage.BuildDataManager");
   private static final String SRC_TO_FORM_STORAGE = "src-form";
   private static final String MAPPINGS_STORAGE = "mappings";
+  private static final String PATH_IDS_STORAGE = "paths";
 
   private final Object mySourceToOutputLock = new Object();
   private final Map<BuildTarget<?>, SourceToOutputMappingImpl> mySourceToOutputs = new HashMap<BuildTarget<?>, SourceToOutputMappingImpl>();
@@ -53,6 +54,7 @@ public class BuildDataManager implements StorageOwner {
     }
   };
 
+  private final PathIdEnumerator myPathIds;
   private final OneToManyPathsMapping mySrcToFormMap;
   private final Mappings myMappings;
   private final BuildDataPaths myDataPaths;
@@ -62,7 +64,8 @@ public class BuildDataManager implements StorageOwner {
   public BuildDataManager(final BuildDataPaths dataPaths, BuildTargetsState targetsState, final boolean useMemoryTempCaches) throws IOException {
     myDataPaths = dataPaths;
     myTargetsState = targetsState;
-    mySrcToFormMap = new OneToManyPathsMapping(new File(getSourceToFormsRoot(), "data"));
+    myPathIds = new PathIdEnumerator(new File(myDataPaths.getDataStorageRoot(), PATH_IDS_STORAGE));
+    mySrcToFormMap = new OneToManyPathsMapping(new File(getSourceToFormsRoot(), "data"), myPathIds);
     myMappings = new Mappings(getMappingsRoot(), useMemoryTempCaches);
     myVersionFile = new File(myDataPaths.getDataStorageRoot(), "version.dat");
   }
@@ -72,7 +75,7 @@ public class BuildDataManager implements StorageOwner {
     synchronized (mySourceToOutputLock) {
       mapping = mySourceToOutputs.get(target);
       if (mapping == null) {
-        mapping = new SourceToOutputMappingImpl(new File(getSourceToOutputMapRoot(target), "data"));
+        mapping = new SourceToOutputMappingImpl(new File(getSourceToOutputMapRoot(target), "data"), myPathIds);
         mySourceToOutputs.put(target, mapping);
       }
     }
@@ -95,6 +98,13 @@ public class BuildDataManager implements StorageOwner {
     }
   }
 
+  /**
+   * @return ids of paths shared by the project storages, e.g. {@link TimestampStorage} and source to output mappings
+   */
+  public PathIdEnumerator getPathIds() {
+    return myPathIds;
+  }
+
   public OneToManyPathsMapping getSourceToFormMap() {
     return mySrcToFormMap;
   }
@@ -176,6 +186,7 @@ public class BuildDataManager implements StorageOwner {
         mappings.flush(memoryCachesOnly);
       }
     }
+    myPathIds.flush(memoryCachesOnly);
   }
 
   public void close() throws IOException {
@@ -201,19 +212,25 @@ public class BuildDataManager implements StorageOwner {
           closeStorage(mySrcToFormMap);
         }
         finally {
-          final Mappings mappings = myMappings;
-          if (mappings != null) {
-            try {
-              mappings.close();
-            }
-            catch (RuntimeException e) {
-              final Throwable cause = e.getCause();
-              if (cause instanceof IOException) {
-                throw ((IOException)cause);
+          try {
+            final Mappings mappings = myMappings;
+            if (mappings != null) {
+              try {
+                mappings.close();
+              }
+              catch (RuntimeException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                  throw ((IOException)cause);
+                }
+                throw e;
               }
-              throw e;
             }
           }
+          finally {
+            // closed last, the storages above refer to paths by their ids
+            myPathIds.close();
+          }
         }
       }
     }
@@ -266,7 +283,7 @@ public class BuildDataManager implements StorageOwner {
     return myDataPaths;
   }
 
-  private static void wipeStorage(File root, @Nullable AbstractStateStorage<?, ?> storage) {
+  private static void wipeStorage(File root, @Nullable OneToManyPathsMapping storage) {
     if (storage != null) {
       synchronized (storage) {
         storage.wipe();
@@ -277,7 +294,7 @@ public class BuildDataManager implements StorageOwner {
     }
   }
 
-  private static void closeStorage(@Nullable AbstractStateStorage<?, ?> storage) throws IOException {
+  private static void closeStorage(@Nullable OneToManyPathsMapping storage) throws IOException {
     if (storage != null) {
       synchronized (storage) {
         storage.close();
@@ -17,57 +17,76 @@ package org.jetbrains.jps.incremental.storage;
 
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.io.DataExternalizer;
-import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
 import gnu.trove.THashSet;
+import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.Set;
 
 /**
+ * Maps a path to a set of paths. Both are stored as their ids in {@link PathIdEnumerator}, so a record is a fixed size key and
+ * an array of ints.
+ *
  * @author Eugene Zhuravlev
  *         Date: 10/11/12
  */
-public class OneToManyPathsMapping extends AbstractStateStorage<String, Collection<String>> {
-  public OneToManyPathsMapping(File storePath) throws IOException {
-    super(storePath, new PathStringDescriptor(), new PathCollectionExternalizer());
+public class OneToManyPathsMapping implements StorageOwner {
+  private final PathIdEnumerator myPathIds;
+  private final IdStorage myStorage;
+
+  public OneToManyPathsMapping(File storePath, PathIdEnumerator pathIds) throws IOException {
+    myPathIds = pathIds;
+    myStorage = new IdStorage(storePath);
   }
 
-  @Override
   public void update(@NotNull String keyPath, @NotNull Collection<String> boundPaths) throws IOException {
-    super.update(FileUtil.toSystemIndependentName(keyPath), normalizePaths(boundPaths));
+    myStorage.update(myPathIds.getId(keyPath), toIds(boundPaths));
   }
 
   public final void update(@NotNull String keyPath, @NotNull String boundPath) throws IOException {
-    super.update(FileUtil.toSystemIndependentName(keyPath), Collections.singleton(FileUtil.toSystemIndependentName(boundPath)));
+    myStorage.update(myPathIds.getId(keyPath), new int[]{myPathIds.getId(boundPath)});
   }
 
   public final void appendData(@NotNull String keyPath, @NotNull String boundPath) throws IOException {
-    super.appendData(FileUtil.toSystemIndependentName(keyPath), Collections.singleton(FileUtil.toSystemIndependentName(boundPath)));
+    myStorage.appendData(myPathIds.getId(keyPath), new int[]{myPathIds.getId(boundPath)});
   }
 
-  @Override
   public void appendData(@NotNull String keyPath, @NotNull Collection<String> boundPaths) throws IOException {
-    super.appendData(FileUtil.toSystemIndependentName(keyPath), normalizePaths(boundPaths));
+    myStorage.appendData(myPathIds.getId(keyPath), toIds(boundPaths));
   }
 
   @Nullable
-  @Override
   public Collection<String> getState(@NotNull String keyPath) throws IOException {
-    return super.getState(FileUtil.toSystemIndependentName(keyPath));
+    final int keyId = myPathIds.tryGetId(keyPath);
+    if (keyId == 0) {
+      return null;
+    }
+    final int[] ids = myStorage.getState(keyId);
+    if (ids == null) {
+      return null;
+    }
+    final Set<String> result = new THashSet<String>(ids.length, FileUtil.PATH_HASHING_STRATEGY);
+    for (int id : ids) {
+      result.add(myPathIds.getPath(id));
+    }
+    return result;
   }
 
-  @Override
   public void remove(@NotNull String keyPath) throws IOException {
-    super.remove(FileUtil.toSystemIndependentName(keyPath));
+    final int keyId = myPathIds.tryGetId(keyPath);
+    if (keyId != 0) {
+      myStorage.remove(keyId);
+    }
   }
 
   public final void removeData(@NotNull String keyPath, @NotNull String boundPath) throws IOException {
-    final Collection<String> outputPaths = getState(FileUtil.toSystemIndependentName(keyPath));
+    final Collection<String> outputPaths = getState(keyPath);
     if (outputPaths != null) {
       final boolean removed = outputPaths.remove(FileUtil.toSystemIndependentName(boundPath));
       if (outputPaths.isEmpty()) {
@@ -81,30 +100,67 @@ public class OneToManyPathsMapping extends AbstractStateStorage<String, Collecti
     }
   }
 
-  private static class PathCollectionExternalizer implements DataExternalizer<Collection<String>> {
-    public void save(DataOutput out, Collection<String> value) throws IOException {
-      for (String str : value) {
-        IOUtil.writeString(str, out);
-      }
+  public Collection<String> getKeys() throws IOException {
+    final Collection<Integer> ids = myStorage.getKeys();
+    final Collection<String> keys = new ArrayList<String>(ids.size());
+    for (Integer id : ids) {
+      keys.add(myPathIds.getPath(id));
     }
+    return keys;
+  }
 
-    public Collection<String> read(DataInput in) throws IOException {
-      final Set<String> result = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
-      final DataInputStream stream = (DataInputStream)in;
-      while (stream.available() > 0) {
-        final String str = IOUtil.readString(stream);
-        result.add(str);
-      }
-      return result;
+  public Iterator<String> getKeysIterator() throws IOException {
+    return getKeys().iterator();
+  }
+
+  @Override
+  public void flush(boolean memoryCachesOnly) {
+    myStorage.flush(memoryCachesOnly);
+  }
+
+  @Override
+  public void clean() throws IOException {
+    myStorage.clean();
+  }
+
+  public boolean wipe() {
+    return myStorage.wipe();
+  }
+
+  @Override
+  public void close() throws IOException {
+    myStorage.close();
+  }
+
+  private int[] toIds(Collection<String> paths) throws IOException {
+    final int[] ids = new int[paths.size()];
+    int i = 0;
+    for (String path : paths) {
+      ids[i++] = myPathIds.getId(path);
     }
+    return ids;
   }
 
-  private static Collection<String> normalizePaths(Collection<String> outputs) {
-    Collection<String> normalized = new ArrayList<String>(outputs.size());
-    for (String out : outputs) {
-      normalized.add(FileUtil.toSystemIndependentName(out));
+  private static class IdStorage extends AbstractStateStorage<Integer, int[]> {
+    private IdStorage(File storePath) throws IOException {
+      super(storePath, EnumeratorIntegerDescriptor.INSTANCE, new IdArrayExternalizer());
     }
-    return normalized;
   }
 
+  private static class IdArrayExternalizer implements DataExternalizer<int[]> {
+    public void save(DataOutput out, int[] value) throws IOException {
+      for (int id : value) {
+        out.writeInt(id);
+      }
+    }
+
+    public int[] read(DataInput in) throws IOException {
+      final TIntHashSet result = new TIntHashSet();
+      final DataInputStream stream = (DataInputStream)in;
+      while (stream.available() > 0) {
+        result.add(stream.readInt());
+      }
+      return result.toArray();
+    }
+  }
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.containers.SLRUMap;
+import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.io.PersistentEnumeratorDelegate;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Assigns compact int ids to file paths shared by the build storages. Paths are kept as a trie of path segments: a path is
+ * enumerated as the pair of its parent path id and the id of its last segment name, so the common prefix of many files is stored
+ * once and a name like 'src' or 'com' is stored once for the whole project.
+ * <p/>
+ * Paths are system independent, names are compared according to the case sensitivity of the file system. Ids are never reused,
+ * that's why storages keyed by them can be wiped independently and the enumerator itself is only dropped with the whole data
+ * storage root.
+ * <p/>
+ * The enumerators synchronize themselves, so lookups only lock the small directory caches and may run in parallel.
+ *
+ * @see BuildDataManager#getPathIds()
+ */
+public class PathIdEnumerator implements StorageOwner {
+  private static final int NULL_ID = 0;
+  private static final String NAMES_STORAGE = "names";
+  private static final String NODES_STORAGE = "nodes";
+  private static final int DIRECTORY_CACHE_SIZE = 1024;
+  private final File myRoot;
+  private volatile PersistentEnumeratorDelegate<String> myNames;
+  private volatile PersistentEnumeratorDelegate<Long> myNodes;
+  /**
+   * Ids of directories looked up recently, a file is then resolved with two enumerator lookups whatever the depth of its path.
+   * Paths are compared as strings here, a path differing in case only misses the cache and is resolved via the enumerators.
+   */
+  private final SLRUMap<String, Integer> myDirectoryIds = new SLRUMap<String, Integer>(DIRECTORY_CACHE_SIZE, DIRECTORY_CACHE_SIZE);
+  /**
+   * Paths of directories resolved recently, the same way a path is then built with two enumerator lookups
+   */
+  private final SLRUMap<Integer, String> myDirectoryPaths = new SLRUMap<Integer, String>(DIRECTORY_CACHE_SIZE, DIRECTORY_CACHE_SIZE);
+
+  public PathIdEnumerator(File root) throws IOException {
+    myRoot = root;
+    open();
+  }
+
+  private void open() throws IOException {
+    FileUtil.createDirectory(myRoot);
+    myNames = new PersistentEnumeratorDelegate<String>(new File(myRoot, NAMES_STORAGE), new PathStringDescriptor(), 4096);
+    try {
+      myNodes = new PersistentEnumeratorDelegate<Long>(new File(myRoot, NODES_STORAGE), new NodeKeyDescriptor(), 4096);
+    }
+    catch (IOException e) {
+      myNames.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return id of the path, the path is enumerated if it has no id yet
+   */
+  public int getId(@NotNull String path) throws IOException {
+    return getId(FileUtil.toSystemIndependentName(path), true);
+  }
+
+  public int getId(@NotNull File file) throws IOException {
+    return getId(file.getPath());
+  }
+
+  /**
+   * @return id of the path or 0 if the path has not been enumerated
+   */
+  public int tryGetId(@NotNull String path) throws IOException {
+    return getId(FileUtil.toSystemIndependentName(path), false);
+  }
+
+  public int tryGetId(@NotNull File file) throws IOException {
+    return tryGetId(file.getPath());
+  }
+
+  @NotNull
+  public String getPath(int id) throws IOException {
+    final long node = myNodes.valueOf(id);
+    final String name = myNames.valueOf(nameId(node));
+    final int parentId = parentId(node);
+    return parentId == NULL_ID ? name : getDirectoryPath(parentId) + '/' + name;
+  }
+
+  private String getDirectoryPath(int id) throws IOException {
+    String path;
+    synchronized (myDirectoryPaths) {
+      path = myDirectoryPaths.get(id);
+    }
+    if (path == null) {
+      path = getPath(id);
+      synchronized (myDirectoryPaths) {
+        myDirectoryPaths.put(id, path);
+      }
+    }
+    return path;
+  }
+
+  private int getId(String path, boolean create) throws IOException {
+    final int separator = path.lastIndexOf('/');
+    final int parentId;
+    if (separator < 0) {
+      parentId = NULL_ID;
+    }
+    else {
+      final String parent = path.substring(0, separator);
+      final Integer cached;
+      synchronized (myDirectoryIds) {
+        cached = myDirectoryIds.get(parent);
+      }
+      if (cached != null) {
+        parentId = cached;
+      }
+      else {
+        parentId = getId(parent, create);
+        if (parentId == NULL_ID) {
+          return NULL_ID;
+        }
+        synchronized (myDirectoryIds) {
+          myDirectoryIds.put(parent, parentId);
+        }
+      }
+    }
+
+    final String name = path.substring(separator + 1);
+    final int nameId = create ? myNames.enumerate(name) : myNames.tryEnumerate(name);
+    if (nameId == NULL_ID) {
+      return NULL_ID;
+    }
+    final Long node = Long.valueOf(((long)parentId << 32) | (nameId & 0xFFFFFFFFL));
+    return create ? myNodes.enumerate(node) : myNodes.tryEnumerate(node);
+  }
+
+  private static int parentId(long node) {
+    return (int)(node >>> 32);
+  }
+
+  private static int nameId(long node) {
+    return (int)node;
+  }
+
+  private void clearCaches() {
+    synchronized (myDirectoryIds) {
+      myDirectoryIds.clear();
+    }
+    synchronized (myDirectoryPaths) {
+      myDirectoryPaths.clear();
+    }
+  }
+
+  @Override
+  public synchronized void flush(boolean memoryCachesOnly) {
+    if (memoryCachesOnly) {
+      clearCaches();
+    }
+    else {
+      myNames.force();
+      myNodes.force();
+    }
+  }
+
+  @Override
+  public synchronized void clean() throws IOException {
+    close();
+    FileUtil.delete(myRoot);
+    open();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    clearCaches();
+    try {
+      myNames.close();
+    }
+    finally {
+      myNodes.close();
+    }
+  }
+
+  private static class NodeKeyDescriptor implements KeyDescriptor<Long> {
+    @Override
+    public void save(DataOutput out, Long value) throws IOException {
+      out.writeLong(value.longValue());
+    }
+
+    @Override
+    public Long read(DataInput in) throws IOException {
+      return in.readLong();
+    }
+
+    @Override
+    public int getHashCode(Long value) {
+      return value.hashCode();
+    }
+
+    @Override
+    public boolean isEqual(Long val1, Long val2) {
+      return val1.equals(val2);
+    }
+  }
+}
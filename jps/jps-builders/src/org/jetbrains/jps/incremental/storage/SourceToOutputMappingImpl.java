@@ -31,8 +31,8 @@ import java.util.Iterator;
 public class SourceToOutputMappingImpl implements SourceToOutputMapping {
   private final OneToManyPathsMapping myMapping;
 
-  public SourceToOutputMappingImpl(File storePath) throws IOException {
-    myMapping = new OneToManyPathsMapping(storePath);
+  public SourceToOutputMappingImpl(File storePath, PathIdEnumerator pathIds) throws IOException {
+    myMapping = new OneToManyPathsMapping(storePath, pathIds);
   }
 
   @Override
@@ -17,6 +17,7 @@ package org.jetbrains.jps.incremental.storage;
 
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jps.builders.BuildTarget;
 
@@ -24,17 +25,24 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
+ * Timestamps of files keyed by their ids in {@link PathIdEnumerator}
+ *
  * @author Eugene Zhuravlev
  *         Date: 10/7/11
  */
-public class TimestampStorage extends AbstractStateStorage<File, TimestampStorage.TimestampPerTarget[]> implements Timestamps {
+public class TimestampStorage extends AbstractStateStorage<Integer, TimestampStorage.TimestampPerTarget[]> implements Timestamps {
+  private static final int READ_BATCH_SIZE = 512;
   private final BuildTargetsState myTargetsState;
+  private final PathIdEnumerator myPathIds;
 
-  public TimestampStorage(File storePath, BuildTargetsState targetsState) throws IOException {
-    super(storePath, new FileKeyDescriptor(), new StateExternalizer());
+  public TimestampStorage(File storePath, BuildTargetsState targetsState, PathIdEnumerator pathIds) throws IOException {
+    super(storePath, EnumeratorIntegerDescriptor.INSTANCE, new StateExternalizer());
     myTargetsState = targetsState;
+    myPathIds = pathIds;
   }
 
   @Override
@@ -49,9 +57,45 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
 
   @Override
   public long getStamp(File file, BuildTarget<?> target) throws IOException {
-    final TimestampPerTarget[] state = getState(file);
+    final int fileId = myPathIds.tryGetId(file);
+    if (fileId == 0) {
+      return -1L;
+    }
+    return findStamp(getState(fileId), myTargetsState.getBuildTargetId(target));
+  }
+
+  @Override
+  public long[] getStamps(List<File> files, BuildTarget<?> target) throws IOException {
+    final long[] stamps = new long[files.size()];
+    Arrays.fill(stamps, -1L);
+    // file ids are in the high half, so the records are read in the order of ids: records of files enumerated together
+    // were usually written together
+    final long[] idsAndIndices = new long[files.size()];
+    int count = 0;
+    for (int i = 0; i < stamps.length; i++) {
+      final int fileId = myPathIds.tryGetId(files.get(i));
+      if (fileId != 0) {
+        idsAndIndices[count++] = ((long)fileId << 32) | i;
+      }
+    }
+    Arrays.sort(idsAndIndices, 0, count);
+
+    final int targetId = myTargetsState.getBuildTargetId(target);
+    for (int start = 0; start < count; start += READ_BATCH_SIZE) {
+      final int end = Math.min(count, start + READ_BATCH_SIZE);
+      // the lock is released between the batches so that stamps saved by other targets are not held up by a long read
+      synchronized (myDataLock) {
+        for (int i = start; i < end; i++) {
+          final int fileId = (int)(idsAndIndices[i] >>> 32);
+          stamps[(int)idsAndIndices[i]] = findStamp(getState(fileId), targetId);
+        }
+      }
+    }
+    return stamps;
+  }
+
+  private static long findStamp(TimestampPerTarget[] state, int targetId) {
     if (state != null) {
-      int targetId = myTargetsState.getBuildTargetId(target);
       for (TimestampPerTarget timestampPerTarget : state) {
         if (timestampPerTarget.targetId == targetId) {
           return timestampPerTarget.timestamp;
@@ -64,7 +108,8 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
   @Override
   public void saveStamp(File file, BuildTarget<?> buildTarget, long timestamp) throws IOException {
     int targetId = myTargetsState.getBuildTargetId(buildTarget);
-    update(file, updateTimestamp(getState(file), targetId, timestamp));
+    final int fileId = myPathIds.getId(file);
+    update(fileId, updateTimestamp(getState(fileId), targetId, timestamp));
   }
 
   @NotNull
@@ -83,18 +128,22 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
   }
 
   public void removeStamp(File file, BuildTarget<?> buildTarget) throws IOException {
-    TimestampPerTarget[] state = getState(file);
+    final int fileId = myPathIds.tryGetId(file);
+    if (fileId == 0) {
+      return;
+    }
+    TimestampPerTarget[] state = getState(fileId);
     if (state != null) {
       int targetId = myTargetsState.getBuildTargetId(buildTarget);
       for (int i = 0; i < state.length; i++) {
         TimestampPerTarget timestampPerTarget = state[i];
         if (timestampPerTarget.targetId == targetId) {
           if (state.length == 1) {
-            remove(file);
+            remove(fileId);
           }
           else {
             TimestampPerTarget[] newState = ArrayUtil.remove(state, i);
-            update(file, newState);
+            update(fileId, newState);
             break;
           }
         }
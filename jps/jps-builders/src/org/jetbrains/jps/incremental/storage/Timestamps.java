@@ -19,6 +19,7 @@ import org.jetbrains.jps.builders.BuildTarget;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * @author Eugene Zhuravlev
@@ -34,4 +35,11 @@ public interface Timestamps {
   void clean() throws IOException;
 
   long getStamp(File file, BuildTarget<?> target) throws IOException;
+
+  /**
+   * Reads stamps of several files of the same target at once
+   *
+   * @return stamps in the order of {@code files}, -1 for files without a saved stamp
+   */
+  long[] getStamps(List<File> files, BuildTarget<?> target) throws IOException;
 }
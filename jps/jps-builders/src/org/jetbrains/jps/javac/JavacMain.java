@@ -17,7 +17,10 @@ package org.jetbrains.jps.javac;
 
 import com.intellij.openapi.util.SystemInfo;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 import org.jetbrains.jps.api.CanceledStatus;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.java.JavaSourceTransformer;
 import org.jetbrains.jps.cmdline.ClasspathBootstrap;
 import org.jetbrains.jps.incremental.LineOutputWriter;
@@ -41,6 +44,12 @@ public class JavacMain {
     /*javac options*/  "-verbose", "-proc:only", "-implicit:class", "-implicit:none",
     /*eclipse options*/"-noExit"
   ));
+  private static final int MAX_IDLE_FILE_MANAGERS = 8;
+  /**
+   * file managers not used by any compilation at the moment, keyed by the options and paths they were configured with;
+   * ordered from the least recently used
+   */
+  private static final LinkedHashMap<String, ReusableFileManager> ourIdleFileManagers = new LinkedHashMap<String, ReusableFileManager>();
 
   public static boolean compile(Collection<String> options,
                                 final Collection<File> sources,
@@ -82,7 +91,12 @@ public class JavacMain {
     
     final List<JavaSourceTransformer> transformers = getSourceTransformers();
 
-    final JavacFileManager fileManager = new JavacFileManager(new ContextImpl(compiler, outConsumer, outputSink, canceledStatus, nowUsingJavac), transformers);
+    final boolean reuseFileManagers = System.getProperty(GlobalOptions.REUSE_JAVAC_FILE_MANAGERS_OPTION) != null;
+    final String fileManagerKey = nowUsingJavac && reuseFileManagers ? getFileManagerKey(options, classpath, platformClasspath, sourcePath) : null;
+    final ContextImpl context = new ContextImpl(
+      compiler, outConsumer, outputSink, canceledStatus, nowUsingJavac, fileManagerKey != null ? acquireFileManager(fileManagerKey) : null
+    );
+    final JavacFileManager fileManager = new JavacFileManager(context, transformers);
 
     fileManager.handleOption("-bootclasspath", Collections.singleton("").iterator()); // this will clear cached stuff
     fileManager.handleOption("-extdirs", Collections.singleton("").iterator()); // this will clear cached stuff
@@ -161,11 +175,91 @@ public class JavacMain {
       outConsumer.report(new PlainMessageDiagnostic(Diagnostic.Kind.OTHER, "Compilation was canceled"));
     }
     finally {
-      fileManager.close();
+      final StandardJavaFileManager stdManager = context.getStandardFileManager();
+      if (fileManagerKey != null && stdManager instanceof ReusableFileManager) {
+        releaseFileManager(fileManagerKey, (ReusableFileManager)stdManager);
+      }
+      else {
+        fileManager.close();
+      }
     }
     return false;
   }
 
+  /**
+   * The state of a file manager depends on the options and locations it was configured with, so it may only be reused
+   * by a compilation with the same ones; output directories are set for every compilation.
+   */
+  private static String getFileManagerKey(Collection<String> options, Collection<File> classpath, Collection<File> platformClasspath, Collection<File> sourcePath) {
+    final StringBuilder key = new StringBuilder();
+    for (String option : options) {
+      key.append(option).append('\n');
+    }
+    for (Collection<File> path : Arrays.asList(classpath, platformClasspath, sourcePath)) {
+      key.append('\n');
+      for (File file : path) {
+        key.append(file.getPath()).append(File.pathSeparatorChar);
+      }
+    }
+    return key.toString();
+  }
+
+  @Nullable
+  private static ReusableFileManager acquireFileManager(String key) {
+    final ReusableFileManager manager;
+    synchronized (ourIdleFileManagers) {
+      manager = ourIdleFileManagers.remove(key);
+    }
+    if (manager != null) {
+      manager.prepareForReuse();
+    }
+    return manager;
+  }
+
+  private static void releaseFileManager(String key, ReusableFileManager manager) {
+    final List<ReusableFileManager> toClose = new ArrayList<ReusableFileManager>();
+    synchronized (ourIdleFileManagers) {
+      final ReusableFileManager replaced = ourIdleFileManagers.put(key, manager);
+      if (replaced != null) {
+        toClose.add(replaced);
+      }
+      for (Iterator<ReusableFileManager> it = ourIdleFileManagers.values().iterator(); ourIdleFileManagers.size() > MAX_IDLE_FILE_MANAGERS; ) {
+        toClose.add(it.next());
+        it.remove();
+      }
+    }
+    for (ReusableFileManager m : toClose) {
+      try {
+        m.close();
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
+  @TestOnly
+  static List<StandardJavaFileManager> getIdleFileManagers() {
+    synchronized (ourIdleFileManagers) {
+      return new ArrayList<StandardJavaFileManager>(ourIdleFileManagers.values());
+    }
+  }
+
+  @TestOnly
+  static void closeIdleFileManagers() {
+    final List<ReusableFileManager> managers;
+    synchronized (ourIdleFileManagers) {
+      managers = new ArrayList<ReusableFileManager>(ourIdleFileManagers.values());
+      ourIdleFileManagers.clear();
+    }
+    for (ReusableFileManager manager : managers) {
+      try {
+        manager.close();
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
   private static List<JavaSourceTransformer> getSourceTransformers() {
     final Class<JavaSourceTransformer> transformerClass = JavaSourceTransformer.class;
     final ServiceLoader<JavaSourceTransformer> loader = ServiceLoader.load(transformerClass, transformerClass.getClassLoader());
@@ -227,12 +321,13 @@ public class JavacMain {
     public ContextImpl(@NotNull JavaCompiler compiler,
                        @NotNull DiagnosticOutputConsumer outConsumer,
                        @NotNull OutputFileConsumer sink,
-                       CanceledStatus canceledStatus, boolean canUseOptimizedmanager) {
+                       CanceledStatus canceledStatus, boolean canUseOptimizedmanager,
+                       @Nullable StandardJavaFileManager reusedManager) {
       myOutConsumer = outConsumer;
       myOutputFileSink = sink;
       myCanceledStatus = canceledStatus;
-      StandardJavaFileManager stdManager = null;
-      if (canUseOptimizedmanager) {
+      StandardJavaFileManager stdManager = reusedManager;
+      if (stdManager == null && canUseOptimizedmanager) {
         final Class<StandardJavaFileManager> optimizedManagerClass = ClasspathBootstrap.getOptimizedFileManagerClass();
         if (optimizedManagerClass != null) {
           try {
@@ -39,12 +39,13 @@ import java.util.concurrent.atomic.AtomicReference;
  * @author nik
  * @noinspection UnusedDeclaration
  */
-class OptimizedFileManager extends DefaultFileManager {
+class OptimizedFileManager extends DefaultFileManager implements ReusableFileManager {
   private boolean myUseZipFileIndex;
   private final Map<File, Archive> myArchives;
   private final Map<File, Boolean> myIsFile = new HashMap<File, Boolean>();
   private final Map<InputFileObject, SoftReference<CharBuffer>> myContentCache = new HashMap<InputFileObject, SoftReference<CharBuffer>>();
   private final Map<File, File[]> myDirectoryCache = new HashMap<File, File[]>();
+  private final Map<File, Long> myArchiveStamps = new HashMap<File, Long>();
   public static final File[] NULL_FILE_ARRAY = new File[0];
 
   public OptimizedFileManager() throws Throwable {
@@ -126,6 +127,42 @@ class OptimizedFileManager extends DefaultFileManager {
     return results.toList();
   }
 
+  @Override
+  protected Archive openArchive(File zipFileName) throws IOException {
+    myArchiveStamps.put(zipFileName, getStamp(zipFileName));
+    return super.openArchive(zipFileName);
+  }
+
+  @Override
+  public void prepareForReuse() {
+    myIsFile.clear();
+    myDirectoryCache.clear();
+    myContentCache.clear();
+    for (Iterator<Map.Entry<File, Archive>> it = myArchives.entrySet().iterator(); it.hasNext(); ) {
+      final Map.Entry<File, Archive> entry = it.next();
+      final File file = entry.getKey();
+      final Long stamp = myArchiveStamps.get(file);
+      final long currentStamp = getStamp(file);
+      if (stamp == null) {
+        // opened bypassing openArchive()
+        myArchiveStamps.put(file, currentStamp);
+      }
+      else if (stamp.longValue() != currentStamp) {
+        it.remove();
+        myArchiveStamps.remove(file);
+        try {
+          entry.getValue().close();
+        }
+        catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  private static long getStamp(File file) {
+    return file.lastModified() * 31 + file.length();
+  }
+
   private boolean isFile(File root) {
     Boolean cachedIsFile = myIsFile.get(root);
     if (cachedIsFile == null) {
@@ -39,11 +39,12 @@ import java.util.*;
  *
  * @noinspection UnusedDeclaration
  */
-class OptimizedFileManager17 extends com.sun.tools.javac.file.JavacFileManager {
+class OptimizedFileManager17 extends com.sun.tools.javac.file.JavacFileManager implements ReusableFileManager {
   private boolean myUseZipFileIndex;
   private final Map<File, Archive> myArchives;
   private final Map<File, Boolean> myIsFile = new HashMap<File, Boolean>();
   private final Map<File, File[]> myDirectoryCache = new HashMap<File, File[]>();
+  private final Map<File, Long> myArchiveStamps = new HashMap<File, Long>();
   public static final File[] NULL_FILE_ARRAY = new File[0];
 
   public OptimizedFileManager17() throws Throwable {
@@ -192,6 +193,41 @@ class OptimizedFileManager17 extends com.sun.tools.javac.file.JavacFileManager {
     return cached == NULL_FILE_ARRAY ? null : cached;
   }
 
+  @Override
+  protected Archive openArchive(File zipFileName) throws IOException {
+    myArchiveStamps.put(zipFileName, getStamp(zipFileName));
+    return super.openArchive(zipFileName);
+  }
+
+  @Override
+  public void prepareForReuse() {
+    myIsFile.clear();
+    myDirectoryCache.clear();
+    for (Iterator<Map.Entry<File, Archive>> it = myArchives.entrySet().iterator(); it.hasNext(); ) {
+      final Map.Entry<File, Archive> entry = it.next();
+      final File file = entry.getKey();
+      final Long stamp = myArchiveStamps.get(file);
+      final long currentStamp = getStamp(file);
+      if (stamp == null) {
+        // opened bypassing openArchive()
+        myArchiveStamps.put(file, currentStamp);
+      }
+      else if (stamp.longValue() != currentStamp) {
+        it.remove();
+        myArchiveStamps.remove(file);
+        try {
+          entry.getValue().close();
+        }
+        catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  private static long getStamp(File file) {
+    return file.lastModified() * 31 + file.length();
+  }
+
   private boolean isFile(File root) {
     Boolean cachedIsFile = myIsFile.get(root);
     if (cachedIsFile == null) {
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+import javax.tools.StandardJavaFileManager;
+
+/**
+ * A file manager which may serve several compilations one after another. Archives opened for the previous compilations
+ * are kept open, so that the content of unchanged library jars is not read and indexed again.
+ */
+interface ReusableFileManager extends StandardJavaFileManager {
+  /**
+   * Called before the file manager is used for the next compilation: drops the cached state of directories and sources
+   * which may have changed since and closes the archives whose files were modified.
+   */
+  void prepareForReuse();
+}
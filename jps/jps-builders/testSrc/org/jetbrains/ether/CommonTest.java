@@ -15,15 +15,24 @@
  */
 package org.jetbrains.ether;
 
+import org.jetbrains.jps.builders.java.dependencyView.Mappings;
+
 /**
  * @author: db
  * Date: 22.09.11
  */
 public class CommonTest extends IncrementalTestCase {
+  private int myReusedReprCount;
+
   public CommonTest() throws Exception {
     super("common");
   }
 
+  @Override
+  protected void makeDone(Mappings mappings) {
+    myReusedReprCount = mappings.getReusedReprCount();
+  }
+
   public void testAnonymous() throws Exception {
     doTest();
   }
@@ -78,6 +87,11 @@ public class CommonTest extends IncrementalTestCase {
     doTest();
   }
 
+  public void testUnchangedBytecode() throws Exception {
+    doTest();
+    assertEquals(1, myReusedReprCount);
+  }
+
   public void testClass2Interface1() throws Exception {
     doTest();
   }
@@ -22,6 +22,7 @@ import com.intellij.util.Processor;
 import org.jetbrains.jps.builders.BuildResult;
 import org.jetbrains.jps.builders.CompileScopeTestBuilder;
 import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.java.dependencyView.Mappings;
 import org.jetbrains.jps.cmdline.ProjectDescriptor;
 import org.jetbrains.jps.builders.logging.BuildLoggingManager;
 import org.jetbrains.jps.builders.impl.logging.ProjectBuilderLoggerBase;
@@ -182,6 +183,7 @@ public abstract class IncrementalTestCase extends JpsBuildTestCase {
       }
 
       assertNotNull(result);
+      makeDone(pd.dataManager.getMappings());
       
       final ByteArrayOutputStream makeDump = new ByteArrayOutputStream();
 
@@ -233,6 +235,12 @@ public abstract class IncrementalTestCase extends JpsBuildTestCase {
     }
   }
 
+  /**
+   * Called after the last make, before the project is rebuilt to compare the mappings
+   */
+  protected void makeDone(Mappings mappings) {
+  }
+
   private JpsSdk<JpsDummyElement> getOrCreateJdk() {
     if (myJdk == null) {
       myJdk = addJdk("IDEA jdk");
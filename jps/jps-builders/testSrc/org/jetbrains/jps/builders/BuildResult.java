@@ -76,4 +76,9 @@ public class BuildResult implements MessageHandler {
   public List<BuildMessage> getErrorMessages() {
     return Collections.unmodifiableList(myErrorMessages);
   }
+
+  @NotNull
+  public List<BuildMessage> getInfoMessages() {
+    return Collections.unmodifiableList(myInfoMessages);
+  }
 }
@@ -177,8 +177,8 @@ public abstract class JpsBuildTestCase extends UsefulTestCase {
       BuildDataPaths dataPaths = new BuildDataPathsImpl(myDataStorageRoot);
       BuildRootIndexImpl buildRootIndex = new BuildRootIndexImpl(targetIndex, myModel, index, dataPaths, ignoredFileIndex);
       BuildTargetsState targetsState = new BuildTargetsState(dataPaths, myModel, buildRootIndex);
-      ProjectTimestamps timestamps = new ProjectTimestamps(myDataStorageRoot, targetsState);
       BuildDataManager dataManager = new BuildDataManager(dataPaths, targetsState, true);
+      ProjectTimestamps timestamps = new ProjectTimestamps(myDataStorageRoot, targetsState, dataManager.getPathIds());
       return new ProjectDescriptor(myModel, new BuildFSState(true), timestamps, dataManager, buildLoggingManager, index, targetsState,
                                    targetIndex, buildRootIndex, ignoredFileIndex);
     }
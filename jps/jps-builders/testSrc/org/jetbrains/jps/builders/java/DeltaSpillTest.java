@@ -0,0 +1,122 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.jps.builders.BuildResult;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.TestProjectBuilderLogger;
+import org.jetbrains.jps.builders.java.dependencyView.Mappings;
+import org.jetbrains.jps.builders.logging.BuildLoggingManager;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import static org.jetbrains.jps.builders.CompileScopeTestBuilder.make;
+import static org.jetbrains.jps.builders.CompileScopeTestBuilder.rebuild;
+
+/**
+ * A transient delta moved to disk in the middle of a compilation round must be integrated into the same mappings as a delta
+ * which stayed on heap.
+ */
+public class DeltaSpillTest extends JpsBuildTestCase {
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(Mappings.DELTA_SPILL_HEAP_PERCENT_OPTION);
+    System.clearProperty(Mappings.DELTA_SPILL_CHECK_INTERVAL_OPTION);
+    super.tearDown();
+  }
+
+  public void testSpilledDeltaIsIntegratedLikeTransientOne() {
+    final JpsModule m = addModule("m", getAbsolutePath("m/src"));
+    final JpsModule n = addModule("n", getAbsolutePath("n/src"));
+    n.getDependenciesList().addModuleDependency(m);
+
+    final String notSpilled = buildAndDumpMappings();
+
+    // every heap check spills, the first one is made after the first class is associated
+    System.setProperty(Mappings.DELTA_SPILL_HEAP_PERCENT_OPTION, "0");
+    System.setProperty(Mappings.DELTA_SPILL_CHECK_INTERVAL_OPTION, "1");
+    final String spilled = buildAndDumpMappings();
+
+    assertEquals(notSpilled, spilled);
+  }
+
+  public void testStaleDeltaDirectoriesAreDeleted() throws IOException {
+    final File root = FileUtil.createTempDirectory("mappings", null);
+    try {
+      final File staleDelta = new File(root, "myDelta1234");
+      assertTrue(new File(staleDelta, "classToClass.tab").mkdirs());
+      final File other = new File(root, "other");
+      assertTrue(other.mkdirs());
+
+      final Mappings mappings = new Mappings(root, true);
+      mappings.close();
+      assertFalse(staleDelta.exists());
+      assertTrue(other.exists());
+    }
+    finally {
+      FileUtil.delete(root);
+    }
+  }
+
+  private String buildAndDumpMappings() {
+    FileUtil.delete(new File(getAbsolutePath("n/src/F.java")));
+    createFile("m/src/I.java", "public interface I { void f(); }");
+    createFile("m/src/A.java", "public class A implements I { public void f() {} protected int x; }");
+    createFile("m/src/B.java", "public class B extends A { public static final String C = \"c\"; }");
+    createFile("n/src/C.java", "public class C { B b; String s = B.C; }");
+    final String d = createFile("n/src/D.java", "public class D extends B { void g() { new C(); } }");
+    final String e = createFile("n/src/E.java", "public class E implements I { public void f() { new D().g(); } }");
+
+    final TestProjectBuilderLogger logger = new TestProjectBuilderLogger();
+    final ProjectDescriptor pd = createProjectDescriptor(new BuildLoggingManager(logger));
+    try {
+      doBuild(pd, rebuild().all()).assertSuccessful();
+      logger.clear();
+
+      change(getAbsolutePath("m/src/B.java"), "public class B extends A { public static final String C = \"changed\"; void h() {} }");
+      change(getAbsolutePath("m/src/A.java"), "public class A implements I { public void f() {} }");
+      delete(e);
+      change(d, "public class D extends A { void g() { new C(); } }");
+      createFile("n/src/F.java", "public class F extends D implements I {}");
+      final BuildResult result = doBuild(pd, make().all());
+      result.assertSuccessful();
+      // the changed constant makes the classes of m compiled again in the second round
+      logger.assertCompiled(JavaBuilder.BUILDER_NAME, new File[]{getOrCreateProjectDir()},
+                            "m/src/A.java", "m/src/A.java", "m/src/B.java", "m/src/B.java", "m/src/I.java",
+                            "n/src/C.java", "n/src/D.java", "n/src/F.java");
+
+      final ByteArrayOutputStream dump = new ByteArrayOutputStream();
+      final PrintStream stream = new PrintStream(dump);
+      try {
+        pd.dataManager.getMappings().toStream(stream);
+      }
+      finally {
+        stream.close();
+      }
+      return dump.toString();
+    }
+    finally {
+      pd.release();
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.util.containers.MultiMap;
+import junit.framework.TestCase;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.java.JavaModuleBuildTargetType;
+import org.jetbrains.jps.builders.impl.BuildTargetChunk;
+import org.jetbrains.jps.model.JpsElementFactory;
+import org.jetbrains.jps.model.JpsProject;
+import org.jetbrains.jps.model.java.JpsJavaModuleType;
+
+import java.util.*;
+
+public class BuildChunkSchedulerTest extends TestCase {
+  private JpsProject myProject;
+  private List<BuildTargetChunk> myChunks;
+  private Map<String, BuildTargetChunk> myChunksByName;
+  private MultiMap<BuildTarget<?>, BuildTarget<?>> myDependencies;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    clearChunks();
+  }
+
+  public void testLongestChainStartsFirst() {
+    // leaves come first in the sorted chunks, the chain a <- b <- c is still started before them
+    addChunk("x");
+    addChunk("y");
+    addChunk("z");
+    addChunk("a");
+    addChunk("b", "a");
+    addChunk("c", "b");
+    final BuildChunkScheduler scheduler = new BuildChunkScheduler(myChunks, myDependencies, 2);
+    assertQueued(scheduler.queueInitialTasks(), "x", "y", "z", "a");
+
+    final BuildChunkScheduler.Task a = assertStarted(scheduler, "a");
+    final BuildChunkScheduler.Task x = assertStarted(scheduler, "x");
+    assertNull(scheduler.startNextTask());
+
+    assertQueued(scheduler.finishTask(a), "b");
+    final BuildChunkScheduler.Task b = assertStarted(scheduler, "b");
+    assertNull(scheduler.startNextTask());
+    assertQueued(scheduler.finishTask(x));
+    final BuildChunkScheduler.Task y = assertStarted(scheduler, "y");
+
+    assertQueued(scheduler.finishTask(b), "c");
+    // nothing depends on c and z, so the one coming first in the sorted chunks is started first
+    final BuildChunkScheduler.Task z = assertStarted(scheduler, "z");
+    assertNull(scheduler.startNextTask());
+    assertQueued(scheduler.finishTask(y));
+    final BuildChunkScheduler.Task c = assertStarted(scheduler, "c");
+    assertQueued(scheduler.finishTask(z));
+    assertQueued(scheduler.finishTask(c));
+    assertNull(scheduler.startNextTask());
+  }
+
+  public void testChunkWaitsForAllDependencies() {
+    addChunk("a");
+    addChunk("b", "a");
+    addChunk("c", "a");
+    addChunk("d", "b", "c");
+    final BuildChunkScheduler scheduler = new BuildChunkScheduler(myChunks, myDependencies, 3);
+    assertQueued(scheduler.queueInitialTasks(), "a");
+
+    final BuildChunkScheduler.Task a = assertStarted(scheduler, "a");
+    // a thread is free, but nothing else is ready
+    assertNull(scheduler.startNextTask());
+
+    assertQueued(scheduler.finishTask(a), "b", "c");
+    final BuildChunkScheduler.Task b = assertStarted(scheduler, "b");
+    final BuildChunkScheduler.Task c = assertStarted(scheduler, "c");
+    assertNull(scheduler.startNextTask());
+    assertQueued(scheduler.finishTask(c));
+    assertNull(scheduler.startNextTask());
+    assertQueued(scheduler.finishTask(b), "d");
+    assertStarted(scheduler, "d");
+  }
+
+  public void testRandomGraphs() {
+    final Random random = new Random(42);
+    for (int iteration = 0; iteration < 50; iteration++) {
+      setUpRandomGraph(random, 2 + random.nextInt(30));
+      final int maxRunning = 1 + random.nextInt(4);
+      final BuildChunkScheduler scheduler = new BuildChunkScheduler(myChunks, myDependencies, maxRunning);
+
+      final Set<BuildTargetChunk> finished = new HashSet<BuildTargetChunk>();
+      final Set<BuildTargetChunk> started = new HashSet<BuildTargetChunk>();
+      final List<BuildChunkScheduler.Task> running = new ArrayList<BuildChunkScheduler.Task>();
+      scheduler.queueInitialTasks();
+      while (finished.size() < myChunks.size()) {
+        BuildChunkScheduler.Task task;
+        while ((task = scheduler.startNextTask()) != null) {
+          final BuildTargetChunk chunk = task.getChunk();
+          assertTrue(chunk.toString(), started.add(chunk));
+          for (BuildTarget<?> dependency : myDependencies.get(getTarget(chunk))) {
+            assertTrue(chunk + " started before " + dependency, finished.contains(myChunksByName.get(getName(dependency))));
+          }
+          running.add(task);
+        }
+        assertTrue(running.size() <= maxRunning);
+        assertFalse("nothing is running while " + (myChunks.size() - finished.size()) + " chunks are not built", running.isEmpty());
+        final BuildChunkScheduler.Task done = running.remove(random.nextInt(running.size()));
+        finished.add(done.getChunk());
+        scheduler.finishTask(done);
+      }
+      assertNull(scheduler.startNextTask());
+    }
+  }
+
+  private void setUpRandomGraph(Random random, int size) {
+    clearChunks();
+    for (int i = 0; i < size; i++) {
+      final List<String> dependencies = new ArrayList<String>();
+      for (int j = 0; j < i; j++) {
+        if (random.nextInt(4) == 0) {
+          dependencies.add("m" + j);
+        }
+      }
+      addChunk("m" + i, dependencies.toArray(new String[dependencies.size()]));
+    }
+  }
+
+  private void clearChunks() {
+    myProject = JpsElementFactory.getInstance().createModel().getProject();
+    myChunks = new ArrayList<BuildTargetChunk>();
+    myChunksByName = new HashMap<String, BuildTargetChunk>();
+    myDependencies = new MultiMap<BuildTarget<?>, BuildTarget<?>>();
+  }
+
+  private void addChunk(String name, String... dependencies) {
+    final ModuleBuildTarget target =
+      new ModuleBuildTarget(myProject.addModule(name, JpsJavaModuleType.INSTANCE), JavaModuleBuildTargetType.PRODUCTION);
+    final BuildTargetChunk chunk = new BuildTargetChunk(Collections.<BuildTarget<?>>singleton(target));
+    for (String dependency : dependencies) {
+      myDependencies.putValue(target, getTarget(myChunksByName.get(dependency)));
+    }
+    myChunks.add(chunk);
+    myChunksByName.put(name, chunk);
+  }
+
+  private static BuildTarget<?> getTarget(BuildTargetChunk chunk) {
+    return chunk.getTargets().iterator().next();
+  }
+
+  private static String getName(BuildTarget<?> target) {
+    return ((ModuleBuildTarget)target).getModule().getName();
+  }
+
+  private static BuildChunkScheduler.Task assertStarted(BuildChunkScheduler scheduler, String name) {
+    final BuildChunkScheduler.Task task = scheduler.startNextTask();
+    assertNotNull(name + " is not started", task);
+    assertEquals(name, getName(getTarget(task.getChunk())));
+    return task;
+  }
+
+  private static void assertQueued(List<BuildChunkScheduler.Task> tasks, String... names) {
+    final List<String> actual = new ArrayList<String>();
+    for (BuildChunkScheduler.Task task : tasks) {
+      actual.add(getName(getTarget(task.getChunk())));
+    }
+    assertEquals(Arrays.asList(names), actual);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.BuildResult;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.incremental.messages.BuildMessage;
+import org.jetbrains.jps.incremental.messages.CustomBuilderMessage;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BuildProfilerTest extends JpsBuildTestCase {
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.BUILD_PROFILE_OPTION);
+    super.tearDown();
+  }
+
+  public void testReportIsWrittenAndSent() throws IOException {
+    createFile("m/src/A.java", "public class A {}");
+    createFile("n/src/B.java", "public class B extends A {}");
+    final JpsModule m = addModule("m", getAbsolutePath("m/src"));
+    final JpsModule n = addModule("n", getAbsolutePath("n/src"));
+    n.getDependenciesList().addModuleDependency(m);
+
+    System.setProperty(GlobalOptions.BUILD_PROFILE_OPTION, "true");
+    final BuildResult result = makeAll();
+    result.assertSuccessful();
+    final List<CustomBuilderMessage> reports = getReports(result);
+    assertEquals(1, reports.size());
+    final File reportFile = new File(myDataStorageRoot, BuildProfiler.REPORT_FILE_NAME);
+    final String report = FileUtil.loadFile(reportFile);
+    assertEquals(report, reports.get(0).getMessageText());
+
+    assertTrue(report, report.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+    assertTrue(report, report.endsWith("]}"));
+    // both chunks are compiled, each by a separate javac call
+    assertContainsTotals(report, BuildProfiler.TARGET, "[Module 'm' production]");
+    assertContainsTotals(report, BuildProfiler.TARGET, "[Module 'n' production]");
+    assertContainsTotals(report, BuildProfiler.BUILDER, JavaBuilder.BUILDER_NAME);
+    assertContainsTotals(report, BuildProfiler.JAVAC, "compile");
+    assertTrue(report, report.matches("(?s).*\\{\"cat\":\"javac\",\"name\":\"compile\",\"ms\":\\d+,\"count\":2}.*"));
+
+    // the option is read when a build starts, so switching it off needs no restart of the build process
+    FileUtil.delete(reportFile);
+    System.clearProperty(GlobalOptions.BUILD_PROFILE_OPTION);
+    change(getAbsolutePath("m/src/A.java"), "public class A { int f; }");
+    final BuildResult notProfiled = makeAll();
+    notProfiled.assertSuccessful();
+    assertTrue(getReports(notProfiled).isEmpty());
+    assertFalse(reportFile.exists());
+  }
+
+  private static void assertContainsTotals(String report, String category, String name) {
+    assertTrue(report, report.contains("{\"cat\":\"" + category + "\",\"name\":\"" + name + "\","));
+  }
+
+  private static List<CustomBuilderMessage> getReports(BuildResult result) {
+    final List<CustomBuilderMessage> reports = new ArrayList<CustomBuilderMessage>();
+    for (BuildMessage message : result.getInfoMessages()) {
+      if (message instanceof CustomBuilderMessage) {
+        final CustomBuilderMessage custom = (CustomBuilderMessage)message;
+        if (BuildProfiler.BUILDER_ID.equals(custom.getBuilderId()) && BuildProfiler.REPORT_MESSAGE_TYPE.equals(custom.getMessageType())) {
+          reports.add(custom);
+        }
+      }
+    }
+    return reports;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.Processor;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.model.serialization.impl.JpsModuleSerializationDataExtensionImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.intellij.util.io.TestFileSystemItem.fs;
+import static org.jetbrains.jps.builders.CompileScopeTestBuilder.make;
+
+public class ModuleBuildCacheTest extends JpsBuildTestCase {
+  private static final String A_TEXT = "public class A { public static int f() { return 1; } }";
+  private File myCacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myCacheDir = FileUtil.createTempDirectory("build-cache", null);
+    System.setProperty(GlobalOptions.BUILD_CACHE_DIR_OPTION, myCacheDir.getAbsolutePath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.BUILD_CACHE_DIR_OPTION);
+    FileUtil.delete(myCacheDir);
+    super.tearDown();
+  }
+
+  public void testOutputsAreRestoredInCleanCheckout() throws IOException {
+    final String a = createProject();
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "m/src/A.java", "m/src/B.java", "n/src/C.java");
+    assertEquals(2, countEntries());
+    final byte[] aClass = FileUtil.loadFileBytes(new File(getAbsolutePath("out/production/m/A.class")));
+    final byte[] cClass = FileUtil.loadFileBytes(new File(getAbsolutePath("out/production/n/C.class")));
+
+    // neither outputs nor build data of a fresh checkout exist yet
+    FileUtil.delete(myDataStorageRoot);
+    FileUtil.delete(new File(getAbsolutePath("out")));
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME);
+    assertOutput(getAbsolutePath("out/production/m"), fs().file("A.class").file("B.class"));
+    assertOutput(getAbsolutePath("out/production/n"), fs().file("C.class"));
+    assertTrue(Arrays.equals(aClass, FileUtil.loadFileBytes(new File(getAbsolutePath("out/production/m/A.class")))));
+    assertTrue(Arrays.equals(cClass, FileUtil.loadFileBytes(new File(getAbsolutePath("out/production/n/C.class")))));
+    doBuild(make().all()).assertUpToDate();
+
+    // the dependency information is rebuilt from the restored classes, so usages of a changed method are recompiled
+    change(a, "public class A { public static Integer f() { return 1; } }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "m/src/A.java", "m/src/B.java");
+    assertEquals(3, countEntries());
+  }
+
+  public void testEntryIsKeyedBySourceContents() throws IOException {
+    final String a = createProject();
+    makeAll().assertSuccessful();
+    assertEquals(2, countEntries());
+
+    change(a, "public class A { public static int f() { return 2; } }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "m/src/A.java");
+    assertEquals(3, countEntries());
+
+    // the same contents with a new timestamp are found in the store
+    change(a, A_TEXT);
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME);
+    assertEquals(3, countEntries());
+    doBuild(make().all()).assertUpToDate();
+  }
+
+  private String createProject() {
+    final String a = createFile("m/src/A.java", A_TEXT);
+    createFile("m/src/B.java", "public class B { public int g() { return A.f(); } }");
+    createFile("n/src/C.java", "public class C { int h() { return new B().g(); } }");
+    final JpsModule m = addModuleWithBaseDir("m");
+    final JpsModule n = addModuleWithBaseDir("n");
+    n.getDependenciesList().addModuleDependency(m);
+    return a;
+  }
+
+  private JpsModule addModuleWithBaseDir(String name) {
+    final JpsModule module = addModule(name, getAbsolutePath(name + "/src"));
+    // only modules loaded from a project have a base directory, sources of the cached modules are stored relative to it
+    module.getContainer().setChild(JpsModuleSerializationDataExtensionImpl.ROLE,
+                                   new JpsModuleSerializationDataExtensionImpl(new File(getAbsolutePath(name))));
+    return module;
+  }
+
+  private int countEntries() {
+    final int[] count = {0};
+    FileUtil.processFilesRecursively(myCacheDir, new Processor<File>() {
+      @Override
+      public boolean process(File file) {
+        if (file.getName().endsWith(".zip")) {
+          count[0]++;
+        }
+        return true;
+      }
+    });
+    return count[0];
+  }
+}
@@ -17,6 +17,8 @@ package org.jetbrains.jps.incremental.artifacts;
 
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.PathUtil;
+import com.intellij.util.io.zip.JBZipEntry;
+import com.intellij.util.io.zip.JBZipFile;
 import org.jetbrains.jps.builders.CompileScopeTestBuilder;
 import org.jetbrains.jps.model.artifact.JpsArtifact;
 import org.jetbrains.jps.model.artifact.elements.JpsPackagingElementFactory;
@@ -24,6 +26,8 @@ import org.jetbrains.jps.model.module.JpsModule;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import static com.intellij.util.io.TestFileSystemItem.fs;
 import static org.jetbrains.jps.incremental.artifacts.LayoutElementTestUtil.archive;
@@ -105,6 +109,58 @@ public class IncrementalArtifactBuildingTest extends ArtifactBuilderTestCase {
     buildAllAndAssertUpToDate();
   }
 
+  public void testChangeAddAndDeleteEntriesOfPreviouslyBuiltJar() {
+    String file1 = createFile("dir/a.txt", "a");
+    String file2 = createFile("dir/b.txt", "b");
+    String file3 = createFile("lib/c.txt", "c");
+    JpsArtifact a = addArtifact("a", root().archive("a.jar").parentDirCopy(file1).dir("x").archive("n.jar").parentDirCopy(file3));
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "a").file("b.txt", "b").dir("x").archive("n.jar").file("c.txt", "c"));
+    final File jar = new File(a.getOutputPath(), "a.jar");
+    final Map<String, Long> offsets = getHeaderOffsets(jar);
+
+    change(file1, "a2");
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "a2").file("b.txt", "b").dir("x").archive("n.jar").file("c.txt", "c"));
+    // the jar was updated in place: unchanged entries were not written again, the changed one was appended
+    final Map<String, Long> updatedOffsets = getHeaderOffsets(jar);
+    assertTrue(updatedOffsets.remove("a.txt") > offsets.remove("a.txt"));
+    assertEquals(offsets, updatedOffsets);
+    buildAllAndAssertUpToDate();
+
+    createFile("dir/d.txt", "d");
+    createFile("lib/e.txt", "e");
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "a2").file("b.txt", "b").file("d.txt", "d")
+      .dir("x").archive("n.jar").file("c.txt", "c").file("e.txt", "e"));
+    buildAllAndAssertUpToDate();
+
+    delete(file2);
+    delete(file3);
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "a2").file("d.txt", "d").dir("x").archive("n.jar").file("e.txt", "e"));
+    buildAllAndAssertUpToDate();
+  }
+
+  private static Map<String, Long> getHeaderOffsets(File jar) {
+    try {
+      final JBZipFile zipFile = new JBZipFile(jar);
+      try {
+        final Map<String, Long> offsets = new HashMap<String, Long>();
+        for (JBZipEntry entry : zipFile.getEntries()) {
+          offsets.put(entry.getName(), entry.getHeaderOffset());
+        }
+        return offsets;
+      }
+      finally {
+        zipFile.close();
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   public void testNonExistentFileRoot() throws IOException {
     String file = getAbsolutePath("a.txt");
     JpsArtifact a = addArtifact(root().fileCopy(file));
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import org.jetbrains.jps.api.BuildType;
+import org.jetbrains.jps.api.CanceledStatus;
+import org.jetbrains.jps.builders.BuildResult;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.java.JavaModuleBuildTargetType;
+import org.jetbrains.jps.builders.logging.BuildLoggingManager;
+import org.jetbrains.jps.cmdline.BuildRunner;
+import org.jetbrains.jps.cmdline.JpsModelLoader;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.fs.BuildFSState;
+import org.jetbrains.jps.model.JpsModel;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static com.intellij.util.io.TestFileSystemItem.fs;
+import static org.jetbrains.jps.api.CmdlineRemoteProto.Message.ControllerMessage.ParametersMessage.TargetTypeBuildScope;
+import static org.jetbrains.jps.builders.CompileScopeTestBuilder.make;
+
+public class PathIdEnumeratorTest extends JpsBuildTestCase {
+  private static final String[] PATHS = {
+    "/home/user/project/src/A.java",
+    "/home/user/project/src/B.java",
+    "/home/user/project/src/pkg/C.java",
+    "/home/user/project/out/production/m/A.class",
+    "/home/user/other/src/A.java",
+    "/",
+    "C:/work/src/A.java",
+    "relative/A.java"
+  };
+
+  public void testIdsAndPathsSurviveReopening() throws IOException {
+    final File root = new File(myDataStorageRoot, "paths");
+    PathIdEnumerator pathIds = new PathIdEnumerator(root);
+    final int[] ids = new int[PATHS.length];
+    final Set<Integer> distinct = new HashSet<Integer>();
+    try {
+      for (int i = 0; i < PATHS.length; i++) {
+        ids[i] = pathIds.getId(PATHS[i]);
+        assertTrue(PATHS[i], ids[i] != 0);
+        assertTrue(PATHS[i], distinct.add(ids[i]));
+      }
+      assertEquals(0, pathIds.tryGetId("/home/user/project/src/D.java"));
+      assertEquals(0, pathIds.tryGetId("/home/user/unknown/src/A.java"));
+      assertEquals(0, pathIds.tryGetId("/home/user/unknown/src/A.java"));
+      assertPaths(pathIds, ids);
+
+      pathIds.flush(true);
+      assertPaths(pathIds, ids);
+    }
+    finally {
+      pathIds.close();
+    }
+
+    pathIds = new PathIdEnumerator(root);
+    try {
+      assertPaths(pathIds, ids);
+      assertEquals(0, pathIds.tryGetId("/home/user/project/src/D.java"));
+      final int newId = pathIds.getId("/home/user/project/src/D.java");
+      assertFalse(distinct.contains(newId));
+      assertEquals("/home/user/project/src/D.java", pathIds.getPath(newId));
+    }
+    finally {
+      pathIds.close();
+    }
+  }
+
+  public void testMappingSurvivesReopening() throws IOException {
+    final File pathsRoot = new File(myDataStorageRoot, "paths");
+    final File mappingFile = new File(myDataStorageRoot, "src-out/data");
+    PathIdEnumerator pathIds = new PathIdEnumerator(pathsRoot);
+    OneToManyPathsMapping mapping = new OneToManyPathsMapping(mappingFile, pathIds);
+    try {
+      mapping.update(PATHS[0], Arrays.asList(PATHS[3], PATHS[4]));
+      mapping.appendData(PATHS[0], PATHS[5]);
+      mapping.update(PATHS[1], PATHS[3]);
+      mapping.update(PATHS[2], Arrays.asList(PATHS[6], PATHS[7]));
+      mapping.removeData(PATHS[2], PATHS[6]);
+    }
+    finally {
+      mapping.close();
+      pathIds.close();
+    }
+
+    pathIds = new PathIdEnumerator(pathsRoot);
+    mapping = new OneToManyPathsMapping(mappingFile, pathIds);
+    try {
+      assertSameElements(mapping.getState(PATHS[0]), PATHS[3], PATHS[4], PATHS[5]);
+      assertSameElements(mapping.getState(PATHS[1]), PATHS[3]);
+      assertSameElements(mapping.getState(PATHS[2]), PATHS[7]);
+      assertNull(mapping.getState(PATHS[3]));
+      assertNull(mapping.getState("/home/user/project/src/D.java"));
+      assertSameElements(mapping.getKeys(), PATHS[0], PATHS[1], PATHS[2]);
+    }
+    finally {
+      mapping.close();
+      pathIds.close();
+    }
+  }
+
+  public void testDataWithPathKeysFromPreviousVersionIsReplaced() throws Exception {
+    final String a = createFile("src/A.java", "class A {}");
+    addModule("m", getAbsolutePath("src"));
+    runMake().assertSuccessful();
+
+    // storages written before paths were enumerated were keyed by path strings and there was no path ids storage
+    FileUtil.delete(new File(myDataStorageRoot, "paths"));
+    FileUtil.delete(new File(myDataStorageRoot, "timestamps"));
+    FileUtil.delete(new File(myDataStorageRoot, "src-form"));
+    writeOldFormatStorage(new File(myDataStorageRoot, "timestamps/data"), a);
+    writeOldFormatStorage(new File(myDataStorageRoot, "src-form/data"), a);
+    final DataOutputStream version = new DataOutputStream(new FileOutputStream(new File(myDataStorageRoot, "version.dat")));
+    try {
+      version.writeInt(20);
+    }
+    finally {
+      version.close();
+    }
+
+    runMake().assertSuccessful();
+    assertOutput(getAbsolutePath("out/production/m"), fs().file("A.class"));
+
+    final ProjectDescriptor descriptor = createProjectDescriptor(BuildLoggingManager.DEFAULT);
+    try {
+      assertFalse(descriptor.dataManager.versionDiffers());
+      assertTrue(descriptor.dataManager.getPathIds().tryGetId(a) != 0);
+    }
+    finally {
+      descriptor.release();
+    }
+    doBuild(make().all()).assertUpToDate();
+  }
+
+  private BuildResult runMake() throws Exception {
+    final List<TargetTypeBuildScope> scopes = new ArrayList<TargetTypeBuildScope>();
+    for (JavaModuleBuildTargetType type : JavaModuleBuildTargetType.ALL_TYPES) {
+      scopes.add(TargetTypeBuildScope.newBuilder().setTypeId(type.getTypeId()).setAllTargets(true).build());
+    }
+    final BuildRunner runner = new BuildRunner(new JpsModelLoader() {
+      @Override
+      public JpsModel loadModel() {
+        return myModel;
+      }
+    }, scopes, Collections.<String>emptyList(), Collections.<String, String>emptyMap());
+    final BuildResult result = new BuildResult();
+    final ProjectDescriptor descriptor = runner.load(result, myDataStorageRoot, new BuildFSState(true));
+    try {
+      runner.runBuild(descriptor, CanceledStatus.NULL, null, result, BuildType.MAKE);
+    }
+    finally {
+      descriptor.release();
+    }
+    return result;
+  }
+
+  private static void writeOldFormatStorage(File file, String path) throws IOException {
+    final AbstractStateStorage<String, String> storage =
+      new AbstractStateStorage<String, String>(file, new PathStringDescriptor(), new EnumeratorStringDescriptor()) {};
+    try {
+      storage.update(path, path);
+    }
+    finally {
+      storage.close();
+    }
+  }
+
+  private static void assertPaths(PathIdEnumerator pathIds, int[] ids) throws IOException {
+    for (int i = 0; i < PATHS.length; i++) {
+      assertEquals(PATHS[i], pathIds.getPath(ids[i]));
+      assertEquals(PATHS[i], ids[i], pathIds.tryGetId(PATHS[i]));
+      assertEquals(PATHS[i], ids[i], pathIds.getId(PATHS[i]));
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.storage;
+
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.java.JavaModuleBuildTargetType;
+import org.jetbrains.jps.builders.logging.BuildLoggingManager;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.ModuleBuildTarget;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class TimestampStorageTest extends JpsBuildTestCase {
+  public void testBatchReadMatchesSingleReads() throws IOException {
+    final ModuleBuildTarget m = new ModuleBuildTarget(addModule("m"), JavaModuleBuildTargetType.PRODUCTION);
+    final ModuleBuildTarget n = new ModuleBuildTarget(addModule("n"), JavaModuleBuildTargetType.PRODUCTION);
+    final ProjectDescriptor descriptor = createProjectDescriptor(BuildLoggingManager.DEFAULT);
+    try {
+      final TimestampStorage storage = descriptor.timestamps.getStorage();
+      final List<File> files = new ArrayList<File>();
+      // more files than are read under one lock
+      for (int i = 0; i < 1500; i++) {
+        final File file = new File(getAbsolutePath("src/p" + i % 7 + "/C" + i + ".java"));
+        files.add(file);
+        if (i % 3 != 0) {
+          storage.saveStamp(file, m, 1000L + i);
+        }
+        if (i % 5 == 0) {
+          storage.saveStamp(file, n, 5000L + i);
+        }
+      }
+      files.add(new File(getAbsolutePath("src/unknown/D.java")));
+      Collections.shuffle(files, new Random(42));
+
+      final long[] stamps = storage.getStamps(files, m);
+      assertEquals(files.size(), stamps.length);
+      int found = 0;
+      for (int i = 0; i < stamps.length; i++) {
+        assertEquals(files.get(i).getPath(), storage.getStamp(files.get(i), m), stamps[i]);
+        if (stamps[i] != -1L) found++;
+      }
+      assertEquals(1000, found);
+
+      final long[] stampsOfN = storage.getStamps(files, n);
+      for (int i = 0; i < stampsOfN.length; i++) {
+        assertEquals(files.get(i).getPath(), storage.getStamp(files.get(i), n), stampsOfN[i]);
+      }
+      assertEquals(0, storage.getStamps(Collections.<File>emptyList(), m).length);
+    }
+    finally {
+      descriptor.release();
+    }
+  }
+}
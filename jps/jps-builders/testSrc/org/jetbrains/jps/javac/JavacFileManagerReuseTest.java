@@ -0,0 +1,120 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.cmdline.ClasspathBootstrap;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.model.java.JpsJavaLibraryType;
+import org.jetbrains.jps.model.library.JpsLibrary;
+import org.jetbrains.jps.model.library.JpsOrderRootType;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class JavacFileManagerReuseTest extends JpsBuildTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    assertNotNull("optimized file manager is not available", ClasspathBootstrap.getOptimizedFileManagerClass());
+    JavacMain.closeIdleFileManagers();
+    System.setProperty(GlobalOptions.REUSE_JAVAC_FILE_MANAGERS_OPTION, "");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.REUSE_JAVAC_FILE_MANAGERS_OPTION);
+    JavacMain.closeIdleFileManagers();
+    super.tearDown();
+  }
+
+  public void testChangedLibraryJarIsReopened() throws IOException {
+    final File jar = new File(getAbsolutePath("lib/lib.jar"));
+    createLibraryJar(jar, "public class L { public static int f() { return 1; } }");
+    final String a = createFile("m/src/A.java", "public class A { int a() { return L.f(); } }");
+    final JpsModule m = addModule("m", getAbsolutePath("m/src"));
+    final JpsLibrary library = myProject.addLibrary("lib", JpsJavaLibraryType.INSTANCE);
+    library.addRoot(jar, JpsOrderRootType.COMPILED);
+    m.getDependenciesList().addLibraryDependency(library);
+
+    makeAll().assertSuccessful();
+    final StandardJavaFileManager manager = assertSingleIdleManager();
+
+    createLibraryJar(jar, "public class L { public static int fooBar() { return 2; } }");
+    change(a, "public class A { int a() { return L.fooBar(); } }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "m/src/A.java");
+    assertSame(manager, assertSingleIdleManager());
+  }
+
+  public void testNewClassInDependencyOutputIsFound() throws IOException {
+    createFile("m/src/A.java", "public class A {}");
+    final String b = createFile("n/src/B.java", "public class B { A a; }");
+    final JpsModule m = addModule("m", getAbsolutePath("m/src"));
+    final JpsModule n = addModule("n", getAbsolutePath("n/src"));
+    n.getDependenciesList().addModuleDependency(m);
+
+    makeAll().assertSuccessful();
+    final List<StandardJavaFileManager> managers = JavacMain.getIdleFileManagers();
+    assertEquals(2, managers.size());
+
+    // the output directory of m was listed when n was compiled the first time
+    createFile("m/src/A2.java", "public class A2 {}");
+    change(b, "public class B { A a; A2 a2; }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "m/src/A2.java", "n/src/B.java");
+    final List<StandardJavaFileManager> reused = JavacMain.getIdleFileManagers();
+    assertEquals(2, reused.size());
+    assertTrue(reused.containsAll(managers));
+  }
+
+  private static StandardJavaFileManager assertSingleIdleManager() {
+    final List<StandardJavaFileManager> managers = JavacMain.getIdleFileManagers();
+    assertEquals(1, managers.size());
+    return managers.get(0);
+  }
+
+  private static void createLibraryJar(File jar, String classText) throws IOException {
+    final File srcDir = FileUtil.createTempDirectory("lib-src", null);
+    try {
+      final File source = new File(srcDir, "L.java");
+      FileUtil.writeToFile(source, classText);
+      assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, "-d", srcDir.getPath(), source.getPath()));
+      FileUtil.createParentDirs(jar);
+      final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+      try {
+        out.putNextEntry(new ZipEntry("L.class"));
+        out.write(FileUtil.loadFileBytes(new File(srcDir, "L.class")));
+        out.closeEntry();
+      }
+      finally {
+        out.close();
+      }
+    }
+    finally {
+      FileUtil.delete(srcDir);
+    }
+  }
+}
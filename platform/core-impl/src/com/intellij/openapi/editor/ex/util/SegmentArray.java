@@ -23,12 +23,18 @@ import org.jetbrains.annotations.NotNull;
  * {@code 'index <-> (start; end)'} and provides convenient way for working with them, e.g. find index by particular offset that
  * belongs to target <code>(start; end)</code> segment etc.
  * <p/>
+ * {@link #shiftSegments(int, int) Shifts} are applied lazily: offsets of all segments starting from {@link #myShiftStart} are stored
+ * without {@link #myShift}, so a shift costs time proportional to the distance (in segments) from the previous one instead of
+ * the number of segments after it.
+ * <p/>
  * Not thread-safe.
  */
 public class SegmentArray {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.ex.util.SegmentArray");
   private int[] myStarts;
   private int[] myEnds;
+  private int myShiftStart;
+  private int myShift;
 
   protected int mySegmentCount = 0;
   protected static final int INITIAL_SIZE = 64;
@@ -50,16 +56,36 @@ public class SegmentArray {
       mySegmentCount = i + 1;
     }
 
+    int shift = getShift(i);
     myStarts = reallocateArray(myStarts, i);
-    myStarts[i] = startOffset;
+    myStarts[i] = startOffset - shift;
 
     myEnds = reallocateArray(myEnds, i);
-    myEnds[i] = endOffset;
+    myEnds[i] = endOffset - shift;
   }
 
   protected void replace(int startOffset, @NotNull SegmentArray data, int len) {
-    System.arraycopy(data.myStarts, 0, myStarts, startOffset, len);
-    System.arraycopy(data.myEnds, 0, myEnds, startOffset, len);
+    for (int i = 0; i < len; i++) {
+      int shift = getShift(startOffset + i);
+      myStarts[startOffset + i] = data.getSegmentStart(i) - shift;
+      myEnds[startOffset + i] = data.getSegmentEnd(i) - shift;
+    }
+  }
+
+  private int getShift(int index) {
+    return index >= myShiftStart ? myShift : 0;
+  }
+
+  private void addShift(int startIndex, int endIndex, int shift) {
+    for (int i = startIndex; i < endIndex; i++) {
+      myStarts[i] += shift;
+      myEnds[i] += shift;
+    }
+  }
+
+  private void flushShift() {
+    addShift(myShiftStart, mySegmentCount, myShift);
+    myShift = 0;
   }
 
   static int calcCapacity(int currentArraySize, int index) {
@@ -104,10 +130,10 @@ public class SegmentArray {
 
     while (start < end) {
       int i = (start + end) / 2;
-      if (offset < myStarts[i]) {
+      if (offset < myStarts[i] + getShift(i)) {
         end = i - 1;
       }
-      else if (offset >= myEnds[i]) {
+      else if (offset >= myEnds[i] + getShift(i)) {
         start = i + 1;
       }
       else {
@@ -116,13 +142,13 @@ public class SegmentArray {
     }
 
     // This means that there is a gap at given offset
-    assert myStarts[start] <= offset && offset < myEnds[start] : start;
+    assert getSegmentStart(start) <= offset && offset < getSegmentEnd(start) : start;
 
     return start;
   }
 
   public int getLastValidOffset() {
-    return mySegmentCount == 0 ? 0 : myEnds[mySegmentCount - 1];
+    return mySegmentCount == 0 ? 0 : getSegmentEnd(mySegmentCount - 1);
   }
 
   public final void changeSegmentLength(int startIndex, int change) {
@@ -133,22 +159,43 @@ public class SegmentArray {
   }
 
   public final void shiftSegments(int startIndex, int shift) {
-    for (int i = startIndex; i < mySegmentCount; i++) {
-      myStarts[i] += shift;
-      myEnds[i] += shift;
-      if (myStarts[i] < 0 || myEnds[i] < 0) {
-        LOG.error("Error shifting segments: myStarts[" + i + "] = " + myStarts[i] + ", myEnds[" + i + "] = " + myEnds[i]);
-      }
+    startIndex = Math.max(startIndex, 0);
+    if (shift == 0 || startIndex >= mySegmentCount) {
+      return;
+    }
+    if (myShift == 0) {
+      myShiftStart = startIndex;
+    }
+    else if (startIndex < myShiftStart) {
+      addShift(startIndex, myShiftStart, shift);
+    }
+    else {
+      addShift(myShiftStart, startIndex, myShift);
+      myShiftStart = startIndex;
+    }
+    myShift += shift;
+
+    // offsets grow with index, so it's enough to check the first shifted segment
+    if (getSegmentStart(startIndex) < 0 || getSegmentEnd(startIndex) < 0) {
+      LOG.error("Error shifting segments: start[" + startIndex + "] = " + getSegmentStart(startIndex) +
+                ", end[" + startIndex + "] = " + getSegmentEnd(startIndex));
     }
   }
 
   public void removeAll() {
     mySegmentCount = 0;
+    myShift = 0;
   }
 
   public void remove(int startIndex, int endIndex) {
     myStarts = remove(myStarts, startIndex, endIndex);
     myEnds = remove(myEnds, startIndex, endIndex);
+    if (myShiftStart >= endIndex) {
+      myShiftStart -= endIndex - startIndex;
+    }
+    else if (myShiftStart > startIndex) {
+      myShiftStart = startIndex;
+    }
     mySegmentCount -= endIndex - startIndex;
   }
 
@@ -161,9 +208,17 @@ public class SegmentArray {
   }
 
   protected void insert(@NotNull SegmentArray segmentArray, int startIndex) {
-    myStarts = insert(myStarts, segmentArray.myStarts, startIndex, segmentArray.getSegmentCount());
-    myEnds = insert(myEnds, segmentArray.myEnds, startIndex, segmentArray.getSegmentCount());
-    mySegmentCount += segmentArray.getSegmentCount();
+    int insertLength = segmentArray.getSegmentCount();
+    segmentArray.flushShift();
+    myStarts = insert(myStarts, segmentArray.myStarts, startIndex, insertLength);
+    myEnds = insert(myEnds, segmentArray.myEnds, startIndex, insertLength);
+    mySegmentCount += insertLength;
+    if (startIndex <= myShiftStart) {
+      myShiftStart += insertLength;
+    }
+    else {
+      addShift(startIndex, startIndex + insertLength, -myShift);
+    }
   }
 
   @NotNull
@@ -180,14 +235,14 @@ public class SegmentArray {
     if (index < 0 || index >= mySegmentCount) {
       throw new IndexOutOfBoundsException("Wrong line: " + index + ". Available lines count: " + mySegmentCount);
     }
-    return myStarts[index];
+    return myStarts[index] + getShift(index);
   }
 
   public int getSegmentEnd(int index) {
     if (index < 0 || index >= mySegmentCount) {
       throw new IndexOutOfBoundsException("Wrong line: " + index + ". Available lines count: " + mySegmentCount);
     }
-    return myEnds[index];
+    return myEnds[index] + getShift(index);
   }
 
 
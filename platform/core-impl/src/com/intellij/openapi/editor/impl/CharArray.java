@@ -27,6 +27,7 @@ import com.intellij.util.text.CharSequenceBackedByArray;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
@@ -55,6 +56,16 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
    */
   private static final int MAX_DEFERRED_CHANGES_NUMBER = 10000;
 
+  /**
+   * Texts of at least this length are kept in a {@link CharRope} instead of a single array, which makes changes in the middle of
+   * huge documents cheap at the cost of slower random access and of copying the whole text on every {@link #getChars()} call.
+   * <p/>
+   * Off by default. Editor painting reads the text through {@link #getCharArray()}, which doesn't copy the rope, so the
+   * remaining {@link #getChars()} callers are what makes typing in a huge document opened in an editor slow.
+   */
+  @SuppressWarnings("UseOfArchaicSystemPropertyAccessors")
+  private static int ourRopeThreshold = Integer.getInteger("idea.document.rope.threshold", Integer.MAX_VALUE);
+
   private final TextChangesStorage myDeferredChangesStorage;
 
   private volatile int myStart; // start offset in myArray (used as an optimization when call substring())
@@ -67,6 +78,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private volatile int myDeferredShift;
   private volatile boolean myDeferredChangeMode;
   private volatile boolean myHasDeferredChanges;
+  private volatile CharRope myRope; // the text if it's kept in a rope, myArray and myOriginalSequence are null then
   // this lock is for mutual exclusion during read action access
   // (some fields are changed in read action too)
   private final Lock lock = new ReentrantLock();
@@ -102,8 +114,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   CharArray(final int bufferSize, @NotNull char[] data, int length) {
     myBufferSize = bufferSize;
     myDeferredChangesStorage = new TextChangesStorage();
-    myArray = Arrays.copyOf(data, length);
-    myCount = length;
+    if (length >= ourRopeThreshold) {
+      setRope(CharRope.create(data, length));
+    }
+    else {
+      myArray = Arrays.copyOf(data, length);
+      myCount = length;
+    }
 
     if (myDebug) {
       myDebugArray = new CharArray(bufferSize, data, length) {
@@ -138,6 +155,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertConsistency();
   }
 
+  @TestOnly
+  static int setRopeThreshold(int threshold) {
+    int old = ourRopeThreshold;
+    ourRopeThreshold = threshold;
+    return old;
+  }
+
   public void setBufferSize(int bufferSize) {
     assert bufferSize >= 0 : bufferSize;
     myBufferSize = bufferSize;
@@ -169,6 +193,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertConsistency();
     myOriginalSequence = chars.toString();
     myArray = null;
+    myRope = null;
     myStringRef = null;
     myCount = chars.length();
     assert myStart == 0; // can't change substring
@@ -227,6 +252,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
       else if (myOriginalSequence != null) {
         str = myOriginalSequence.toString();
       }
+      else if (myRope != null) {
+        str = myRope;
+      }
       else {
         str = seqFromCharArray;
       }
@@ -256,7 +284,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private void doReplace(int startOffset, int endOffset, @NotNull CharSequence newString) {
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      setRope(myRope.replace(startOffset, endOffset, newString));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(newString, startOffset, endOffset));
       if (myDebug) {
         myDebugArray.doReplace(startOffset, endOffset, newString);
@@ -293,7 +324,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      setRope(myRope.delete(startIndex, endIndex));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl("", startIndex, endIndex));
       if (myDebug) {
         myDebugArray.doRemove(startIndex, endIndex);
@@ -321,7 +355,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private void doInsert(@NotNull CharSequence s, final int startIndex) {
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      setRope(myRope.insert(startIndex, s));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(s, startIndex));
       if (myDebug) {
         myDebugArray.doInsert(s, startIndex);
@@ -365,7 +402,20 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
   }
 
+  private void setRope(@NotNull CharRope rope) {
+    myRope = rope;
+    myCount = rope.length();
+    myStringRef = null;
+  }
+
   private void prepareForModification() {
+    if (myRope == null && !isDeferredChangeMode() && length() >= ourRopeThreshold) {
+      CharSequence text = myOriginalSequence;
+      setRope(CharRope.create(text == null ? new CharArrayCharSequence(myArray, myStart, myStart + myCount) : text));
+      myOriginalSequence = null;
+      myArray = null;
+      myStart = 0;
+    }
     if (myOriginalSequence != null) {
       myArray = new char[myOriginalSequence.length()];
       CharArrayUtil.getChars(myOriginalSequence, myArray, 0);
@@ -381,10 +431,24 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   @NotNull
   public CharSequence getCharArray() {
     assertConsistency();
+    CharRope rope = myRope;
+    if (rope != null) {
+      return rope;
+    }
     CharSequence originalSequence = myOriginalSequence;
     return originalSequence == null ? this : originalSequence;
   }
 
+  /**
+   * @return the current text which is not affected by subsequent changes; cheap if the text is kept in a rope or
+   *         a {@link #toString() string} is already cached
+   */
+  @NotNull
+  public CharSequence getImmutableCharSequence() {
+    CharRope rope = myRope;
+    return rope != null ? rope : toString();
+  }
+
   @NotNull
   public String toString() {
     assertConsistency();
@@ -394,7 +458,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
         str = substring(0, length()).toString();
       }
       else {
-        str = myOriginalSequence == null ? new String(myArray, myStart, myCount) : myOriginalSequence.toString();
+        CharRope rope = myRope;
+        if (rope != null) {
+          str = rope.toString();
+        }
+        else {
+          str = myOriginalSequence == null ? new String(myArray, myStart, myCount) : myOriginalSequence.toString();
+        }
       }
       myStringRef = new SoftReference<String>(str);
     }
@@ -418,6 +488,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     if (i < 0 || i >= length()) {
       throw new IndexOutOfBoundsException("Wrong offset: " + i + "; count:" + length());
     }
+    CharRope rope = myRope;
+    if (rope != null) {
+      return rope.charAt(i);
+    }
     i += myStart;
     final char result;
     if (!myHasDeferredChanges) {
@@ -447,6 +521,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertReadAccess();
     assertConsistency();
     if (start == 0 && end == length()) return this;
+    CharRope rope = myRope;
+    if (rope != null) {
+      return rope.subSequence(start, end);
+    }
     if (myOriginalSequence != null) {
       return myOriginalSequence.subSequence(start, end);
     }
@@ -459,6 +537,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   public char[] getChars() {
     assertReadAccess();
     assertConsistency();
+    CharRope rope = myRope;
+    if (rope != null) {
+      // not cached: a copy would be made after every change anyway, and would double the memory taken by the text
+      char[] chars = new char[rope.length()];
+      rope.getChars(0, chars.length, chars, 0);
+      return chars;
+    }
     char[] array = myArray;
     CharSequence originalSequence = myOriginalSequence;
     if (myHasDeferredChanges || originalSequence != null && array == null) {
@@ -483,6 +568,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   public void getChars(@NotNull final char[] dst, final int dstOffset) {
     assertReadAccess();
     assertConsistency();
+    CharRope rope = myRope;
+    if (rope != null) {
+      rope.getChars(0, rope.length(), dst, dstOffset);
+      return;
+    }
     flushDeferredChanged();
     if (myOriginalSequence == null) {
       System.arraycopy(myArray, myStart, dst, dstOffset, length());
@@ -516,7 +606,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private CharSequence doSubString(int start, int end) {
     if (start == end) return "";
     final CharSequence result;
-    if (myOriginalSequence == null) {
+    CharRope rope = myRope;
+    if (rope != null) {
+      result = rope.subSequence(start, end);
+    }
+    else if (myOriginalSequence == null) {
       result = myDeferredChangesStorage.substring(myArray, start + myStart, end + myStart);
     }
     else {
@@ -607,7 +701,8 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
           myDebugDeferredChanges.clear();
         }
         prepareForModification();
-        myDeferredChangeMode = deferredChangeMode;
+        // changes in a rope are cheap anyway
+        myDeferredChangeMode = myRope == null;
       }
       else {
         myDeferredChangeMode = deferredChangeMode;
@@ -669,7 +764,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   @NonNls
   @NotNull
   public String dumpState() {
-    return "deferred changes mode: " + isDeferredChangeMode()+", length: " + length()+" (data array length: " + myCount+
+    return "deferred changes mode: " + isDeferredChangeMode()+", rope: " + (myRope != null) + ", length: " + length()+" (data array length: " + myCount+
            ", deferred shift: " + myDeferredShift+"); view offsets: [" + myStart+"; "+myCount+"]; deferred changes: "+myDeferredChangesStorage;
   }
   
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.util.text.CharArrayCharSequence;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable text stored as a balanced (AVL) tree of small char arrays.
+ * <p/>
+ * {@link #insert(int, CharSequence) Inserts}, {@link #delete(int, int) deletes} and {@link #replace(int, int, CharSequence) replaces}
+ * take O(log n) time and return a new rope sharing all unchanged nodes with this one, so every instance is a cheap immutable
+ * snapshot of the text which can be read from any thread.
+ * <p/>
+ * {@link #charAt(int)} takes O(log n) time, but sequential access is fast as the last accessed leaf is cached.
+ */
+final class CharRope implements CharSequence {
+  static final int MAX_LEAF_LENGTH = 2048;
+
+  static final CharRope EMPTY = new CharRope(new Leaf(new char[0], 0, 0));
+
+  private final Node myRoot;
+
+  // leaves and their start offsets are immutable, so races on this cache are harmless
+  private LeafRef myLastLeaf;
+
+  private CharRope(@NotNull Node root) {
+    myRoot = root;
+  }
+
+  @NotNull
+  static CharRope create(@NotNull CharSequence text) {
+    return text.length() == 0 ? EMPTY : new CharRope(buildNode(text, 0, text.length()));
+  }
+
+  @NotNull
+  static CharRope create(@NotNull char[] data, int length) {
+    return create(new CharArrayCharSequence(data, 0, length));
+  }
+
+  @Override
+  public int length() {
+    return myRoot.myLength;
+  }
+
+  @Override
+  public char charAt(int index) {
+    LeafRef ref = myLastLeaf;
+    if (ref == null || index < ref.myStart || index >= ref.myStart + ref.myLeaf.myLength) {
+      if (index < 0 || index >= length()) {
+        throw new IndexOutOfBoundsException("Wrong offset: " + index + "; count:" + length());
+      }
+      myLastLeaf = ref = findLeaf(index);
+    }
+    Leaf leaf = ref.myLeaf;
+    return leaf.myChars[leaf.myOffset + index - ref.myStart];
+  }
+
+  @NotNull
+  private LeafRef findLeaf(int index) {
+    Node node = myRoot;
+    int start = 0;
+    while (node instanceof Concat) {
+      Concat concat = (Concat)node;
+      if (index < start + concat.myLeft.myLength) {
+        node = concat.myLeft;
+      }
+      else {
+        start += concat.myLeft.myLength;
+        node = concat.myRight;
+      }
+    }
+    return new LeafRef((Leaf)node, start);
+  }
+
+  /**
+   * @return the text between the given offsets; the returned sequence is immutable, like this rope
+   */
+  @NotNull
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    if (start < 0 || end > length() || start > end) {
+      throw new IndexOutOfBoundsException("Wrong range: [" + start + ", " + end + "); count:" + length());
+    }
+    if (start == 0 && end == length()) return this;
+    if (start == end) return "";
+    LeafRef ref = findLeaf(start);
+    if (end <= ref.myStart + ref.myLeaf.myLength) {
+      int offset = ref.myLeaf.myOffset + start - ref.myStart;
+      return new CharArrayCharSequence(ref.myLeaf.myChars, offset, offset + end - start);
+    }
+    return new CharRope(subNode(myRoot, start, end));
+  }
+
+  @NotNull
+  CharRope insert(int offset, @NotNull CharSequence text) {
+    return replace(offset, offset, text);
+  }
+
+  @NotNull
+  CharRope delete(int start, int end) {
+    return replace(start, end, "");
+  }
+
+  @NotNull
+  CharRope replace(int start, int end, @NotNull CharSequence text) {
+    if (start < 0 || end > length() || start > end) {
+      throw new IndexOutOfBoundsException("Wrong range: [" + start + ", " + end + "); count:" + length());
+    }
+    if (start == end && text.length() == 0) return this;
+    Node result = join(join(subNode(myRoot, 0, start), text.length() == 0 ? null : buildNode(text, 0, text.length())),
+                       subNode(myRoot, end, length()));
+    return result == null ? EMPTY : new CharRope(result);
+  }
+
+  /**
+   * Copies the text between the given offsets to the given array
+   */
+  void getChars(int start, int end, @NotNull char[] dst, int dstOffset) {
+    copyChars(myRoot, start, end, dst, dstOffset);
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    char[] chars = new char[length()];
+    getChars(0, length(), chars, 0);
+    return new String(chars);
+  }
+
+  private static void copyChars(@NotNull Node node, int start, int end, @NotNull char[] dst, int dstOffset) {
+    while (start < end) {
+      if (node instanceof Leaf) {
+        Leaf leaf = (Leaf)node;
+        System.arraycopy(leaf.myChars, leaf.myOffset + start, dst, dstOffset, end - start);
+        return;
+      }
+      Concat concat = (Concat)node;
+      int leftLength = concat.myLeft.myLength;
+      if (start < leftLength) {
+        int leftEnd = Math.min(end, leftLength);
+        copyChars(concat.myLeft, start, leftEnd, dst, dstOffset);
+        dstOffset += leftEnd - start;
+        start = leftEnd;
+      }
+      node = concat.myRight;
+      start -= leftLength;
+      end -= leftLength;
+    }
+  }
+
+  @NotNull
+  private static Node buildNode(@NotNull CharSequence text, int start, int end) {
+    int length = end - start;
+    if (length <= MAX_LEAF_LENGTH) {
+      char[] chars = new char[length];
+      copyText(text, start, end, chars);
+      return new Leaf(chars, 0, length);
+    }
+    // split at a leaf boundary so that all leaves but the last one are full
+    int leaves = (length + MAX_LEAF_LENGTH - 1) / MAX_LEAF_LENGTH;
+    int middle = start + leaves / 2 * MAX_LEAF_LENGTH;
+    return new Concat(buildNode(text, start, middle), buildNode(text, middle, end));
+  }
+
+  private static void copyText(@NotNull CharSequence text, int start, int end, @NotNull char[] dst) {
+    if (text instanceof String) {
+      ((String)text).getChars(start, end, dst, 0);
+    }
+    else if (text instanceof CharRope) {
+      ((CharRope)text).getChars(start, end, dst, 0);
+    }
+    else if (text instanceof CharArrayCharSequence) {
+      ((CharArrayCharSequence)text.subSequence(start, end)).getChars(dst, 0);
+    }
+    else {
+      for (int i = start; i < end; i++) {
+        dst[i - start] = text.charAt(i);
+      }
+    }
+  }
+
+  /**
+   * @return the part of the given node between the given offsets, or null if it's empty
+   */
+  private static Node subNode(@NotNull Node node, int start, int end) {
+    if (start == end) return null;
+    if (start == 0 && end == node.myLength) return node;
+    if (node instanceof Leaf) {
+      Leaf leaf = (Leaf)node;
+      return new Leaf(leaf.myChars, leaf.myOffset + start, end - start);
+    }
+    Concat concat = (Concat)node;
+    int leftLength = concat.myLeft.myLength;
+    if (end <= leftLength) return subNode(concat.myLeft, start, end);
+    if (start >= leftLength) return subNode(concat.myRight, start - leftLength, end - leftLength);
+    return join(subNode(concat.myLeft, start, leftLength), subNode(concat.myRight, 0, end - leftLength));
+  }
+
+  private static Node join(Node left, Node right) {
+    if (left == null) return right;
+    if (right == null) return left;
+    if (left.myLength + right.myLength <= MAX_LEAF_LENGTH) {
+      return mergeLeaves(left, right);
+    }
+    // typing produces many tiny nodes, glue them to the neighbouring leaf while it has room
+    if (right instanceof Leaf && right.myLength < MAX_LEAF_LENGTH / 2) {
+      Node merged = appendToLastLeaf(left, (Leaf)right);
+      if (merged != null) return merged;
+    }
+    if (left instanceof Leaf && left.myLength < MAX_LEAF_LENGTH / 2) {
+      Node merged = prependToFirstLeaf((Leaf)left, right);
+      if (merged != null) return merged;
+    }
+
+    if (left.myHeight > right.myHeight + 1) {
+      Concat concat = (Concat)left;
+      return balance(concat.myLeft, join(concat.myRight, right));
+    }
+    if (right.myHeight > left.myHeight + 1) {
+      Concat concat = (Concat)right;
+      return balance(join(left, concat.myLeft), concat.myRight);
+    }
+    return new Concat(left, right);
+  }
+
+  /**
+   * Creates a node from two AVL-balanced subtrees whose heights differ by at most 2
+   */
+  @NotNull
+  private static Node balance(@NotNull Node left, @NotNull Node right) {
+    if (Math.abs(left.myHeight - right.myHeight) > 2) {
+      // possible when tiny subtrees were merged into a single leaf
+      return join(left, right);
+    }
+    if (left.myHeight > right.myHeight + 1) {
+      Concat l = (Concat)left;
+      if (l.myLeft.myHeight >= l.myRight.myHeight) {
+        return new Concat(l.myLeft, new Concat(l.myRight, right));
+      }
+      Concat lr = (Concat)l.myRight;
+      return new Concat(new Concat(l.myLeft, lr.myLeft), new Concat(lr.myRight, right));
+    }
+    if (right.myHeight > left.myHeight + 1) {
+      Concat r = (Concat)right;
+      if (r.myRight.myHeight >= r.myLeft.myHeight) {
+        return new Concat(new Concat(left, r.myLeft), r.myRight);
+      }
+      Concat rl = (Concat)r.myLeft;
+      return new Concat(new Concat(left, rl.myLeft), new Concat(rl.myRight, r.myRight));
+    }
+    return new Concat(left, right);
+  }
+
+  /**
+   * @return the given node with the last leaf extended by the given one, or null if there is no room in the last leaf
+   */
+  private static Node appendToLastLeaf(@NotNull Node node, @NotNull Leaf leaf) {
+    if (node instanceof Leaf) {
+      return node.myLength + leaf.myLength <= MAX_LEAF_LENGTH ? mergeLeaves(node, leaf) : null;
+    }
+    Concat concat = (Concat)node;
+    Node right = appendToLastLeaf(concat.myRight, leaf);
+    return right == null ? null : new Concat(concat.myLeft, right);
+  }
+
+  /**
+   * @return the given node with the first leaf extended by the given one, or null if there is no room in the first leaf
+   */
+  private static Node prependToFirstLeaf(@NotNull Leaf leaf, @NotNull Node node) {
+    if (node instanceof Leaf) {
+      return node.myLength + leaf.myLength <= MAX_LEAF_LENGTH ? mergeLeaves(leaf, node) : null;
+    }
+    Concat concat = (Concat)node;
+    Node left = prependToFirstLeaf(leaf, concat.myLeft);
+    return left == null ? null : new Concat(left, concat.myRight);
+  }
+
+  @NotNull
+  private static Leaf mergeLeaves(@NotNull Node left, @NotNull Node right) {
+    char[] chars = new char[left.myLength + right.myLength];
+    copyChars(left, 0, left.myLength, chars, 0);
+    copyChars(right, 0, right.myLength, chars, left.myLength);
+    return new Leaf(chars, 0, chars.length);
+  }
+
+  private abstract static class Node {
+    final int myLength;
+    final int myHeight;
+
+    Node(int length, int height) {
+      myLength = length;
+      myHeight = height;
+    }
+  }
+
+  private static class Leaf extends Node {
+    // never modified, several leaves may share one array
+    final char[] myChars;
+    final int myOffset;
+
+    Leaf(@NotNull char[] chars, int offset, int length) {
+      super(length, 0);
+      myChars = chars;
+      myOffset = offset;
+    }
+  }
+
+  private static class Concat extends Node {
+    final Node myLeft;
+    final Node myRight;
+
+    Concat(@NotNull Node left, @NotNull Node right) {
+      super(left.myLength + right.myLength, Math.max(left.myHeight, right.myHeight) + 1);
+      myLeft = left;
+      myRight = right;
+    }
+  }
+
+  private static class LeafRef {
+    final Leaf myLeaf;
+    final int myStart;
+
+    LeafRef(@NotNull Leaf leaf, int start) {
+      myLeaf = leaf;
+      myStart = start;
+    }
+  }
+}
@@ -644,6 +644,14 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return myText.getCharArray();
   }
 
+  /**
+   * @return a snapshot of the document text which is not affected by subsequent changes and can be read without read action
+   */
+  @NotNull
+  public CharSequence getImmutableCharSequence() {
+    return myText.getImmutableCharSequence();
+  }
+
 
   @Override
   public void addDocumentListener(@NotNull DocumentListener listener) {
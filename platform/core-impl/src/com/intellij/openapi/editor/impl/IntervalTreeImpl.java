@@ -19,6 +19,7 @@ import com.intellij.openapi.editor.ex.DisposableIterator;
 import com.intellij.openapi.util.Getter;
 import com.intellij.openapi.util.ProperTextRange;
 import com.intellij.openapi.util.Ref;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
@@ -30,6 +31,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -53,7 +55,9 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     private volatile int myEnd;
     private volatile boolean isValid = true;
     private volatile boolean isAttachedToTree; // true if the node is inserted to the tree
-    protected final List<Getter<E>> intervals;
+    // Getter<E> for the only interval (the usual case), Getter<E>[] if there are several, null if all were removed.
+    // Arrays are never modified once published so that readers don't need to lock
+    private volatile Object myIntervals;
     protected int maxEnd; // max of all intervalEnd()s among all children.
     protected int delta;  // delta of startOffset. getStartOffset() = myStartOffset + Sum of deltas up to root
 
@@ -70,7 +74,53 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
       myIntervalTree = intervalTree;
       myStart = start;
       myEnd = end;
-      intervals = new SmartList<Getter<E>>(createGetter(key));
+      myIntervals = createGetter(key);
+    }
+
+    protected int intervalCount() {
+      Object intervals = myIntervals;
+      return intervals == null ? 0 : intervals instanceof Getter ? 1 : ((Getter[])intervals).length;
+    }
+
+    // myIntervals is only assigned getters of E, so the casts below are safe
+
+    @SuppressWarnings("unchecked")
+    private static <T> Getter<T> asGetter(@NotNull Object intervals) {
+      return (Getter<T>)intervals;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Getter<T>[] asGetters(@NotNull Object intervals) {
+      return (Getter<T>[])intervals;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Getter<T>[] newGetters(@NotNull Getter<T> first, @NotNull Getter<T> second) {
+      return new Getter[]{first, second};
+    }
+
+    @NotNull
+    protected Getter<E> getInterval(int index) {
+      Object intervals = myIntervals;
+      if (intervals instanceof Getter) {
+        if (index != 0) throw new IndexOutOfBoundsException("Index: " + index + "; size: 1");
+        return asGetter(intervals);
+      }
+      if (intervals == null) throw new IndexOutOfBoundsException("Index: " + index + "; size: 0");
+      return IntervalNode.<E>asGetters(intervals)[index];
+    }
+
+    private void addGetter(@NotNull Getter<E> getter) {
+      Object intervals = myIntervals;
+      if (intervals == null) {
+        myIntervals = getter;
+      }
+      else if (intervals instanceof Getter) {
+        myIntervals = newGetters(IntervalNode.<E>asGetter(intervals), getter);
+      }
+      else {
+        myIntervals = ArrayUtil.append(IntervalNode.<E>asGetters(intervals), getter);
+      }
     }
 
     @Override
@@ -90,11 +140,16 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
     @Override
     public boolean processAliveKeys(@NotNull Processor<? super E> processor) {
-      //noinspection ForLoopReplaceableByForEach
-      for (int i = 0; i < intervals.size(); i++) {
-        Getter<E> interval = intervals.get(i);
-        E key = interval.get();
-        if (key != null && !processor.process(key)) return false;
+      Object intervals = myIntervals;
+      if (intervals instanceof Getter) {
+        E key = IntervalNode.<E>asGetter(intervals).get();
+        return key == null || processor.process(key);
+      }
+      if (intervals != null) {
+        for (Getter<E> interval : IntervalNode.<E>asGetters(intervals)) {
+          E key = interval.get();
+          if (key != null && !processor.process(key)) return false;
+        }
       }
       return true;
     }
@@ -102,8 +157,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     @Override
     public boolean hasAliveKey(boolean purgeDead) {
       boolean hasAliveInterval = false;
-      for (int i = intervals.size() - 1; i >= 0; i--) {
-        Getter<E> interval = intervals.get(i);
+      for (int i = intervalCount() - 1; i >= 0; i--) {
+        Getter<E> interval = getInterval(i);
         if (interval.get() != null) {
           hasAliveInterval = true;
           if (purgeDead) {
@@ -126,24 +181,32 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     private boolean removeInterval(@NotNull E key) {
       myIntervalTree.checkBelongsToTheTree(key, true);
       myIntervalTree.assertUnderWriteLock();
-      for (int i = intervals.size() - 1; i >= 0; i--) {
-        Getter<E> interval = intervals.get(i);
+      for (int i = intervalCount() - 1; i >= 0; i--) {
+        Getter<E> interval = getInterval(i);
         E t = interval.get();
         if (t == key) {
           removeIntervalInternal(i);
-          if (intervals.isEmpty()) {
+          if (myIntervals == null) {
             myIntervalTree.removeNode(this);
             return true;
           }
           return false;
         }
       }
-      assert false: "interval not found: "+key +"; "+ intervals+"; isValid="+key.isValid();
+      assert false: "interval not found: "+key +"; "+ intervalsToString()+"; isValid="+key.isValid();
       return false;
     }
 
     public void removeIntervalInternal(int i) {
-      intervals.remove(i);
+      Object intervals = myIntervals;
+      if (intervals instanceof Getter[]) {
+        Getter<E>[] array = asGetters(intervals);
+        myIntervals = array.length == 2 ? array[1 - i] : ArrayUtil.remove(array, i);
+      }
+      else {
+        getInterval(i); // check the index
+        myIntervals = null;
+      }
       if (isAttachedToTree) {   // for detached node, do not update tree node count
         assert myIntervalTree.keySize > 0 : myIntervalTree.keySize;
         myIntervalTree.keySize--;
@@ -152,7 +215,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
     public void addInterval(@NotNull E interval) {
       myIntervalTree.assertUnderWriteLock();
-      intervals.add(createGetter(interval));
+      addGetter(createGetter(interval));
       if (isAttachedToTree) { // for detached node, do not update tree node count
         myIntervalTree.keySize++;
         myIntervalTree.setNode(interval, this);
@@ -358,7 +421,13 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     @NonNls
     @Override
     public String toString() {
-      return "Node: " + intervals;
+      return "Node: " + intervalsToString();
+    }
+
+    @NotNull
+    private String intervalsToString() {
+      Object intervals = myIntervals;
+      return intervals instanceof Getter[] ? Arrays.toString((Getter[])intervals) : "[" + (intervals == null ? "" : intervals) + "]";
     }
   }
 
@@ -578,8 +647,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
           if (currentNode == null) return false;
 
           if (modCount != modCountBefore) throw new ConcurrentModificationException();
-          while (indexInCurrentList != currentNode.intervals.size()) {
-            T t = currentNode.intervals.get(indexInCurrentList++).get();
+          while (indexInCurrentList != currentNode.intervalCount()) {
+            T t = currentNode.getInterval(indexInCurrentList++).get();
             if (t != null) {
               current = t;
               return true;
@@ -594,8 +663,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
             if (overlaps(currentNode, startOffset, endOffset, deltaUpToRootExclusive)) {
               assert currentNode.intervalStart() + deltaUpToRootExclusive + currentNode.delta >= firstOverlapStart;
               indexInCurrentList = 0;
-              while (indexInCurrentList != currentNode.intervals.size()) {
-                T t = currentNode.intervals.get(indexInCurrentList++).get();
+              while (indexInCurrentList != currentNode.intervalCount()) {
+                T t = currentNode.getInterval(indexInCurrentList++).get();
                 if (t != null) {
                   current = t;
                   return true;
@@ -722,7 +791,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     node.setCachedValues(0, true, modCount);
     correctMaxUp(node);
     onInsertNode();
-    keySize += node.intervals.size();
+    keySize += node.intervalCount();
     insertCase1(node);
     node.isAttachedToTree = true;
     verifyProperties();
@@ -819,8 +888,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
       assert IntervalNode.deltaUpToRoot(packedOffsets) == root.delta + deltaUpToRootExclusive;
     }
     T liveInterval = null;
-    for (int i = root.intervals.size() - 1; i >= 0; i--) {
-      T t = root.intervals.get(i).get();
+    for (int i = root.intervalCount() - 1; i >= 0; i--) {
+      T t = root.getInterval(i).get();
       if (t == null) continue;
       liveInterval = t;
       checkBelongsToTheTree(t, false);
@@ -831,7 +900,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
       checkBelongsToTheTree(liveInterval, true);
     }
 
-    keyCounter[0]+= root.intervals.size();
+    keyCounter[0]+= root.intervalCount();
     nodeCounter[0]++;
     int delta = deltaUpToRootExclusive + (root.isValid() ? root.delta : 0);
     IntTrinity l = checkMax(root.getLeft(), delta, assertInvalid, allValid, keyCounter, nodeCounter, ids, root.delta == 0 && allDeltasUpAreNull);
@@ -885,10 +954,10 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     if (!VERIFY) return;
 
     if (assertInvalid) {
-      assert !root.intervals.isEmpty();
+      assert root.intervalCount() != 0;
       boolean contains = false;
-      for (int i = root.intervals.size() - 1; i >= 0; i--) {
-        T key = root.intervals.get(i).get();
+      for (int i = root.intervalCount() - 1; i >= 0; i--) {
+        T key = root.getInterval(i).get();
         if (key == null) continue;
         contains |= key == interval;
         IntervalNode<T> node = lookupNode(key);
@@ -896,7 +965,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
         assert node.getTree() == this : node;
       }
 
-      assert contains : root.intervals + "; " + interval;
+      assert contains : root + "; " + interval;
     }
 
     IntervalNode<T> e = root;
@@ -946,7 +1015,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     assertAllDeltasAreNull(node);
     super.deleteNode(n);
 
-    keySize -= node.intervals.size();
+    keySize -= node.intervalCount();
     assert keySize >= 0 : keySize;
     node.isAttachedToTree = false;
   }
@@ -1195,7 +1264,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
       if (node == null) return;
       int before = size();
       boolean nodeRemoved = node.removeInterval(interval);
-      assert nodeRemoved || !node.intervals.isEmpty();
+      assert nodeRemoved || node.intervalCount() != 0;
 
       IntervalNode<T> insertedNode = addInterval(interval, start, end, greedyToLeft, greedyToRight, layer);
       assert node != insertedNode;
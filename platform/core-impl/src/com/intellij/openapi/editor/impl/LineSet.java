@@ -146,14 +146,8 @@ public class LineSet{
       segments.remove(changedLineIndex, changedLineIndex + 1);
     }
 
-// update data after lineIndex, shifting with optimizedLineShift
-    final int segmentCount = segments.getSegmentCount();
-    for(int i = changedLineIndex + 1; i < segmentCount; ++i) {
-      segments.setElementAt(i, segments.getSegmentStart(i) - lengthDiff,
-        segments.getSegmentEnd(i) - lengthDiff,
-        segments.getSegmentData(i)
-      );
-    }
+    // update data after lineIndex
+    segments.shiftSegments(changedLineIndex + 1, -lengthDiff);
 
     if (doTest) {
       final SegmentArrayWithData data = mySegments;
@@ -185,13 +179,13 @@ public class LineSet{
 
     int i;
 
-    // update data after lineIndex, shifting with optimizedLineShift
-    for(i = segments.getSegmentCount() - 1; i > changedLineIndex; --i) {
-      segments.setElementAt(i + optimizedLineShift, segments.getSegmentStart(i) + lengthDiff,
-        segments.getSegmentEnd(i) + lengthDiff,
-        segments.getSegmentData(i)
-      );
+    // update data after lineIndex, shifting with optimizedLineShift; the inserted lines are filled below
+    SegmentArrayWithData insertedLines = new SegmentArrayWithData();
+    for (i = 0; i < optimizedLineShift; i++) {
+      insertedLines.setElementAt(i, insertionPoint, insertionPoint, 0);
     }
+    segments.insert(insertedLines, changedLineIndex + 1);
+    segments.shiftSegments(changedLineIndex + optimizedLineShift + 1, lengthDiff);
 
     final int oldSegmentEnd = segments.getSegmentEnd(changedLineIndex);
     final int oldSegmentStart = segments.getSegmentStart(changedLineIndex);
@@ -98,7 +98,7 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
     marker.setValid(true);
     RMNode<T> node = (RMNode)super.addInterval(interval, start, end, greedyToLeft, greedyToRight, layer);
 
-    if (DEBUG && node.intervals.size() > DUPLICATE_LIMIT) {
+    if (DEBUG && node.intervalCount() > DUPLICATE_LIMIT) {
       l.readLock().lock();
       try {
         String msg = errMsg(node);
@@ -207,12 +207,11 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
         }
         checkMax(true);
         for (IntervalNode<T> node : affected) {
-          List<Getter<T>> keys = node.intervals;
-          if (keys.isEmpty()) continue; // collected away
+          if (node.intervalCount() == 0) continue; // collected away
 
           RangeMarkerImpl marker = null;
-          for (int i = keys.size() - 1; i >= 0; i--) {
-            Getter<T> key = keys.get(i);
+          for (int i = node.intervalCount() - 1; i >= 0; i--) {
+            Getter<T> key = node.getInterval(i);
             marker = (RangeMarkerImpl)key.get();
             if (marker != null) {
               if (!marker.isValid()) {
@@ -231,8 +230,8 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
             // can change if two range become the one
             if (insertedNode != node) {
               // merge happened
-              for (Getter<T> key : keys) {
-                T interval = key.get();
+              for (int i = 0; i < node.intervalCount(); i++) {
+                T interval = node.getInterval(i).get();
                 if (interval == null) continue;
                 insertedNode.addInterval(interval);
               }
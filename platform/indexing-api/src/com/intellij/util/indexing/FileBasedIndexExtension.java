@@ -74,4 +74,13 @@ public abstract class FileBasedIndexExtension<K, V> {
   public boolean isKeyHighlySelective() {
     return false;
   }
+
+  /**
+   * @return true if the data the indexer produces depends only on the file content, file type and charset and refers to no
+   * local storages (file ids, enumerated names), so that the data built for a file can be reused for equal content in other
+   * installations
+   */
+  public boolean isDataShareable() {
+    return false;
+  }
 }
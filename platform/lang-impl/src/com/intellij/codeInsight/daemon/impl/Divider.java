@@ -29,6 +29,7 @@ import com.intellij.util.containers.Stack;
 import gnu.trove.TIntStack;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -134,4 +135,64 @@ public class Divider {
       }
     }
   }
+
+  /**
+   * Reorders the elements produced by {@link #divideInsideAndOutside} so that the ones closest to the {@code range} come first.
+   * Elements lying entirely before or after the range are grouped into complete subtrees which are ordered by distance from the range,
+   * each subtree keeping its own children-before-parents order. Elements overlapping the range (common parents) go last.
+   */
+  public static void sortByDistanceFromRange(@NotNull List<PsiElement> elements, @NotNull TextRange range) {
+    List<List<PsiElement>> before = new ArrayList<List<PsiElement>>();
+    List<List<PsiElement>> after = new ArrayList<List<PsiElement>>();
+    List<PsiElement> enclosing = new ArrayList<PsiElement>();
+    List<PsiElement> currentBefore = new ArrayList<PsiElement>();
+    List<PsiElement> currentAfter = new ArrayList<PsiElement>();
+    for (PsiElement element : elements) {
+      TextRange elementRange = element.getTextRange();
+      PsiElement parent = element.getParent();
+      TextRange parentRange = parent == null || parent instanceof PsiFile ? null : parent.getTextRange();
+      if (elementRange.getEndOffset() <= range.getStartOffset()) {
+        currentBefore.add(element);
+        if (parentRange == null || parentRange.getEndOffset() > range.getStartOffset()) {
+          before.add(currentBefore);
+          currentBefore = new ArrayList<PsiElement>();
+        }
+      }
+      else if (elementRange.getStartOffset() >= range.getEndOffset()) {
+        currentAfter.add(element);
+        if (parentRange == null || parentRange.getStartOffset() < range.getEndOffset()) {
+          after.add(currentAfter);
+          currentAfter = new ArrayList<PsiElement>();
+        }
+      }
+      else {
+        enclosing.add(element);
+      }
+    }
+    if (!currentBefore.isEmpty()) before.add(currentBefore);
+    if (!currentAfter.isEmpty()) after.add(currentAfter);
+    if (before.isEmpty() && after.isEmpty()) return;
+
+    elements.clear();
+    int b = before.size() - 1;
+    int a = 0;
+    while (b >= 0 || a < after.size()) {
+      boolean takeBefore;
+      if (b < 0) {
+        takeBefore = false;
+      }
+      else if (a == after.size()) {
+        takeBefore = true;
+      }
+      else {
+        List<PsiElement> closestBefore = before.get(b);
+        List<PsiElement> closestAfter = after.get(a);
+        int distanceBefore = range.getStartOffset() - closestBefore.get(closestBefore.size() - 1).getTextRange().getEndOffset();
+        int distanceAfter = closestAfter.get(closestAfter.size() - 1).getTextRange().getStartOffset() - range.getEndOffset();
+        takeBefore = distanceBefore <= distanceAfter;
+      }
+      elements.addAll(takeBefore ? before.get(b--) : after.get(a++));
+    }
+    elements.addAll(enclosing);
+  }
 }
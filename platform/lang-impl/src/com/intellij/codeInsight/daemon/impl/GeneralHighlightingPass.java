@@ -55,6 +55,7 @@ import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.IndexNotReadyException;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.*;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.problems.Problem;
 import com.intellij.problems.WolfTheProblemSolver;
@@ -194,6 +195,9 @@ public class GeneralHighlightingPass extends ProgressableTextEditorHighlightingP
       final HighlightVisitor[] filteredVisitors = filterVisitors(highlightVisitors, myFile);
       Divider.divideInsideAndOutside(myFile, myStartOffset, myEndOffset, myPriorityRange, inside, outside,
                                      HighlightLevelUtil.AnalysisLevel.HIGHLIGHT,false);
+      if (Registry.is("daemon.highlight.from.visible.area.outward")) {
+        Divider.sortByDistanceFromRange(outside, myPriorityRange);
+      }
 
       setProgressLimit((long)(inside.size()+outside.size()));
 
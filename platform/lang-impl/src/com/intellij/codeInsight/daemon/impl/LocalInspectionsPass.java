@@ -50,6 +50,7 @@ import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.Trinity;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.profile.codeInspection.InspectionProjectProfileManager;
 import com.intellij.profile.codeInspection.SeverityProvider;
@@ -210,6 +211,9 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
     List<PsiElement> outside = new ArrayList<PsiElement>();
     Divider.divideInsideAndOutside(myFile, myStartOffset, myEndOffset, myPriorityRange, inside, outside,
                                    HighlightLevelUtil.AnalysisLevel.HIGHLIGHT_AND_INSPECT,true);
+    if (Registry.is("daemon.highlight.from.visible.area.outward")) {
+      Divider.sortByDistanceFromRange(outside, myPriorityRange);
+    }
 
     MultiMap<LocalInspectionToolWrapper, String> tools = getToolsForElements(toolWrappers, checkDumbAwareness, inside, outside);
 
@@ -302,6 +306,8 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
                                             List<LocalInspectionToolWrapper> wrappers, boolean checkDumbAwareness) {
 
     final ArrayList<InspectionContext> init = new ArrayList<InspectionContext>();
+    // elements outside the visible range sorted by the distance from it are worth streaming too, the closest results come first
+    final boolean applyOutsideIncrementally = isOnTheFly && Registry.is("daemon.highlight.from.visible.area.outward");
     List<Map.Entry<LocalInspectionToolWrapper, Collection<String>>> entries = new ArrayList<Map.Entry<LocalInspectionToolWrapper, Collection<String>>>(tools.entrySet());
     boolean result = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(entries, indicator, myFailFastOnAcquireReadAction,
                                                                                new Processor<Map.Entry<LocalInspectionToolWrapper, Collection<String>>>() {
@@ -342,8 +348,7 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
                                                                                      appendDescriptors(myFile, holder.getResults(),
                                                                                                        wrapper);
                                                                                    }
-                                                                                   applyIncrementally[0] =
-                                                                                     false; // do not apply incrementally outside visible range
+                                                                                   applyIncrementally[0] = applyOutsideIncrementally;
                                                                                    return true;
                                                                                  }
                                                                                });
@@ -0,0 +1,496 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.StringUtil;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Computes trigrams required by a regular expression by walking its syntax. For every subexpression either the exact set of
+ * strings it matches is known (literals, small character classes, alternations and concatenations of those), or its possible
+ * prefixes and suffixes together with the trigram query its matches satisfy. Exact sets turn into queries once they grow too
+ * large, so alternations become OR queries and concatenations AND queries over the trigrams spanning their boundaries.
+ * Anything not understood matches any string, which keeps the resulting query a necessary condition.
+ */
+final class RegExpTrigramExtractor {
+  private static final int MAX_SET_SIZE = 16;
+  private static final int MAX_CLASS_SIZE = 8;
+  // longer affixes are not needed: two chars on each side of a concatenation boundary give all trigrams spanning it
+  private static final int MAX_AFFIX_LENGTH = 2;
+
+  private final String myRegExp;
+  private int myPosition;
+
+  private RegExpTrigramExtractor(@NotNull String regexp) {
+    myRegExp = regexp;
+  }
+
+  @NotNull
+  static TrigramQuery extract(@NotNull String regexp) {
+    try {
+      final RegExpTrigramExtractor extractor = new RegExpTrigramExtractor(regexp);
+      final Info info = extractor.parseAlternation();
+      if (extractor.myPosition < regexp.length()) return TrigramQuery.ALL;
+      return info.fold().myMatch;
+    }
+    catch (UnsupportedSyntaxException e) {
+      return TrigramQuery.ALL;
+    }
+  }
+
+  @NotNull
+  private Info parseAlternation() throws UnsupportedSyntaxException {
+    Info result = parseConcatenation();
+    while (consume('|')) {
+      result = alternate(result, parseConcatenation());
+    }
+    return result;
+  }
+
+  @NotNull
+  private Info parseConcatenation() throws UnsupportedSyntaxException {
+    Info result = Info.EMPTY_STRING;
+    while (myPosition < myRegExp.length() && peek() != '|' && peek() != ')') {
+      result = concatenate(result, parseRepetition());
+    }
+    return result;
+  }
+
+  @NotNull
+  private Info parseRepetition() throws UnsupportedSyntaxException {
+    Info result = parseAtom();
+    while (myPosition < myRegExp.length()) {
+      final char c = peek();
+      int min;
+      int max;
+      if (c == '*') {
+        min = 0;
+        max = -1;
+      }
+      else if (c == '+') {
+        min = 1;
+        max = -1;
+      }
+      else if (c == '?') {
+        min = 0;
+        max = 1;
+      }
+      else if (c == '{') {
+        ++myPosition;
+        min = parseNumber();
+        max = min;
+        if (consume(',')) {
+          max = peek() == '}' ? -1 : parseNumber();
+        }
+        if (peek() != '}') throw new UnsupportedSyntaxException();
+      }
+      else {
+        break;
+      }
+      ++myPosition;
+      // reluctant and possessive quantifiers match the same strings
+      if (!consume('?')) consume('+');
+
+      if (min == 0) {
+        result = max == 1 ? alternate(result, Info.EMPTY_STRING) : Info.ANY;
+      }
+      else if (min != 1 || max != 1) {
+        result = result.fold();
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private Info parseAtom() throws UnsupportedSyntaxException {
+    final char c = next();
+    switch (c) {
+      case '(':
+        return parseGroup();
+      case '[':
+        return parseClass();
+      case '.':
+        return Info.ANY;
+      case '^':
+      case '$':
+        return Info.EMPTY_STRING;
+      case '\\':
+        return parseEscape();
+      case '*':
+      case '+':
+      case '?':
+      case '{':
+        throw new UnsupportedSyntaxException();
+      default:
+        return Info.exact(Collections.singleton(String.valueOf(c)));
+    }
+  }
+
+  @NotNull
+  private Info parseGroup() throws UnsupportedSyntaxException {
+    boolean lookaround = false;
+    if (consume('?')) {
+      final char c = next();
+      if (c == '=' || c == '!') {
+        lookaround = true;
+      }
+      else if (c == '<') {
+        if (consume('=') || consume('!')) {
+          lookaround = true;
+        }
+        else {
+          // named group
+          while (next() != '>') ;
+        }
+      }
+      else if (c != ':' && c != '>') {
+        // inline flags, comments mode changes the meaning of white space
+        --myPosition;
+        char flag;
+        while ((flag = next()) != ')' && flag != ':') {
+          if (flag == 'x') throw new UnsupportedSyntaxException();
+        }
+        if (flag == ')') return Info.EMPTY_STRING;
+      }
+    }
+
+    final Info result = parseAlternation();
+    if (next() != ')') throw new UnsupportedSyntaxException();
+    // lookarounds do not consume text
+    return lookaround ? Info.EMPTY_STRING : result;
+  }
+
+  @NotNull
+  private Info parseClass() throws UnsupportedSyntaxException {
+    boolean any = consume('^');
+    final Set<String> chars = new THashSet<String>();
+    boolean first = true;
+    while (true) {
+      final char c = peek();
+      if (c == ']' && !first) {
+        ++myPosition;
+        break;
+      }
+      first = false;
+
+      if (c == '[') {
+        // union with a nested class
+        ++myPosition;
+        final Info nested = parseClass();
+        if (nested.myExact == null) {
+          any = true;
+        }
+        else {
+          chars.addAll(nested.myExact);
+        }
+        continue;
+      }
+      if (c == '&' && myRegExp.startsWith("&&", myPosition)) {
+        myPosition += 2;
+        any = true;
+        continue;
+      }
+
+      final int from = parseClassChar();
+      if (peek() == '-' && myPosition + 1 < myRegExp.length() && myRegExp.charAt(myPosition + 1) != ']') {
+        ++myPosition;
+        final int to = parseClassChar();
+        if (from < 0 || to < 0 || to - from >= MAX_CLASS_SIZE) {
+          any = true;
+        }
+        else {
+          for (int ch = from; ch <= to; ch++) {
+            chars.add(String.valueOf(foldCase((char)ch)));
+          }
+        }
+      }
+      else if (from < 0) {
+        any = true;
+      }
+      else {
+        chars.add(String.valueOf(foldCase((char)from)));
+      }
+    }
+
+    if (any || chars.isEmpty() || chars.size() > MAX_CLASS_SIZE) return Info.ANY;
+    return Info.exact(chars);
+  }
+
+  /**
+   * @return the char or -1 for predefined classes like \w
+   */
+  private int parseClassChar() throws UnsupportedSyntaxException {
+    final char c = next();
+    if (c != '\\') return isSurrogate(c) ? -1 : c;
+    return parseEscapedChar();
+  }
+
+  @NotNull
+  private Info parseEscape() throws UnsupportedSyntaxException {
+    final char c = peek();
+    if (c == 'b' || c == 'B' || c == 'A' || c == 'z' || c == 'Z' || c == 'G') {
+      ++myPosition;
+      return Info.EMPTY_STRING;
+    }
+    if (c == 'Q') {
+      ++myPosition;
+      int end = myRegExp.indexOf("\\E", myPosition);
+      if (end < 0) end = myRegExp.length();
+      final String quoted = myRegExp.substring(myPosition, end);
+      myPosition = Math.min(end + 2, myRegExp.length());
+      return Info.exact(Collections.singleton(quoted));
+    }
+    if (c >= '1' && c <= '9' || c == 'k' || c == 'R' || c == 'X') {
+      // back references and sequences of several chars
+      ++myPosition;
+      if (c == 'k') {
+        while (next() != '>') ;
+      }
+      return Info.ANY;
+    }
+
+    final int ch = parseEscapedChar();
+    return ch < 0 ? Info.ANY : Info.exact(Collections.singleton(String.valueOf((char)ch)));
+  }
+
+  private int parseEscapedChar() throws UnsupportedSyntaxException {
+    final char c = next();
+    switch (c) {
+      case 't':
+        return '\t';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 'f':
+        return '\f';
+      case 'a':
+        return '\u0007';
+      case 'e':
+        return '\u001B';
+      case 'c':
+        return next() ^ 64;
+      case '0': {
+        int value = 0;
+        for (int i = 0; i < 3 && myPosition < myRegExp.length() && peek() >= '0' && peek() <= '7'; i++) {
+          value = value * 8 + next() - '0';
+        }
+        return value;
+      }
+      case 'x':
+        if (consume('{')) {
+          final int end = myRegExp.indexOf('}', myPosition);
+          if (end < 0) throw new UnsupportedSyntaxException();
+          final int codePoint = parseHex(end - myPosition);
+          ++myPosition;
+          return codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT ? codePoint : -1;
+        }
+        return parseHex(2);
+      case 'u': {
+        final int value = parseHex(4);
+        return isSurrogate((char)value) ? -1 : value;
+      }
+      case 'd':
+      case 'D':
+      case 'w':
+      case 'W':
+      case 's':
+      case 'S':
+      case 'h':
+      case 'H':
+      case 'v':
+      case 'V':
+        return -1;
+      case 'p':
+      case 'P':
+        if (consume('{')) {
+          while (next() != '}') ;
+        }
+        else {
+          next();
+        }
+        return -1;
+      default:
+        if (Character.isLetterOrDigit(c)) throw new UnsupportedSyntaxException();
+        return c;
+    }
+  }
+
+  private int parseHex(int digits) throws UnsupportedSyntaxException {
+    if (digits <= 0 || myPosition + digits > myRegExp.length()) throw new UnsupportedSyntaxException();
+    try {
+      final int value = Integer.parseInt(myRegExp.substring(myPosition, myPosition + digits), 16);
+      myPosition += digits;
+      return value;
+    }
+    catch (NumberFormatException e) {
+      throw new UnsupportedSyntaxException();
+    }
+  }
+
+  private int parseNumber() throws UnsupportedSyntaxException {
+    final int start = myPosition;
+    while (myPosition < myRegExp.length() && Character.isDigit(peek())) {
+      ++myPosition;
+    }
+    if (start == myPosition || myPosition - start > 9) throw new UnsupportedSyntaxException();
+    return Integer.parseInt(myRegExp.substring(start, myPosition));
+  }
+
+  private char peek() throws UnsupportedSyntaxException {
+    if (myPosition >= myRegExp.length()) throw new UnsupportedSyntaxException();
+    return myRegExp.charAt(myPosition);
+  }
+
+  private char next() throws UnsupportedSyntaxException {
+    final char c = peek();
+    ++myPosition;
+    return c;
+  }
+
+  private boolean consume(char c) {
+    if (myPosition < myRegExp.length() && myRegExp.charAt(myPosition) == c) {
+      ++myPosition;
+      return true;
+    }
+    return false;
+  }
+
+  private static boolean isSurrogate(char c) {
+    return Character.isHighSurrogate(c) || Character.isLowSurrogate(c);
+  }
+
+  private static char foldCase(char c) {
+    return StringUtil.toLowerCase(StringUtil.toUpperCase(c));
+  }
+
+  @NotNull
+  private static Info concatenate(@NotNull Info info1, @NotNull Info info2) {
+    if (info1.myExact != null && info2.myExact != null && info1.myExact.size() * info2.myExact.size() <= MAX_SET_SIZE) {
+      return Info.exact(cross(info1.myExact, info2.myExact));
+    }
+
+    final Info folded1 = info1.fold();
+    final Info folded2 = info2.fold();
+    TrigramQuery match = TrigramQuery.and(folded1.myMatch, folded2.myMatch);
+    match = TrigramQuery.and(match, trigrams(cross(folded1.mySuffixes, folded2.myPrefixes)));
+
+    final Set<String> prefixes = info1.myExact != null ? limitPrefixes(cross(info1.myExact, folded2.myPrefixes)) : folded1.myPrefixes;
+    final Set<String> suffixes = info2.myExact != null ? limitSuffixes(cross(folded1.mySuffixes, info2.myExact)) : folded2.mySuffixes;
+    return new Info(null, prefixes, suffixes, match);
+  }
+
+  @NotNull
+  private static Info alternate(@NotNull Info info1, @NotNull Info info2) {
+    if (info1.myExact != null && info2.myExact != null) {
+      final Set<String> union = new THashSet<String>(info1.myExact);
+      union.addAll(info2.myExact);
+      if (union.size() <= MAX_SET_SIZE) return Info.exact(union);
+    }
+
+    final Info folded1 = info1.fold();
+    final Info folded2 = info2.fold();
+    final Set<String> prefixes = new THashSet<String>(folded1.myPrefixes);
+    prefixes.addAll(folded2.myPrefixes);
+    final Set<String> suffixes = new THashSet<String>(folded1.mySuffixes);
+    suffixes.addAll(folded2.mySuffixes);
+    return new Info(null, limitPrefixes(prefixes), limitSuffixes(suffixes), TrigramQuery.or(folded1.myMatch, folded2.myMatch));
+  }
+
+  @NotNull
+  private static Set<String> cross(@NotNull Set<String> set1, @NotNull Set<String> set2) {
+    final Set<String> result = new THashSet<String>(set1.size() * set2.size());
+    for (String s1 : set1) {
+      for (String s2 : set2) {
+        result.add(s1 + s2);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private static TrigramQuery trigrams(@NotNull Set<String> strings) {
+    TrigramQuery result = null;
+    for (String s : strings) {
+      final TrigramQuery query = TrigramQuery.forText(s);
+      result = result == null ? query : TrigramQuery.or(result, query);
+    }
+    return result == null ? TrigramQuery.ALL : result;
+  }
+
+  @NotNull
+  private static Set<String> limitPrefixes(@NotNull Set<String> strings) {
+    for (int length = MAX_AFFIX_LENGTH; ; length--) {
+      final Set<String> result = new THashSet<String>();
+      for (String s : strings) {
+        result.add(s.length() > length ? s.substring(0, length) : s);
+      }
+      if (result.size() <= MAX_SET_SIZE) return result;
+    }
+  }
+
+  @NotNull
+  private static Set<String> limitSuffixes(@NotNull Set<String> strings) {
+    for (int length = MAX_AFFIX_LENGTH; ; length--) {
+      final Set<String> result = new THashSet<String>();
+      for (String s : strings) {
+        result.add(s.length() > length ? s.substring(s.length() - length) : s);
+      }
+      if (result.size() <= MAX_SET_SIZE) return result;
+    }
+  }
+
+  private static class Info {
+    private static final Info EMPTY_STRING = exact(Collections.singleton(""));
+    private static final Info ANY = new Info(null, Collections.singleton(""), Collections.singleton(""), TrigramQuery.ALL);
+
+    // all strings the expression matches, null if unknown
+    @Nullable private final Set<String> myExact;
+    // possible starts and ends of matched strings, meaningful only if exact strings are not known
+    private final Set<String> myPrefixes;
+    private final Set<String> mySuffixes;
+    private final TrigramQuery myMatch;
+
+    private Info(@Nullable Set<String> exact, Set<String> prefixes, Set<String> suffixes, @NotNull TrigramQuery match) {
+      myExact = exact;
+      myPrefixes = prefixes;
+      mySuffixes = suffixes;
+      myMatch = match;
+    }
+
+    @NotNull
+    private static Info exact(@NotNull Set<String> strings) {
+      return new Info(strings, null, null, TrigramQuery.ALL);
+    }
+
+    /**
+     * @return the same information with exact strings turned into the query and affixes
+     */
+    @NotNull
+    private Info fold() {
+      if (myExact == null) return this;
+      return new Info(null, limitPrefixes(myExact), limitSuffixes(myExact), trigrams(myExact));
+    }
+  }
+
+  private static class UnsupportedSyntaxException extends Exception {
+  }
+}
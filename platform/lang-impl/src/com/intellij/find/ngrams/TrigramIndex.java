@@ -21,6 +21,7 @@ package com.intellij.find.ngrams;
 
 import com.intellij.openapi.util.text.TrigramBuilder;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.indexing.*;
 import com.intellij.util.io.EnumeratorIntegerDescriptor;
 import com.intellij.util.io.KeyDescriptor;
@@ -31,8 +32,13 @@ import org.jetbrains.annotations.NotNull;
 
 import java.util.Map;
 
+/**
+ * Case folded trigrams of text files, used to find candidate files for plain text and regular expression searches,
+ * see {@link TrigramQuery}. Enabled with <code>-Didea.trigram.index.enabled=true</code>.
+ */
 public class TrigramIndex extends ScalarIndexExtension<Integer> {
-  public static final boolean ENABLED = "true".equals(System.getProperty("idea.internal.trigramindex.enabled"));
+  public static final boolean ENABLED = SystemProperties.getBooleanProperty("idea.trigram.index.enabled", false) ||
+                                        "true".equals(System.getProperty("idea.internal.trigramindex.enabled"));
 
   public static final ID<Integer,Void> INDEX_ID = ID.create("Trigram.Index");
 
@@ -98,6 +104,11 @@ public class TrigramIndex extends ScalarIndexExtension<Integer> {
 
   @Override
   public int getVersion() {
-    return ENABLED ? 2 : 1;
+    return ENABLED ? 3 : 1;
+  }
+
+  @Override
+  public boolean isDataShareable() {
+    return true;
   }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.Processor;
+import com.intellij.util.indexing.FileBasedIndex;
+import gnu.trove.THashSet;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIterator;
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Condition on the trigrams a file must contain to possibly match a search: a file is a candidate if it contains all trigrams
+ * of at least one alternative. Queries are built case-insensitively since {@link TrigramIndex} stores case folded trigrams.
+ */
+public final class TrigramQuery {
+  public static final TrigramQuery ALL = new TrigramQuery(Collections.singletonList(new TIntHashSet()));
+
+  private static final int MAX_ALTERNATIVES = 32;
+
+  @NotNull private final List<TIntHashSet> myAlternatives;
+
+  private TrigramQuery(@NotNull List<TIntHashSet> alternatives) {
+    myAlternatives = alternatives;
+  }
+
+  @NotNull
+  public static TrigramQuery forText(@NotNull CharSequence text) {
+    final TIntHashSet trigrams = TrigramBuilder.buildTrigram(text);
+    return trigrams.isEmpty() ? ALL : new TrigramQuery(Collections.singletonList(trigrams));
+  }
+
+  /**
+   * @return trigrams required by any match of the {@link java.util.regex.Pattern} regular expression, {@link #ALL} if nothing
+   * can be required or the expression is not understood
+   */
+  @NotNull
+  public static TrigramQuery forRegExp(@NotNull String regexp) {
+    return RegExpTrigramExtractor.extract(regexp);
+  }
+
+  public boolean isAll() {
+    for (TIntHashSet alternative : myAlternatives) {
+      if (alternative.isEmpty()) return true;
+    }
+    return false;
+  }
+
+  @NotNull
+  List<TIntHashSet> getAlternatives() {
+    return myAlternatives;
+  }
+
+  @NotNull
+  static TrigramQuery and(@NotNull TrigramQuery query1, @NotNull TrigramQuery query2) {
+    if (query1.isAll()) return query2;
+    if (query2.isAll()) return query1;
+
+    if (query1.myAlternatives.size() * query2.myAlternatives.size() > MAX_ALTERNATIVES) {
+      if (query1.myAlternatives.size() >= query2.myAlternatives.size()) {
+        query1 = query1.weaken();
+      }
+      else {
+        query2 = query2.weaken();
+      }
+    }
+
+    final List<TIntHashSet> alternatives = new ArrayList<TIntHashSet>(query1.myAlternatives.size() * query2.myAlternatives.size());
+    for (TIntHashSet alternative1 : query1.myAlternatives) {
+      for (TIntHashSet alternative2 : query2.myAlternatives) {
+        final TIntHashSet alternative = new TIntHashSet(alternative1.size() + alternative2.size());
+        alternative.addAll(alternative1.toArray());
+        alternative.addAll(alternative2.toArray());
+        alternatives.add(alternative);
+      }
+    }
+    return new TrigramQuery(alternatives);
+  }
+
+  @NotNull
+  static TrigramQuery or(@NotNull TrigramQuery query1, @NotNull TrigramQuery query2) {
+    if (query1.isAll() || query2.isAll()) return ALL;
+
+    final List<TIntHashSet> alternatives = new ArrayList<TIntHashSet>(query1.myAlternatives.size() + query2.myAlternatives.size());
+    alternatives.addAll(query1.myAlternatives);
+    alternatives.addAll(query2.myAlternatives);
+    final TrigramQuery query = new TrigramQuery(alternatives);
+    return alternatives.size() > MAX_ALTERNATIVES ? query.weaken() : query;
+  }
+
+  /**
+   * @return single alternative of the trigrams common to all alternatives, it is satisfied by every file satisfying this query
+   */
+  @NotNull
+  private TrigramQuery weaken() {
+    if (myAlternatives.size() == 1) return this;
+    final TIntHashSet common = new TIntHashSet();
+    myAlternatives.get(0).forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        for (int i = 1; i < myAlternatives.size(); i++) {
+          if (!myAlternatives.get(i).contains(value)) return true;
+        }
+        common.add(value);
+        return true;
+      }
+    });
+    return common.isEmpty() ? ALL : new TrigramQuery(Collections.singletonList(common));
+  }
+
+  /**
+   * Processes files from the scope that satisfy the query, each file once. Should not be called for {@link #ALL}.
+   */
+  public boolean processFiles(@NotNull GlobalSearchScope scope, @NotNull final Processor<VirtualFile> processor) {
+    assert !isAll();
+    final Set<VirtualFile> processed = myAlternatives.size() > 1 ? new THashSet<VirtualFile>() : null;
+    final Processor<VirtualFile> uniqueProcessor = processed == null ? processor : new Processor<VirtualFile>() {
+      @Override
+      public boolean process(VirtualFile file) {
+        return !processed.add(file) || processor.process(file);
+      }
+    };
+    for (TIntHashSet alternative : myAlternatives) {
+      final Set<Integer> keys = new THashSet<Integer>(alternative.size());
+      for (TIntIterator iterator = alternative.iterator(); iterator.hasNext(); ) {
+        keys.add(iterator.next());
+      }
+      if (!FileBasedIndex.getInstance().getFilesWithKey(TrigramIndex.INDEX_ID, keys, uniqueProcessor, scope)) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return myAlternatives.toString();
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.internal;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.PlatformDataKeys;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.indexing.FileBasedIndexImpl;
+import com.intellij.util.indexing.IndexShards;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Exports data of the shareable indices for the selected directory, e.g. a library root, to an index shard
+ *
+ * @see IndexShards
+ */
+public class ExportIndexShardAction extends AnAction {
+  public ExportIndexShardAction() {
+    super("Export Index Shard", "Save data of shareable indices for the selected directory to a shard other installations can import",
+          null);
+  }
+
+  @Override
+  public void actionPerformed(AnActionEvent e) {
+    final Project project = e.getData(PlatformDataKeys.PROJECT);
+    final VirtualFile root = e.getData(PlatformDataKeys.VIRTUAL_FILE);
+    if (project == null || root == null) return;
+
+    final VirtualFileWrapper wrapper = FileChooserFactory.getInstance().createSaveFileDialog(
+      new FileSaverDescriptor("Export Index Shard", "", IndexShards.SHARD_EXTENSION), project).save(null, root.getName());
+    if (wrapper == null) return;
+    final File shardFile = wrapper.getFile();
+
+    ProgressManager.getInstance().run(new Task.Backgroundable(project, "Exporting index shard", true) {
+      private IOException myError;
+
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        try {
+          ((FileBasedIndexImpl)FileBasedIndex.getInstance()).exportIndexShard(project, root, shardFile);
+        }
+        catch (IOException e) {
+          myError = e;
+        }
+      }
+
+      @Override
+      public void onSuccess() {
+        if (myError != null) {
+          Messages.showErrorDialog(project, "Cannot export index shard: " + myError.getMessage(), "Export Index Shard");
+        }
+      }
+    });
+  }
+
+  @Override
+  public void update(AnActionEvent e) {
+    final Project project = e.getData(PlatformDataKeys.PROJECT);
+    final VirtualFile file = e.getData(PlatformDataKeys.VIRTUAL_FILE);
+    e.getPresentation().setEnabled(project != null && file != null && file.isDirectory() && !DumbService.isDumb(project));
+  }
+}
@@ -33,6 +33,8 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
   private ValueContainerImpl<Value> myAdded;
   private TIntHashSet myInvalidated;
   private volatile ValueContainerImpl<Value> myMerged;
+  // data from disk, served to readers until the container is changed, see getReadableData()
+  private volatile ValueContainerView<Value> myView;
   private final Initializer<Value> myInitializer;
 
   public interface Initializer<T> extends Computable<ValueContainer<T>> {
@@ -69,36 +71,76 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
 
   @Override
   public int size() {
-    return getMergedData().size();
+    return getReadableData().size();
   }
 
   @Override
   public Iterator<Value> getValueIterator() {
-    return getMergedData().getValueIterator();
+    return getReadableData().getValueIterator();
   }
 
   @Override
   public List<Value> toValueList() {
-    return getMergedData().toValueList();
+    return getReadableData().toValueList();
   }
 
   @Override
   public boolean isAssociated(final Value value, final int inputId) {
-    return getMergedData().isAssociated(value, inputId);
+    return getReadableData().isAssociated(value, inputId);
   }
 
   @Override
   public IntPredicate getValueAssociationPredicate(Value value) {
-    return getMergedData().getValueAssociationPredicate(value);
+    return getReadableData().getValueAssociationPredicate(value);
   }
 
   @Override
   public IntIterator getInputIdsIterator(final Value value) {
-    return getMergedData().getInputIdsIterator(value);
+    return getReadableData().getInputIdsIterator(value);
+  }
+
+  @Override
+  FileIdSet getInputIdsSet(Value value) {
+    return getReadableData().getInputIdsSet(value);
   }
 
   public void dropMergedData() {
     myMerged = null;
+    myView = null;
+  }
+
+  // unchanged data is read through the view over stored bytes, without materializing input id sets
+  private ValueContainer<Value> getReadableData() {
+    ValueContainerImpl<Value> merged = myMerged;
+    if (merged != null) {
+      return merged;
+    }
+    if (myAdded != null || myInvalidated != null) {
+      return getMergedData();
+    }
+
+    ValueContainerView<Value> view = myView;
+    if (view != null) {
+      return view;
+    }
+    synchronized (myInitializer.getLock()) {
+      merged = myMerged;
+      if (merged != null) {
+        return merged;
+      }
+      view = myView;
+      if (view != null) {
+        return view;
+      }
+
+      final ValueContainer<Value> fromDisk = myInitializer.compute();
+      if (fromDisk instanceof ValueContainerView) {
+        setNeedsCompacting(fromDisk.needsCompacting());
+        myView = (ValueContainerView<Value>)fromDisk;
+        return fromDisk;
+      }
+      return merge(fromDisk);
+    }
   }
 
   // need 'synchronized' to ensure atomic initialization of merged data
@@ -114,40 +156,47 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
         return merged;
       }
 
-      final ValueContainer<Value> fromDisk = myInitializer.compute();
-      final ValueContainerImpl<Value> newMerged;
+      final ValueContainerView<Value> view = myView;
+      return merge(view != null ? view : myInitializer.compute());
+    }
+  }
 
-      if (fromDisk instanceof ValueContainerImpl) {
-        newMerged = ((ValueContainerImpl<Value>)fromDisk).copy();
-      } else {
-        newMerged = ((ChangeTrackingValueContainer<Value>)fromDisk).getMergedData().copy();
-      }
+  private ValueContainerImpl<Value> merge(final ValueContainer<Value> fromDisk) {
+    final ValueContainerImpl<Value> newMerged;
 
-      if (myInvalidated != null) {
-        myInvalidated.forEach(new TIntProcedure() {
-          @Override
-          public boolean execute(int inputId) {
-            newMerged.removeAssociatedValue(inputId);
-            return true;
-          }
-        });
-      }
+    if (fromDisk instanceof ValueContainerImpl) {
+      newMerged = ((ValueContainerImpl<Value>)fromDisk).copy();
+    } else if (fromDisk instanceof ValueContainerView) {
+      newMerged = ((ValueContainerView<Value>)fromDisk).toValueContainerImpl();
+    } else {
+      newMerged = ((ChangeTrackingValueContainer<Value>)fromDisk).getMergedData().copy();
+    }
 
-      if (myAdded != null) {
-        myAdded.forEach(new ContainerAction<Value>() {
-          @Override
-          public boolean perform(final int id, final Value value) {
-            newMerged.removeAssociatedValue(id); // enforcing "one-value-per-file for particular key" invariant
-            newMerged.addValue(id, value);
-            return true;
-          }
-        });
-      }
-      setNeedsCompacting(fromDisk.needsCompacting());
+    if (myInvalidated != null) {
+      myInvalidated.forEach(new TIntProcedure() {
+        @Override
+        public boolean execute(int inputId) {
+          newMerged.removeAssociatedValue(inputId);
+          return true;
+        }
+      });
+    }
 
-      myMerged = newMerged;
-      return newMerged;
+    if (myAdded != null) {
+      myAdded.forEach(new ContainerAction<Value>() {
+        @Override
+        public boolean perform(final int id, final Value value) {
+          newMerged.removeAssociatedValue(id); // enforcing "one-value-per-file for particular key" invariant
+          newMerged.addValue(id, value);
+          return true;
+        }
+      });
     }
+    setNeedsCompacting(fromDisk.needsCompacting());
+
+    myMerged = newMerged;
+    myView = null;
+    return newMerged;
   }
 
   public boolean isDirty() {
@@ -74,6 +74,7 @@ import jsr166e.SequenceLock;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.io.*;
 import java.lang.ref.SoftReference;
@@ -100,6 +101,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private final Set<ID<?, ?>> myNotRequiringContentIndices = new THashSet<ID<?, ?>>();
   private final Set<ID<?, ?>> myRequiringContentIndices = new THashSet<ID<?, ?>>();
   private final Set<FileType> myNoLimitCheckTypes = new THashSet<FileType>();
+  private final Map<ID<?, ?>, FileBasedIndexExtension<?, ?>> myShareableExtensions = new THashMap<ID<?, ?>, FileBasedIndexExtension<?, ?>>();
+  @NotNull private IndexShards myIndexShards = IndexShards.EMPTY;
+  @Nullable private IndexedContentCache myIndexedContents;
 
   private final PerIndexDocumentVersionMap myLastIndexedDocStamps = new PerIndexDocumentVersionMap();
   @NotNull private final ChangedFilesCollector myChangedFilesCollector;
@@ -300,6 +304,12 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       dropUnregisteredIndices();
 
+      myIndexShards = IndexShards.load(System.getProperty(IndexShards.SHARDS_PATH_PROPERTY), myShareableExtensions.values());
+      if (Registry.is("caches.indexedContentCache")) {
+        myIndexedContents = IndexedContentCache.create(new File(PathManager.getIndexRoot(), "indexed.contents"), myShareableExtensions,
+                                                       currentVersionCorrupted);
+      }
+
       // check if rebuild was requested for any index during registration
       for (ID<?, ?> indexId : myIndices.keySet()) {
         if (ourRebuildStatus.get(indexId).compareAndSet(REQUIRES_REBUILD, OK)) {
@@ -406,6 +416,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         }
         else {
           myRequiringContentIndices.add(name);
+          if (extension.isDataShareable()) {
+            myShareableExtensions.put(name, extension);
+          }
         }
         myNoLimitCheckTypes.addAll(extension.getFileTypesWithSizeLimitNotApplicable());
         break;
@@ -513,11 +526,18 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     final Ref<Boolean> isBufferingMode = new Ref<Boolean>(false);
     final TIntObjectHashMap<Collection<K>> tempMap = new TIntObjectHashMap<Collection<K>>();
 
+    // keys of a file are written sorted as deltas, e.g. trigrams of a text file take about 2 bytes instead of 4
+    final boolean integerKeys = keyDescriptor instanceof EnumeratorIntegerDescriptor;
     final DataExternalizer<Collection<K>> dataExternalizer = new DataExternalizer<Collection<K>>() {
       @Override
+      @SuppressWarnings("unchecked")
       public void save(DataOutput out, @NotNull Collection<K> value) throws IOException {
         try {
           DataInputOutputUtil.writeINT(out, value.size());
+          if (integerKeys) {
+            saveIntegerKeys(out, (Collection<Integer>)value);
+            return;
+          }
           for (K key : value) {
             keyDescriptor.save(out, key);
           }
@@ -529,9 +549,13 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       @NotNull
       @Override
+      @SuppressWarnings("unchecked")
       public Collection<K> read(DataInput in) throws IOException {
         try {
           final int size = DataInputOutputUtil.readINT(in);
+          if (integerKeys) {
+            return (Collection<K>)readIntegerKeys(in, size);
+          }
           final List<K> list = new ArrayList<K>(size);
           for (int idx = 0; idx < size; idx++) {
             list.add(keyDescriptor.read(in));
@@ -604,6 +628,32 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return map;
   }
 
+  private static void saveIntegerKeys(@NotNull DataOutput out, @NotNull Collection<Integer> keys) throws IOException {
+    final int[] sorted = new int[keys.size()];
+    int i = 0;
+    for (Integer key : keys) {
+      sorted[i++] = key;
+    }
+    Arrays.sort(sorted);
+    int prev = 0;
+    for (int key : sorted) {
+      // overflowing deltas of negative keys are restored by the same overflow on reading
+      DataInputOutputUtil.writeINT(out, key - prev);
+      prev = key;
+    }
+  }
+
+  @NotNull
+  private static List<Integer> readIntegerKeys(@NotNull DataInput in, int size) throws IOException {
+    final List<Integer> keys = new ArrayList<Integer>(size);
+    int prev = 0;
+    for (int i = 0; i < size; i++) {
+      prev += DataInputOutputUtil.readINT(in);
+      keys.add(prev);
+    }
+    return keys;
+  }
+
   @Override
   public void disposeComponent() {
     performShutdown();
@@ -635,6 +685,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           checkRebuild(indexId, true); // if the index was scheduled for rebuild, only clean it
           index.dispose();
         }
+        if (myIndexedContents != null) {
+          myIndexedContents.dispose();
+        }
 
         myVfManager.removeVirtualFileListener(myChangedFilesCollector);
 
@@ -670,6 +723,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
     if (!HeavyProcessLatch.INSTANCE.isRunning() && modCount == myLocalModCount) { // do not interfere with 'main' jobs
       SerializationManagerEx.getInstanceEx().flushNameStorage();
+      if (myIndexedContents != null) {
+        myIndexedContents.flush();
+      }
     }
   }
 
@@ -973,8 +1029,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                                       @Nullable Condition<V> valueChecker,
                                                       @NotNull final Processor<VirtualFile> processor) {
     ProjectIndexableFilesFilter filesSet = projectIndexableFiles(filter.getProject());
-    final TIntHashSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
-    return set != null && processVirtualFiles(set, filter, processor);
+    final FileIdSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker);
+    return set != null && processVirtualFiles(set, filter, filesSet, processor);
   }
 
   private static final Key<SoftReference<ProjectIndexableFilesFilter>> ourProjectFilesSetKey = Key.create("projectFiles");
@@ -1072,57 +1128,23 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   @Nullable
-  private <K, V> TIntHashSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
-                                                             @NotNull final Collection<K> dataKeys,
-                                                             @NotNull final GlobalSearchScope filter,
-                                                             @Nullable final Condition<V> valueChecker,
-                                                             @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
-    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException> convertor =
-      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException>() {
+  private <K, V> FileIdSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
+                                                           @NotNull final Collection<K> dataKeys,
+                                                           @NotNull final GlobalSearchScope filter,
+                                                           @Nullable final Condition<V> valueChecker) {
+    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, FileIdSet, StorageException> convertor =
+      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, FileIdSet, StorageException>() {
         @Nullable
         @Override
-        public TIntHashSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
-          TIntHashSet mainIntersection = null;
+        public FileIdSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
+          FileIdSet mainIntersection = null;
 
           for (K dataKey : dataKeys) {
             ProgressManager.checkCanceled();
-            final TIntHashSet copy = new TIntHashSet();
-            final ValueContainer<V> container = index.getData(dataKey);
-
-            for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
-              final V value = valueIt.next();
-              if (valueChecker != null && !valueChecker.value(value)) {
-                continue;
-              }
-
-              ValueContainer.IntIterator iterator = container.getInputIdsIterator(value);
-
-              if (mainIntersection == null || iterator.size() < mainIntersection.size()) {
-                while (iterator.hasNext()) {
-                  final int id = iterator.next();
-                  if (mainIntersection == null && (projectFilesFilter == null || projectFilesFilter.contains(id)) ||
-                      mainIntersection != null && mainIntersection.contains(id)
-                    ) {
-                    copy.add(id);
-                  }
-                }
-              }
-              else {
-                mainIntersection.forEach(new TIntProcedure() {
-                  final ValueContainer.IntPredicate predicate = container.getValueAssociationPredicate(value);
-
-                  @Override
-                  public boolean execute(int id) {
-                    if (predicate.contains(id)) copy.add(id);
-                    return true;
-                  }
-                });
-              }
-            }
-
-            mainIntersection = copy;
+            final FileIdSet keyIds = getFileIds(index.getData(dataKey), valueChecker);
+            mainIntersection = mainIntersection == null ? keyIds : FileIdSet.intersect(mainIntersection, keyIds);
             if (mainIntersection.isEmpty()) {
-              return new TIntHashSet();
+              return FileIdSet.EMPTY;
             }
           }
 
@@ -1134,14 +1156,28 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return processExceptions(indexId, null, filter, convertor);
   }
 
-  private static boolean processVirtualFiles(@NotNull TIntHashSet ids,
+  @NotNull
+  private static <V> FileIdSet getFileIds(@NotNull ValueContainer<V> container, @Nullable Condition<V> valueChecker) {
+    final List<FileIdSet> valueIds = new SmartList<FileIdSet>();
+    for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      final V value = valueIt.next();
+      if (valueChecker == null || valueChecker.value(value)) {
+        valueIds.add(container.getInputIdsSet(value));
+      }
+    }
+    return FileIdSet.union(valueIds);
+  }
+
+  private static boolean processVirtualFiles(@NotNull FileIdSet ids,
                                              @NotNull final GlobalSearchScope filter,
+                                             @Nullable final ProjectIndexableFilesFilter projectFilesFilter,
                                              @NotNull final Processor<VirtualFile> processor) {
     final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
     return ids.forEach(new TIntProcedure() {
       @Override
       public boolean execute(int id) {
         ProgressManager.checkCanceled();
+        if (projectFilesFilter != null && !projectFilesFilter.contains(id)) return true;
         VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
         if (file != null && filter.accept(file)) {
           return processor.process(file);
@@ -1175,34 +1211,24 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       try {
         index.getReadLock().lock();
-        final List<TIntHashSet> locals = new ArrayList<TIntHashSet>();
+        final List<FileIdSet> locals = new ArrayList<FileIdSet>();
         for (K dataKey : dataKeys) {
-          TIntHashSet local = new TIntHashSet();
-          locals.add(local);
-          final ValueContainer<V> container = index.getData(dataKey);
-
-          for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
-            final V value = valueIt.next();
-            for (final ValueContainer.IntIterator inputIdsIterator = container.getInputIdsIterator(value); inputIdsIterator.hasNext(); ) {
-              final int id = inputIdsIterator.next();
-              local.add(id);
-            }
-          }
+          locals.add(getFileIds(index.getData(dataKey), null));
         }
 
         if (locals.isEmpty()) {
           return true;
         }
 
-        Collections.sort(locals, new Comparator<TIntHashSet>() {
+        Collections.sort(locals, new Comparator<FileIdSet>() {
           @Override
-          public int compare(TIntHashSet o1, TIntHashSet o2) {
+          public int compare(FileIdSet o1, FileIdSet o2) {
             return o1.size() - o2.size();
           }
         });
 
         final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-        TIntIterator ids = join(locals).iterator();
+        FileIdSet.IdIterator ids = join(locals).iterator();
         ProjectIndexableFilesFilter projectIndexableFilesFilter = projectIndexableFiles(project);
         while (ids.hasNext()) {
           int id = ids.next();
@@ -1235,21 +1261,12 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return true;
   }
 
+  // locals are sorted by size, so each intersection starts from the smallest result
   @NotNull
-  private static TIntHashSet join(@NotNull List<TIntHashSet> locals) {
-    TIntHashSet result = locals.get(0);
-    if (locals.size() > 1) {
-      TIntIterator it = result.iterator();
-
-      while (it.hasNext()) {
-        int id = it.next();
-        for (int i = 1; i < locals.size(); i++) {
-          if (!locals.get(i).contains(id)) {
-            it.remove();
-            break;
-          }
-        }
-      }
+  private static FileIdSet join(@NotNull List<FileIdSet> locals) {
+    FileIdSet result = locals.get(0);
+    for (int i = 1; i < locals.size() && !result.isEmpty(); i++) {
+      result = FileIdSet.intersect(result, locals.get(i));
     }
     return result;
   }
@@ -1640,15 +1657,28 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   public void indexFileContent(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content) {
+    writeIndexedData(Collections.singletonList(indexWithoutWriting(project, content)));
+  }
+
+  /**
+   * Runs indexers of all indices the file should be indexed by. Storages are not touched, so this can be done for many files
+   * in parallel, the result is written by {@link #writeIndexedData}.
+   */
+  @NotNull
+  IndexedFileData indexWithoutWriting(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content) {
     myChangedFilesCollector.ensureAllInvalidateTasksCompleted();
     final VirtualFile file = content.getVirtualFile();
+    final IndexedFileData result = new IndexedFileData(file);
 
     FileTypeManagerImpl.cacheFileType(file, file.getFileType());
     try {
       PsiFile psiFile = null;
       FileContentImpl fc = null;
+      Map<ID<?, ?>, Map<?, ?>> cachedData = null;
+      Map<ID<?, ?>, Map<?, ?>> importedData = null;
+      final boolean reuseData = myIndexedContents != null || !myIndexShards.isEmpty();
       for (final ID<?, ?> indexId : myIndices.keySet()) {
-        if (shouldIndexFile(file, indexId)) {
+        if (shouldIndexFile(file, indexId) && ourRebuildStatus.get(indexId).get() != REQUIRES_REBUILD) {
           if (fc == null) {
             byte[] currentBytes;
             try {
@@ -1670,18 +1700,41 @@ public class FileBasedIndexImpl extends FileBasedIndex {
             fc.putUserData(IndexingDataKeys.PROJECT, project);
           }
 
+          if (reuseData && myShareableExtensions.containsKey(indexId)) {
+            if (result.myContentHash == null) {
+              result.myContentHash = IndexShards.computeContentHash(fc);
+              cachedData = myIndexedContents != null ? myIndexedContents.get(result.myContentHash) : null;
+              if (cachedData == null && !myIndexShards.isEmpty()) {
+                try {
+                  importedData = myIndexShards.getData(result.myContentHash);
+                }
+                catch (IOException e) {
+                  LOG.info(e);
+                }
+              }
+            }
+            if (cachedData != null && cachedData.containsKey(indexId)) {
+              result.myData.put(indexId, cachedData.get(indexId));
+              continue;
+            }
+            if (importedData != null && importedData.containsKey(indexId)) {
+              result.myData.put(indexId, importedData.get(indexId));
+              continue;
+            }
+            result.myHasNewShareableData = true;
+          }
+
           try {
             ProgressManager.checkCanceled();
-            updateSingleIndex(indexId, file, fc);
+            final MapReduceIndex<?, ?, FileContent> index = (MapReduceIndex<?, ?, FileContent>)getIndex(indexId);
+            assert index != null;
+            // nothing is written yet, so indexers may be cancelled, the file is indexed again later
+            result.myData.put(indexId, index.mapInput(fc));
           }
           catch (ProcessCanceledException e) {
             myChangedFilesCollector.scheduleForUpdate(file);
             throw e;
           }
-          catch (StorageException e) {
-            requestRebuild(indexId);
-            LOG.info(e);
-          }
         }
       }
 
@@ -1692,6 +1745,154 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     finally {
       FileTypeManagerImpl.cacheFileType(file, null);
     }
+    return result;
+  }
+
+  /**
+   * Writes indexer results of several files to the storages at once. Files changed since their indexing are scheduled for update
+   * instead.
+   */
+  void writeIndexedData(@NotNull Collection<IndexedFileData> data) {
+    final StorageGuard.Holder lock = setDataBufferingEnabled(false);
+    try {
+      for (final IndexedFileData fileData : data) {
+        final VirtualFile file = fileData.myFile;
+        if (file.getModificationStamp() != fileData.myModificationStamp) {
+          myChangedFilesCollector.scheduleForUpdate(file);
+          continue;
+        }
+
+        final int inputId = Math.abs(getFileId(file));
+        boolean updated = true;
+        for (final Map.Entry<ID<?, ?>, Map<?, ?>> entry : fileData.myData.entrySet()) {
+          final ID<?, ?> indexId = entry.getKey();
+          if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
+            updated = false;
+            continue;
+          }
+          myLocalModCount++;
+
+          final MapReduceIndex index = (MapReduceIndex)getIndex(indexId);
+          assert index != null;
+          final Ref<StorageException> exRef = new Ref<StorageException>(null);
+          ProgressManager.getInstance().executeNonCancelableSection(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                index.updateWithMappedData(inputId, entry.getValue());
+              }
+              catch (StorageException e) {
+                exRef.set(e);
+              }
+            }
+          });
+
+          final StorageException storageException = exRef.get();
+          if (storageException != null) {
+            updated = false;
+            requestRebuild(indexId);
+            LOG.info(storageException);
+          }
+          else {
+            updateIndexingStamp(file, indexId, true);
+          }
+        }
+
+        if (myIndexedContents != null && fileData.myContentHash != null) {
+          if (updated) {
+            final Map<ID<?, ?>, Map<?, ?>> shareableData = new THashMap<ID<?, ?>, Map<?, ?>>();
+            for (Map.Entry<ID<?, ?>, Map<?, ?>> entry : fileData.myData.entrySet()) {
+              if (myShareableExtensions.containsKey(entry.getKey())) {
+                shareableData.put(entry.getKey(), entry.getValue());
+              }
+            }
+            myIndexedContents.associate(inputId, fileData.myContentHash, shareableData, fileData.myHasNewShareableData);
+          }
+          else {
+            // the file is indexed again after the rebuild, it mustn't keep referring to the output of its previous content
+            myIndexedContents.release(inputId);
+          }
+        }
+      }
+    }
+    finally {
+      lock.leave();
+    }
+  }
+
+  /**
+   * Writes data of the shareable indices for the files under the root, e.g. a library root, to the shard file that other
+   * installations can import instead of indexing the same files.
+   *
+   * @see IndexShards
+   */
+  public void exportIndexShard(@Nullable Project project, @NotNull VirtualFile root, @NotNull File shardFile) throws IOException {
+    final IndexShards.Writer writer = new IndexShards.Writer(shardFile, myShareableExtensions.values());
+    try {
+      exportIndexShard(project, root, writer);
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  private void exportIndexShard(@Nullable Project project, @NotNull VirtualFile file, @NotNull IndexShards.Writer writer)
+    throws IOException {
+    if (file.isDirectory()) {
+      for (VirtualFile child : file.getChildren()) {
+        exportIndexShard(project, child, writer);
+      }
+      return;
+    }
+    if (isTooLarge(file)) return;
+
+    final FileContentImpl fc = new FileContentImpl(file, file.contentsToByteArray());
+    fc.putUserData(IndexingDataKeys.PROJECT, project != null ? project : ProjectUtil.guessProjectForFile(file));
+    final byte[] contentHash = IndexShards.computeContentHash(fc);
+    if (writer.contains(contentHash)) return;
+
+    // indexers may look at PSI of the file
+    final Map<ID<?, ?>, Map<?, ?>> data = ApplicationManager.getApplication().runReadAction(new Computable<Map<ID<?, ?>, Map<?, ?>>>() {
+      @Override
+      public Map<ID<?, ?>, Map<?, ?>> compute() {
+        final Map<ID<?, ?>, Map<?, ?>> data = new THashMap<ID<?, ?>, Map<?, ?>>();
+        for (ID<?, ?> indexId : myShareableExtensions.keySet()) {
+          if (getInputFilter(indexId).acceptInput(fc.getFile())) {
+            data.put(indexId, ((MapReduceIndex<?, ?, FileContent>)getIndex(indexId)).mapInput(fc));
+          }
+        }
+        return data;
+      }
+    });
+    writer.add(contentHash, data);
+  }
+
+  @TestOnly
+  @NotNull
+  <K, V> Map<K, V> getIndexedData(@NotNull ID<K, V> indexId, @NotNull VirtualFile file) throws StorageException {
+    final UpdatableIndex<K, V, FileContent> index = getIndex(indexId);
+    return index instanceof MapReduceIndex
+           ? ((MapReduceIndex<K, V, FileContent>)index).getIndexedData(Math.abs(getFileId(file)))
+           : Collections.<K, V>emptyMap();
+  }
+
+  static final class IndexedFileData {
+    @NotNull private final VirtualFile myFile;
+    private final long myModificationStamp;
+    private final Map<ID<?, ?>, Map<?, ?>> myData = new THashMap<ID<?, ?>, Map<?, ?>>();
+    // hash of the content if data of shareable indices was looked up by it
+    @Nullable private byte[] myContentHash;
+    private boolean myHasNewShareableData;
+
+    private IndexedFileData(@NotNull VirtualFile file) {
+      myFile = file;
+      myModificationStamp = file.getModificationStamp();
+    }
+
+    @NotNull
+    VirtualFile getFile() {
+      return myFile;
+    }
   }
 
   private void updateSingleIndex(final ID<?, ?> indexId, @NotNull final VirtualFile file, @Nullable final FileContent currentFC)
@@ -1729,11 +1930,15 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       throw storageException;
     }
 
+    updateIndexingStamp(file, indexId, currentFC != null);
+  }
+
+  private static void updateIndexingStamp(@NotNull final VirtualFile file, @NotNull final ID<?, ?> indexId, final boolean indexed) {
     ApplicationManager.getApplication().runReadAction(new Runnable() {
       @Override
       public void run() {
         if (file.isValid()) {
-          if (currentFC != null) {
+          if (indexed) {
             IndexingStamp.update(file, indexId, IndexInfrastructure.getIndexCreationStamp(indexId));
           }
           else {
@@ -2011,6 +2216,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           }
         }
       }
+      if (myIndexedContents != null) {
+        myIndexedContents.release(Math.abs(getFileId(file)));
+      }
       IndexingStamp.flushCache(file);
       if (unexpectedError != null) {
         LOG.error(unexpectedError);
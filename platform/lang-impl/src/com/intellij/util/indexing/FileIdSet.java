@@ -0,0 +1,298 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.ArrayUtil;
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable ascending set of input ids. Ids are stored as differences between adjacent ids in the variable length format of
+ * {@link com.intellij.util.io.DataInputOutputUtil#writeINT}, the same format input ids have in index storage, so a set can be a view
+ * over the bytes of stored value container. Every {@link #SKIP_INTERVAL}-th id is remembered with its position on demand, so
+ * membership checks decode at most {@link #SKIP_INTERVAL} ids.
+ */
+final class FileIdSet {
+  static final FileIdSet EMPTY = new FileIdSet(ArrayUtil.EMPTY_BYTE_ARRAY, 0, 0);
+
+  private static final int SKIP_INTERVAL = 64;
+  // intersection probes the larger set instead of merging when sizes differ that much
+  private static final int PROBE_SIZE_RATIO = 32;
+
+  @NotNull private final byte[] myBytes;
+  private final int myOffset;
+  private final int mySize;
+  // pairs (id, offset of the next delta) for ids at positions 0, SKIP_INTERVAL, 2 * SKIP_INTERVAL, ...
+  private volatile int[] mySkipTable;
+
+  private FileIdSet(@NotNull byte[] bytes, int offset, int size) {
+    myBytes = bytes;
+    myOffset = offset;
+    mySize = size;
+  }
+
+  /**
+   * @return set over given count of delta encoded ascending ids starting at offset, the bytes are not copied
+   */
+  @NotNull
+  static FileIdSet wrap(@NotNull byte[] bytes, int offset, int count) {
+    return count == 0 ? EMPTY : new FileIdSet(bytes, offset, count);
+  }
+
+  @NotNull
+  static FileIdSet fromUnsorted(@NotNull int[] ids, int count) {
+    if (count == 0) return EMPTY;
+    final int[] sorted = Arrays.copyOf(ids, count);
+    Arrays.sort(sorted);
+    final Builder builder = new Builder(count);
+    for (int id : sorted) {
+      builder.add(id);
+    }
+    return builder.build();
+  }
+
+  int size() {
+    return mySize;
+  }
+
+  boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  @NotNull
+  IdIterator iterator() {
+    return new IdIterator(myOffset, 0, mySize);
+  }
+
+  boolean forEach(@NotNull TIntProcedure procedure) {
+    for (IdIterator iterator = iterator(); iterator.hasNext(); ) {
+      if (!procedure.execute(iterator.next())) return false;
+    }
+    return true;
+  }
+
+  boolean contains(int id) {
+    if (mySize == 0) return false;
+    final int[] skipTable = getSkipTable();
+
+    // last skip entry with id <= given one
+    int low = 0;
+    int high = skipTable.length / 2 - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      if (skipTable[2 * mid] <= id) low = mid + 1;
+      else high = mid - 1;
+    }
+    if (high < 0) return false;
+
+    final int skipId = skipTable[2 * high];
+    if (skipId == id) return true;
+    final int remaining = Math.min(SKIP_INTERVAL - 1, mySize - high * SKIP_INTERVAL - 1);
+    final IdIterator iterator = new IdIterator(skipTable[2 * high + 1], skipId, remaining);
+    while (iterator.hasNext()) {
+      final int next = iterator.next();
+      if (next >= id) return next == id;
+    }
+    return false;
+  }
+
+  private int[] getSkipTable() {
+    int[] skipTable = mySkipTable;
+    if (skipTable == null) {
+      skipTable = new int[2 * ((mySize + SKIP_INTERVAL - 1) / SKIP_INTERVAL)];
+      final IdIterator iterator = iterator();
+      for (int i = 0; iterator.hasNext(); ++i) {
+        final int id = iterator.next();
+        if (i % SKIP_INTERVAL == 0) {
+          skipTable[2 * (i / SKIP_INTERVAL)] = id;
+          skipTable[2 * (i / SKIP_INTERVAL) + 1] = iterator.myPosition;
+        }
+      }
+      mySkipTable = skipTable;
+    }
+    return skipTable;
+  }
+
+  @NotNull
+  static FileIdSet intersect(@NotNull FileIdSet set1, @NotNull FileIdSet set2) {
+    final FileIdSet smaller = set1.mySize <= set2.mySize ? set1 : set2;
+    final FileIdSet larger = smaller == set1 ? set2 : set1;
+    if (smaller.isEmpty()) return EMPTY;
+
+    final Builder builder = new Builder(smaller.mySize);
+    final IdIterator it1 = smaller.iterator();
+    if (larger.mySize / smaller.mySize >= PROBE_SIZE_RATIO) {
+      while (it1.hasNext()) {
+        final int id = it1.next();
+        if (larger.contains(id)) builder.add(id);
+      }
+      return builder.build();
+    }
+
+    final IdIterator it2 = larger.iterator();
+    int id2 = it2.next();
+    while (it1.hasNext()) {
+      final int id1 = it1.next();
+      while (id2 < id1) {
+        if (!it2.hasNext()) return builder.build();
+        id2 = it2.next();
+      }
+      if (id2 == id1) builder.add(id1);
+    }
+    return builder.build();
+  }
+
+  @NotNull
+  static FileIdSet union(@NotNull FileIdSet set1, @NotNull FileIdSet set2) {
+    if (set1.isEmpty()) return set2;
+    if (set2.isEmpty()) return set1;
+
+    final Builder builder = new Builder(set1.mySize + set2.mySize);
+    final IdIterator it1 = set1.iterator();
+    final IdIterator it2 = set2.iterator();
+    int id1 = it1.next();
+    int id2 = it2.next();
+    while (true) {
+      if (id1 <= id2) {
+        builder.add(id1);
+        if (!it1.hasNext()) {
+          builder.add(id2);
+          while (it2.hasNext()) builder.add(it2.next());
+          break;
+        }
+        id1 = it1.next();
+      }
+      else {
+        builder.add(id2);
+        if (!it2.hasNext()) {
+          builder.add(id1);
+          while (it1.hasNext()) builder.add(it1.next());
+          break;
+        }
+        id2 = it2.next();
+      }
+    }
+    return builder.build();
+  }
+
+  @NotNull
+  static FileIdSet union(@NotNull List<FileIdSet> sets) {
+    if (sets.isEmpty()) return EMPTY;
+    if (sets.size() == 1) return sets.get(0);
+    if (sets.size() == 2) return union(sets.get(0), sets.get(1));
+
+    // many small sets, e.g. per file values of stub indices: sort all ids at once instead of merging pairwise
+    int total = 0;
+    for (FileIdSet set : sets) {
+      total += set.mySize;
+    }
+    final int[] ids = new int[total];
+    int count = 0;
+    for (FileIdSet set : sets) {
+      for (IdIterator iterator = set.iterator(); iterator.hasNext(); ) {
+        ids[count++] = iterator.next();
+      }
+    }
+    return fromUnsorted(ids, count);
+  }
+
+  final class IdIterator implements ValueContainer.IntIterator {
+    private int myPosition;
+    private int myPrevious;
+    private int myRemaining;
+
+    private IdIterator(int position, int previous, int remaining) {
+      myPosition = position;
+      myPrevious = previous;
+      myRemaining = remaining;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myRemaining > 0;
+    }
+
+    @Override
+    public int next() {
+      --myRemaining;
+      final byte[] bytes = myBytes;
+      final int val = bytes[myPosition++] & 0xFF;
+      if (val < 192) {
+        return myPrevious += val;
+      }
+
+      int res = val - 192;
+      for (int sh = 6; ; sh += 7) {
+        final int next = bytes[myPosition++] & 0xFF;
+        res |= (next & 0x7F) << sh;
+        if ((next & 0x80) == 0) {
+          return myPrevious += res;
+        }
+      }
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+  }
+
+  static final class Builder {
+    private byte[] myBytes;
+    private int myLength;
+    private int myCount;
+    private int myLast;
+
+    Builder(int expectedSize) {
+      myBytes = new byte[Math.max(16, expectedSize + expectedSize / 2)];
+    }
+
+    /**
+     * Ids should be added in ascending order, repeated ids are ignored.
+     */
+    void add(int id) {
+      if (myCount > 0 && id == myLast) return;
+      assert myCount == 0 || id > myLast : id + " after " + myLast;
+
+      int delta = id - myLast;
+      if (myLength + 5 > myBytes.length) {
+        myBytes = Arrays.copyOf(myBytes, myBytes.length * 2);
+      }
+      if (0 <= delta && delta < 192) {
+        myBytes[myLength++] = (byte)delta;
+      }
+      else {
+        myBytes[myLength++] = (byte)(192 + (delta & 0x3F));
+        delta >>>= 6;
+        while (delta >= 128) {
+          myBytes[myLength++] = (byte)((delta & 0x7F) | 0x80);
+          delta >>>= 7;
+        }
+        myBytes[myLength++] = (byte)delta;
+      }
+      myLast = id;
+      ++myCount;
+    }
+
+    @NotNull
+    FileIdSet build() {
+      return wrap(myBytes, 0, myCount);
+    }
+  }
+}
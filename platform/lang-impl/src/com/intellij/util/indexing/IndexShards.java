@@ -0,0 +1,368 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.UnsyncByteArrayOutputStream;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Pre-built data of shareable indices (see {@link FileBasedIndexExtension#isDataShareable()}) keyed by file content hash instead
+ * of file id, so that a shard built once for a library (e.g. JDK sources) can be imported by other installations instead of
+ * indexing the same files there. Shards are read from the file or the directory given by the {@value #SHARDS_PATH_PROPERTY}
+ * system property.
+ * <p/>
+ * A shard consists of the header with names and versions of its indices, the data of each distinct content, the table of content
+ * hashes with offsets and lengths of their data and, in the last 4 bytes, the offset of the table. Data of an index is imported
+ * only if its version in the shard equals the local one.
+ *
+ * @see FileBasedIndexImpl#exportIndexShard
+ */
+public final class IndexShards {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.IndexShards");
+  @NonNls public static final String SHARDS_PATH_PROPERTY = "idea.index.shards.path";
+  @NonNls public static final String SHARD_EXTENSION = "ishard";
+  private static final int MAGIC = 0x49534844;
+  private static final int FORMAT_VERSION = 2;
+  private static final int HASH_LENGTH = 20;
+
+  static final IndexShards EMPTY = new IndexShards();
+
+  private final Map<ContentHash, Location> myLocations = new THashMap<ContentHash, Location>();
+
+  private IndexShards() {
+  }
+
+  /**
+   * @param path shard file or directory with shard files, nothing is loaded when it is null
+   */
+  @NotNull
+  static IndexShards load(@Nullable String path, @NotNull Collection<FileBasedIndexExtension<?, ?>> extensions) {
+    if (path == null || extensions.isEmpty()) return EMPTY;
+
+    final File source = new File(path);
+    final File[] files = source.isDirectory() ? source.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && SHARD_EXTENSION.equals(FileUtil.getExtension(file.getName()));
+      }
+    }) : new File[]{source};
+    if (files == null) return EMPTY;
+
+    final IndexShards shards = new IndexShards();
+    for (File file : files) {
+      try {
+        shards.loadShard(file, extensions);
+      }
+      catch (IOException e) {
+        LOG.info("Cannot load index shard " + file, e);
+      }
+    }
+    LOG.info("Loaded " + shards.myLocations.size() + " file contents from index shards at " + path);
+    return shards;
+  }
+
+  private void loadShard(@NotNull File file, @NotNull Collection<FileBasedIndexExtension<?, ?>> extensions) throws IOException {
+    final ByteBuffer buffer;
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    }
+    finally {
+      raf.close();
+    }
+
+    if (buffer.limit() < 12 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+      throw new IOException("Not an index shard of format version " + FORMAT_VERSION);
+    }
+    final int tableOffset = buffer.getInt(buffer.limit() - 4);
+
+    final DataInputStream header = new DataInputStream(new BufferInputStream(buffer, 8, tableOffset - 8));
+    final int indexCount = DataInputOutputUtil.readINT(header);
+    final FileBasedIndexExtension<?, ?>[] shardExtensions = new FileBasedIndexExtension<?, ?>[indexCount];
+    boolean anyImported = false;
+    for (int i = 0; i < indexCount; i++) {
+      final String name = header.readUTF();
+      final int version = DataInputOutputUtil.readINT(header);
+      for (FileBasedIndexExtension<?, ?> extension : extensions) {
+        if (extension.getName().toString().equals(name)) {
+          if (extension.getVersion() == version) {
+            shardExtensions[i] = extension;
+            anyImported = true;
+          }
+          else {
+            LOG.info("Index " + name + " of version " + version + " in shard " + file + " is ignored, local version is " +
+                     extension.getVersion());
+          }
+        }
+      }
+    }
+    if (!anyImported) return;
+
+    final Shard shard = new Shard(buffer, shardExtensions);
+    final DataInputStream table = new DataInputStream(new BufferInputStream(buffer, tableOffset, buffer.limit() - 4 - tableOffset));
+    final int contentCount = DataInputOutputUtil.readINT(table);
+    for (int i = 0; i < contentCount; i++) {
+      final byte[] hash = new byte[HASH_LENGTH];
+      table.readFully(hash);
+      final int offset = DataInputOutputUtil.readINT(table);
+      final int length = DataInputOutputUtil.readINT(table);
+      final ContentHash key = new ContentHash(hash);
+      if (!myLocations.containsKey(key)) {
+        myLocations.put(key, new Location(shard, offset, length));
+      }
+    }
+  }
+
+  boolean isEmpty() {
+    return myLocations.isEmpty();
+  }
+
+  /**
+   * @return data of the shard indices which can be imported for the content, null if no shard has the content
+   */
+  @Nullable
+  Map<ID<?, ?>, Map<?, ?>> getData(@NotNull byte[] contentHash) throws IOException {
+    final Location location = myLocations.get(new ContentHash(contentHash));
+    if (location == null) return null;
+
+    final DataInputStream in =
+      new DataInputStream(new BufferInputStream(location.myShard.myBuffer, location.myOffset, location.myLength));
+    final Map<ID<?, ?>, Map<?, ?>> result = new THashMap<ID<?, ?>, Map<?, ?>>();
+    final int count = DataInputOutputUtil.readINT(in);
+    for (int i = 0; i < count; i++) {
+      final int index = DataInputOutputUtil.readINT(in);
+      final int length = DataInputOutputUtil.readINT(in);
+      final FileBasedIndexExtension<?, ?> extension = location.myShard.myExtensions[index];
+      if (extension != null) {
+        result.put(extension.getName(), readData(in, extension));
+      }
+      else if (in.skipBytes(length) != length) {
+        throw new EOFException();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Index data depends on the file type and the charset as well as on the content, so they are hashed too.
+   */
+  @NotNull
+  static byte[] computeContentHash(@NotNull FileContent content) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    final Charset charset = content.getFile().getCharset();
+    digest.update(content.getFileType().getName().getBytes(CharsetToolkit.UTF8_CHARSET));
+    digest.update((byte)0);
+    if (charset != null) {
+      digest.update(charset.name().getBytes(CharsetToolkit.UTF8_CHARSET));
+    }
+    digest.update((byte)0);
+    digest.update(content.getContent());
+    return digest.digest();
+  }
+
+  @NotNull
+  static <K, V> Map<K, V> readData(@NotNull DataInput in, @NotNull FileBasedIndexExtension<K, V> extension) throws IOException {
+    final int size = DataInputOutputUtil.readINT(in);
+    final Map<K, V> data = new THashMap<K, V>(size);
+    for (int i = 0; i < size; i++) {
+      final K key = extension.getKeyDescriptor().read(in);
+      data.put(key, extension.getValueExternalizer().read(in));
+    }
+    return data;
+  }
+
+  static <K, V> void writeData(@NotNull DataOutput out, @NotNull FileBasedIndexExtension<K, V> extension, @NotNull Map<?, ?> data)
+    throws IOException {
+    DataInputOutputUtil.writeINT(out, data.size());
+    //noinspection unchecked
+    for (Map.Entry<K, V> entry : ((Map<K, V>)data).entrySet()) {
+      extension.getKeyDescriptor().save(out, entry.getKey());
+      extension.getValueExternalizer().save(out, entry.getValue());
+    }
+  }
+
+  /**
+   * Writes a shard, data of each distinct content is added once.
+   */
+  static final class Writer {
+    @NotNull private final DataOutputStream myOut;
+    @NotNull private final List<FileBasedIndexExtension<?, ?>> myExtensions;
+    private final Set<ContentHash> myHashes = new THashSet<ContentHash>();
+    private final UnsyncByteArrayOutputStream myTable = new UnsyncByteArrayOutputStream();
+    private final DataOutputStream myTableOut = new DataOutputStream(myTable);
+
+    Writer(@NotNull File file, @NotNull Collection<FileBasedIndexExtension<?, ?>> extensions) throws IOException {
+      myExtensions = new ArrayList<FileBasedIndexExtension<?, ?>>(extensions);
+      myOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      myOut.writeInt(MAGIC);
+      myOut.writeInt(FORMAT_VERSION);
+      DataInputOutputUtil.writeINT(myOut, myExtensions.size());
+      for (FileBasedIndexExtension<?, ?> extension : myExtensions) {
+        myOut.writeUTF(extension.getName().toString());
+        DataInputOutputUtil.writeINT(myOut, extension.getVersion());
+      }
+    }
+
+    boolean contains(@NotNull byte[] contentHash) {
+      return myHashes.contains(new ContentHash(contentHash));
+    }
+
+    void add(@NotNull byte[] contentHash, @NotNull Map<ID<?, ?>, Map<?, ?>> data) throws IOException {
+      assert contentHash.length == HASH_LENGTH;
+      if (!myHashes.add(new ContentHash(contentHash))) return;
+
+      final int offset = myOut.size();
+      int count = 0;
+      for (FileBasedIndexExtension<?, ?> extension : myExtensions) {
+        if (data.containsKey(extension.getName())) ++count;
+      }
+      DataInputOutputUtil.writeINT(myOut, count);
+
+      final UnsyncByteArrayOutputStream indexBytes = new UnsyncByteArrayOutputStream();
+      for (int i = 0; i < myExtensions.size(); i++) {
+        final FileBasedIndexExtension<?, ?> extension = myExtensions.get(i);
+        final Map<?, ?> indexData = data.get(extension.getName());
+        if (indexData == null) continue;
+
+        indexBytes.reset();
+        writeData(new DataOutputStream(indexBytes), extension, indexData);
+        DataInputOutputUtil.writeINT(myOut, i);
+        DataInputOutputUtil.writeINT(myOut, indexBytes.size());
+        indexBytes.writeTo(myOut);
+      }
+
+      myTableOut.write(contentHash);
+      DataInputOutputUtil.writeINT(myTableOut, offset);
+      DataInputOutputUtil.writeINT(myTableOut, myOut.size() - offset);
+    }
+
+    void close() throws IOException {
+      try {
+        final int tableOffset = myOut.size();
+        DataInputOutputUtil.writeINT(myOut, myHashes.size());
+        myTable.writeTo(myOut);
+        myOut.writeInt(tableOffset);
+      }
+      finally {
+        myOut.close();
+      }
+    }
+  }
+
+  private static final class Shard {
+    @NotNull private final ByteBuffer myBuffer;
+    // local extensions by position of the index in the shard header, null for indices which cannot be imported
+    @NotNull private final FileBasedIndexExtension<?, ?>[] myExtensions;
+
+    private Shard(@NotNull ByteBuffer buffer, @NotNull FileBasedIndexExtension<?, ?>[] extensions) {
+      myBuffer = buffer;
+      myExtensions = extensions;
+    }
+  }
+
+  /**
+   * Reads a region of a mapped shard in place. The region is read through a duplicate of the buffer, which has a position and a
+   * limit of its own, so the shard buffer may be read by several threads at once.
+   */
+  private static final class BufferInputStream extends InputStream {
+    @NotNull private final ByteBuffer myBuffer;
+
+    private BufferInputStream(@NotNull ByteBuffer buffer, int offset, int length) throws IOException {
+      if (offset < 0 || length < 0 || offset + length > buffer.limit()) throw new EOFException();
+      myBuffer = buffer.duplicate();
+      myBuffer.position(offset);
+      myBuffer.limit(offset + length);
+    }
+
+    @Override
+    public int read() {
+      return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      if (!myBuffer.hasRemaining()) return -1;
+      final int count = Math.min(len, myBuffer.remaining());
+      myBuffer.get(b, off, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long n) {
+      final int count = (int)Math.max(0, Math.min(n, myBuffer.remaining()));
+      myBuffer.position(myBuffer.position() + count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return myBuffer.remaining();
+    }
+  }
+
+  private static final class Location {
+    @NotNull private final Shard myShard;
+    private final int myOffset;
+    private final int myLength;
+
+    private Location(@NotNull Shard shard, int offset, int length) {
+      myShard = shard;
+      myOffset = offset;
+      myLength = length;
+    }
+  }
+
+  private static final class ContentHash {
+    @NotNull private final byte[] myHash;
+
+    private ContentHash(@NotNull byte[] hash) {
+      myHash = hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof ContentHash && Arrays.equals(myHash, ((ContentHash)o).myHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(myHash);
+    }
+  }
+}
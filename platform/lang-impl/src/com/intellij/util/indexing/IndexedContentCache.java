@@ -0,0 +1,304 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import com.intellij.util.io.UnsyncByteArrayOutputStream;
+import com.intellij.util.io.storage.RefCountingStorage;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Output of the shareable indices (see {@link FileBasedIndexExtension#isDataShareable()}) by content hash, so that a file whose
+ * content was already indexed (vendored copies, generated sources, the same jar under several roots) is indexed without running
+ * the indexers again. The output is stored once per content in a {@link RefCountingStorage}, every file indexed with it holds
+ * a reference to the record until it is reindexed or its data is removed from indices.
+ * <p/>
+ * A record starts with its content hash, since the record id stored for a hash may be reused after the record is released.
+ * Data of an index is reused only if it was stored by the current version of the index.
+ * <p/>
+ * The storages are thread-safe, locks striped by content hash, file id and record id only make the steps of one update atomic:
+ * a content is stored once, a file refers to one record and a record is not acquired while its last reference is released.
+ * A record lock is never held while taking another lock. Reads take no locks, a read of a released or reused record is detected
+ * by its content hash.
+ */
+final class IndexedContentCache {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.IndexedContentCache");
+  private static final int VERSION = 1;
+  private static final int HASH_LENGTH = 20;
+  private static final int LOCKS_COUNT = 64; // power of two
+
+  private static final KeyDescriptor<byte[]> HASH_DESCRIPTOR = new KeyDescriptor<byte[]>() {
+    @Override
+    public void save(DataOutput out, byte[] value) throws IOException {
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(DataInput in) throws IOException {
+      final byte[] hash = new byte[HASH_LENGTH];
+      in.readFully(hash);
+      return hash;
+    }
+
+    @Override
+    public int getHashCode(byte[] value) {
+      return Arrays.hashCode(value);
+    }
+
+    @Override
+    public boolean isEqual(byte[] val1, byte[] val2) {
+      return Arrays.equals(val1, val2);
+    }
+  };
+
+  @NotNull private final Map<ID<?, ?>, FileBasedIndexExtension<?, ?>> myExtensions;
+  @NotNull private final RefCountingStorage myRecords;
+  @NotNull private final PersistentHashMap<byte[], Integer> myHashToRecord;
+  @NotNull private final PersistentHashMap<Integer, Integer> myFileToRecord;
+  private final Object[] myHashLocks = createLocks();
+  private final Object[] myFileLocks = createLocks();
+  private final Object[] myRecordLocks = createLocks();
+
+  private IndexedContentCache(@NotNull File dir, @NotNull Map<ID<?, ?>, FileBasedIndexExtension<?, ?>> extensions) throws IOException {
+    myExtensions = extensions;
+    myRecords = new RefCountingStorage(new File(dir, "records").getPath());
+    try {
+      myHashToRecord = new PersistentHashMap<byte[], Integer>(new File(dir, "hashes"), HASH_DESCRIPTOR, new EnumeratorIntegerDescriptor());
+      myFileToRecord = new PersistentHashMap<Integer, Integer>(new File(dir, "files"), new EnumeratorIntegerDescriptor(),
+                                                               new EnumeratorIntegerDescriptor());
+    }
+    catch (IOException e) {
+      myRecords.dispose();
+      throw e;
+    }
+  }
+
+  /**
+   * @param clean whether to drop the stored output, e.g. since file references to it may be inconsistent
+   */
+  @Nullable
+  static IndexedContentCache create(@NotNull File dir, @NotNull Map<ID<?, ?>, FileBasedIndexExtension<?, ?>> extensions, boolean clean) {
+    if (extensions.isEmpty()) return null;
+
+    for (int attempt = 0; attempt < 2; attempt++) {
+      try {
+        if (clean) {
+          FileUtil.delete(dir);
+        }
+        final IndexedContentCache cache = new IndexedContentCache(dir, extensions);
+        if (clean) {
+          cache.myRecords.setVersion(VERSION);
+        }
+        if (cache.myRecords.getVersion() == VERSION) {
+          return cache;
+        }
+        cache.dispose();
+      }
+      catch (IOException e) {
+        LOG.info(e);
+      }
+      clean = true;
+    }
+    return null;
+  }
+
+  /**
+   * @return output of the shareable indices stored for the content, null if the content was not indexed yet
+   */
+  @Nullable
+  Map<ID<?, ?>, Map<?, ?>> get(@NotNull byte[] contentHash) {
+    try {
+      final Integer record = myHashToRecord.get(contentHash);
+      return record != null ? read(record, contentHash) : null;
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      return null;
+    }
+  }
+
+  /**
+   * Makes the file refer to the output stored for the content, the output is stored anew if any data was built by indexers
+   * rather than taken from {@link #get}.
+   */
+  void associate(int fileId, @NotNull byte[] contentHash, @NotNull Map<ID<?, ?>, Map<?, ?>> data, boolean hasNewData) {
+    try {
+      int record;
+      synchronized (myHashLocks[contentHash[0] & (LOCKS_COUNT - 1)]) {
+        final Integer storedRecord = hasNewData ? null : myHashToRecord.get(contentHash);
+        if (storedRecord == null || !acquireIfHasContent(storedRecord, contentHash)) {
+          record = myRecords.acquireNewRecord();
+          write(record, contentHash, data);
+          myHashToRecord.put(contentHash, record);
+        }
+        else {
+          record = storedRecord;
+        }
+      }
+
+      final Integer oldRecord;
+      synchronized (myFileLocks[fileId & (LOCKS_COUNT - 1)]) {
+        oldRecord = myFileToRecord.get(fileId);
+        myFileToRecord.put(fileId, record);
+      }
+      if (oldRecord != null) {
+        releaseRecord(oldRecord);
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  void release(int fileId) {
+    try {
+      final Integer record;
+      synchronized (myFileLocks[fileId & (LOCKS_COUNT - 1)]) {
+        record = myFileToRecord.get(fileId);
+        if (record != null) {
+          myFileToRecord.remove(fileId);
+        }
+      }
+      if (record != null) {
+        releaseRecord(record);
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  void flush() {
+    myRecords.force();
+    myHashToRecord.force();
+    myFileToRecord.force();
+  }
+
+  void dispose() {
+    myRecords.dispose();
+    try {
+      myHashToRecord.close();
+      myFileToRecord.close();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  private static Object[] createLocks() {
+    final Object[] locks = new Object[LOCKS_COUNT];
+    for (int i = 0; i < LOCKS_COUNT; i++) {
+      locks[i] = new Object();
+    }
+    return locks;
+  }
+
+  private boolean acquireIfHasContent(int record, @NotNull byte[] contentHash) throws IOException {
+    // a released record is cleaned when it is reused, so the hash check fails until the new content is written
+    synchronized (myRecordLocks[record & (LOCKS_COUNT - 1)]) {
+      if (myRecords.getRefCount(record) <= 0) return false;
+      final DataInputStream in = myRecords.readStream(record);
+      try {
+        if (!startsWithHash(in, contentHash)) return false;
+      }
+      finally {
+        in.close();
+      }
+      myRecords.acquireRecord(record);
+      return true;
+    }
+  }
+
+  private void releaseRecord(int record) throws IOException {
+    synchronized (myRecordLocks[record & (LOCKS_COUNT - 1)]) {
+      myRecords.releaseRecord(record);
+    }
+  }
+
+  private static boolean startsWithHash(@NotNull DataInputStream in, @NotNull byte[] contentHash) throws IOException {
+    return in.available() >= HASH_LENGTH && Arrays.equals(contentHash, HASH_DESCRIPTOR.read(in));
+  }
+
+  @Nullable
+  private Map<ID<?, ?>, Map<?, ?>> read(int record, @NotNull byte[] contentHash) throws IOException {
+    if (myRecords.getRefCount(record) <= 0) return null;
+
+    final DataInputStream in = myRecords.readStream(record);
+    try {
+      if (!startsWithHash(in, contentHash)) return null;
+
+      final Map<ID<?, ?>, Map<?, ?>> result = new THashMap<ID<?, ?>, Map<?, ?>>();
+      final int count = DataInputOutputUtil.readINT(in);
+      for (int i = 0; i < count; i++) {
+        final ID<?, ?> indexId = ID.findById(DataInputOutputUtil.readINT(in));
+        final int version = DataInputOutputUtil.readINT(in);
+        final int length = DataInputOutputUtil.readINT(in);
+        final FileBasedIndexExtension<?, ?> extension = indexId != null ? myExtensions.get(indexId) : null;
+        if (extension != null && extension.getVersion() == version) {
+          result.put(indexId, IndexShards.readData(in, extension));
+        }
+        else if (in.skipBytes(length) != length) {
+          throw new EOFException();
+        }
+      }
+      return result;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private void write(int record, @NotNull byte[] contentHash, @NotNull Map<ID<?, ?>, Map<?, ?>> data) throws IOException {
+    final BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.write(contentHash);
+
+    int count = 0;
+    for (ID<?, ?> indexId : data.keySet()) {
+      if (myExtensions.containsKey(indexId)) ++count;
+    }
+    DataInputOutputUtil.writeINT(out, count);
+
+    final UnsyncByteArrayOutputStream indexBytes = new UnsyncByteArrayOutputStream();
+    for (Map.Entry<ID<?, ?>, Map<?, ?>> entry : data.entrySet()) {
+      final FileBasedIndexExtension<?, ?> extension = myExtensions.get(entry.getKey());
+      if (extension == null) continue;
+
+      indexBytes.reset();
+      IndexShards.writeData(new DataOutputStream(indexBytes), extension, entry.getValue());
+      DataInputOutputUtil.writeINT(out, entry.getKey().getUniqueId());
+      DataInputOutputUtil.writeINT(out, extension.getVersion());
+      DataInputOutputUtil.writeINT(out, indexBytes.size());
+      indexBytes.writeTo(out);
+    }
+    out.close();
+
+    myRecords.writeBytes(record, new ByteSequence(bytes.getInternalBuffer(), 0, bytes.size()), false);
+  }
+}
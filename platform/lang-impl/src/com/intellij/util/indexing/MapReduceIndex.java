@@ -27,6 +27,7 @@ import gnu.trove.THashMap;
 import gnu.trove.TObjectObjectProcedure;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.io.File;
 import java.io.IOException;
@@ -186,6 +187,39 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     }
   }
 
+  /**
+   * @return keys and values the input is currently associated with in the storage
+   */
+  @TestOnly
+  @NotNull
+  public Map<Key, Value> getIndexedData(final int inputId) throws StorageException {
+    final Map<Key, Value> result = new HashMap<Key, Value>();
+    final Lock lock = getReadLock();
+    try {
+      lock.lock();
+      final Collection<Key> keys = myInputsIndex != null ? myInputsIndex.get(inputId) : null;
+      if (keys != null) {
+        for (Key key : keys) {
+          final ValueContainer<Value> container = myStorage.read(key);
+          for (Iterator<Value> iterator = container.getValueIterator(); iterator.hasNext(); ) {
+            final Value value = iterator.next();
+            if (container.isAssociated(value, inputId)) {
+              result.put(key, value);
+              break;
+            }
+          }
+        }
+      }
+      return result;
+    }
+    catch (IOException e) {
+      throw new StorageException(e);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
   public void setInputIdToDataKeysIndex(Factory<PersistentHashMap<Integer, Collection<Key>>> factory) throws IOException {
     myInputsIndexFactory = factory;
     myInputsIndex = createInputsIndex();
@@ -210,9 +244,19 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
 
   @Override
   public final void update(final int inputId, @Nullable Input content) throws StorageException {
-    assert myInputsIndex != null;
+    updateWithMappedData(inputId, mapInput(content));
+  }
 
-    final Map<Key, Value> data = content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
+  /**
+   * Runs the indexer without touching the storage, the result is written by {@link #updateWithMappedData}.
+   */
+  @NotNull
+  public Map<Key, Value> mapInput(@Nullable Input content) {
+    return content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
+  }
+
+  public void updateWithMappedData(final int inputId, @NotNull Map<Key, Value> data) throws StorageException {
+    assert myInputsIndex != null;
 
     updateWithMap(inputId, data, new Callable<Collection<Key>>() {
       @Override
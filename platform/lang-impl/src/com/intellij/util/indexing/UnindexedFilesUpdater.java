@@ -21,24 +21,42 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.CollectingContentIterator;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * In pipelined mode (registry key caches.pipelinedIndexing) indexing threads only run indexers over the contents prefetched by
+ * {@link com.intellij.openapi.project.FileContentQueue} and queue the results. Writing to the storages is one stage: the thread that
+ * finds it free writes a batch of queued results for everybody, the others go on indexing unless writing falls behind.
+ *
  * @author Eugene Zhuravlev
  * @since Jan 29, 2008
  */
 public class UnindexedFilesUpdater implements CacheUpdater {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.UnindexedFilesUpdater");
+  private static final int WRITE_BATCH_SIZE = 32;
+  private static final int MAX_PENDING_WRITES = 4 * WRITE_BATCH_SIZE;
 
   private final FileBasedIndexImpl myIndex;
   private final Project myProject;
   private final AtomicBoolean myFinishedUpdate = new AtomicBoolean();
   private long myStarted;
 
+  private final boolean myPipelined = Registry.is("caches.pipelinedIndexing");
+  private final Queue<FileBasedIndexImpl.IndexedFileData> myPendingWrites = new ConcurrentLinkedQueue<FileBasedIndexImpl.IndexedFileData>();
+  private final AtomicInteger myPendingWritesCount = new AtomicInteger();
+  private final Lock myWriteLock = new ReentrantLock();
+
   public UnindexedFilesUpdater(final Project project, FileBasedIndexImpl index) {
     myIndex = index;
     myProject = project;
@@ -65,12 +83,58 @@ public class UnindexedFilesUpdater implements CacheUpdater {
 
   @Override
   public void processFile(final FileContent fileContent) {
-    myIndex.indexFileContent(myProject, fileContent);
-    IndexingStamp.flushCache(fileContent.getVirtualFile());
+    if (!myPipelined) {
+      myIndex.indexFileContent(myProject, fileContent);
+      IndexingStamp.flushCache(fileContent.getVirtualFile());
+      return;
+    }
+
+    myPendingWrites.add(myIndex.indexWithoutWriting(myProject, fileContent));
+    final int pending = myPendingWritesCount.incrementAndGet();
+    if (pending >= MAX_PENDING_WRITES) {
+      myWriteLock.lock();
+    }
+    else if (pending < WRITE_BATCH_SIZE || !myWriteLock.tryLock()) {
+      return;
+    }
+    try {
+      writePendingData(false);
+    }
+    finally {
+      myWriteLock.unlock();
+    }
+  }
+
+  private void writePendingData(boolean all) {
+    while (all || myPendingWritesCount.get() >= WRITE_BATCH_SIZE) {
+      final List<FileBasedIndexImpl.IndexedFileData> batch = new ArrayList<FileBasedIndexImpl.IndexedFileData>(WRITE_BATCH_SIZE);
+      FileBasedIndexImpl.IndexedFileData data;
+      while (batch.size() < WRITE_BATCH_SIZE && (data = myPendingWrites.poll()) != null) {
+        batch.add(data);
+      }
+      if (batch.isEmpty()) return;
+      myPendingWritesCount.addAndGet(-batch.size());
+
+      myIndex.writeIndexedData(batch);
+      for (FileBasedIndexImpl.IndexedFileData fileData : batch) {
+        IndexingStamp.flushCache(fileData.getFile());
+      }
+    }
+  }
+
+  private void writeAllPendingData() {
+    myWriteLock.lock();
+    try {
+      writePendingData(true);
+    }
+    finally {
+      myWriteLock.unlock();
+    }
   }
 
   @Override
   public void updatingDone() {
+    writeAllPendingData();
     if (myFinishedUpdate.compareAndSet(false, true)) {
       myIndex.filesUpdateFinished();
       LOG.info("Unindexed files update done in " + (System.currentTimeMillis() - myStarted) + " ms");
@@ -79,6 +143,8 @@ public class UnindexedFilesUpdater implements CacheUpdater {
 
   @Override
   public void canceled() {
+    // indexed files are written anyway, otherwise they would be indexed again
+    writeAllPendingData();
     if (myFinishedUpdate.compareAndSet(false, true)) {
       myIndex.filesUpdateFinished();
       LOG.info("Unindexed files update canceled");
@@ -16,6 +16,8 @@
 
 package com.intellij.util.indexing;
 
+import com.intellij.util.ArrayUtil;
+
 import java.util.Iterator;
 import java.util.List;
 
@@ -48,6 +50,20 @@ public abstract class ValueContainer<Value> {
 
   public abstract int size();
 
+  /**
+   * @return ascending set of input ids associated with the value
+   */
+  FileIdSet getInputIdsSet(Value value) {
+    final IntIterator iterator = getInputIdsIterator(value);
+    int[] ids = new int[iterator.size()];
+    int count = 0;
+    while (iterator.hasNext()) {
+      if (count == ids.length) ids = ArrayUtil.realloc(ids, Math.max(4, count * 2));
+      ids[count++] = iterator.next();
+    }
+    return FileIdSet.fromUnsorted(ids, count);
+  }
+
 
   public interface ContainerAction<T> {
     boolean perform(int id, T value);
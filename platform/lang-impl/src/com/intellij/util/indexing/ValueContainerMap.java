@@ -1,12 +1,14 @@
 package com.intellij.util.indexing;
 
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
 import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -63,6 +65,11 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
     }
   }
 
+  @Override
+  protected ValueContainer<Value> readValue(@NotNull byte[] bytes) throws IOException {
+    return new ValueContainerView<Value>(bytes, myValueContainerExternalizer.myExternalizer);
+  }
+
   private static final class ValueContainerExternalizer<T> implements DataExternalizer<ValueContainer<T>> {
     @NotNull private final DataExternalizer<T> myExternalizer;
 
@@ -87,11 +94,7 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
         if (ids != null) {
-          DataInputOutputUtil.writeSINT(out, ids.size());
-          while (ids.hasNext()) {
-            final int id = ids.next();
-            DataInputOutputUtil.writeSINT(out, id);
-          }
+          saveIds(out, ids);
         }
         else {
           DataInputOutputUtil.writeSINT(out, 0);
@@ -99,6 +102,24 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
       }
     }
 
+    // ids are sorted and stored as differences between adjacent ids, see FileIdSet
+    private static void saveIds(final DataOutput out, final ValueContainer.IntIterator ids) throws IOException {
+      int[] sorted = new int[ids.size()];
+      int count = 0;
+      while (ids.hasNext()) {
+        if (count == sorted.length) sorted = ArrayUtil.realloc(sorted, Math.max(4, count * 2));
+        sorted[count++] = ids.next();
+      }
+      Arrays.sort(sorted, 0, count);
+
+      DataInputOutputUtil.writeSINT(out, count);
+      int prev = 0;
+      for (int i = 0; i < count; i++) {
+        DataInputOutputUtil.writeINT(out, sorted[i] - prev);
+        prev = sorted[i];
+      }
+    }
+
     @NotNull
     @Override
     public ValueContainerImpl<T> read(final DataInput in) throws IOException {
@@ -115,8 +136,9 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
+            int id = 0;
             for (int i = 0; i < idCount; i++) {
-              final int id = DataInputOutputUtil.readSINT(in);
+              id += DataInputOutputUtil.readINT(in);
               valueContainer.addValue(id, value);
             }
           }
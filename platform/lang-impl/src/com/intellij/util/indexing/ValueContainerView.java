@@ -0,0 +1,318 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.Comparing;
+import com.intellij.util.SmartList;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import gnu.trove.THashMap;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIntHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Read only container over the bytes of value container record as they are stored in {@link ValueContainerMap}.
+ * Values are decoded once, input ids are decoded from the record on each iteration instead of being collected into sets, so
+ * querying files for a common key does not allocate memory proportional to the number of files.
+ *
+ * @see ChangeTrackingValueContainer
+ */
+class ValueContainerView<Value> extends ValueContainer<Value> {
+  private static final int LINEAR_LOOKUP_LIMIT = 8;
+  private static final Object NULL_VALUE = new Object();
+
+  @NotNull private final byte[] myBytes;
+  private final List<Value> myValues = new ArrayList<Value>(1);
+  // lookup for records with many values (e.g. per-file values of stub indices)
+  @Nullable private THashMap<Object, Integer> myValueIndices;
+  // triples (value index, offset of the first input id, input ids count) per chunk of ids in the record
+  private final TIntArrayList myChunks = new TIntArrayList(3);
+  // input id -> offset of the last invalidation command for it, ids written before are removed
+  @Nullable private TIntIntHashMap myInvalidations;
+  private final int[] myLiveIdCounts;
+  private final int mySize;
+
+  ValueContainerView(@NotNull byte[] bytes, @NotNull DataExternalizer<Value> externalizer) throws IOException {
+    myBytes = bytes;
+
+    final DataInputStream stream = new DataInputStream(new UnsyncByteArrayInputStream(bytes));
+    while (stream.available() > 0) {
+      final int valueCount = DataInputOutputUtil.readSINT(stream);
+      if (valueCount < 0) {
+        if (myInvalidations == null) myInvalidations = new TIntIntHashMap();
+        myInvalidations.put(-valueCount, bytes.length - stream.available());
+        setNeedsCompacting(true);
+      }
+      else {
+        for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
+          final Value value = externalizer.read(stream);
+          final int idCount = DataInputOutputUtil.readSINT(stream);
+          myChunks.add(getOrAddValueIndex(value));
+          myChunks.add(bytes.length - stream.available());
+          myChunks.add(idCount);
+          for (int i = 0; i < idCount; i++) {
+            DataInputOutputUtil.readINT(stream);
+          }
+        }
+      }
+    }
+
+    myLiveIdCounts = new int[myValues.size()];
+    for (int chunk = 0; chunk < myChunks.size(); chunk += 3) {
+      final int valueIndex = myChunks.getQuick(chunk);
+      if (myInvalidations == null) {
+        myLiveIdCounts[valueIndex] += myChunks.getQuick(chunk + 2);
+      }
+      else {
+        for (IdsIterator it = new IdsIterator(valueIndex, chunk); it.hasNext(); it.next()) {
+          ++myLiveIdCounts[valueIndex];
+        }
+      }
+    }
+    int size = 0;
+    for (int count : myLiveIdCounts) {
+      if (count > 0) ++size;
+    }
+    mySize = size;
+  }
+
+  private int getOrAddValueIndex(Value value) {
+    final Object key = value != null ? value : NULL_VALUE;
+    if (myValueIndices != null) {
+      final Integer index = myValueIndices.get(key);
+      if (index != null) return index;
+    }
+    else {
+      final int index = indexOfLinear(value);
+      if (index >= 0) return index;
+    }
+
+    final int index = myValues.size();
+    myValues.add(value);
+    if (myValueIndices != null) {
+      myValueIndices.put(key, index);
+    }
+    else if (myValues.size() > LINEAR_LOOKUP_LIMIT) {
+      myValueIndices = new THashMap<Object, Integer>();
+      for (int i = 0; i < myValues.size(); i++) {
+        final Value v = myValues.get(i);
+        myValueIndices.put(v != null ? v : NULL_VALUE, i);
+      }
+    }
+    return index;
+  }
+
+  private int indexOfLinear(Value value) {
+    for (int i = 0; i < myValues.size(); i++) {
+      if (Comparing.equal(myValues.get(i), value)) return i;
+    }
+    return -1;
+  }
+
+  private int indexOf(Value value) {
+    if (myValueIndices != null) {
+      final Integer index = myValueIndices.get(value != null ? value : NULL_VALUE);
+      return index != null ? index : -1;
+    }
+    return indexOfLinear(value);
+  }
+
+  @Override
+  public IntIterator getInputIdsIterator(Value value) {
+    final int index = indexOf(value);
+    if (index < 0 || myLiveIdCounts[index] == 0) return ValueContainerImpl.EMPTY_ITERATOR;
+    return new IdsIterator(index, -1);
+  }
+
+  @Override
+  public boolean isAssociated(Value value, int inputId) {
+    final int index = indexOf(value);
+    if (index < 0) return false;
+    for (IdsIterator it = new IdsIterator(index, -1); it.hasNext(); ) {
+      if (it.next() == inputId) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public IntPredicate getValueAssociationPredicate(Value value) {
+    final int index = indexOf(value);
+    final TIntHashSet ids = new TIntHashSet(index >= 0 ? myLiveIdCounts[index] : 0);
+    if (index >= 0) {
+      for (IdsIterator it = new IdsIterator(index, -1); it.hasNext(); ) {
+        ids.add(it.next());
+      }
+    }
+    return new IntPredicate() {
+      @Override
+      boolean contains(int id) {
+        return ids.contains(id);
+      }
+    };
+  }
+
+  @Override
+  public Iterator<Value> getValueIterator() {
+    return new Iterator<Value>() {
+      private int myIndex = nextLive(0);
+
+      @Override
+      public boolean hasNext() {
+        return myIndex < myValues.size();
+      }
+
+      @Override
+      public Value next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final Value value = myValues.get(myIndex);
+        myIndex = nextLive(myIndex + 1);
+        return value;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private int nextLive(int index) {
+    while (index < myLiveIdCounts.length && myLiveIdCounts[index] == 0) ++index;
+    return index;
+  }
+
+  @Override
+  public List<Value> toValueList() {
+    final List<Value> values = new ArrayList<Value>(mySize);
+    for (Iterator<Value> iterator = getValueIterator(); iterator.hasNext(); ) {
+      values.add(iterator.next());
+    }
+    return values;
+  }
+
+  @Override
+  public int size() {
+    return mySize;
+  }
+
+  @NotNull
+  ValueContainerImpl<Value> toValueContainerImpl() {
+    final ValueContainerImpl<Value> container = new ValueContainerImpl<Value>();
+    forEach(new ContainerAction<Value>() {
+      @Override
+      public boolean perform(int id, Value value) {
+        container.addValue(id, value);
+        return true;
+      }
+    });
+    container.setNeedsCompacting(needsCompacting());
+    return container;
+  }
+
+  @Override
+  FileIdSet getInputIdsSet(Value value) {
+    final int index = indexOf(value);
+    if (index < 0 || myLiveIdCounts[index] == 0) return FileIdSet.EMPTY;
+    if (myInvalidations != null) return super.getInputIdsSet(value);
+
+    // ids of each chunk are already sorted in the record
+    final List<FileIdSet> chunkSets = new SmartList<FileIdSet>();
+    for (int chunk = 0; chunk < myChunks.size(); chunk += 3) {
+      if (myChunks.getQuick(chunk) == index) {
+        chunkSets.add(getChunkIds(chunk));
+      }
+    }
+    return FileIdSet.union(chunkSets);
+  }
+
+  private FileIdSet getChunkIds(int chunk) {
+    return FileIdSet.wrap(myBytes, myChunks.getQuick(chunk + 1), myChunks.getQuick(chunk + 2));
+  }
+
+  /**
+   * Iterates over input ids of all chunks of the value, or only of the given chunk, skipping ids invalidated later in the record.
+   */
+  private class IdsIterator implements IntIterator {
+    private final int myValueIndex;
+    private final int mySingleChunk;
+    private int myChunk;
+    private FileIdSet.IdIterator myChunkIds;
+    private int myNext;
+    private boolean myHasNext;
+
+    private IdsIterator(int valueIndex, int singleChunk) {
+      myValueIndex = valueIndex;
+      mySingleChunk = singleChunk;
+      myChunk = singleChunk >= 0 ? singleChunk : -3;
+      if (singleChunk >= 0) {
+        myChunkIds = getChunkIds(singleChunk).iterator();
+      }
+      advance();
+    }
+
+    private void advance() {
+      while (true) {
+        while (myChunkIds == null || !myChunkIds.hasNext()) {
+          if (mySingleChunk >= 0 || !nextChunk()) {
+            myHasNext = false;
+            return;
+          }
+        }
+        final int id = myChunkIds.next();
+        if (myInvalidations == null || myInvalidations.get(id) < myChunks.getQuick(myChunk + 1)) {
+          myNext = id;
+          myHasNext = true;
+          return;
+        }
+      }
+    }
+
+    private boolean nextChunk() {
+      for (myChunk += 3; myChunk < myChunks.size(); myChunk += 3) {
+        if (myChunks.getQuick(myChunk) == myValueIndex) {
+          myChunkIds = getChunkIds(myChunk).iterator();
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myHasNext;
+    }
+
+    @Override
+    public int next() {
+      final int next = myNext;
+      advance();
+      return next;
+    }
+
+    @Override
+    public int size() {
+      return myLiveIdCounts[myValueIndex];
+    }
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2000-2011 JetBrains s.r.o.
+ * Copyright 2000-2013 JetBrains s.r.o.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,11 +15,16 @@
  */
 package com.intellij.openapi.editor.ex.util;
 
+import com.intellij.lang.Language;
 import com.intellij.lexer.Lexer;
+import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.HighlighterColors;
+import com.intellij.openapi.editor.VisualPosition;
 import com.intellij.openapi.editor.colors.EditorColorsScheme;
 import com.intellij.openapi.editor.colors.TextAttributesKey;
 import com.intellij.openapi.editor.event.DocumentEvent;
@@ -28,23 +33,44 @@ import com.intellij.openapi.editor.ex.PrioritizedDocumentListener;
 import com.intellij.openapi.editor.highlighter.EditorHighlighter;
 import com.intellij.openapi.editor.highlighter.HighlighterClient;
 import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.impl.DocumentImpl;
 import com.intellij.openapi.editor.impl.EditorDocumentPriorities;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.fileTypes.PlainSyntaxHighlighter;
 import com.intellij.openapi.fileTypes.SyntaxHighlighter;
 import com.intellij.openapi.project.DumbAwareRunnable;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.ui.UIUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
+import java.awt.*;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Keeps the lexer tokens of the whole document and relexes the changed part on every document change.
+ * <p/>
+ * When a change affects the lexer state of the rest of a big document (e.g. an unclosed comment is typed or a bulk change is
+ * finished), relexing is done synchronously only up to the end of the visible area and then while the
+ * {@link #getRelexingTimeBudget() time budget} lasts. The rest of the document is covered by a {@link #NOT_LEXED} token and
+ * relexed in background against a snapshot of the document text; the result is merged if the document hasn't changed since.
+ * Off by default: {@link HighlighterIterator} users such as brace matching see the {@link #NOT_LEXED} token instead of the real ones
+ * until relexing is finished.
+ */
 public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDocumentListener {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.ex.util.LexerEditorHighlighter");
+  /**
+   * Covers the part of the document which is waiting to be relexed in background
+   */
+  public static final IElementType NOT_LEXED = new IElementType("NOT_LEXED", Language.ANY);
+  private static final int NOT_LEXED_DATA = -NOT_LEXED.getIndex(); // never an initial state
+  private static int ourTestRelexingTimeBudget = -1;
+
   private HighlighterClient myEditor;
   private final Lexer myLexer;
   private final Map<IElementType, TextAttributes> myAttributesMap = new HashMap<IElementType, TextAttributes>();
@@ -53,6 +79,12 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   private EditorColorsScheme myScheme;
   private final int myInitialState;
 
+  private int myVisibleEndOffset = -1;
+  private int myNotLexedStart = -1; // tokens after this offset are stale until background relexing is finished
+  private int myModificationCount;
+  private boolean myRelexingScheduled;
+  private Lexer myBackgroundLexer;
+
   public LexerEditorHighlighter(@NotNull SyntaxHighlighter highlighter, @NotNull EditorColorsScheme scheme) {
     myScheme = scheme;
     myLexer = highlighter.getHighlightingLexer();
@@ -111,7 +143,16 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
       if (mySegments.getSegmentCount() == 0 && document != null && document.getTextLength() > 0) {
         // bulk mode was reset
-        doSetText(document.getCharsSequence());
+        if (isBackgroundRelexingEnabled()) {
+          doSetText(document.getCharsSequence(), Math.max(startOffset, getVisibleEndOffset(document)),
+                    System.currentTimeMillis() + getRelexingTimeBudget());
+          if (myNotLexedStart >= 0) {
+            scheduleRelexing(document);
+          }
+        }
+        else {
+          doSetText(document.getCharsSequence());
+        }
       }
 
       final int latestValidOffset = mySegments.getLastValidOffset();
@@ -124,9 +165,12 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     return state == myInitialState ? idx : -idx;
   }
 
-  public boolean isValid() {
+  /**
+   * @return false also while the document is being relexed in background, since the tokens after the changed text are stale then
+   */
+  public synchronized boolean isValid() {
     Project project = myEditor.getProject();
-    return project != null && !project.isDisposed();
+    return project != null && !project.isDisposed() && myNotLexedStart < 0;
   }
 
   private static boolean isInitialState(int data) {
@@ -140,9 +184,11 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   @Override
   public synchronized void documentChanged(DocumentEvent e) {
     final Document document = e.getDocument();
+    myModificationCount++;
 
     if (document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate()) {
       mySegments.removeAll();
+      myNotLexedStart = -1;
       return;
     }
 
@@ -175,6 +221,10 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     int startOffset = mySegments.getSegmentStart(startIndex);
     int newEndOffset = e.getOffset() + e.getNewLength();
 
+    final boolean budgeted = isBackgroundRelexingEnabled() && myVisibleEndOffset >= 0;
+    final int visibleEndOffset = budgeted ? getVisibleEndOffset(e) : Integer.MAX_VALUE;
+    final long deadline = budgeted ? System.currentTimeMillis() + getRelexingTimeBudget() : Long.MAX_VALUE;
+
     myLexer.start(text, startOffset, text.length(), myInitialState);
 
     int lastTokenStart = -1;
@@ -207,6 +257,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     int repaintEnd = -1;
     int insertSegmentCount = 0;
     int oldEndIndex = -1;
+    int notLexedStart = -1;
     SegmentArrayWithData insertSegments = new SegmentArrayWithData();
 
     while(myLexer.getTokenType() != null) {
@@ -231,6 +282,10 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
           break;
         }
       }
+      if (tokenStart >= visibleEndOffset && (insertSegmentCount & 0xFF) == 0 && System.currentTimeMillis() >= deadline) {
+        notLexedStart = tokenStart;
+        break;
+      }
       insertSegments.setElementAt(insertSegmentCount, tokenStart, tokenEnd, data);
       insertSegmentCount++;
       myLexer.advance();
@@ -249,6 +304,31 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       }
     }
 
+    if (notLexedStart >= 0) {
+      // keep the old tokens after the changed text until the background relexing is finished
+      int oldOffset = Math.max(notLexedStart, newEndOffset) - shift;
+      int notLexedEnd;
+      if (oldOffset >= mySegments.getLastValidOffset()) {
+        oldEndIndex = mySegments.getSegmentCount();
+        notLexedEnd = text.length();
+      }
+      else {
+        oldEndIndex = mySegments.findSegmentIndex(oldOffset);
+        if (mySegments.getSegmentStart(oldEndIndex) == oldOffset) {
+          notLexedEnd = oldOffset + shift;
+        }
+        else {
+          notLexedEnd = mySegments.getSegmentEnd(oldEndIndex) + shift;
+          oldEndIndex++;
+        }
+      }
+      if (notLexedEnd > notLexedStart) {
+        insertSegments.setElementAt(insertSegmentCount, notLexedStart, notLexedEnd, NOT_LEXED_DATA);
+        insertSegmentCount++;
+      }
+      repaintEnd = notLexedEnd;
+    }
+
     if(repaintEnd == -1) {
       repaintEnd = text.length();
     }
@@ -259,6 +339,17 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     mySegments.shiftSegments(oldEndIndex, shift);
     mySegments.replace(startIndex, oldEndIndex, insertSegments);
 
+    if (myNotLexedStart >= 0) {
+      int oldChangeEnd = e.getOffset() + e.getOldLength();
+      myNotLexedStart = myNotLexedStart >= oldChangeEnd ? myNotLexedStart + shift : Math.min(myNotLexedStart, e.getOffset());
+    }
+    if (notLexedStart >= 0 && (myNotLexedStart < 0 || notLexedStart < myNotLexedStart)) {
+      myNotLexedStart = notLexedStart;
+    }
+    if (myNotLexedStart >= 0) {
+      scheduleRelexing(document);
+    }
+
     if (insertSegmentCount == 0 ||
         oldEndIndex == startIndex + 1 && insertSegmentCount == 1 && data == mySegments.getSegmentData(startIndex)) {
       return;
@@ -269,6 +360,130 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
   @Override
   public void beforeDocumentChange(DocumentEvent event) {
+    // the editor is consistent with the document only before the change
+    Document document = event.getDocument();
+    boolean bulkUpdate = document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate();
+    myVisibleEndOffset = !bulkUpdate && isBackgroundRelexingEnabled() ? getVisibleEndOffset(document) : -1;
+  }
+
+  private int getVisibleEndOffset(@NotNull DocumentEvent e) {
+    if (myVisibleEndOffset >= e.getOffset() + e.getOldLength()) {
+      return myVisibleEndOffset + e.getNewLength() - e.getOldLength();
+    }
+    return Math.min(myVisibleEndOffset, e.getOffset() + e.getNewLength());
+  }
+
+  private int getVisibleEndOffset(@NotNull Document document) {
+    Editor editor = (Editor)myEditor;
+    Rectangle visibleArea = editor.getScrollingModel().getVisibleArea();
+    // not xyToLogicalPosition(): it iterates over the tokens to find the column, which needs the segments that are being built here
+    int visualLine = (visibleArea.y + visibleArea.height) / editor.getLineHeight();
+    int line = editor.visualToLogicalPosition(new VisualPosition(visualLine, 0)).line;
+    return line < document.getLineCount() ? document.getLineEndOffset(line) : document.getTextLength();
+  }
+
+  private boolean isBackgroundRelexingEnabled() {
+    return getRelexingTimeBudget() >= 0 &&
+           myEditor instanceof Editor &&
+           mySegments.getClass() == SegmentArrayWithData.class &&
+           getBackgroundLexer() != null;
+  }
+
+  /**
+   * @return time in milliseconds to spend on relexing after the end of the visible area before the rest is relexed in background,
+   *         negative value means that the whole document is always relexed synchronously
+   */
+  private static int getRelexingTimeBudget() {
+    return ApplicationManager.getApplication().isUnitTestMode()
+           ? ourTestRelexingTimeBudget
+           : Registry.intValue("editor.relexing.time.budget");
+  }
+
+  @TestOnly
+  public static int setRelexingTimeBudgetInTests(int timeBudget) {
+    int oldTimeBudget = ourTestRelexingTimeBudget;
+    ourTestRelexingTimeBudget = timeBudget;
+    return oldTimeBudget;
+  }
+
+  public synchronized boolean isRelexingInProgress() {
+    return myNotLexedStart >= 0;
+  }
+
+  @Nullable
+  private Lexer getBackgroundLexer() {
+    if (myBackgroundLexer == null) {
+      myBackgroundLexer = myHighlighter.getHighlightingLexer();
+    }
+    // the lexer may be used concurrently only if the highlighter creates a new one each time
+    return myBackgroundLexer != myLexer ? myBackgroundLexer : null;
+  }
+
+  private void scheduleRelexing(@NotNull final Document document) {
+    if (myRelexingScheduled) return;
+    myRelexingScheduled = true;
+
+    int index = mySegments.findSegmentIndex(myNotLexedStart);
+    while (index > 0 && (mySegments.getSegmentStart(index) >= myNotLexedStart || !isInitialState(mySegments.getSegmentData(index)))) {
+      index--;
+    }
+    final int startOffset = mySegments.getSegmentStart(index);
+    final CharSequence text = document instanceof DocumentImpl ? ((DocumentImpl)document).getImmutableCharSequence() : document.getText();
+    final long modificationStamp = document.getModificationStamp();
+    final int modificationCount = myModificationCount;
+    final Lexer lexer = getBackgroundLexer();
+    assert lexer != null;
+
+    final Application application = ApplicationManager.getApplication();
+    application.executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        SegmentArrayWithData segments = new SegmentArrayWithData();
+        try {
+          lexer.start(text, startOffset, text.length(), myInitialState);
+          int i = 0;
+          while (true) {
+            IElementType tokenType = lexer.getTokenType();
+            if (tokenType == null || (i & 0xFFF) == 0 && document.getModificationStamp() != modificationStamp) break;
+
+            segments.setElementAt(i, lexer.getTokenStart(), lexer.getTokenEnd(), packData(tokenType, lexer.getState()));
+            i++;
+            lexer.advance();
+          }
+        }
+        catch (RuntimeException e) {
+          LOG.error("Error while relexing in background. Lexer: " + lexer, e);
+          segments = null;
+        }
+        final SegmentArrayWithData result = segments;
+        application.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            mergeRelexedSegments(document, startOffset, result, modificationStamp, modificationCount);
+          }
+        }, ModalityState.any());
+      }
+    });
+  }
+
+  private synchronized void mergeRelexedSegments(@NotNull Document document,
+                                                 int startOffset,
+                                                 @Nullable SegmentArrayWithData segments,
+                                                 long modificationStamp,
+                                                 int modificationCount) {
+    myRelexingScheduled = false;
+    if (myNotLexedStart < 0 || ((Editor)myEditor).isDisposed()) return;
+
+    if (document.getModificationStamp() != modificationStamp || myModificationCount != modificationCount) {
+      scheduleRelexing(document);
+      return;
+    }
+    if (segments == null) return; // the lexer failed, the error is already logged
+
+    mySegments.replace(mySegments.findSegmentIndex(startOffset), mySegments.getSegmentCount(), segments);
+    myNotLexedStart = -1;
+    myModificationCount++;
+    myEditor.repaint(startOffset, document.getTextLength());
   }
 
   @Override
@@ -303,16 +518,29 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   }
 
   private void doSetText(final CharSequence text) {
+    doSetText(text, Integer.MAX_VALUE, Long.MAX_VALUE);
+  }
+
+  private void doSetText(final CharSequence text, int visibleEndOffset, long deadline) {
     final TokenProcessor processor = createTokenProcessor(0);
     myLexer.start(text, 0, text.length(),myInitialState);
     mySegments.removeAll();
+    myNotLexedStart = -1;
+    myModificationCount++;
     int i = 0;
     while (true) {
       final IElementType tokenType = myLexer.getTokenType();
       if (tokenType == null) break;
 
+      int tokenStart = myLexer.getTokenStart();
+      if (tokenStart >= visibleEndOffset && (i & 0xFF) == 0 && System.currentTimeMillis() >= deadline) {
+        processor.addToken(i, tokenStart, text.length(), NOT_LEXED_DATA, NOT_LEXED);
+        myNotLexedStart = tokenStart;
+        break;
+      }
+
       int data = packData(tokenType, myLexer.getState());
-      processor.addToken(i, myLexer.getTokenStart(), myLexer.getTokenEnd(), data, tokenType);
+      processor.addToken(i, tokenStart, myLexer.getTokenEnd(), data, tokenType);
       i++;
       myLexer.advance();
     }
@@ -45,10 +45,15 @@ public class EditorHighlighterCache {
     final WeakReference<EditorHighlighter> editorHighlighterWeakReference = document.getUserData(ourSomeEditorSyntaxHighlighter);
     final EditorHighlighter someEditorHighlighter = editorHighlighterWeakReference != null ? editorHighlighterWeakReference.get() : null;
 
-    if (someEditorHighlighter instanceof LexerEditorHighlighter &&
-        ((LexerEditorHighlighter)someEditorHighlighter).isValid()
-      ) {
-      return someEditorHighlighter;
+    if (someEditorHighlighter instanceof LexerEditorHighlighter) {
+      final LexerEditorHighlighter lexerEditorHighlighter = (LexerEditorHighlighter)someEditorHighlighter;
+      if (lexerEditorHighlighter.isValid()) {
+        return someEditorHighlighter;
+      }
+      if (lexerEditorHighlighter.isRelexingInProgress()) {
+        // the tokens are not to be indexed until the rest of the document is relexed in background
+        return null;
+      }
     }
     document.putUserData(ourSomeEditorSyntaxHighlighter, null);
     return null;
@@ -84,6 +84,7 @@ import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.Convertor;
 import com.intellij.util.containers.HashMap;
 import com.intellij.util.messages.MessageBusConnection;
+import com.intellij.util.text.CharArrayCharSequence;
 import com.intellij.util.text.CharArrayUtil;
 import com.intellij.util.ui.ButtonlessScrollBarUI;
 import com.intellij.util.ui.MacUIUtil;
@@ -2084,7 +2085,8 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     Point position = new Point(0, visibleLine * lineHeight);
     char[] prefixText = myPrefixText;
     if (clipStartVisualPos.line == 0 && prefixText != null) {
-      position.x = drawBackground(g, myPrefixAttributes.getBackgroundColor(), prefixText, 0, prefixText.length, position,
+      position.x = drawBackground(g, myPrefixAttributes.getBackgroundColor(), new CharArrayCharSequence(prefixText), 0, prefixText.length,
+                                  position,
                                   myPrefixAttributes.getFontType(),
                                   defaultBackground, clip);
     }
@@ -2147,7 +2149,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       // background is already drawn.
       boolean[] caretRowPainted = new boolean[1];
 
-      char[] text = myDocument.getChars();
+      CharSequence text = myDocument.getCharsSequence();
 
       while (!iterationState.atEnd() && !lIterator.atEnd()) {
         int hEnd = iterationState.getEndOffset();
@@ -2191,8 +2193,9 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
                 defaultBackground, clip, softWrapsToSkip, caretRowPainted
               );
             }
-            char[] chars = collapsedFolderAt.getPlaceholderText().toCharArray();
-            position.x = drawBackground(g, backColor, chars, 0, chars.length, position, fontType, defaultBackground, clip);
+            String placeholderText = collapsedFolderAt.getPlaceholderText();
+            position.x = drawBackground(g, backColor, placeholderText, 0, placeholderText.length(), position, fontType, defaultBackground,
+                                        clip);
           }
           else if (hEnd > lEnd - lIterator.getSeparatorLength()) {
             position.x = drawSoftWrapAwareBackground(
@@ -2287,7 +2290,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
 
   private int drawSoftWrapAwareBackground(@NotNull Graphics g,
                                           Color backColor,
-                                          @NotNull char[] text,
+                                          @NotNull CharSequence text,
                                           int start,
                                           int end,
                                           @NotNull Point position,
@@ -2356,7 +2359,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     paintSelectionOnFirstSoftWrapLineIfNecessary(g, position, clip, defaultBackground, fontType);
 
     int i = CharArrayUtil.lastIndexOf(softWrapText, "\n", softWrapText.length()) + 1;
-    int width = getTextSegmentWidth(CharArrayUtil.fromSequence(softWrapText), i, softWrapText.length(), 0, fontType, clip)
+    int width = getTextSegmentWidth(softWrapText, i, softWrapText.length(), 0, fontType, clip)
                 + getSoftWrapModel().getMinDrawingWidthInPixels(SoftWrapDrawingType.AFTER_SOFT_WRAP);
     position.x = 0;
     position.y += getLineHeight();
@@ -2490,7 +2493,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
 
   private int drawBackground(@NotNull Graphics g,
                              Color backColor,
-                             @NotNull char[] text,
+                             @NotNull CharSequence text,
                              int start,
                              int end,
                              @NotNull Point position,
@@ -2572,7 +2575,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
 
     Point position = new Point(0, visibleLine * lineHeight);
     if (startLine == 0 && myPrefixText != null) {
-      position.x = drawStringWithSoftWraps(g, myPrefixText, 0, myPrefixText.length, position, clip,
+      position.x = drawStringWithSoftWraps(g, new CharArrayCharSequence(myPrefixText), 0, myPrefixText.length, position, clip,
                                            myPrefixAttributes.getEffectColor(), myPrefixAttributes.getEffectType(),
                                            myPrefixAttributes.getFontType(), myPrefixAttributes.getForegroundColor(), logicalPosition);
     }
@@ -2599,7 +2602,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       int fontType = attributes.getFontType();
       g.setColor(currentColor);
 
-      final char[] chars = myDocument.getRawChars();
+      final CharSequence chars = myDocument.getCharsSequence();
 
       while (!iterationState.atEnd() && !lIterator.atEnd()) {
         int hEnd = iterationState.getEndOffset();
@@ -2697,7 +2700,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     }
     else {
       myLastPaintedPlaceholderWidth = drawString(
-        g, CharArrayUtil.fromSequence(hintText), 0, hintText.length(), new Point(0, 0), clip, null, null, Font.PLAIN,
+        g, hintText, 0, hintText.length(), new Point(0, 0), clip, null, null, Font.PLAIN,
         myFoldingModel.getPlaceholderAttributes().getForegroundColor()
       );
       flushCachedChars(g);
@@ -2726,7 +2729,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   }
 
   private class CachedFontContent {
-    final char[][] data = new char[CACHED_CHARS_BUFFER_SIZE][];
+    final CharSequence[] data = new CharSequence[CACHED_CHARS_BUFFER_SIZE];
     final int[] starts = new int[CACHED_CHARS_BUFFER_SIZE];
     final int[] ends = new int[CACHED_CHARS_BUFFER_SIZE];
     final int[] x = new int[CACHED_CHARS_BUFFER_SIZE];
@@ -2738,7 +2741,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     final boolean myHasBreakSymbols;
     final int spaceWidth;
 
-    @Nullable private char[] myLastData;
+    @Nullable private CharSequence myLastData;
 
     private CachedFontContent(@NotNull FontInfo fontInfo) {
       myFontType = fontInfo;
@@ -2769,14 +2772,14 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       }
     }
 
-    private void addContent(@NotNull Graphics g, char[] _data, int _start, int _end, int _x, int _y, @Nullable Color _color) {
+    private void addContent(@NotNull Graphics g, CharSequence _data, int _start, int _end, int _x, int _y, @Nullable Color _color) {
       final int count = myCount;
       if (count > 0) {
         final int lastCount = count - 1;
         final Color lastColor = color[lastCount];
         if (_data == myLastData && _start == ends[lastCount] && (_color == null || lastColor == null || _color.equals(lastColor))
             && _y == y[lastCount] /* there is a possible case that vertical position is adjusted because of soft wrap */
-            && (!myHasBreakSymbols || !myFontType.getSymbolsToBreakDrawingIteration().contains(_data[ends[lastCount] - 1]))) {
+            && (!myHasBreakSymbols || !myFontType.getSymbolsToBreakDrawingIteration().contains(_data.charAt(ends[lastCount] - 1)))) {
           ends[lastCount] = _end;
           if (lastColor == null) color[lastCount] = _color;
           return;
@@ -2879,12 +2882,12 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
                                       @JdkConstants.FontStyle int fontType,
                                       Color fontColor,
                                       @NotNull Ref<LogicalPosition> startDrawingLogicalPosition) {
-    return drawStringWithSoftWraps(g, text.toCharArray(), 0, text.length(), position, clip, effectColor, effectType,
+    return drawStringWithSoftWraps(g, text, 0, text.length(), position, clip, effectColor, effectType,
                                    fontType, fontColor, startDrawingLogicalPosition);
   }
 
   private int drawStringWithSoftWraps(@NotNull Graphics g,
-                                      final char[] text,
+                                      final CharSequence text,
                                       final int start,
                                       final int end,
                                       @NotNull Point position,
@@ -2931,16 +2934,16 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
 
     outer:
     for (SoftWrap softWrap : getSoftWrapModel().getSoftWrapsForRange(startToUse, softWrapRetrievalEndOffset)) {
-      char[] softWrapChars = softWrap.getChars();
+      CharSequence softWrapChars = softWrap.getText();
 
       if (softWrap.equals(lastSkippedSoftWrap)) {
         // If we are here that means that we are located on soft wrap-introduced visual line just after soft wrap. Hence, we need
         // to draw soft wrap indent if any and 'after soft wrap' sign.
-        int i = CharArrayUtil.lastIndexOf(softWrapChars, '\n', 0, softWrapChars.length);
-        if (i < softWrapChars.length - 1) {
+        int i = CharArrayUtil.lastIndexOf(softWrapChars, "\n", softWrapChars.length());
+        if (i < softWrapChars.length() - 1) {
           position.x = 0; // Soft wrap starts new visual line
           position.x = drawString(
-            g, softWrapChars, i + 1, softWrapChars.length, position, clip, null, null, fontType, fontColor
+            g, softWrapChars, i + 1, softWrapChars.length(), position, clip, null, null, fontType, fontColor
           );
         }
         position.x += mySoftWrapModel.paint(g, SoftWrapDrawingType.AFTER_SOFT_WRAP, position.x, position.y, getLineHeight());
@@ -2960,9 +2963,9 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       // We don't draw every soft wrap symbol one-by-one but whole visual line. Current variable holds index that points
       // to the first soft wrap symbol that is not drawn yet.
       int softWrapSegmentStartIndex = 0;
-      for (int i = 0; i < softWrapChars.length; i++) {
+      for (int i = 0; i < softWrapChars.length(); i++) {
         // Delay soft wraps symbols drawing until EOL is found.
-        if (softWrapChars[i] != '\n') {
+        if (softWrapChars.charAt(i) != '\n') {
           continue;
         }
 
@@ -2987,9 +2990,9 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       }
 
       // Draw remaining soft wrap symbols from its last line if any.
-      if (softWrapSegmentStartIndex < softWrapChars.length) {
+      if (softWrapSegmentStartIndex < softWrapChars.length()) {
         position.x += drawString(
-          g, softWrapChars, softWrapSegmentStartIndex, softWrapChars.length, position, clip, null, null, fontType, fontColor
+          g, softWrapChars, softWrapSegmentStartIndex, softWrapChars.length(), position, clip, null, null, fontType, fontColor
         );
       }
       position.x += mySoftWrapModel.paint(g, SoftWrapDrawingType.AFTER_SOFT_WRAP, position.x, position.y, getLineHeight());
@@ -2999,7 +3002,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   }
 
   private int drawString(@NotNull Graphics g,
-                         final char[] text,
+                         final CharSequence text,
                          int start,
                          int end,
                          @NotNull Point position,
@@ -3034,11 +3037,11 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     int y = getLineHeight() - getDescent() + position.y;
     int x = position.x;
 
-    return drawTabbedString(g, text.toCharArray(), 0, text.length(), x, y, effectColor, effectType, fontType, fontColor, clip);
+    return drawTabbedString(g, text, 0, text.length(), x, y, effectColor, effectType, fontType, fontColor, clip);
   }
 
   private int drawTabbedString(@NotNull Graphics g,
-                               char[] text,
+                               CharSequence text,
                                int start,
                                int end,
                                int x,
@@ -3051,7 +3054,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     int xStart = x;
 
     for (int i = start; i < end; i++) {
-      if (text[i] != '\t') continue;
+      if (text.charAt(i) != '\t') continue;
 
       x = drawTablessString(text, start, i, g, x, y, fontType, fontColor, clip);
 
@@ -3111,7 +3114,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     return x;
   }
 
-  private int drawTablessString(final char[] text,
+  private int drawTablessString(final CharSequence text,
                                 int start,
                                 final int end,
                                 @NotNull final Graphics g,
@@ -3122,9 +3125,9 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
                                 @NotNull final Rectangle clip) {
     int endX = x;
     if (start < end) {
-      FontInfo font = EditorUtil.fontForChar(text[start], fontType, this);
+      FontInfo font = EditorUtil.fontForChar(text.charAt(start), fontType, this);
       for (int j = start; j < end; j++) {
-        final char c = text[j];
+        final char c = text.charAt(j);
         FontInfo newFont = EditorUtil.fontForChar(c, fontType, this);
         if (font != newFont || endX > clip.x + clip.width) {
           if (!(x < clip.x && endX < clip.x || x > clip.x + clip.width && endX > clip.x + clip.width)) {
@@ -3181,7 +3184,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   }
 
   private void drawCharsCached(@NotNull Graphics g,
-                               char[] data,
+                               CharSequence data,
                                int start,
                                int end,
                                int x,
@@ -3193,13 +3196,13 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     }
     else {
       myForceRefreshFont = false;
-      FontInfo fnt = EditorUtil.fontForChar(data[start], fontType, this);
+      FontInfo fnt = EditorUtil.fontForChar(data.charAt(start), fontType, this);
       drawCharsCached(g, data, start, end, x, y, fnt, color);
     }
   }
 
   private void drawCharsCached(@NotNull Graphics g,
-                               @NotNull char[] data,
+                               @NotNull CharSequence data,
                                int start,
                                int end,
                                int x,
@@ -3222,15 +3225,15 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     cache.addContent(g, data, start, end, x, y, color);
   }
 
-  private static boolean spacesOnly(char[] chars, int start, int end) {
+  private static boolean spacesOnly(CharSequence chars, int start, int end) {
     for (int i = start; i < end; i++) {
-      if (chars[i] != ' ') return false;
+      if (chars.charAt(i) != ' ') return false;
     }
     return true;
   }
 
-  private void drawChars(@NotNull Graphics g, char[] data, int start, int end, int x, int y) {
-    g.drawChars(data, start, end - start, x, y);
+  private void drawChars(@NotNull Graphics g, CharSequence data, int start, int end, int x, int y) {
+    g.drawString(data.subSequence(start, end).toString(), x, y);
 
     if (mySettings.isWhitespacesShown()) {
       Color oldColor = g.getColor();
@@ -3238,10 +3241,11 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       final FontMetrics metrics = g.getFontMetrics();
       int halfSpaceWidth = metrics.charWidth(' ') / 2;
       for (int i = start; i < end; i++) {
-        if (data[i] == ' ') {
+        char c = data.charAt(i);
+        if (c == ' ') {
           g.fillRect(x + halfSpaceWidth, y, 1, 1);
         }
-        x += metrics.charWidth(data[i]);
+        x += metrics.charWidth(c);
       }
       g.setColor(oldColor);
     }
@@ -3266,7 +3270,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     UIUtil.drawLine(g, x + WAVE_SEGMENT_LENGTH / 2, y, x + WAVE_SEGMENT_LENGTH, y + WAVE_HEIGHT);
   }
 
-  private int getTextSegmentWidth(@NotNull char[] text,
+  private int getTextSegmentWidth(@NotNull CharSequence text,
                                   int start,
                                   int end,
                                   int xStart,
@@ -3275,7 +3279,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     int x = xStart;
 
     for (int i = start; i < end && xStart < clip.x + clip.width; i++) {
-      char c = text[i];
+      char c = text.charAt(i);
       if (c == '\t') {
         x = EditorUtil.nextTabStop(x, this);
       }
@@ -4324,12 +4328,12 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
         g.fillRect(x, y, myWidth, lineHeight - 1);
         final LogicalPosition startPosition = getCaretModel().getLogicalPosition();
         final int offset = logicalPositionToOffset(startPosition);
-        char[] chars = myDocument.getRawChars();
-        if (chars.length > offset) {
+        CharSequence chars = myDocument.getCharsSequence();
+        if (chars.length() > offset) {
           FoldRegion folding = myFoldingModel.getCollapsedRegionAtOffset(offset);
           final char ch;
           if (folding == null || folding.isExpanded()) {
-            ch = chars[offset];
+            ch = chars.charAt(offset);
           }
           else {
             VisualPosition visual = getCaretModel().getVisualPosition();
@@ -4338,7 +4342,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
               ch = folding.getPlaceholderText().charAt(visual.column - foldingPosition.column);
             }
             else {
-              ch = chars[offset];
+              ch = chars.charAt(offset);
             }
           }
           IterationState state = null;
@@ -6568,7 +6572,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
                           int y,
                           Color color,
                           @NotNull FontInfo fontInfo) {
-      drawCharsCached(g, data, start, end, x, y, fontInfo, color);
+      drawCharsCached(g, new CharArrayCharSequence(data), start, end, x, y, fontInfo, color);
     }
   }
 }
@@ -30,6 +30,8 @@ import org.jetbrains.annotations.NotNull;
  * @author max
  */
 class PersistentRangeHighlighterImpl extends RangeHighlighterImpl implements RangeHighlighterEx {
+  private int myLine;
+
   PersistentRangeHighlighterImpl(@NotNull MarkupModel model,
                                  int offset,
                                  int layer,
@@ -91,12 +93,11 @@ class PersistentRangeHighlighterImpl extends RangeHighlighterImpl implements Ran
            (isGreedyToRight() ? "]" : ")");
   }
 
-  // delegates
   private int getLine() {
-    return getData().myLine;
+    return myLine;
   }
 
   private void setLine(int line) {
-    getData().myLine = line;
+    myLine = line;
   }
 }
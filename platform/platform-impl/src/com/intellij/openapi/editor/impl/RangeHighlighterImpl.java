@@ -1,5 +1,5 @@
 /*
- * Copyright 2000-2009 JetBrains s.r.o.
+ * Copyright 2000-2013 JetBrains s.r.o.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,10 +15,14 @@
  */
 package com.intellij.openapi.editor.impl;
 
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.ex.DocumentEx;
 import com.intellij.openapi.editor.ex.RangeHighlighterEx;
 import com.intellij.openapi.editor.markup.*;
+import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Getter;
+import com.intellij.util.BitUtil;
 import com.intellij.util.Consumer;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -27,10 +31,30 @@ import java.awt.*;
 
 /**
  * Implementation of the markup element for the editor and document.
+ * <p/>
+ * Files may have tens of thousands of highlighters, so all the data is kept right here instead of separate objects and
+ * boolean properties are packed into {@link #myFlags}.
  * @author max
  */
 class RangeHighlighterImpl extends RangeMarkerImpl implements RangeHighlighterEx, Getter<RangeHighlighterEx> {
-  private final RangeHighlighterData data;
+  private static final byte AFTER_END_OF_LINE_MASK = 1;
+  private static final byte ERROR_STRIPE_IS_THIN_MASK = 2;
+  private static final byte IN_BATCH_CHANGE_MASK = 4;
+  private static final byte CHANGED_MASK = 8;
+
+  private final MarkupModel myModel;
+  private final HighlighterTargetArea myTargetArea;
+  private TextAttributes myTextAttributes;
+  private LineMarkerRenderer myLineMarkerRenderer;
+  private Color myErrorStripeColor;
+  private Color myLineSeparatorColor;
+  private SeparatorPlacement mySeparatorPlacement;
+  private GutterIconRenderer myGutterIconRenderer;
+  private Object myErrorStripeTooltip;
+  private MarkupEditorFilter myFilter = MarkupEditorFilter.EMPTY;
+  private CustomHighlighterRenderer myCustomRenderer;
+  private LineSeparatorRenderer myLineSeparatorRenderer;
+  private byte myFlags;
 
   RangeHighlighterImpl(@NotNull MarkupModel model,
                        int start,
@@ -40,32 +64,35 @@ class RangeHighlighterImpl extends RangeMarkerImpl implements RangeHighlighterEx
                        TextAttributes textAttributes, boolean greedyToLeft, boolean greedyToRight) {
     super((DocumentEx)model.getDocument(), start, end,false);
 
-    data = new RangeHighlighterData(model, target, textAttributes) {
-      @NotNull
-      @Override
-      public RangeHighlighterEx getRangeHighlighter() {
-        return RangeHighlighterImpl.this;
-      }
-    };
+    myTextAttributes = textAttributes;
+    myTargetArea = target;
+    myModel = model;
+    if (textAttributes != null) {
+      myErrorStripeColor = textAttributes.getErrorStripeColor();
+    }
 
     registerInTree(start, end, greedyToLeft, greedyToRight, layer);
   }
 
-  protected RangeHighlighterData getData() {
-    return data;
+  private boolean isFlagSet(byte mask) {
+    return BitUtil.isSet(myFlags, mask);
+  }
+
+  private void setFlag(byte mask, boolean value) {
+    myFlags = (byte)BitUtil.set(myFlags, mask, value);
   }
 
   @Override
   protected void registerInTree(int start, int end, boolean greedyToLeft, boolean greedyToRight, int layer) {
     // we store highlighters in MarkupModel
-    ((MarkupModelImpl)data.getMarkupModel()).addRangeHighlighter(this, start, end, greedyToLeft, greedyToRight, layer);
+    ((MarkupModelImpl)myModel).addRangeHighlighter(this, start, end, greedyToLeft, greedyToRight, layer);
   }
 
   @Override
   protected boolean unregisterInTree() {
     if (!isValid()) return false;
     // we store highlighters in MarkupModel
-    getData().getMarkupModel().removeHighlighter(this);
+    myModel.removeHighlighter(this);
     return true;
   }
 
@@ -74,19 +101,46 @@ class RangeHighlighterImpl extends RangeMarkerImpl implements RangeHighlighterEx
     return this;
   }
 
-  // delegates
   @Override
   public TextAttributes getTextAttributes() {
-    return getData().getTextAttributes();
+    return myTextAttributes;
   }
 
   @Override
   public void setTextAttributes(TextAttributes textAttributes) {
-    getData().setTextAttributes(textAttributes);
+    TextAttributes old = myTextAttributes;
+    myTextAttributes = textAttributes;
+    if (!Comparing.equal(old, textAttributes)) {
+      fireChanged();
+    }
   }
 
+  // returns true if change was detected
   boolean changeAttributesNoEvents(@NotNull Consumer<RangeHighlighterEx> change) {
-    return getData().changeAttributesInBatch(change);
+    assert !isFlagSet(IN_BATCH_CHANGE_MASK);
+    assert !isFlagSet(CHANGED_MASK);
+    setFlag(IN_BATCH_CHANGE_MASK, true);
+    boolean result;
+    try {
+      change.consume(this);
+    }
+    finally {
+      setFlag(IN_BATCH_CHANGE_MASK, false);
+      result = isFlagSet(CHANGED_MASK);
+      setFlag(CHANGED_MASK, false);
+    }
+    return result;
+  }
+
+  private void fireChanged() {
+    if (myModel instanceof MarkupModelImpl) {
+      if (isFlagSet(IN_BATCH_CHANGE_MASK)) {
+        setFlag(CHANGED_MASK, true);
+      }
+      else {
+        ((MarkupModelImpl)myModel).fireAttributesChanged(this);
+      }
+    }
   }
 
   @Override
@@ -97,132 +151,174 @@ class RangeHighlighterImpl extends RangeMarkerImpl implements RangeHighlighterEx
 
   @Override
   public HighlighterTargetArea getTargetArea() {
-    return getData().getTargetArea();
+    return myTargetArea;
   }
 
   @Override
   public LineMarkerRenderer getLineMarkerRenderer() {
-    return getData().getLineMarkerRenderer();
+    return myLineMarkerRenderer;
   }
 
   @Override
   public void setLineMarkerRenderer(LineMarkerRenderer renderer) {
-    getData().setLineMarkerRenderer(renderer);
+    myLineMarkerRenderer = renderer;
+    fireChanged();
   }
 
   @Override
   public CustomHighlighterRenderer getCustomRenderer() {
-    return getData().getCustomRenderer();
+    return myCustomRenderer;
   }
 
   @Override
   public void setCustomRenderer(CustomHighlighterRenderer renderer) {
-    getData().setCustomRenderer(renderer);
+    myCustomRenderer = renderer;
   }
 
   @Override
   public GutterIconRenderer getGutterIconRenderer() {
-    return getData().getGutterIconRenderer();
+    return myGutterIconRenderer;
   }
 
   @Override
   public void setGutterIconRenderer(GutterIconRenderer renderer) {
-    getData().setGutterIconRenderer(renderer);
+    GutterIconRenderer old = myGutterIconRenderer;
+    myGutterIconRenderer = renderer;
+    if (!Comparing.equal(old, renderer)) {
+      fireChanged();
+    }
   }
 
   @Override
   public Color getErrorStripeMarkColor() {
-    return getData().getErrorStripeMarkColor();
+    return myErrorStripeColor;
   }
 
   @Override
   public void setErrorStripeMarkColor(Color color) {
-    getData().setErrorStripeMarkColor(color);
+    Color old = myErrorStripeColor;
+    myErrorStripeColor = color;
+    if (!Comparing.equal(old, color)) {
+      fireChanged();
+    }
   }
 
   @Override
   public Object getErrorStripeTooltip() {
-    return getData().getErrorStripeTooltip();
+    return myErrorStripeTooltip;
   }
 
   @Override
   public void setErrorStripeTooltip(Object tooltipObject) {
-    getData().setErrorStripeTooltip(tooltipObject);
+    ApplicationManager.getApplication().assertIsDispatchThread();
+    Object old = myErrorStripeTooltip;
+    myErrorStripeTooltip = tooltipObject;
+    if (!Comparing.equal(old, tooltipObject)) {
+      fireChanged();
+    }
   }
 
   @Override
   public boolean isThinErrorStripeMark() {
-    return getData().isThinErrorStripeMark();
+    return isFlagSet(ERROR_STRIPE_IS_THIN_MASK);
   }
 
   @Override
   public void setThinErrorStripeMark(boolean value) {
-    getData().setThinErrorStripeMark(value);
+    ApplicationManager.getApplication().assertIsDispatchThread();
+    boolean old = isThinErrorStripeMark();
+    setFlag(ERROR_STRIPE_IS_THIN_MASK, value);
+    if (old != value) {
+      fireChanged();
+    }
   }
 
   @Override
   public Color getLineSeparatorColor() {
-    return getData().getLineSeparatorColor();
+    return myLineSeparatorColor;
   }
 
   @Override
   public void setLineSeparatorColor(Color color) {
-    getData().setLineSeparatorColor(color);
+    Color old = myLineSeparatorColor;
+    myLineSeparatorColor = color;
+    if (!Comparing.equal(old, color)) {
+      fireChanged();
+    }
   }
 
   @Override
   public void setLineSeparatorRenderer(LineSeparatorRenderer renderer) {
-    getData().setLineSeparatorRenderer(renderer);
+    myLineSeparatorRenderer = renderer;
   }
 
   @Override
   public LineSeparatorRenderer getLineSeparatorRenderer() {
-    return getData().getLineSeparatorRenderer();
+    return myLineSeparatorRenderer;
   }
 
   @Override
   public SeparatorPlacement getLineSeparatorPlacement() {
-    return getData().getLineSeparatorPlacement();
+    return mySeparatorPlacement;
   }
 
   @Override
   public void setLineSeparatorPlacement(@Nullable SeparatorPlacement placement) {
-    getData().setLineSeparatorPlacement(placement);
+    SeparatorPlacement old = mySeparatorPlacement;
+    mySeparatorPlacement = placement;
+    if (!Comparing.equal(old, placement)) {
+      fireChanged();
+    }
   }
 
   @Override
   public void setEditorFilter(@NotNull MarkupEditorFilter filter) {
-    getData().setEditorFilter(filter);
+    myFilter = filter;
+    fireChanged();
   }
 
   @Override
   @NotNull
   public MarkupEditorFilter getEditorFilter() {
-    return getData().getEditorFilter();
+    return myFilter;
   }
 
   @Override
   public boolean isAfterEndOfLine() {
-    return getData().isAfterEndOfLine();
+    return isFlagSet(AFTER_END_OF_LINE_MASK);
   }
 
   @Override
   public void setAfterEndOfLine(boolean afterEndOfLine) {
-    getData().setAfterEndOfLine(afterEndOfLine);
+    boolean old = isAfterEndOfLine();
+    setFlag(AFTER_END_OF_LINE_MASK, afterEndOfLine);
+    if (old != afterEndOfLine) {
+      fireChanged();
+    }
   }
 
   @Override
   public int getAffectedAreaStartOffset() {
-    return getData().getAffectedAreaStartOffset();
+    int startOffset = getStartOffset();
+    if (myTargetArea == HighlighterTargetArea.EXACT_RANGE) return startOffset;
+    Document document = myModel.getDocument();
+    int textLength = document.getTextLength();
+    if (startOffset >= textLength) return textLength;
+    return document.getLineStartOffset(document.getLineNumber(startOffset));
   }
 
   @Override
   public int getAffectedAreaEndOffset() {
-    return getData().getAffectedAreaEndOffset();
+    int endOffset = getEndOffset();
+    if (myTargetArea == HighlighterTargetArea.EXACT_RANGE) return endOffset;
+    Document document = myModel.getDocument();
+    int textLength = document.getTextLength();
+    if (endOffset >= textLength) return endOffset;
+    return Math.min(textLength, document.getLineEndOffset(document.getLineNumber(endOffset)) + 1);
   }
 
   @Override
   public String toString() {
-    return "RangeHighlighter: ("+getStartOffset()+","+getEndOffset()+"); layer:"+getLayer()+"; tooltip: "+getData().getErrorStripeTooltip();
+    return "RangeHighlighter: ("+getStartOffset()+","+getEndOffset()+"); layer:"+getLayer()+"; tooltip: "+getErrorStripeTooltip();
   }
 }
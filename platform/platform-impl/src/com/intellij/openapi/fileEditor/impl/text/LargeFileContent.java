@@ -0,0 +1,287 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.util.io.DirectBufferWrapper;
+import gnu.trove.TLongArrayList;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only view of a file too large to be loaded into a document. The file is memory-mapped page by page and only
+ * the requested pages are decoded. Pages start at line starts, so a line is never split between pages unless it's longer
+ * than {@link #MAX_LINE_ALIGNMENT} bytes.
+ * <p/>
+ * Line numbers are available after {@link #buildLineIndex(ProgressIndicator)} which remembers the offset of every
+ * {@link #LINES_PER_CHECKPOINT}th line start; the rest is found by scanning from the nearest checkpoint.
+ * <p/>
+ * Only charsets that encode line separators as single ASCII bytes are supported, see {@link #isSupported(Charset)}.
+ */
+public class LargeFileContent implements Disposable {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.fileEditor.impl.text.LargeFileContent");
+
+  static final int PAGE_SIZE = 1024 * 1024;
+  static final int MAX_LINE_ALIGNMENT = 64 * 1024;
+  private static final int LINES_PER_CHECKPOINT = 1024;
+  private static final int SCAN_CHUNK_SIZE = 16 * 1024 * 1024;
+  private static final int CACHED_PAGES = 4;
+
+  private final File myFile;
+  private final Charset myCharset;
+  private final boolean mySingleByteCharset;
+  private final RandomAccessFile myRandomAccessFile;
+  private final FileChannel myChannel;
+  private final long myLength;
+  private final long[] myPageStarts; // 0 for pages not aligned yet
+
+  private final Map<Integer, String> myPageCache = new LinkedHashMap<Integer, String>(CACHED_PAGES, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+      return size() > CACHED_PAGES;
+    }
+  };
+
+  private volatile long[] myLineCheckpoints; // null until the line index is built
+  private volatile int myLineCount;
+
+  public LargeFileContent(@NotNull File file, @NotNull Charset charset) throws IOException {
+    myFile = file;
+    myCharset = charset;
+    mySingleByteCharset = charset.canEncode() && charset.newEncoder().maxBytesPerChar() <= 1;
+    myRandomAccessFile = new RandomAccessFile(file, "r");
+    myChannel = myRandomAccessFile.getChannel();
+    myLength = myChannel.size();
+    int pageCount = Math.max(1, (int)((myLength + PAGE_SIZE - 1) / PAGE_SIZE));
+    myPageStarts = new long[pageCount];
+  }
+
+  public static boolean isSupported(@NotNull Charset charset) {
+    return Arrays.equals("\n\r".getBytes(charset), new byte[]{'\n', '\r'});
+  }
+
+  @NotNull
+  public File getFile() {
+    return myFile;
+  }
+
+  public long getLength() {
+    return myLength;
+  }
+
+  public int getPageCount() {
+    return myPageStarts.length;
+  }
+
+  public long getPageStart(int page) throws IOException {
+    if (page == 0) return 0;
+    synchronized (myPageStarts) {
+      if (myPageStarts[page] == 0) {
+        myPageStarts[page] = alignToLineStart((long)page * PAGE_SIZE);
+      }
+      return myPageStarts[page];
+    }
+  }
+
+  public long getPageEnd(int page) throws IOException {
+    return page + 1 < myPageStarts.length ? getPageStart(page + 1) : myLength;
+  }
+
+  public int getPageByOffset(long offset) throws IOException {
+    // a page starts at most MAX_LINE_ALIGNMENT bytes after its nominal start
+    int page = (int)Math.min(offset / PAGE_SIZE, myPageStarts.length - 1);
+    return page > 0 && offset < getPageStart(page) ? page - 1 : page;
+  }
+
+  /**
+   * @return decoded text of the given page with line separators converted to {@code \n}
+   */
+  @NotNull
+  public String getPageText(int page) throws IOException {
+    synchronized (myPageCache) {
+      String text = myPageCache.get(page);
+      if (text != null) return text;
+    }
+    String text = StringUtil.convertLineSeparators(decode(getPageStart(page), getPageEnd(page)));
+    synchronized (myPageCache) {
+      myPageCache.put(page, text);
+    }
+    return text;
+  }
+
+  /**
+   * @return offset of the given file position in the {@link #getPageText(int) text} of the page containing it
+   */
+  public int getOffsetInPage(long offset) throws IOException {
+    return StringUtil.convertLineSeparators(decode(getPageStart(getPageByOffset(offset)), offset)).length();
+  }
+
+  public boolean isLineIndexReady() {
+    return myLineCheckpoints != null;
+  }
+
+  public int getLineCount() {
+    return myLineCount;
+  }
+
+  /**
+   * Scans the whole file for line separators, should be called in background
+   */
+  public void buildLineIndex(@NotNull ProgressIndicator indicator) throws IOException {
+    TLongArrayList checkpoints = new TLongArrayList();
+    checkpoints.add(0);
+    int line = 0;
+    for (long chunkStart = 0; chunkStart < myLength; chunkStart += SCAN_CHUNK_SIZE) {
+      indicator.checkCanceled();
+      indicator.setFraction((double)chunkStart / myLength);
+      ByteBuffer buffer = map(chunkStart, Math.min(myLength, chunkStart + SCAN_CHUNK_SIZE));
+      try {
+        for (int i = 0, limit = buffer.limit(); i < limit; i++) {
+          if (buffer.get(i) == '\n' && ++line % LINES_PER_CHECKPOINT == 0) {
+            checkpoints.add(chunkStart + i + 1);
+          }
+        }
+      }
+      finally {
+        unmap(buffer);
+      }
+    }
+    myLineCount = line + 1;
+    myLineCheckpoints = checkpoints.toNativeArray();
+    LOG.info("Indexed " + myLineCount + " lines of " + myFile);
+  }
+
+  /**
+   * @return file position of the given line start, the line index must be {@link #isLineIndexReady() ready}
+   */
+  public long getLineStartOffset(int line) throws IOException {
+    long[] checkpoints = myLineCheckpoints;
+    int index = Math.min(line / LINES_PER_CHECKPOINT, checkpoints.length - 1);
+    long offset = checkpoints[index];
+    int toSkip = line - index * LINES_PER_CHECKPOINT;
+    while (toSkip > 0 && offset < myLength) {
+      ByteBuffer buffer = map(offset, Math.min(myLength, offset + PAGE_SIZE));
+      try {
+        int i = 0;
+        for (int limit = buffer.limit(); i < limit && toSkip > 0; i++) {
+          if (buffer.get(i) == '\n') toSkip--;
+        }
+        offset += i;
+      }
+      finally {
+        unmap(buffer);
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * @return number of the line containing the given file position, the line index must be {@link #isLineIndexReady() ready}
+   */
+  public int getLineNumber(long offset) throws IOException {
+    long[] checkpoints = myLineCheckpoints;
+    int index = Arrays.binarySearch(checkpoints, offset);
+    if (index >= 0) return index * LINES_PER_CHECKPOINT;
+    index = -index - 2;
+    int line = index * LINES_PER_CHECKPOINT;
+    for (long start = checkpoints[index]; start < offset; start += PAGE_SIZE) {
+      ByteBuffer buffer = map(start, Math.min(offset, start + PAGE_SIZE));
+      try {
+        for (int i = 0, limit = buffer.limit(); i < limit; i++) {
+          if (buffer.get(i) == '\n') line++;
+        }
+      }
+      finally {
+        unmap(buffer);
+      }
+    }
+    return line;
+  }
+
+  @NotNull
+  private String decode(long start, long end) throws IOException {
+    if (start >= end) return "";
+    ByteBuffer buffer = map(start, end);
+    try {
+      return myCharset.decode(buffer).toString();
+    }
+    finally {
+      unmap(buffer);
+    }
+  }
+
+  private long alignToLineStart(long offset) throws IOException {
+    long end = Math.min(myLength, offset + MAX_LINE_ALIGNMENT);
+    ByteBuffer buffer = map(offset, end);
+    try {
+      for (int i = 0, limit = buffer.limit(); i < limit; i++) {
+        if (buffer.get(i) == '\n') return offset + i + 1;
+      }
+      // a very long line, at least don't split characters
+      for (int i = 0, limit = buffer.limit(); i < limit; i++) {
+        if (isCharacterStart(buffer, i)) return offset + i;
+      }
+      return end;
+    }
+    finally {
+      unmap(buffer);
+    }
+  }
+
+  /**
+   * UTF-8 continuation bytes are {@code 10xxxxxx}. Other multibyte charsets with ASCII line separators (Shift_JIS, GBK, Big5,
+   * EUC-*) only use bytes from 0x40 up in multibyte characters, so a character surely starts after a byte below 0x40.
+   */
+  private boolean isCharacterStart(@NotNull ByteBuffer buffer, int index) {
+    if (mySingleByteCharset) return true;
+    if (CharsetToolkit.UTF8_CHARSET.equals(myCharset)) return (buffer.get(index) & 0xC0) != 0x80;
+    return index > 0 && (buffer.get(index - 1) & 0xFF) < 0x40;
+  }
+
+  @NotNull
+  private MappedByteBuffer map(long start, long end) throws IOException {
+    return myChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+  }
+
+  // don't wait for GC to release mappings of a multi-gigabyte file
+  private static void unmap(@NotNull ByteBuffer buffer) {
+    DirectBufferWrapper.disposeDirectBuffer(buffer);
+  }
+
+  @Override
+  public void dispose() {
+    try {
+      myRandomAccessFile.close();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+}
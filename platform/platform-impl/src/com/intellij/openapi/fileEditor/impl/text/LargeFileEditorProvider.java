@@ -18,23 +18,29 @@ package com.intellij.openapi.fileEditor.impl.text;
 import com.intellij.codeHighlighting.BackgroundEditorHighlighter;
 import com.intellij.ide.structureView.StructureViewBuilder;
 import com.intellij.openapi.application.ApplicationNamesInfo;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileEditor.*;
 import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.UserDataHolderBase;
+import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.SingleRootFileViewProvider;
 import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.beans.PropertyChangeListener;
+import java.io.IOException;
+import java.nio.charset.Charset;
 
 /**
  * @author peter
  */
 public class LargeFileEditorProvider implements FileEditorProvider, DumbAware {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.fileEditor.impl.text.LargeFileEditorProvider");
 
   public boolean accept(@NotNull Project project, @NotNull VirtualFile file) {
     if (file.isDirectory() || !file.isValid()) {
@@ -45,7 +51,7 @@ public class LargeFileEditorProvider implements FileEditorProvider, DumbAware {
 
   @NotNull
   public FileEditor createEditor(@NotNull Project project, @NotNull final VirtualFile file) {
-    return new LargeFileEditor(file);
+    return new LargeFileEditor(project, file);
   }
 
   public void disposeEditor(@NotNull FileEditor editor) {
@@ -72,23 +78,47 @@ public class LargeFileEditorProvider implements FileEditorProvider, DumbAware {
 
   private static class LargeFileEditor extends UserDataHolderBase implements FileEditor {
     private final VirtualFile myFile;
+    private final LargeFileViewer myViewer;
+    private final JComponent myComponent;
 
-    public LargeFileEditor(VirtualFile file) {
+    public LargeFileEditor(Project project, VirtualFile file) {
       myFile = file;
+      myViewer = createViewer(project, file);
+      if (myViewer != null) {
+        myComponent = myViewer;
+      }
+      else {
+        JLabel label = new JLabel(
+          "File " + myFile.getPath() + " is too large for " + ApplicationNamesInfo.getInstance().getFullProductName() + " editor");
+        label.setHorizontalAlignment(SwingConstants.CENTER);
+        myComponent = label;
+      }
+    }
+
+    @Nullable
+    private static LargeFileViewer createViewer(Project project, VirtualFile file) {
+      Charset charset = file.getCharset();
+      if (!file.isInLocalFileSystem() || !LargeFileContent.isSupported(charset)) {
+        return null;
+      }
+      try {
+        return new LargeFileViewer(project, file, new LargeFileContent(VfsUtilCore.virtualToIoFile(file), charset));
+      }
+      catch (IOException e) {
+        LOG.info(e);
+        return null;
+      }
     }
 
     @NotNull
     @Override
     public JComponent getComponent() {
-      JLabel label = new JLabel(
-        "File " + myFile.getPath() + " is too large for " + ApplicationNamesInfo.getInstance().getFullProductName() + " editor");
-      label.setHorizontalAlignment(SwingConstants.CENTER);
-      return label;
+      return myComponent;
     }
 
     @Override
     public JComponent getPreferredFocusedComponent() {
-      return null;
+      return myViewer != null ? myViewer.getPreferredFocusedComponent() : null;
     }
 
     @NotNull
@@ -150,6 +180,9 @@ public class LargeFileEditorProvider implements FileEditorProvider, DumbAware {
 
     @Override
     public void dispose() {
+      if (myViewer != null) {
+        Disposer.dispose(myViewer);
+      }
     }
 
   }
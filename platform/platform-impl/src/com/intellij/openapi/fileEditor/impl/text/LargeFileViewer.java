@@ -0,0 +1,364 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.find.FindManager;
+import com.intellij.find.FindModel;
+import com.intellij.find.FindResult;
+import com.intellij.icons.AllIcons;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.actionSystem.*;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.ScrollType;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbAwareAction;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.containers.Convertor;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+
+/**
+ * Read-only editor component showing one {@link LargeFileContent} page at a time. Lines are indexed in background after opening;
+ * until that's done line numbers in the gutter are relative to the current page and 'Go to Line' is unavailable.
+ * <p/>
+ * Search goes through {@link FindManager#findString} page by page, so a match can't span pages.
+ */
+class LargeFileViewer extends JPanel implements Disposable {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.fileEditor.impl.text.LargeFileViewer");
+
+  private final Project myProject;
+  private final VirtualFile myFile;
+  private final LargeFileContent myContent;
+  private final Document myDocument;
+  private final EditorEx myEditor;
+  private final JLabel myStatus = new JLabel();
+
+  private volatile boolean myDisposed;
+  private int myPage = -1;
+  private int myPageFirstLine = -1;
+  private FindModel myFindModel;
+
+  LargeFileViewer(@NotNull Project project, @NotNull VirtualFile file, @NotNull LargeFileContent content) {
+    super(new BorderLayout());
+    myProject = project;
+    myFile = file;
+    myContent = content;
+
+    myDocument = EditorFactory.getInstance().createDocument("");
+    myEditor = (EditorEx)EditorFactory.getInstance().createViewer(myDocument, project);
+    myEditor.getSettings().setLineNumbersShown(true);
+    myEditor.getSettings().setFoldingOutlineShown(false);
+    myEditor.getGutterComponentEx().setLineNumberConvertor(new Convertor<Integer, Integer>() {
+      @Override
+      public Integer convert(Integer line) {
+        return myPageFirstLine < 0 ? line : myPageFirstLine + line;
+      }
+    });
+
+    DefaultActionGroup group = new DefaultActionGroup();
+    group.add(new PageAction(false));
+    group.add(new PageAction(true));
+    group.add(new GoToLineAction());
+    group.addSeparator();
+    group.add(new FindAction());
+    group.add(new FindNextAction(false));
+    group.add(new FindNextAction(true));
+
+    JPanel top = new JPanel(new BorderLayout());
+    top.add(ActionManager.getInstance().createActionToolbar(ActionPlaces.UNKNOWN, group, true).getComponent(), BorderLayout.WEST);
+    myStatus.setBorder(BorderFactory.createEmptyBorder(0, 5, 0, 5));
+    top.add(myStatus, BorderLayout.EAST);
+    add(top, BorderLayout.NORTH);
+    add(myEditor.getComponent(), BorderLayout.CENTER);
+
+    showPage(0, 0, 0);
+    buildLineIndex();
+  }
+
+  @NotNull
+  JComponent getPreferredFocusedComponent() {
+    return myEditor.getContentComponent();
+  }
+
+  private void buildLineIndex() {
+    ProgressManager.getInstance().run(new Task.Backgroundable(myProject, "Indexing lines of " + myFile.getName(), true) {
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        try {
+          myContent.buildLineIndex(indicator);
+        }
+        catch (IOException e) {
+          LOG.info(e);
+        }
+      }
+
+      @Override
+      public void onSuccess() {
+        if (!myDisposed && myPage >= 0 && myContent.isLineIndexReady()) {
+          showPage(myPage, myEditor.getSelectionModel().getSelectionStart(), myEditor.getSelectionModel().getSelectionEnd());
+        }
+      }
+    });
+  }
+
+  /**
+   * Loads the page in background, shows it and selects the given range
+   */
+  private void showPage(final int page, final int selectionStart, final int selectionEnd) {
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final String text = myContent.getPageText(page);
+          final int firstLine = myContent.isLineIndexReady() ? myContent.getLineNumber(myContent.getPageStart(page)) : -1;
+          ApplicationManager.getApplication().invokeLater(new Runnable() {
+            @Override
+            public void run() {
+              if (!myDisposed) {
+                doShowPage(page, text, firstLine, selectionStart, selectionEnd);
+              }
+            }
+          });
+        }
+        catch (IOException e) {
+          LOG.info(e);
+          setStatus("Cannot read " + myFile.getPresentableUrl() + ": " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  private void doShowPage(int page, final String text, int firstLine, int selectionStart, int selectionEnd) {
+    if (page != myPage) {
+      ApplicationManager.getApplication().runWriteAction(new Runnable() {
+        @Override
+        public void run() {
+          myDocument.setReadOnly(false);
+          myDocument.setText(text);
+          myDocument.setReadOnly(true);
+        }
+      });
+      myPage = page;
+    }
+    myPageFirstLine = firstLine;
+    myEditor.getCaretModel().moveToOffset(selectionEnd);
+    myEditor.getSelectionModel().setSelection(selectionStart, selectionEnd);
+    myEditor.getScrollingModel().scrollToCaret(ScrollType.CENTER);
+    myEditor.getGutterComponentEx().revalidateMarkup();
+    myEditor.getGutterComponentEx().repaint();
+
+    String status = "Page " + (page + 1) + " of " + myContent.getPageCount();
+    status += myContent.isLineIndexReady() ? ", " + myContent.getLineCount() + " lines" : ", indexing lines...";
+    setStatus(status);
+  }
+
+  private void setStatus(@NotNull final String status) {
+    ApplicationManager.getApplication().invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        myStatus.setText(status);
+      }
+    });
+  }
+
+  private void find(final boolean forward) {
+    final FindModel model = (FindModel)myFindModel.clone();
+    model.setForward(forward);
+    final int startPage = myPage;
+    final int startOffset = forward ? myEditor.getSelectionModel().getSelectionEnd() : myEditor.getSelectionModel().getSelectionStart();
+
+    ProgressManager.getInstance().run(new Task.Backgroundable(myProject, "Searching in " + myFile.getName(), true) {
+      private int myFoundPage = -1;
+      private FindResult myResult;
+
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        final FindManager findManager = FindManager.getInstance(myProject);
+        int pageCount = myContent.getPageCount();
+        for (int page = startPage; page >= 0 && page < pageCount && !myDisposed; page += forward ? 1 : -1) {
+          indicator.checkCanceled();
+          indicator.setFraction(forward ? (double)(page - startPage) / (pageCount - startPage) : (double)(startPage - page) / (startPage + 1));
+          try {
+            final String text = myContent.getPageText(page);
+            final int offset = page == startPage ? startOffset : forward ? 0 : text.length();
+            FindResult result = ApplicationManager.getApplication().runReadAction(new Computable<FindResult>() {
+              @Override
+              public FindResult compute() {
+                return findManager.findString(text, offset, model, myFile);
+              }
+            });
+            if (result.isStringFound()) {
+              myFoundPage = page;
+              myResult = result;
+              return;
+            }
+          }
+          catch (IOException e) {
+            LOG.info(e);
+            return;
+          }
+        }
+      }
+
+      @Override
+      public void onSuccess() {
+        if (myDisposed) return;
+        if (myResult == null) {
+          setStatus("'" + model.getStringToFind() + "' not found");
+        }
+        else {
+          showPage(myFoundPage, myResult.getStartOffset(), myResult.getEndOffset());
+        }
+      }
+    });
+  }
+
+  /**
+   * Makes the given action handle the shortcuts of the given global action when the viewer is focused
+   */
+  private void registerShortcut(@NotNull AnAction action, @NotNull String sourceActionId) {
+    AnAction sourceAction = ActionManager.getInstance().getAction(sourceActionId);
+    if (sourceAction != null) {
+      action.copyShortcutFrom(sourceAction);
+      action.registerCustomShortcutSet(action.getShortcutSet(), this);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    myDisposed = true;
+    EditorFactory.getInstance().releaseEditor(myEditor);
+    myContent.dispose();
+  }
+
+  private class PageAction extends DumbAwareAction {
+    private final boolean myNext;
+
+    private PageAction(boolean next) {
+      super(next ? "Next Page" : "Previous Page", null, next ? AllIcons.Actions.Forward : AllIcons.Actions.Back);
+      myNext = next;
+    }
+
+    @Override
+    public void update(AnActionEvent e) {
+      int page = myPage + (myNext ? 1 : -1);
+      e.getPresentation().setEnabled(myPage >= 0 && page >= 0 && page < myContent.getPageCount());
+    }
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+      showPage(myPage + (myNext ? 1 : -1), 0, 0);
+    }
+  }
+
+  private class GoToLineAction extends DumbAwareAction {
+    private GoToLineAction() {
+      super("Go to Line...", null, AllIcons.Actions.Nextfile);
+      registerShortcut(this, "GotoLine");
+    }
+
+    @Override
+    public void update(AnActionEvent e) {
+      e.getPresentation().setEnabled(myContent.isLineIndexReady());
+    }
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+      int lineCount = myContent.getLineCount();
+      String input = Messages.showInputDialog(myProject, "Line number (1-" + lineCount + "):", "Go to Line", null);
+      if (input == null) return;
+      final int line;
+      try {
+        line = Math.max(0, Math.min(lineCount, Integer.parseInt(input.trim())) - 1);
+      }
+      catch (NumberFormatException ignored) {
+        return;
+      }
+      ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            long offset = myContent.getLineStartOffset(line);
+            int offsetInPage = myContent.getOffsetInPage(offset);
+            showPage(myContent.getPageByOffset(offset), offsetInPage, offsetInPage);
+          }
+          catch (IOException e) {
+            LOG.info(e);
+          }
+        }
+      });
+    }
+  }
+
+  private class FindAction extends DumbAwareAction {
+    private FindAction() {
+      super("Find...", null, AllIcons.Actions.Find);
+      registerShortcut(this, IdeActions.ACTION_FIND);
+    }
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+      final FindManager findManager = FindManager.getInstance(myProject);
+      final FindModel model = (FindModel)findManager.getFindInFileModel().clone();
+      String selection = myEditor.getSelectionModel().getSelectedText();
+      if (!StringUtil.isEmpty(selection) && !selection.contains("\n")) {
+        model.setStringToFind(selection);
+      }
+      model.setReplaceState(false);
+      findManager.showFindDialog(model, new Runnable() {
+        @Override
+        public void run() {
+          findManager.getFindInFileModel().copyFrom(model);
+          myFindModel = model;
+          find(model.isForward());
+        }
+      });
+    }
+  }
+
+  private class FindNextAction extends DumbAwareAction {
+    private final boolean myForward;
+
+    private FindNextAction(boolean forward) {
+      super(forward ? "Find Next" : "Find Previous", null, forward ? AllIcons.Actions.NextOccurence : AllIcons.Actions.PreviousOccurence);
+      myForward = forward;
+      registerShortcut(this, forward ? IdeActions.ACTION_FIND_NEXT : IdeActions.ACTION_FIND_PREVIOUS);
+    }
+
+    @Override
+    public void update(AnActionEvent e) {
+      e.getPresentation().setEnabled(myFindModel != null && myPage >= 0);
+    }
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+      find(myForward);
+    }
+  }
+}
@@ -142,7 +142,8 @@ class CacheUpdateRunner {
     try {
       int threadsCount = Registry.intValue("caches.indexerThreadsCount");
       if (threadsCount <= 0) {
-        threadsCount = Math.min(PROC_COUNT, 4);
+        // without pipelining indexing threads mostly wait for each other on storage locks
+        threadsCount = Registry.is("caches.pipelinedIndexing") ? PROC_COUNT : Math.min(PROC_COUNT, 4);
       }
       if (threadsCount == 1) {
         Runnable process = new MyRunnable(innerIndicator, queue, isFinished, progressUpdater, processInReadAction, application);
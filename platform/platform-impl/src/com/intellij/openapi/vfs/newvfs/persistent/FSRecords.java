@@ -85,9 +85,19 @@ public class FSRecords implements Forceable {
 
   private static final String CHILDREN_ATT = "FsRecords.DIRECTORY_CHILDREN";
 
+  // w guards structural changes (record allocation and deletion, roots, flushing), everything else runs under shared r lock.
+  // Under r, writes to a record are serialized by its record range lock, attributes and contents of a file have own lock domains.
+  // Lock order: r/w, then attribute or content lock, then record lock, then mod count lock.
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
 
+  private static final int LOCKS_COUNT = 64; // power of two
+  private static final int RECORDS_PER_LOCK_RANGE_SHIFT = 4;
+  private static final Object[] ourRecordLocks = createLocks();
+  private static final Object[] ourAttributeLocks = createLocks();
+  private static final Object[] ourContentLocks = createLocks();
+  private static final Object ourModCountLock = new Object();
+
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
 
@@ -113,7 +123,7 @@ public class FSRecords implements Forceable {
     private static ResizeableMappedFile myRecords;
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
 
-    private static boolean myDirty = false;
+    private static volatile boolean myDirty = false;
     private static ScheduledFuture<?> myFlushingFuture;
     private static boolean myCorrupted = false;
 
@@ -205,7 +215,7 @@ public class FSRecords implements Forceable {
           throw new IOException("Corruption marker file found");
         }
 
-        PagedFileStorage.StorageLockContext storageLockContext = new PagedFileStorage.StorageLockContext(false);
+        PagedFileStorage.StorageLockContext storageLockContext = PagedFileStorage.StorageLockContext.createConcurrent();
         myNames = new PersistentStringEnumerator(namesFile, storageLockContext);
         myAttributes = new Storage(attributesFile.getCanonicalPath(), REASONABLY_SMALL);
         myContents = new RefCountingStorage(contentsFile.getCanonicalPath(), CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH); // sources usually zipped with 4x ratio
@@ -483,11 +493,13 @@ public class FSRecords implements Forceable {
     }
 
     private static class AttrPageAwareCapacityAllocationPolicy extends CapacityAllocationPolicy {
-      boolean myAttrPageRequested;
+      // attributes of different files are written concurrently
+      final ThreadLocal<Boolean> myAttrPageRequested = new ThreadLocal<Boolean>();
 
       @Override
       public int calculateCapacity(int requiredLength) {   // 20% for growth
-        return Math.max(myAttrPageRequested ? 8:32, Math.min((int)(requiredLength * 1.2), (requiredLength / 1024 + 1) * 1024));
+        boolean attrPageRequested = myAttrPageRequested.get() == Boolean.TRUE;
+        return Math.max(attrPageRequested ? 8:32, Math.min((int)(requiredLength * 1.2), (requiredLength / 1024 + 1) * 1024));
       }
     }
   }
@@ -495,6 +507,26 @@ public class FSRecords implements Forceable {
   public FSRecords() {
   }
 
+  private static Object[] createLocks() {
+    Object[] locks = new Object[LOCKS_COUNT];
+    for (int i = 0; i < LOCKS_COUNT; i++) {
+      locks[i] = new Object();
+    }
+    return locks;
+  }
+
+  private static Object getRecordLock(int id) {
+    return ourRecordLocks[(id >>> RECORDS_PER_LOCK_RANGE_SHIFT) & (LOCKS_COUNT - 1)];
+  }
+
+  private static Object getAttributeLock(int fileId) {
+    return ourAttributeLocks[fileId & (LOCKS_COUNT - 1)];
+  }
+
+  private static Object getContentLock(int fileId) {
+    return ourContentLocks[fileId & (LOCKS_COUNT - 1)];
+  }
+
   public static void connect() {
     DbConnection.connect();
   }
@@ -619,7 +651,7 @@ public class FSRecords implements Forceable {
     try {
       try {
         r.lock();
-        final DataInputStream input = readAttribute(1, CHILDREN_ATT);
+        final DataInputStream input = readAttributeWithLock(1, CHILDREN_ATT);
         if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
 
         try {
@@ -768,7 +800,7 @@ public class FSRecords implements Forceable {
     try {
       r.lock();
       try {
-        final DataInputStream input = readAttribute(id, CHILDREN_ATT);
+        final DataInputStream input = readAttributeWithLock(id, CHILDREN_ATT);
         if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
 
         final int count = DataInputOutputUtil.readINT(input);
@@ -794,7 +826,7 @@ public class FSRecords implements Forceable {
     try {
       r.lock();
       try {
-        final DataInputStream input = readAttribute(parentId, CHILDREN_ATT);
+        final DataInputStream input = readAttributeWithLock(parentId, CHILDREN_ATT);
         if (input == null) return Pair.create(ArrayUtil.EMPTY_STRING_ARRAY, ArrayUtil.EMPTY_INT_ARRAY);
 
         final int count = DataInputOutputUtil.readINT(input);
@@ -822,7 +854,9 @@ public class FSRecords implements Forceable {
     try {
       r.lock();
       try {
-        return findAttributePage(id, CHILDREN_ATT, false) != 0;
+        synchronized (getAttributeLock(id)) {
+          return findAttributePage(id, CHILDREN_ATT, false) != 0;
+        }
       } finally {
         r.unlock();
       }
@@ -834,7 +868,7 @@ public class FSRecords implements Forceable {
 
   public static void updateList(int id, @NotNull int[] children) {
     try {
-      w.lock();
+      r.lock();
       DbConnection.markDirty();
       final DataOutputStream record = writeAttribute(id, CHILDREN_ATT, false);
       DataInputOutputUtil.writeINT(record, children.length);
@@ -853,15 +887,21 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
+  // should be called under r or w lock
   private static void incModCount(int id) {
     DbConnection.markDirty();
-    ourLocalModificationCount++;
-    final int count = getModCount() + 1;
-    getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+    final int count;
+    synchronized (ourModCountLock) {
+      // setters run in parallel under the shared lock, so the increment has to be guarded
+      //noinspection NonAtomicOperationOnVolatileField
+      ourLocalModificationCount++;
+      count = getModCount() + 1;
+      getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+    }
 
     int parent = id;
     int depth = 10000;
@@ -876,7 +916,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getLocalModCount() {
-    return ourLocalModificationCount; // This is volatile, only modified under Application.runWriteAction() lock.
+    return ourLocalModificationCount; // This is volatile, only modified under ourModCountLock.
   }
 
   public static int getModCount() {
@@ -917,7 +957,7 @@ public class FSRecords implements Forceable {
     }
 
     try {
-      w.lock();
+      r.lock();
       incModCount(id);
       putRecordInt(id, PARENT_OFFSET, parent);
     }
@@ -925,7 +965,7 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
@@ -977,7 +1017,7 @@ public class FSRecords implements Forceable {
 
   public static void setName(int id, String name) {
     try {
-      w.lock();
+      r.lock();
       incModCount(id);
       putRecordInt(id, NAME_OFFSET, getNames().enumerate(name));
     }
@@ -985,7 +1025,7 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
@@ -1001,7 +1041,7 @@ public class FSRecords implements Forceable {
 
   public static void setFlags(int id, int flags, final boolean markAsChange) {
     try {
-      w.lock();
+      r.lock();
       if (markAsChange) {
         incModCount(id);
       }
@@ -1011,14 +1051,14 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
   public static long getLength(int id) {
     try {
       r.lock();
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
+      return getRecordLong(id, LENGTH_OFFSET);
     }
     finally {
       r.unlock();
@@ -1027,22 +1067,22 @@ public class FSRecords implements Forceable {
 
   public static void setLength(int id, long len) {
     try {
-      w.lock();
+      r.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
+      putRecordLong(id, LENGTH_OFFSET, len);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
   public static long getTimestamp(int id) {
     try {
       r.lock();
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
+      return getRecordLong(id, TIMESTAMP_OFFSET);
     }
     finally {
       r.unlock();
@@ -1051,15 +1091,15 @@ public class FSRecords implements Forceable {
 
   public static void setTimestamp(int id, long value) {
     try {
-      w.lock();
+      r.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
+      putRecordLong(id, TIMESTAMP_OFFSET, value);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
@@ -1074,7 +1114,12 @@ public class FSRecords implements Forceable {
   }
 
   private static void setModCount(int id, int value) {
-    putRecordInt(id, MOD_COUNT_OFFSET, value);
+    synchronized (getRecordLock(id)) {
+      // concurrent modifications may come in any order, mod count must never decrease
+      if (getRecordInt(id, MOD_COUNT_OFFSET) < value) {
+        putRecordInt(id, MOD_COUNT_OFFSET, value);
+      }
+    }
   }
 
   private static int getContentRecordId(int fileId) {
@@ -1098,7 +1143,21 @@ public class FSRecords implements Forceable {
   }
 
   private static void putRecordInt(int id, int offset, int value) {
-    getRecords().putInt(getOffset(id, offset), value);
+    synchronized (getRecordLock(id)) {
+      getRecords().putInt(getOffset(id, offset), value);
+    }
+  }
+
+  private static long getRecordLong(int id, int offset) {
+    synchronized (getRecordLock(id)) { // long fields are not aligned and could be read torn otherwise
+      return getRecords().getLong(getOffset(id, offset));
+    }
+  }
+
+  private static void putRecordLong(int id, int offset, long value) {
+    synchronized (getRecordLock(id)) {
+      getRecords().putLong(getOffset(id, offset), value);
+    }
   }
 
   private static int getOffset(int id, int offset) {
@@ -1137,14 +1196,14 @@ public class FSRecords implements Forceable {
   @Nullable
   static DataInputStream readAttributeWithLock(int fileId, String attId) {
     try {
-      synchronized (attId) {
-        try {
-          r.lock();
+      try {
+        r.lock();
+        synchronized (getAttributeLock(fileId)) {
           return readAttribute(fileId, attId);
         }
-        finally {
-          r.unlock();
-        }
+      }
+      finally {
+        r.unlock();
       }
     }
     catch (Throwable e) {
@@ -1152,7 +1211,7 @@ public class FSRecords implements Forceable {
     }
   }
 
-  // should be called under r or w lock
+  // should be called under r or w lock and attribute lock of the file
   @Nullable
   private static DataInputStream readAttribute(int fileId, String attId) throws IOException {
     int page = findAttributePage(fileId, attId, false);
@@ -1208,11 +1267,11 @@ public class FSRecords implements Forceable {
       DataInputOutputUtil.writeINT(appender, encodedAttrId);
       int attrAddress = storage.createNewRecord();
       DataInputOutputUtil.writeINT(appender, attrAddress);
-      DbConnection.REASONABLY_SMALL.myAttrPageRequested = true;
+      DbConnection.REASONABLY_SMALL.myAttrPageRequested.set(Boolean.TRUE);
       try {
         appender.close();
       } finally {
-        DbConnection.REASONABLY_SMALL.myAttrPageRequested = false;
+        DbConnection.REASONABLY_SMALL.myAttrPageRequested.set(Boolean.FALSE);
       }
       return attrAddress;
     }
@@ -1228,16 +1287,18 @@ public class FSRecords implements Forceable {
 
   public static int acquireFileContent(int fileId) {
     try {
-      w.lock();
-      int record = getContentRecordId(fileId);
-      if (record > 0) getContentStorage().acquireRecord(record);
-      return record;
+      r.lock();
+      synchronized (getContentLock(fileId)) {
+        int record = getContentRecordId(fileId);
+        if (record > 0) getContentStorage().acquireRecord(record);
+        return record;
+      }
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      r.unlock();
     }
   }
 
@@ -1299,7 +1360,9 @@ public class FSRecords implements Forceable {
 
     @Override
     protected int findOrCreatePage() throws IOException {
-      return findContentPage(myFileId, true);
+      synchronized (getContentLock(myFileId)) {
+        return findContentPage(myFileId, true);
+      }
     }
 
     @Override
@@ -1317,9 +1380,15 @@ public class FSRecords implements Forceable {
     }
 
     @Override
-    protected void doFlush() throws IOException {
-      synchronized (myAttributeId) {
-        super.doFlush();
+    public void writeBytes(ByteSequence bytes, int fileId) throws IOException {
+      try {
+        r.lock();
+        synchronized (getAttributeLock(fileId)) {
+          super.writeBytes(bytes, fileId);
+        }
+      }
+      finally {
+        r.unlock();
       }
     }
 
@@ -1364,12 +1433,12 @@ public class FSRecords implements Forceable {
     public void writeBytes(ByteSequence bytes, int fileId) throws IOException {
       final int page;
       try {
-        w.lock();
+        r.lock();
         incModCount(fileId);
         page = findOrCreatePage();
       }
       finally {
-        w.unlock();
+        r.unlock();
       }
 
       getStorage().writeBytes(page, bytes, myFixedSize);
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class TrigramQueryTest extends TestCase {
+  public void testText() {
+    assertQuery(TrigramQuery.forText("Hello"), "hello");
+    assertTrue(TrigramQuery.forText("ab").isAll());
+  }
+
+  public void testLiteralRegExp() {
+    assertQuery(TrigramQuery.forRegExp("foo\\.bar"), "foo.bar");
+    assertQuery(TrigramQuery.forRegExp("^\\QfooBar\\E$"), "foobar");
+  }
+
+  public void testAlternation() {
+    assertQuery(TrigramQuery.forRegExp("hello|world"), "hello", "world");
+    assertQuery(TrigramQuery.forRegExp("get(Name|Value)"), "getname", "getvalue");
+  }
+
+  public void testCharacterClass() {
+    assertQuery(TrigramQuery.forRegExp("ba[rz]k"), "bark", "bazk");
+    assertQuery(TrigramQuery.forRegExp("[Ff]oo"), "foo");
+    assertQuery(TrigramQuery.forRegExp("[^abc]def"), "def");
+    assertQuery(TrigramQuery.forRegExp("x[0-9]+yzw"), "yzw");
+  }
+
+  public void testRepetitionsSplitLiterals() {
+    assertQuery(TrigramQuery.forRegExp("abc.*def"), trigrams("abc", "def"));
+    assertQuery(TrigramQuery.forRegExp("(abcd)+x"), trigrams("abcd", "cdx"));
+    assertQuery(TrigramQuery.forRegExp("colou?r"), "color", "colour");
+  }
+
+  public void testNothingRequired() {
+    assertTrue(TrigramQuery.forRegExp("a.b").isAll());
+    assertTrue(TrigramQuery.forRegExp("\\w+").isAll());
+    assertTrue(TrigramQuery.forRegExp("(abc)*").isAll());
+    assertTrue(TrigramQuery.forRegExp("abc|.").isAll());
+    assertTrue(TrigramQuery.forRegExp("(?x)abc").isAll());
+    assertTrue(TrigramQuery.forRegExp("abc(").isAll());
+    assertTrue(TrigramQuery.forRegExp("abc)").isAll());
+  }
+
+  public void testMatchedTextContainsRequiredTrigrams() {
+    final String[] atoms = {"a", "b", "ab", "abc", "B", "x", "\\.", ".", "[ab]", "[a-c]", "[^a]", "\\w", "\\s", " "};
+    final String[] quantifiers = {"", "", "", "*", "+", "?", "{2}", "{1,3}"};
+    final Random random = new Random(0);
+    for (int i = 0; i < 2000; i++) {
+      final String regexp = randomRegExp(random, atoms, quantifiers, 2);
+      final TrigramQuery query = TrigramQuery.forRegExp(regexp);
+      final Pattern pattern = Pattern.compile(regexp, Pattern.CASE_INSENSITIVE);
+      for (int j = 0; j < 20; j++) {
+        final String text = randomText(random);
+        final Matcher matcher = pattern.matcher(text);
+        if (matcher.find()) {
+          assertTrue(regexp + " matches '" + text + "' with trigrams not satisfying " + query,
+                     satisfies(query, TrigramBuilder.buildTrigram(matcher.group())));
+        }
+      }
+    }
+  }
+
+  private static String randomRegExp(Random random, String[] atoms, String[] quantifiers, int depth) {
+    final StringBuilder builder = new StringBuilder();
+    final int length = 1 + random.nextInt(5);
+    for (int i = 0; i < length; i++) {
+      if (depth > 0 && random.nextInt(5) == 0) {
+        builder.append('(').append(randomRegExp(random, atoms, quantifiers, depth - 1));
+        if (random.nextBoolean()) {
+          builder.append('|').append(randomRegExp(random, atoms, quantifiers, depth - 1));
+        }
+        builder.append(')');
+      }
+      else {
+        builder.append(atoms[random.nextInt(atoms.length)]);
+      }
+      builder.append(quantifiers[random.nextInt(quantifiers.length)]);
+    }
+    return builder.toString();
+  }
+
+  private static String randomText(Random random) {
+    final String chars = "aAbBcx. ";
+    final StringBuilder builder = new StringBuilder();
+    final int length = random.nextInt(20);
+    for (int i = 0; i < length; i++) {
+      builder.append(chars.charAt(random.nextInt(chars.length())));
+    }
+    return builder.toString();
+  }
+
+  private static boolean satisfies(TrigramQuery query, TIntHashSet trigrams) {
+    for (TIntHashSet alternative : query.getAlternatives()) {
+      if (trigrams.containsAll(alternative.toArray())) return true;
+    }
+    return false;
+  }
+
+  private static TIntHashSet trigrams(String... strings) {
+    final TIntHashSet result = new TIntHashSet();
+    for (String s : strings) {
+      result.addAll(TrigramBuilder.buildTrigram(s).toArray());
+    }
+    return result;
+  }
+
+  private static void assertQuery(TrigramQuery query, String... alternatives) {
+    final TIntHashSet[] expected = new TIntHashSet[alternatives.length];
+    for (int i = 0; i < alternatives.length; i++) {
+      expected[i] = trigrams(alternatives[i]);
+    }
+    assertQuery(query, expected);
+  }
+
+  private static void assertQuery(TrigramQuery query, TIntHashSet... alternatives) {
+    assertEquals(new HashSet<TIntHashSet>(Arrays.asList(alternatives)), new HashSet<TIntHashSet>(query.getAlternatives()));
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks lazily applied shifts of {@link SegmentArray} against plain lists of segments.
+ */
+public class SegmentArrayTest extends TestCase {
+  private static final int GAP = 1000;
+
+  private final List<Integer> myStarts = new ArrayList<Integer>();
+  private final List<Integer> myEnds = new ArrayList<Integer>();
+  private final List<Integer> myData = new ArrayList<Integer>();
+  private SegmentArrayWithData mySegments;
+
+  public void testInterleavedShiftsInsertsAndRemoves() {
+    for (int seed = 0; seed < 20; seed++) {
+      doTest(new Random(seed));
+    }
+  }
+
+  public void testShiftBeforeAndAfterPendingShift() {
+    mySegments = new SegmentArrayWithData();
+    for (int i = 0; i < 10; i++) {
+      add(i, i * 10, i * 10 + 10, i);
+    }
+    shift(5, 3);
+    shift(2, 4);
+    shift(8, -2);
+    changeLength(0, 1);
+    remove(3, 6);
+    insert(1, 2);
+    check();
+  }
+
+  public void testFindSegmentIndex() {
+    mySegments = new SegmentArrayWithData();
+    for (int i = 0; i < 100; i++) {
+      add(i, i * 10, i * 10 + 10, 0);
+    }
+    mySegments.changeSegmentLength(40, 5);
+    mySegments.changeSegmentLength(20, -5);
+    assertEquals(20, mySegments.findSegmentIndex(200));
+    assertEquals(20, mySegments.findSegmentIndex(204));
+    assertEquals(21, mySegments.findSegmentIndex(205));
+    assertEquals(40, mySegments.findSegmentIndex(404));
+    assertEquals(41, mySegments.findSegmentIndex(410));
+    assertEquals(99, mySegments.findSegmentIndex(995));
+    assertEquals(1000, mySegments.getLastValidOffset());
+  }
+
+  private void doTest(Random random) {
+    mySegments = new SegmentArrayWithData();
+    myStarts.clear();
+    myEnds.clear();
+    myData.clear();
+    for (int i = 0; i < 50; i++) {
+      add(i, i * GAP, i * GAP + GAP / 2, i);
+    }
+
+    for (int step = 0; step < 2000; step++) {
+      int count = myStarts.size();
+      int index = random.nextInt(count + 1);
+      switch (random.nextInt(6)) {
+        case 0:
+          shift(index, random.nextInt(2 * GAP) - GAP / 4);
+          break;
+        case 1:
+          if (index < count) changeLength(index, random.nextInt(GAP / 4) - GAP / 8);
+          break;
+        case 2:
+          insert(index, 1 + random.nextInt(5));
+          break;
+        case 3:
+          if (count > 10) remove(index, Math.min(count, index + 1 + random.nextInt(5)));
+          break;
+        case 4:
+          if (index < count) set(index, random.nextInt(100));
+          break;
+        case 5:
+          if (index < count) replace(index, Math.min(count, index + random.nextInt(4)), random.nextInt(4));
+          break;
+      }
+      check();
+    }
+  }
+
+  private void add(int index, int start, int end, int data) {
+    mySegments.setElementAt(index, start, end, data);
+    myStarts.add(start);
+    myEnds.add(end);
+    myData.add(data);
+  }
+
+  private void shift(int startIndex, int shift) {
+    for (int i = startIndex; i < myStarts.size(); i++) {
+      if (myStarts.get(i) + shift < 0) return; // offsets can't become negative
+    }
+    mySegments.shiftSegments(startIndex, shift);
+    for (int i = startIndex; i < myStarts.size(); i++) {
+      myStarts.set(i, myStarts.get(i) + shift);
+      myEnds.set(i, myEnds.get(i) + shift);
+    }
+  }
+
+  private void changeLength(int index, int change) {
+    if (myEnds.get(index) + change < myStarts.get(index)) return;
+    for (int i = index + 1; i < myStarts.size(); i++) {
+      if (myStarts.get(i) + change < 0) return;
+    }
+    mySegments.changeSegmentLength(index, change);
+    myEnds.set(index, myEnds.get(index) + change);
+    for (int i = index + 1; i < myStarts.size(); i++) {
+      myStarts.set(i, myStarts.get(i) + change);
+      myEnds.set(i, myEnds.get(i) + change);
+    }
+  }
+
+  private void insert(int index, int count) {
+    int start = index < myStarts.size() ? myStarts.get(index) : index == 0 ? 0 : myEnds.get(index - 1);
+    SegmentArrayWithData inserted = new SegmentArrayWithData();
+    for (int i = 0; i < count; i++) {
+      inserted.setElementAt(i, start, start, 7);
+    }
+    // the inserted array may have a pending shift of its own
+    inserted.shiftSegments(0, 1);
+    mySegments.insert(inserted, index);
+    for (int i = 0; i < count; i++) {
+      myStarts.add(index, start + 1);
+      myEnds.add(index, start + 1);
+      myData.add(index, 7);
+    }
+  }
+
+  private void remove(int startIndex, int endIndex) {
+    mySegments.remove(startIndex, endIndex);
+    for (int i = startIndex; i < endIndex; i++) {
+      myStarts.remove(startIndex);
+      myEnds.remove(startIndex);
+      myData.remove(startIndex);
+    }
+  }
+
+  private void set(int index, int length) {
+    int start = myStarts.get(index);
+    mySegments.setElementAt(index, start, start + length, 3);
+    myEnds.set(index, start + length);
+    myData.set(index, 3);
+  }
+
+  private void replace(int startIndex, int endIndex, int newCount) {
+    int start = startIndex < myStarts.size() ? myStarts.get(startIndex) : 0;
+    SegmentArrayWithData newData = new SegmentArrayWithData();
+    for (int i = 0; i < newCount; i++) {
+      newData.setElementAt(i, start + i, start + i + 1, 5);
+    }
+    mySegments.replace(startIndex, endIndex, newData);
+    for (int i = startIndex; i < endIndex; i++) {
+      myStarts.remove(startIndex);
+      myEnds.remove(startIndex);
+      myData.remove(startIndex);
+    }
+    for (int i = newCount - 1; i >= 0; i--) {
+      myStarts.add(startIndex, start + i);
+      myEnds.add(startIndex, start + i + 1);
+      myData.add(startIndex, 5);
+    }
+  }
+
+  private void check() {
+    assertEquals(myStarts.size(), mySegments.getSegmentCount());
+    for (int i = 0; i < myStarts.size(); i++) {
+      assertEquals("start of " + i, myStarts.get(i).intValue(), mySegments.getSegmentStart(i));
+      assertEquals("end of " + i, myEnds.get(i).intValue(), mySegments.getSegmentEnd(i));
+      assertEquals("data of " + i, myData.get(i).intValue(), mySegments.getSegmentData(i));
+    }
+  }
+}
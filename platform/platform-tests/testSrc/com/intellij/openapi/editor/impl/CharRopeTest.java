@@ -0,0 +1,76 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class CharRopeTest extends TestCase {
+  public void testRandomReplacesAndSubSequences() {
+    for (int seed = 0; seed < 10; seed++) {
+      Random random = new Random(seed);
+      StringBuilder expected = new StringBuilder(randomText(random, 3 * CharRope.MAX_LEAF_LENGTH + 17));
+      CharRope rope = CharRope.create(expected);
+
+      for (int step = 0; step < 1000; step++) {
+        int start = random.nextInt(expected.length() + 1);
+        int end = start + random.nextInt(Math.min(expected.length() - start, 2 * CharRope.MAX_LEAF_LENGTH) + 1);
+        // mostly typing-sized changes, sometimes ones spanning several leaves
+        String text = randomText(random, random.nextInt(10) == 0 ? random.nextInt(3 * CharRope.MAX_LEAF_LENGTH) : random.nextInt(3));
+
+        CharRope before = rope;
+        String beforeText = expected.toString();
+        rope = rope.replace(start, end, text);
+        expected.replace(start, end, text);
+
+        assertEquals(expected.length(), rope.length());
+        assertEquals(expected.toString(), rope.toString());
+        assertEquals("snapshot must not change", beforeText, before.toString());
+
+        int subStart = random.nextInt(expected.length() + 1);
+        int subEnd = subStart + random.nextInt(expected.length() - subStart + 1);
+        assertEquals(expected.substring(subStart, subEnd), rope.subSequence(subStart, subEnd).toString());
+        if (subStart < subEnd) {
+          assertEquals(expected.charAt(subEnd - 1), rope.charAt(subEnd - 1));
+          assertEquals(expected.charAt(subStart), rope.charAt(subStart));
+        }
+      }
+
+      rope = rope.delete(0, rope.length());
+      assertEquals(0, rope.length());
+      assertEquals("abc", rope.insert(0, "abc").toString());
+    }
+  }
+
+  public void testCharAtOutOfRange() {
+    CharRope rope = CharRope.create("abc");
+    try {
+      rope.charAt(3);
+      fail();
+    }
+    catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  private static String randomText(Random random, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = random.nextInt(20) == 0 ? '\n' : (char)('a' + random.nextInt(26));
+    }
+    return new String(chars);
+  }
+}
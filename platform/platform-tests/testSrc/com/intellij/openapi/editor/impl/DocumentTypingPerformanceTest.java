@@ -0,0 +1,80 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.text.CharArrayCharSequence;
+
+public class DocumentTypingPerformanceTest extends LightPlatformTestCase {
+  private static final int DOCUMENT_LENGTH = 100 * 1024 * 1024; // 200MB of chars
+  private static final int LINE_LENGTH = 80;
+
+  private boolean myOldCheckConsistency;
+  private int myOldRopeThreshold;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // consistency checks copy the whole text on every change
+    myOldCheckConsistency = DocumentImpl.CHECK_DOCUMENT_CONSISTENCY;
+    DocumentImpl.CHECK_DOCUMENT_CONSISTENCY = false;
+    myOldRopeThreshold = CharArray.setRopeThreshold(1024 * 1024);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    CharArray.setRopeThreshold(myOldRopeThreshold);
+    DocumentImpl.CHECK_DOCUMENT_CONSISTENCY = myOldCheckConsistency;
+    super.tearDown();
+  }
+
+  public void testTypingInTheMiddleOfHugeDocument() {
+    final DocumentImpl document = new DocumentImpl(createText(), true);
+    final int offset = document.getTextLength() / 2;
+    final CharSequence before = document.getImmutableCharSequence();
+
+    PlatformTestUtil.startPerformanceTest("typing in the middle of a 200MB document", 3000, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 10000; i++) {
+          document.insertString(offset + i, i % LINE_LENGTH == LINE_LENGTH - 1 ? "\n" : "x");
+          if (i % 10 == 9) {
+            // typo fixed with backspace
+            document.deleteString(offset + i, offset + i + 1);
+            document.insertString(offset + i, "y");
+          }
+        }
+      }
+    }).cpuBound().assertTiming();
+
+    assertEquals(DOCUMENT_LENGTH, before.length());
+    assertEquals('a', before.charAt(offset));
+    int line = document.getLineNumber(offset);
+    assertEquals(line * LINE_LENGTH, document.getLineStartOffset(line));
+    assertEquals(DOCUMENT_LENGTH + 10000, document.getTextLength());
+    assertEquals('\n', document.getCharsSequence().charAt(document.getTextLength() - 1));
+  }
+
+  private static CharSequence createText() {
+    char[] chars = new char[DOCUMENT_LENGTH];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = i % LINE_LENGTH == LINE_LENGTH - 1 ? '\n' : 'a';
+    }
+    return new CharArrayCharSequence(chars);
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.testFramework.LightPlatformTestCase;
+import gnu.trove.TIntArrayList;
+
+import java.util.Random;
+
+public class LineSetTest extends LightPlatformTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // optimized multiline updates are checked against the generic one on every change
+    LineSet.setTestingMode(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    LineSet.setTestingMode(false);
+    super.tearDown();
+  }
+
+  public void testLineStartsAfterMultilineInsertsAndDeletes() {
+    Random random = new Random(42);
+    DocumentImpl document = new DocumentImpl(randomText(random, 2000), true);
+    for (int step = 0; step < 500; step++) {
+      int length = document.getTextLength();
+      int offset = random.nextInt(length + 1);
+      if (random.nextBoolean() && length > 0) {
+        document.deleteString(offset, Math.min(length, offset + random.nextInt(200)));
+      }
+      else {
+        document.insertString(offset, randomText(random, random.nextInt(200)));
+      }
+      checkLines(document);
+    }
+  }
+
+  public void testTypingLineBreaks() {
+    DocumentImpl document = new DocumentImpl("first\nsecond\nthird", true);
+    document.insertString(3, "\n\n");
+    checkLines(document);
+    document.insertString(document.getTextLength(), "\n");
+    checkLines(document);
+    document.deleteString(3, 5);
+    checkLines(document);
+    document.deleteString(0, document.getTextLength());
+    checkLines(document);
+  }
+
+  private static void checkLines(DocumentImpl document) {
+    CharSequence text = document.getCharsSequence();
+    TIntArrayList starts = new TIntArrayList();
+    starts.add(0);
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == '\n') {
+        starts.add(i + 1);
+      }
+    }
+
+    int lineCount = Math.max(1, document.getLineCount());
+    if (text.length() > 0) {
+      assertEquals(text.toString(), starts.size(), document.getLineCount());
+    }
+    for (int line = 0; line < lineCount; line++) {
+      int start = starts.get(line);
+      assertEquals("start of line " + line, start, document.getLineStartOffset(line));
+      assertEquals("line of offset " + start, line, document.getLineNumber(start));
+    }
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder text = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      text.append(random.nextInt(8) == 0 ? '\n' : (char)('a' + random.nextInt(26)));
+    }
+    return text.toString();
+  }
+}
@@ -23,6 +23,7 @@ import com.intellij.psi.impl.PsiToDocumentSynchronizer;
 import com.intellij.testFramework.LeakHunter;
 import com.intellij.testFramework.LightPlatformTestCase;
 import com.intellij.testFramework.Timings;
+import com.intellij.util.CommonProcessors;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
@@ -975,6 +976,36 @@ public class RangeMarkerTest extends LightPlatformTestCase {
     assertEquals(2, ((DocumentImpl)document).getRangeMarkersSize());
     assertEquals(2, ((DocumentImpl)document).getRangeMarkersNodeSize());
   }
+
+  public void testDuplicateIntervalsInOneNode() throws Exception {
+    final DocumentImpl document = (DocumentImpl)EditorFactory.getInstance().createDocument("[xxxxxxxxxxxxxx]");
+    final List<RangeMarker> markers = new ArrayList<RangeMarker>();
+    for (int i = 1; i <= 3; i++) {
+      markers.add(document.createRangeMarker(2, 4));
+      assertEquals(i, document.getRangeMarkersSize());
+      assertEquals(1, document.getRangeMarkersNodeSize());
+      assertAliveMarkers(document, markers);
+    }
+
+    for (int i : new int[]{1, 0, 0}) {
+      markers.remove(i).dispose();
+      assertEquals(markers.size(), document.getRangeMarkersSize());
+      assertEquals(markers.isEmpty() ? 0 : 1, document.getRangeMarkersNodeSize());
+      assertAliveMarkers(document, markers);
+    }
+  }
+
+  private static void assertAliveMarkers(DocumentImpl document, List<RangeMarker> expected) {
+    final List<RangeMarker> alive = new ArrayList<RangeMarker>();
+    document.processRangeMarkers(new CommonProcessors.CollectProcessor<RangeMarker>(alive));
+    assertSameElements(alive, expected);
+    for (RangeMarker marker : expected) {
+      assertTrue(marker.isValid());
+      assertEquals(2, marker.getStartOffset());
+      assertEquals(4, marker.getEndOffset());
+    }
+  }
+
   public void testRangeHighlightersRecreateBug() throws Exception {
     Document document = EditorFactory.getInstance().createDocument("[xxxxxxxxxxxxxx]");
 
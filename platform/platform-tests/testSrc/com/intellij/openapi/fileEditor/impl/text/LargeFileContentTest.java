@@ -0,0 +1,113 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import gnu.trove.TLongArrayList;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+public class LargeFileContentTest extends TestCase {
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("large", ".txt");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myFile);
+    super.tearDown();
+  }
+
+  public void testCrLfLines() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 3 * LargeFileContent.PAGE_SIZE; i++) {
+      text.append("line ").append(i).append("\r\n");
+    }
+    doTest(text.toString(), CharsetToolkit.UTF8_CHARSET);
+  }
+
+  public void testLinesLongerThanAlignment() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 3 * LargeFileContent.PAGE_SIZE; i++) {
+      text.append("short\r\n");
+      for (int j = 0; j < LargeFileContent.MAX_LINE_ALIGNMENT / 3; j++) {
+        text.append("\u0436\u00e9x"); // two- and one-byte characters in UTF-8
+      }
+      text.append("\n");
+    }
+    doTest(text.toString(), CharsetToolkit.UTF8_CHARSET);
+  }
+
+  public void testLongLinesInShiftJis() throws IOException {
+    Charset charset = Charset.forName("Shift_JIS");
+    assertTrue(LargeFileContent.isSupported(charset));
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 2 * LargeFileContent.PAGE_SIZE; i++) {
+      // the second byte of these characters is in the ASCII range
+      for (int j = 0; j < LargeFileContent.MAX_LINE_ALIGNMENT; j++) {
+        text.append(j % 10 == 9 ? " " : "\u30bd\u8868");
+      }
+      text.append("\r\n");
+    }
+    doTest(text.toString(), charset);
+  }
+
+  private void doTest(String text, Charset charset) throws IOException {
+    byte[] bytes = text.getBytes(charset);
+    FileUtil.writeToFile(myFile, bytes);
+
+    TLongArrayList lineStarts = new TLongArrayList();
+    lineStarts.add(0);
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] == '\n') lineStarts.add(i + 1);
+    }
+
+    LargeFileContent content = new LargeFileContent(myFile, charset);
+    try {
+      assertTrue(content.getPageCount() > 1);
+      StringBuilder pages = new StringBuilder();
+      for (int page = 0; page < content.getPageCount(); page++) {
+        long pageStart = content.getPageStart(page);
+        assertEquals(page, content.getPageByOffset(pageStart));
+        if (page > 0) {
+          assertEquals(pageStart, content.getPageEnd(page - 1));
+        }
+        pages.append(content.getPageText(page));
+      }
+      assertEquals(text.replace("\r\n", "\n"), pages.toString());
+
+      content.buildLineIndex(new EmptyProgressIndicator());
+      assertEquals(lineStarts.size(), content.getLineCount());
+      for (int line = 0; line < lineStarts.size(); line += 97) {
+        long start = lineStarts.get(line);
+        assertEquals("start of line " + line, start, content.getLineStartOffset(line));
+        assertEquals("line at " + start, line, content.getLineNumber(start));
+      }
+    }
+    finally {
+      content.dispose();
+    }
+  }
+}
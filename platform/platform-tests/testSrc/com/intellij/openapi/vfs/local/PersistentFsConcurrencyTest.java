@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.local;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.FileAttribute;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker;
+import com.intellij.testFramework.PlatformLangTestCase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Refresh and indexing-like attribute traffic running in parallel over the same VFS records.
+ */
+public class PersistentFsConcurrencyTest extends PlatformLangTestCase {
+  private static final FileAttribute STAMP_ATTRIBUTE = new FileAttribute("PersistentFsConcurrencyTest.stamp", 1, true);
+  private static final int DIRS_COUNT = 8;
+  private static final int FILES_PER_DIR = 200;
+
+  public void testRefreshWorkersAndAttributeWritersInParallel() throws Exception {
+    File ioRoot = createTempDirectory(false);
+    for (int i = 0; i < DIRS_COUNT; i++) {
+      File dir = new File(ioRoot, "dir" + i);
+      assertTrue(dir.mkdir());
+      for (int j = 0; j < FILES_PER_DIR; j++) {
+        FileUtil.writeToFile(new File(dir, "file" + j + ".txt"), "content " + i + " " + j);
+      }
+    }
+
+    VirtualFile root = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(ioRoot);
+    assertNotNull(root);
+    final List<VirtualFile> dirs = new ArrayList<VirtualFile>();
+    final List<VirtualFile> files = new ArrayList<VirtualFile>();
+    for (VirtualFile dir : root.getChildren()) {
+      dirs.add(dir);
+      Collections.addAll(files, dir.getChildren());
+    }
+    assertEquals(DIRS_COUNT, dirs.size());
+    assertEquals(DIRS_COUNT * FILES_PER_DIR, files.size());
+
+    for (File dir : ioRoot.listFiles()) {
+      for (File file : dir.listFiles()) {
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+      }
+    }
+
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (final VirtualFile dir : dirs) {
+      ((NewVirtualFile)dir).markDirtyRecursively();
+      threads.add(new Thread("refresh " + dir.getName()) {
+        @Override
+        public void run() {
+          try {
+            RefreshWorker worker = new RefreshWorker(dir, true);
+            worker.scan();
+            assertFalse(worker.getEvents().isEmpty());
+          }
+          catch (Throwable t) {
+            errors.add(t);
+          }
+        }
+      });
+    }
+
+    final int indexersCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+    for (int i = 0; i < indexersCount; i++) {
+      final int indexer = i;
+      threads.add(new Thread("indexer " + i) {
+        @Override
+        public void run() {
+          try {
+            for (int j = indexer; j < files.size(); j += indexersCount) {
+              VirtualFile file = files.get(j);
+              assertTrue(file.getTimeStamp() > 0);
+              assertTrue(file.getLength() > 0);
+
+              DataOutputStream output = STAMP_ATTRIBUTE.writeAttribute(file);
+              try {
+                output.writeInt(j);
+              }
+              finally {
+                output.close();
+              }
+
+              DataInputStream input = STAMP_ATTRIBUTE.readAttribute(file);
+              assertNotNull(input);
+              try {
+                assertEquals(j, input.readInt());
+              }
+              finally {
+                input.close();
+              }
+            }
+          }
+          catch (Throwable t) {
+            errors.add(t);
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (!errors.isEmpty()) {
+      throw new RuntimeException(errors.get(0));
+    }
+  }
+}
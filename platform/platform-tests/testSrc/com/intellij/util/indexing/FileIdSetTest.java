@@ -0,0 +1,81 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class FileIdSetTest extends TestCase {
+  public void testIterationIsSortedAndDistinct() {
+    final FileIdSet set = FileIdSet.fromUnsorted(new int[]{500, 3, 70000, 3, 1, 200, 1 << 30}, 7);
+    assertEquals(6, set.size());
+    final int[] ids = new int[set.size()];
+    int i = 0;
+    for (FileIdSet.IdIterator iterator = set.iterator(); iterator.hasNext(); ) {
+      ids[i++] = iterator.next();
+    }
+    assertTrue(Arrays.equals(new int[]{1, 3, 200, 500, 70000, 1 << 30}, ids));
+  }
+
+  public void testOperationsMatchHashSets() {
+    final Random random = new Random(0);
+    for (int round = 0; round < 50; round++) {
+      final TIntHashSet expected1 = randomIds(random, random.nextInt(5000), 1 + random.nextInt(100000));
+      final TIntHashSet expected2 = randomIds(random, random.nextInt(round % 2 == 0 ? 50 : 5000), 1 + random.nextInt(100000));
+      final FileIdSet set1 = FileIdSet.fromUnsorted(expected1.toArray(), expected1.size());
+      final FileIdSet set2 = FileIdSet.fromUnsorted(expected2.toArray(), expected2.size());
+
+      for (int id = 0; id < 1000; id++) {
+        final int probe = random.nextInt(100001);
+        assertEquals(expected1.contains(probe), set1.contains(probe));
+      }
+      for (int id : expected1.toArray()) {
+        assertTrue(set1.contains(id));
+      }
+
+      final TIntHashSet intersection = new TIntHashSet();
+      final TIntHashSet union = new TIntHashSet(expected1.toArray());
+      for (int id : expected2.toArray()) {
+        if (expected1.contains(id)) intersection.add(id);
+        union.add(id);
+      }
+      assertEquals(intersection, toHashSet(FileIdSet.intersect(set1, set2)));
+      assertEquals(intersection, toHashSet(FileIdSet.intersect(set2, set1)));
+      assertEquals(union, toHashSet(FileIdSet.union(set1, set2)));
+      assertEquals(union, toHashSet(FileIdSet.union(Arrays.asList(set1, FileIdSet.EMPTY, set2))));
+    }
+  }
+
+  private static TIntHashSet randomIds(Random random, int count, int bound) {
+    final TIntHashSet ids = new TIntHashSet();
+    for (int i = 0; i < count; i++) {
+      ids.add(1 + random.nextInt(bound));
+    }
+    return ids;
+  }
+
+  private static TIntHashSet toHashSet(FileIdSet set) {
+    final TIntHashSet result = new TIntHashSet();
+    for (FileIdSet.IdIterator iterator = set.iterator(); iterator.hasNext(); ) {
+      assertTrue(result.add(iterator.next()));
+    }
+    assertEquals(set.size(), result.size());
+    return result;
+  }
+}
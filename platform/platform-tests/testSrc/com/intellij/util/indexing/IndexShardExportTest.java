@@ -0,0 +1,56 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.impl.cache.impl.id.IdIndex;
+import com.intellij.testFramework.PlatformTestCase;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+public class IndexShardExportTest extends LightPlatformCodeInsightFixtureTestCase {
+  public IndexShardExportTest() {
+    PlatformTestCase.initPlatformLangPrefix();
+  }
+
+  public void testExportedDataIsImported() throws Exception {
+    final VirtualFile a = myFixture.addFileToProject("lib/a.txt", "foo bar").getVirtualFile();
+    final VirtualFile b = myFixture.addFileToProject("lib/b.txt", "foo bar").getVirtualFile();
+    final VirtualFile c = myFixture.addFileToProject("lib/c.txt", "baz").getVirtualFile();
+
+    final File shardFile = FileUtil.createTempFile("lib", "." + IndexShards.SHARD_EXTENSION);
+    try {
+      ((FileBasedIndexImpl)FileBasedIndex.getInstance()).exportIndexShard(getProject(), a.getParent(), shardFile);
+
+      final IdIndex extension = FileBasedIndexExtension.EXTENSION_POINT_NAME.findExtension(IdIndex.class);
+      final IndexShards shards = IndexShards.load(shardFile.getPath(), Collections.<FileBasedIndexExtension<?, ?>>singletonList(extension));
+      for (VirtualFile file : new VirtualFile[]{a, b, c}) {
+        final FileContentImpl content = new FileContentImpl(file, file.contentsToByteArray());
+        content.putUserData(IndexingDataKeys.PROJECT, getProject());
+        final Map<ID<?, ?>, Map<?, ?>> data = shards.getData(IndexShards.computeContentHash(content));
+        assertNotNull(file.getName(), data);
+        assertEquals(file.getName(), extension.getIndexer().map(content), data.get(IdIndex.NAME));
+      }
+    }
+    finally {
+      FileUtil.delete(shardFile);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+public class IndexShardsTest extends TestCase {
+  private static final ID<String, Integer> WORDS = ID.create("IndexShardsTest.words");
+  private static final ID<String, Integer> NAMES = ID.create("IndexShardsTest.names");
+
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("indexShards", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testDataIsImportedByContentHash() throws IOException {
+    final TestExtension words = new TestExtension(WORDS, 1);
+    final TestExtension names = new TestExtension(NAMES, 1);
+    final IndexShards.Writer writer = new IndexShards.Writer(new File(myDir, "lib." + IndexShards.SHARD_EXTENSION), list(words, names));
+    writer.add(hash(1), data(WORDS, map("foo", 1, "bar", 2), NAMES, map("Foo", 3)));
+    writer.add(hash(2), data(WORDS, map("baz", 4)));
+    assertTrue(writer.contains(hash(1)));
+    writer.add(hash(1), data(WORDS, map("ignored", 0)));
+    writer.close();
+
+    final IndexShards shards = IndexShards.load(myDir.getPath(), list(words, names));
+    assertFalse(shards.isEmpty());
+    assertEquals(data(WORDS, map("foo", 1, "bar", 2), NAMES, map("Foo", 3)), shards.getData(hash(1)));
+    assertEquals(data(WORDS, map("baz", 4)), shards.getData(hash(2)));
+    assertNull(shards.getData(hash(3)));
+  }
+
+  public void testIndicesOfOtherVersionsAreNotImported() throws IOException {
+    final File file = new File(myDir, "lib." + IndexShards.SHARD_EXTENSION);
+    final IndexShards.Writer writer = new IndexShards.Writer(file, list(new TestExtension(WORDS, 1), new TestExtension(NAMES, 1)));
+    writer.add(hash(1), data(WORDS, map("foo", 1), NAMES, map("Foo", 3)));
+    writer.close();
+
+    final IndexShards shards = IndexShards.load(file.getPath(), list(new TestExtension(WORDS, 2), new TestExtension(NAMES, 1)));
+    assertEquals(data(NAMES, map("Foo", 3)), shards.getData(hash(1)));
+
+    assertTrue(IndexShards.load(file.getPath(), list(new TestExtension(WORDS, 2))).isEmpty());
+    assertTrue(IndexShards.load(null, list(new TestExtension(WORDS, 1))).isEmpty());
+  }
+
+  private static byte[] hash(int seed) {
+    final byte[] hash = new byte[20];
+    new Random(seed).nextBytes(hash);
+    return hash;
+  }
+
+  private static List<FileBasedIndexExtension<?, ?>> list(FileBasedIndexExtension<?, ?>... extensions) {
+    return Arrays.asList(extensions);
+  }
+
+  private static Map<String, Integer> map(Object... keysAndValues) {
+    final Map<String, Integer> map = new HashMap<String, Integer>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      map.put((String)keysAndValues[i], (Integer)keysAndValues[i + 1]);
+    }
+    return map;
+  }
+
+  private static Map<ID<?, ?>, Map<?, ?>> data(Object... idsAndMaps) {
+    final Map<ID<?, ?>, Map<?, ?>> data = new HashMap<ID<?, ?>, Map<?, ?>>();
+    for (int i = 0; i < idsAndMaps.length; i += 2) {
+      data.put((ID<?, ?>)idsAndMaps[i], (Map<?, ?>)idsAndMaps[i + 1]);
+    }
+    return data;
+  }
+
+  static class TestExtension extends FileBasedIndexExtension<String, Integer> {
+    private final ID<String, Integer> myName;
+    private final int myVersion;
+
+    TestExtension(ID<String, Integer> name, int version) {
+      myName = name;
+      myVersion = version;
+    }
+
+    @NotNull
+    @Override
+    public ID<String, Integer> getName() {
+      return myName;
+    }
+
+    @NotNull
+    @Override
+    public DataIndexer<String, Integer, FileContent> getIndexer() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public KeyDescriptor<String> getKeyDescriptor() {
+      return new EnumeratorStringDescriptor();
+    }
+
+    @Override
+    public DataExternalizer<Integer> getValueExternalizer() {
+      return new EnumeratorIntegerDescriptor();
+    }
+
+    @Override
+    public FileBasedIndex.InputFilter getInputFilter() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean dependsOnFileContent() {
+      return true;
+    }
+
+    @Override
+    public int getVersion() {
+      return myVersion;
+    }
+
+    @Override
+    public boolean isDataShareable() {
+      return true;
+    }
+  }
+}
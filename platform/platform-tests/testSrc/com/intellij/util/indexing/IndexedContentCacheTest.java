@@ -0,0 +1,173 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.*;
+
+public class IndexedContentCacheTest extends TestCase {
+  private static final ID<String, Integer> WORDS = ID.create("IndexedContentCacheTest.words");
+
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("indexedContents", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testOutputIsKeptWhileReferenced() {
+    final IndexedContentCache cache = create(1, false);
+    try {
+      assertNull(cache.get(hash(1)));
+
+      cache.associate(10, hash(1), data("foo", 1), true);
+      assertEquals(data("foo", 1), cache.get(hash(1)));
+      cache.associate(11, hash(1), data("foo", 1), false);
+
+      cache.release(10);
+      assertEquals(data("foo", 1), cache.get(hash(1)));
+      cache.release(11);
+      assertNull(cache.get(hash(1)));
+    }
+    finally {
+      cache.dispose();
+    }
+  }
+
+  public void testReindexedFileReleasesOldContent() {
+    final IndexedContentCache cache = create(1, false);
+    try {
+      cache.associate(10, hash(1), data("foo", 1), true);
+      cache.associate(10, hash(2), data("bar", 2), true);
+      assertNull(cache.get(hash(1)));
+      assertEquals(data("bar", 2), cache.get(hash(2)));
+
+      cache.associate(10, hash(2), data("bar", 2), false);
+      assertEquals(data("bar", 2), cache.get(hash(2)));
+    }
+    finally {
+      cache.dispose();
+    }
+  }
+
+  public void testOutputOfOtherIndexVersionIsNotReused() {
+    IndexedContentCache cache = create(1, false);
+    cache.associate(10, hash(1), data("foo", 1), true);
+    cache.dispose();
+
+    cache = create(1, false);
+    assertEquals(data("foo", 1), cache.get(hash(1)));
+    cache.dispose();
+
+    cache = create(2, false);
+    assertEquals(Collections.emptyMap(), cache.get(hash(1)));
+    cache.dispose();
+
+    cache = create(1, true);
+    assertNull(cache.get(hash(1)));
+    cache.dispose();
+  }
+
+  public void testConcurrentUpdatesKeepReferencedOutput() throws Exception {
+    final IndexedContentCache cache = create(1, false);
+    try {
+      final int threadsCount = 4;
+      final int filesPerThread = 20;
+      final int contentsCount = 5;
+      // content of each file after the updates, -1 if the file was released, every thread updates its own files
+      final int[] contents = new int[threadsCount * filesPerThread];
+      Arrays.fill(contents, -1);
+      final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+      final List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < threadsCount; t++) {
+        final int firstFile = t * filesPerThread;
+        final Random random = new Random(t);
+        threads.add(new Thread("updater " + t) {
+          @Override
+          public void run() {
+            try {
+              for (int i = 0; i < 2000; i++) {
+                final int file = firstFile + random.nextInt(filesPerThread);
+                if (random.nextInt(4) == 0) {
+                  cache.release(file + 1);
+                  contents[file] = -1;
+                }
+                else {
+                  final int content = random.nextInt(contentsCount);
+                  cache.associate(file + 1, hash(content), data("foo", content), cache.get(hash(content)) == null);
+                  contents[file] = content;
+                }
+              }
+            }
+            catch (Throwable e) {
+              errors.add(e);
+            }
+          }
+        });
+      }
+      for (Thread thread : threads) {
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertTrue(errors.toString(), errors.isEmpty());
+
+      for (int file = 0; file < contents.length; file++) {
+        if (contents[file] >= 0) {
+          assertEquals(data("foo", contents[file]), cache.get(hash(contents[file])));
+        }
+      }
+      for (int file = 0; file < contents.length; file++) {
+        cache.release(file + 1);
+      }
+      for (int content = 0; content < contentsCount; content++) {
+        assertNull(cache.get(hash(content)));
+      }
+    }
+    finally {
+      cache.dispose();
+    }
+  }
+
+  private IndexedContentCache create(int version, boolean clean) {
+    final Map<ID<?, ?>, FileBasedIndexExtension<?, ?>> extensions = new HashMap<ID<?, ?>, FileBasedIndexExtension<?, ?>>();
+    extensions.put(WORDS, new IndexShardsTest.TestExtension(WORDS, version));
+    final IndexedContentCache cache = IndexedContentCache.create(myDir, extensions, clean);
+    assertNotNull(cache);
+    return cache;
+  }
+
+  private static byte[] hash(int seed) {
+    final byte[] hash = new byte[20];
+    new Random(seed).nextBytes(hash);
+    return hash;
+  }
+
+  private static Map<ID<?, ?>, Map<?, ?>> data(String key, int value) {
+    return Collections.<ID<?, ?>, Map<?, ?>>singletonMap(WORDS, Collections.singletonMap(key, value));
+  }
+}
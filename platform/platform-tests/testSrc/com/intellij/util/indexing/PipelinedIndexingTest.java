@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.ide.caches.FileContent;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.util.registry.RegistryValue;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.PlatformTestCase;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import com.intellij.util.containers.ContainerUtil;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class PipelinedIndexingTest extends LightPlatformCodeInsightFixtureTestCase {
+  private static final int FILES_COUNT = 300;
+  private static final int THREADS_COUNT = 4;
+
+  public PipelinedIndexingTest() {
+    PlatformTestCase.initPlatformLangPrefix();
+  }
+
+  @Override
+  protected boolean isWriteActionRequired() {
+    // indexing threads take read actions
+    return false;
+  }
+
+  public void testPipelinedAndSequentialIndexingWriteSameData() throws Exception {
+    final List<VirtualFile> sequential = createFiles("sequential");
+    final List<VirtualFile> pipelined = createFiles("pipelined");
+    final FileBasedIndexImpl index = (FileBasedIndexImpl)FileBasedIndex.getInstance();
+    final FileBasedIndexExtension<?, ?>[] extensions = FileBasedIndexExtension.EXTENSION_POINT_NAME.getExtensions();
+    // contents of files created in the test are indexed on the first index query only, none is made before the updaters run
+    for (FileBasedIndexExtension<?, ?> extension : extensions) {
+      if (!extension.dependsOnFileContent()) continue;
+      for (VirtualFile file : ContainerUtil.concat(sequential, pipelined)) {
+        assertEmpty(index.getIndexedData(extension.getName(), file).keySet());
+      }
+    }
+
+    runUpdater(sequential, false);
+    runUpdater(pipelined, true);
+
+    int nonEmpty = 0;
+    for (FileBasedIndexExtension<?, ?> extension : extensions) {
+      final ID<?, ?> indexId = extension.getName();
+      for (int i = 0; i < FILES_COUNT; i++) {
+        final Map<?, ?> expected = index.getIndexedData(indexId, sequential.get(i));
+        assertEquals(indexId + " of " + pipelined.get(i).getName(), expected, index.getIndexedData(indexId, pipelined.get(i)));
+        if (!expected.isEmpty()) nonEmpty++;
+      }
+    }
+    assertTrue(String.valueOf(nonEmpty), nonEmpty >= 2 * FILES_COUNT);
+  }
+
+  private List<VirtualFile> createFiles(final String dir) {
+    final List<VirtualFile> files = new ArrayList<VirtualFile>(FILES_COUNT);
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < FILES_COUNT; i++) {
+          final String text = i % 2 == 0
+                              ? "word" + i + " shared text " + i % 7 + "\n// TODO fix " + i
+                              : "<root attr=\"a" + i + "\">\n  <!-- TODO check " + i % 5 + " -->\n  <item" + i + "/>\n</root>";
+          files.add(myFixture.addFileToProject(dir + "/f" + i + (i % 2 == 0 ? ".txt" : ".xml"), text).getVirtualFile());
+        }
+      }
+    });
+    return files;
+  }
+
+  private void runUpdater(final List<VirtualFile> files, boolean pipelined) throws Exception {
+    final RegistryValue pipelinedIndexing = Registry.get("caches.pipelinedIndexing");
+    final boolean wasPipelined = pipelinedIndexing.asBoolean();
+    pipelinedIndexing.setValue(pipelined);
+    try {
+      final UnindexedFilesUpdater updater = new UnindexedFilesUpdater(getProject(), (FileBasedIndexImpl)FileBasedIndex.getInstance());
+      final Queue<VirtualFile> queue = new ConcurrentLinkedQueue<VirtualFile>(files);
+      final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+      final List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < THREADS_COUNT; i++) {
+        threads.add(new Thread("indexer " + i) {
+          @Override
+          public void run() {
+            try {
+              VirtualFile file;
+              while ((file = queue.poll()) != null) {
+                final FileContent content = new FileContent(file);
+                content.cache();
+                ApplicationManager.getApplication().runReadAction(new Runnable() {
+                  @Override
+                  public void run() {
+                    updater.processFile(content);
+                  }
+                });
+              }
+            }
+            catch (Throwable t) {
+              errors.add(t);
+            }
+          }
+        });
+      }
+      for (Thread thread : threads) {
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      if (!errors.isEmpty()) {
+        throw new RuntimeException(errors.get(0));
+      }
+      updater.updatingDone();
+    }
+    finally {
+      pipelinedIndexing.setValue(wasPipelined);
+    }
+  }
+}
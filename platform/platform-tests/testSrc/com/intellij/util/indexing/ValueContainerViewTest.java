@@ -0,0 +1,154 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import com.intellij.util.io.UnsyncByteArrayOutputStream;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+public class ValueContainerViewTest extends TestCase {
+  public void testInvalidatedIdsAreSkipped() throws IOException {
+    final UnsyncByteArrayOutputStream bytes = new UnsyncByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    writeValue(out, 1, 10, 11, 12);
+    DataInputOutputUtil.writeSINT(out, -11);
+    writeValue(out, 2, 11, 13);
+    DataInputOutputUtil.writeSINT(out, -12);
+    writeValue(out, 1, 14);
+    DataInputOutputUtil.writeSINT(out, -20);
+    writeValue(out, 3, 20);
+    DataInputOutputUtil.writeSINT(out, -20);
+    out.close();
+
+    final ValueContainerView<Integer> view = new ValueContainerView<Integer>(bytes.toByteArray(), new EnumeratorIntegerDescriptor());
+    assertTrue(view.needsCompacting());
+    assertEquals(2, view.size());
+    assertEquals(Arrays.asList(1, 2), view.toValueList());
+    assertEquals(ids(10, 14), ids(view, 1));
+    assertEquals(ids(11, 13), ids(view, 2));
+    assertEquals(ids(), ids(view, 3));
+    assertEquals(2, view.getInputIdsIterator(1).size());
+    assertTrue(view.isAssociated(1, 14));
+    assertFalse(view.isAssociated(1, 11));
+    assertTrue(view.getValueAssociationPredicate(2).contains(11));
+    assertFalse(view.getValueAssociationPredicate(2).contains(10));
+
+    assertEquals(ids(10, 14), ids(view.getInputIdsSet(1)));
+    assertEquals(ids(11, 13), ids(view.getInputIdsSet(2)));
+
+    final ValueContainerImpl<Integer> container = view.toValueContainerImpl();
+    assertEquals(ids(10, 14), ids(container, 1));
+    assertEquals(ids(11, 13), ids(container, 2));
+    assertTrue(container.needsCompacting());
+  }
+
+  public void testStorageReadsMatchWrites() throws Exception {
+    final File file = FileUtil.createTempFile("valueContainer", "map");
+    MapIndexStorage<String, Integer> storage =
+      new MapIndexStorage<String, Integer>(file, new EnumeratorStringDescriptor(), new EnumeratorIntegerDescriptor(), 16);
+    try {
+      final Map<String, Map<Integer, TIntHashSet>> expected = new HashMap<String, Map<Integer, TIntHashSet>>();
+      final Random random = new Random(0);
+      for (int round = 0; round < 5; round++) {
+        for (int i = 0; i < 2000; i++) {
+          final String key = "key" + random.nextInt(20);
+          final int inputId = 1 + random.nextInt(500);
+          storage.removeAllValues(key, inputId);
+          removeId(expected, key, inputId);
+          if (random.nextInt(4) != 0) {
+            final int value = random.nextInt(3);
+            storage.addValue(key, inputId, value);
+            addId(expected, key, inputId, value);
+          }
+        }
+        storage.close();
+        storage = new MapIndexStorage<String, Integer>(file, new EnumeratorStringDescriptor(), new EnumeratorIntegerDescriptor(), 16);
+
+        for (Map.Entry<String, Map<Integer, TIntHashSet>> entry : expected.entrySet()) {
+          final ValueContainer<Integer> container = storage.read(entry.getKey());
+          final Map<Integer, TIntHashSet> values = entry.getValue();
+          assertEquals(values.keySet(), new HashSet<Integer>(container.toValueList()));
+          for (Map.Entry<Integer, TIntHashSet> valueEntry : values.entrySet()) {
+            assertEquals(valueEntry.getValue(), ids(container, valueEntry.getKey()));
+            assertEquals(valueEntry.getValue(), ids(container.getInputIdsSet(valueEntry.getKey())));
+          }
+        }
+      }
+    }
+    finally {
+      storage.close();
+      PersistentHashMap.deleteFilesStartingWith(file);
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, int value, int... ids) throws IOException {
+    DataInputOutputUtil.writeSINT(out, 1);
+    out.writeInt(value);
+    DataInputOutputUtil.writeSINT(out, ids.length);
+    int prev = 0;
+    for (int id : ids) {
+      DataInputOutputUtil.writeINT(out, id - prev);
+      prev = id;
+    }
+  }
+
+  private static TIntHashSet ids(int... ids) {
+    return new TIntHashSet(ids);
+  }
+
+  private static TIntHashSet ids(ValueContainer<Integer> container, Integer value) {
+    final TIntHashSet result = new TIntHashSet();
+    for (ValueContainer.IntIterator iterator = container.getInputIdsIterator(value); iterator.hasNext(); ) {
+      result.add(iterator.next());
+    }
+    return result;
+  }
+
+  private static TIntHashSet ids(FileIdSet set) {
+    final TIntHashSet result = new TIntHashSet();
+    for (FileIdSet.IdIterator iterator = set.iterator(); iterator.hasNext(); ) {
+      result.add(iterator.next());
+    }
+    return result;
+  }
+
+  private static void addId(Map<String, Map<Integer, TIntHashSet>> expected, String key, int inputId, int value) {
+    Map<Integer, TIntHashSet> values = expected.get(key);
+    if (values == null) expected.put(key, values = new HashMap<Integer, TIntHashSet>());
+    TIntHashSet ids = values.get(value);
+    if (ids == null) values.put(value, ids = new TIntHashSet());
+    ids.add(inputId);
+  }
+
+  private static void removeId(Map<String, Map<Integer, TIntHashSet>> expected, String key, int inputId) {
+    final Map<Integer, TIntHashSet> values = expected.get(key);
+    if (values == null) return;
+    for (Iterator<TIntHashSet> iterator = values.values().iterator(); iterator.hasNext(); ) {
+      final TIntHashSet ids = iterator.next();
+      if (ids.remove(inputId) && ids.isEmpty()) iterator.remove();
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class PagedFileStorageTest extends TestCase {
+  private static final int PAGE_SIZE = Page.PAGE_SIZE;
+
+  private File myFile;
+  private PagedFileStorage myStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("paged", "storage");
+    myStorage = new PagedFileStorage(myFile, PagedFileStorage.StorageLockContext.createConcurrent(), PAGE_SIZE, true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myStorage.close();
+    FileUtil.delete(myFile);
+    super.tearDown();
+  }
+
+  public void testConcurrentReadersDoNotSeePartiallyWrittenValues() throws Exception {
+    final int count = 4 * PAGE_SIZE / 8;
+    myStorage.resize(count * 8);
+
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    final Thread writer = new Thread("PagedFileStorage writer") {
+      @Override
+      public void run() {
+        try {
+          for (int round = 1; round <= 200; ++round) {
+            for (int i = 0; i < count; ++i) {
+              myStorage.putLong(i * 8, (long)round << 32 | round);
+            }
+          }
+        }
+        catch (Throwable t) {
+          errors.add(t);
+        }
+      }
+    };
+
+    List<Thread> readers = new ArrayList<Thread>();
+    for (int r = 0; r < 4; ++r) {
+      readers.add(new Thread("PagedFileStorage reader") {
+        @Override
+        public void run() {
+          try {
+            while (writer.isAlive()) {
+              for (int i = 0; i < count; ++i) {
+                long value = myStorage.getLong(i * 8);
+                assertEquals("offset " + i * 8, (int)(value >>> 32), (int)value);
+              }
+            }
+          }
+          catch (Throwable t) {
+            errors.add(t);
+          }
+        }
+      });
+    }
+
+    writer.start();
+    for (Thread reader : readers) {
+      reader.start();
+    }
+    writer.join();
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    if (!errors.isEmpty()) {
+      throw new RuntimeException(errors.get(0));
+    }
+
+    for (int i = 0; i < count; ++i) {
+      assertEquals((long)200 << 32 | 200, myStorage.getLong(i * 8));
+    }
+  }
+
+  public void testBuffersAreAvailableUnderLock() throws Exception {
+    myStorage.resize(2 * PAGE_SIZE);
+    int address = PAGE_SIZE + 16;
+    myStorage.putInt(address, 42);
+
+    myStorage.lock();
+    try {
+      ByteBuffer buffer = myStorage.getByteBuffer(address, false);
+      assertEquals(42, buffer.getInt(myStorage.getOffsetInPage(address)));
+      // asking for the same page again must not pin it twice
+      assertSame(buffer, myStorage.getByteBuffer(address, false));
+    }
+    finally {
+      myStorage.unlock();
+    }
+
+    try {
+      myStorage.getByteBuffer(address, false);
+      fail("Raw buffers of a concurrent storage must not be available without the lock");
+    }
+    catch (IllegalStateException expected) {
+    }
+  }
+}
@@ -210,6 +210,79 @@ public class PersistentMapTest extends TestCase {
     }
   }
 
+  public void testCompactInBackground() throws IOException {
+    final int keysCount = 20000;
+    final Map<String, String> expected = new HashMap<String, String>(keysCount);
+    for (int i = 0; i < keysCount; ++i) {
+      myMap.put("key" + i, "value" + i);
+    }
+    // create some garbage
+    for (int i = 0; i < keysCount; ++i) {
+      final String value = "another_value" + i;
+      myMap.put("key" + i, value);
+      expected.put("key" + i, value);
+    }
+    myMap.force();
+    final long sizeBefore = myDataFile.length();
+    assertTrue(myMap.getGarbageRatio() > 0.4);
+    assertEquals(-1.0, myMap.getCompactionProgress());
+
+    myMap.compactInBackground();
+
+    // the map remains usable while values are relocated
+    for (int i = 0; i < keysCount; i += 3) {
+      final String key = "key" + i;
+      assertEquals(expected.get(key), myMap.get(key));
+      if (i % 2 == 0) {
+        myMap.remove(key);
+        expected.remove(key);
+      }
+      else {
+        myMap.put(key, "changed_value" + i);
+        expected.put(key, "changed_value" + i);
+      }
+    }
+
+    myMap.waitForCompaction();
+    assertEquals(-1.0, myMap.getCompactionProgress());
+    myMap.force();
+    assertTrue(myDataFile.length() < sizeBefore);
+
+    for (int i = 0; i < keysCount; ++i) {
+      assertEquals(expected.get("key" + i), myMap.get("key" + i));
+    }
+
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertEquals(expected.keySet(), new HashSet<String>(myMap.getAllKeysWithExistingMapping()));
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+  }
+
+  public void testFailedBackgroundCompactionIsReported() throws IOException {
+    for (int i = 0; i < 10000; ++i) {
+      myMap.put("key" + i, "value" + i);
+      myMap.put("key" + i, "another_value" + i);
+    }
+    myMap.force();
+    // the values are lost, so they can't be relocated
+    assertTrue(myDataFile.delete());
+
+    myMap.compactInBackground();
+    try {
+      myMap.waitForCompaction();
+      fail("compaction failure is not reported");
+    }
+    catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(myFile.getPath()));
+    }
+    assertEquals(-1.0, myMap.getCompactionProgress());
+    // the failure is reported once, the map still accepts values
+    myMap.waitForCompaction();
+    myMap.put("new_key", "new_value");
+  }
+
   public void testOpeningWithCompact2() throws IOException {
     File file = FileUtil.createTempFile("persistent", "map");
 
@@ -338,6 +411,85 @@ public class PersistentMapTest extends TestCase {
       .printf("Data file size = %d bytes\n", new File(myDataFile.getParentFile(), myDataFile.getName() + Storage.DATA_EXTENSION).length());
   }
 
+  public void testConcurrentReads() throws Exception {
+    final int threadsCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+    parallelGets(threadsCount, false);
+    parallelGets(threadsCount, true);
+  }
+
+  public void testConcurrentReadsPerformance() throws Exception {
+    final int threadsCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+    PlatformTestUtil.startPerformanceTest("parallel gets with concurrent reads", 5000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        parallelGets(threadsCount, true);
+      }
+    }).cpuBound().usesAllCPUCores().assertTiming();
+  }
+
+  private static void parallelGets(int threadsCount, final boolean concurrentReads) throws Exception {
+    final int keysCount = 10000;
+    final int readsCount = 20;
+    final List<PersistentHashMap<String, String>> maps = new ArrayList<PersistentHashMap<String, String>>();
+    final List<File> files = new ArrayList<File>();
+    final List<String> keys = new ArrayList<String>(keysCount);
+    for (int i = 0; i < keysCount; ++i) {
+      keys.add(createRandomString());
+    }
+
+    try {
+      for (int i = 0; i < threadsCount; ++i) {
+        File file = FileUtil.createTempFile("persistent", "map");
+        PagedFileStorage.StorageLockContext context = concurrentReads ? PagedFileStorage.StorageLockContext.createConcurrent() : null;
+        PersistentHashMap<String, String> map = new PersistentHashMap<String, String>(file, new EnumeratorStringDescriptor(),
+                                                                                      new EnumeratorStringDescriptor(), 4 * 1024, context);
+        for (String key : keys) {
+          map.put(key, key + "_value");
+        }
+        map.force();
+        files.add(file);
+        maps.add(map);
+      }
+
+      final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+      List<Thread> threads = new ArrayList<Thread>();
+      for (final PersistentHashMap<String, String> map : maps) {
+        for (int r = 0; r < 2; ++r) {
+          threads.add(new Thread("PersistentHashMap reader") {
+            @Override
+            public void run() {
+              try {
+                for (int i = 0; i < readsCount; ++i) {
+                  for (String key : keys) {
+                    assertEquals(key + "_value", map.get(key));
+                  }
+                }
+              }
+              catch (Throwable t) {
+                errors.add(t);
+              }
+            }
+          });
+        }
+      }
+
+      for (Thread thread : threads) {
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      if (!errors.isEmpty()) {
+        throw new RuntimeException(errors.get(0));
+      }
+    }
+    finally {
+      for (int i = 0; i < maps.size(); ++i) {
+        clearMap(files.get(i), maps.get(i));
+      }
+    }
+  }
+
   private static final boolean DO_SLOW_TEST = false;
 
   public void test2GLimit() throws IOException {
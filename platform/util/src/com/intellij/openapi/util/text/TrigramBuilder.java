@@ -32,6 +32,9 @@ public class TrigramBuilder {
   private TrigramBuilder() {
   }
 
+  /**
+   * @return trigrams of the text encoded as ints, chars are case folded so the same trigrams are built for the text in any case
+   */
   public static TIntHashSet buildTrigram(CharSequence text) {
     TIntHashSet caseInsensitive = new TIntHashSet();
 
@@ -40,7 +43,7 @@ public class TrigramBuilder {
     int tc3;
 
     for (int i = 0; i < text.length(); i++) {
-      char c = StringUtil.toLowerCase(text.charAt(i));
+      char c = StringUtil.toLowerCase(StringUtil.toUpperCase(text.charAt(i)));
 
       tc3 = (tc2 << 8) + c;
       tc2 = (tc1 << 8) + c;
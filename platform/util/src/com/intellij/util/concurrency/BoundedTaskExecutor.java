@@ -20,18 +20,23 @@ import org.jetbrains.annotations.Nullable;
 import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BoundedTaskExecutor implements Executor {
   protected final Executor myBackendExecutor;
   private final int myMaxTasks;
   private final AtomicInteger myInProgress = new AtomicInteger(0);
-  private final Queue<FutureTask> myTaskQueue = new LinkedBlockingQueue<FutureTask>();
+  private final Queue<QueuedTask> myTaskQueue = new LinkedBlockingQueue<QueuedTask>();
+  private final AtomicLong myTotalWaitNanos = new AtomicLong();
+  private final AtomicLong myStartedTaskCount = new AtomicLong();
 
   private final Runnable USER_TASK_RUNNER = new Runnable() {
     public void run() {
-      final FutureTask task = myTaskQueue.poll();
+      final QueuedTask task = myTaskQueue.poll();
       try {
         if (task != null && !task.isCancelled()) {
+          myTotalWaitNanos.addAndGet(System.nanoTime() - task.myQueuedAt);
+          myStartedTaskCount.incrementAndGet();
           task.run();
         }
       }
@@ -55,7 +60,7 @@ public class BoundedTaskExecutor implements Executor {
   }
 
   public Future<?> submit(Runnable task) {
-    final RunnableFuture<Void> future = queueTask(new FutureTask<Void>(task, null));
+    final RunnableFuture<Void> future = queueTask(new QueuedTask<Void>(task, null));
     if (future == null) {
       throw new RuntimeException("Failed to queue task: " + task);
     }
@@ -63,7 +68,7 @@ public class BoundedTaskExecutor implements Executor {
   }
 
   public <T> Future<T> submit(Callable<T> task) {
-    final RunnableFuture<T> future = queueTask(new FutureTask<T>(task));
+    final RunnableFuture<T> future = queueTask(new QueuedTask<T>(task));
     if (future == null) {
       throw new RuntimeException("Failed to queue task: " + task);
     }
@@ -71,7 +76,7 @@ public class BoundedTaskExecutor implements Executor {
   }
 
   @Nullable
-  private <T> RunnableFuture<T> queueTask(FutureTask<T> futureTask) {
+  private <T> RunnableFuture<T> queueTask(QueuedTask<T> futureTask) {
     if (myTaskQueue.offer(futureTask)) {
       processQueue();
       return futureTask;
@@ -91,4 +96,27 @@ public class BoundedTaskExecutor implements Executor {
     }
     myBackendExecutor.execute(USER_TASK_RUNNER);
   }
+
+  /**
+   * @return total time the started tasks spent in the queue waiting for a free thread, in nanoseconds
+   */
+  public long getTotalWaitTimeNanos() {
+    return myTotalWaitNanos.get();
+  }
+
+  public long getStartedTaskCount() {
+    return myStartedTaskCount.get();
+  }
+
+  private static class QueuedTask<T> extends FutureTask<T> {
+    private final long myQueuedAt = System.nanoTime();
+
+    private QueuedTask(Callable<T> callable) {
+      super(callable);
+    }
+
+    private QueuedTask(Runnable runnable, T result) {
+      super(runnable, result);
+    }
+  }
 }
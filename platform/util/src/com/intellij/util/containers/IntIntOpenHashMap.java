@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import gnu.trove.TIntIntProcedure;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * int to int map without per entry objects, about 11 bytes per entry on average. With <code>offHeap</code> the table is kept
+ * in direct buffers and takes almost no java heap.
+ * <p/>
+ * Absent keys are reported as 0 value, like in {@link gnu.trove.TIntIntHashMap}. The class is not thread safe.
+ */
+public class IntIntOpenHashMap extends IntKeyOpenHashTable {
+  public IntIntOpenHashMap() {
+    this(0);
+  }
+
+  public IntIntOpenHashMap(int expectedSize) {
+    this(expectedSize, false);
+  }
+
+  public IntIntOpenHashMap(int expectedSize, boolean offHeap) {
+    super(expectedSize, 1, offHeap);
+  }
+
+  public int get(int key) {
+    return get(key, 0);
+  }
+
+  public int get(int key, int defaultValue) {
+    final int slot = indexOf(key);
+    return slot >= 0 ? myValues.get(slot) : defaultValue;
+  }
+
+  /**
+   * @return previous value of the key or 0
+   */
+  public int put(int key, int value) {
+    int slot = insert(key);
+    if (slot < 0) slot = ~slot;
+    final int old = myValues.get(slot);
+    myValues.set(slot, value);
+    return old;
+  }
+
+  /**
+   * @return new value of the key, absent key is considered to have 0 value
+   */
+  public int adjustValue(int key, int delta) {
+    int slot = insert(key);
+    if (slot < 0) slot = ~slot;
+    final int value = myValues.get(slot) + delta;
+    myValues.set(slot, value);
+    return value;
+  }
+
+  /**
+   * @return removed value of the key or 0
+   */
+  public int remove(int key) {
+    final int slot = indexOf(key);
+    if (slot < 0) return 0;
+    final int old = myValues.get(slot);
+    removeAt(slot);
+    return old;
+  }
+
+  /**
+   * Iterates over entries until the procedure returns false, the map must not be modified meanwhile.
+   *
+   * @return false if iteration was stopped by the procedure
+   */
+  public boolean forEachEntry(@NotNull TIntIntProcedure procedure) {
+    for (int slot = 0; slot <= capacity(); slot++) {
+      if (isUsed(slot) && !procedure.execute(keyAt(slot), myValues.get(slot))) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  public int[] keys() {
+    final int[] keys = new int[size()];
+    int i = 0;
+    for (int slot = 0; slot <= capacity(); slot++) {
+      if (isUsed(slot)) keys[i++] = keyAt(slot);
+    }
+    return keys;
+  }
+}
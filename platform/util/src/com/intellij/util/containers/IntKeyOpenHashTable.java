@@ -0,0 +1,255 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Open addressing hash table with int keys and linear probing, the base of primitive specialized maps.
+ * Keys are stored in one {@link IntSlots} with 0 marking a free slot, the key 0 itself is kept in an extra slot after the table.
+ * Values of each slot occupy a fixed number of ints in another {@link IntSlots}. Removal shifts following entries of the probe
+ * sequence back, so there are no tombstones and lookups of absent keys stay short.
+ * <p/>
+ * The class is not thread safe.
+ */
+abstract class IntKeyOpenHashTable {
+  private static final int MIN_CAPACITY = 8;
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  private final boolean myOffHeap;
+  private final int myValueWidth;
+  @NotNull private IntSlots myKeys;
+  @NotNull IntSlots myValues;
+  private int myMask;
+  private int myMaxFill;
+  private boolean myHasZeroKey;
+  private int mySize;
+
+  IntKeyOpenHashTable(int expectedSize, int valueWidth, boolean offHeap) {
+    myOffHeap = offHeap;
+    myValueWidth = valueWidth;
+    final int capacity = capacityFor(expectedSize);
+    myKeys = IntSlots.create(capacity, offHeap);
+    myValues = IntSlots.create((capacity + 1) * valueWidth, offHeap);
+    setCapacity(capacity);
+  }
+
+  private static int capacityFor(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < MAX_CAPACITY && capacity * 3L / 4 < expectedSize) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  private void setCapacity(int capacity) {
+    myMask = capacity - 1;
+    myMaxFill = capacity == MAX_CAPACITY ? capacity - 1 : capacity * 3 / 4;
+  }
+
+  /**
+   * Murmur3 finalizer: ids are often sequential, so the low bits used for the slot index must depend on all key bits.
+   */
+  private static int mix(int key) {
+    int h = key;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  public final int size() {
+    return mySize;
+  }
+
+  public final boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  public final boolean containsKey(int key) {
+    return indexOf(key) >= 0;
+  }
+
+  final int capacity() {
+    return myMask + 1;
+  }
+
+  private int zeroKeySlot() {
+    return myMask + 1;
+  }
+
+  /**
+   * @return slot of the key or -1 if the table does not contain it
+   */
+  final int indexOf(int key) {
+    if (key == 0) return myHasZeroKey ? zeroKeySlot() : -1;
+
+    int slot = mix(key) & myMask;
+    while (true) {
+      final int k = myKeys.get(slot);
+      if (k == key) return slot;
+      if (k == 0) return -1;
+      slot = (slot + 1) & myMask;
+    }
+  }
+
+  /**
+   * @return slot of the key, or <code>~slot</code> if the key was absent and has been added with zero values
+   */
+  final int insert(int key) {
+    if (key == 0) {
+      if (myHasZeroKey) return zeroKeySlot();
+      myHasZeroKey = true;
+      ++mySize;
+      return ~zeroKeySlot();
+    }
+
+    int slot = mix(key) & myMask;
+    while (true) {
+      final int k = myKeys.get(slot);
+      if (k == key) return slot;
+      if (k == 0) break;
+      slot = (slot + 1) & myMask;
+    }
+    if (mySize >= myMaxFill) {
+      rehash(capacity() << 1);
+      return insert(key);
+    }
+    myKeys.set(slot, key);
+    ++mySize;
+    return ~slot;
+  }
+
+  final void removeAt(int slot) {
+    --mySize;
+    if (slot == zeroKeySlot()) {
+      myHasZeroKey = false;
+      clearValues(slot);
+      return;
+    }
+
+    int free = slot;
+    int next = (free + 1) & myMask;
+    while (true) {
+      final int k = myKeys.get(next);
+      if (k == 0) break;
+      // the entry may fill the free slot unless its home slot lies cyclically in (free, next]
+      final int home = mix(k) & myMask;
+      if (((next - home) & myMask) >= ((next - free) & myMask)) {
+        myKeys.set(free, k);
+        moveValues(next, free);
+        free = next;
+      }
+      next = (next + 1) & myMask;
+    }
+    myKeys.set(free, 0);
+    clearValues(free);
+  }
+
+  /**
+   * @return key stored in the used slot
+   */
+  final int keyAt(int slot) {
+    return slot == zeroKeySlot() ? 0 : myKeys.get(slot);
+  }
+
+  /**
+   * @return whether the slot, including the zero key slot at {@link #capacity()}, holds a key
+   */
+  final boolean isUsed(int slot) {
+    return slot == zeroKeySlot() ? myHasZeroKey : myKeys.get(slot) != 0;
+  }
+
+  public void clear() {
+    final int capacity = capacity();
+    myKeys.dispose();
+    myValues.dispose();
+    myKeys = IntSlots.create(capacity, myOffHeap);
+    myValues = IntSlots.create((capacity + 1) * myValueWidth, myOffHeap);
+    myHasZeroKey = false;
+    mySize = 0;
+    slotsCleared();
+  }
+
+  /**
+   * Frees off-heap memory of the table, it cannot be used afterwards.
+   */
+  public void dispose() {
+    myKeys.dispose();
+    myValues.dispose();
+  }
+
+  /**
+   * @return approximate number of bytes the table occupies on the java heap
+   */
+  public long getHeapSize() {
+    return 48 + myKeys.getHeapSize() + myValues.getHeapSize();
+  }
+
+  private void rehash(int newCapacity) {
+    final int oldCapacity = capacity();
+    final IntSlots oldKeys = myKeys;
+    final IntSlots oldValues = myValues;
+
+    myKeys = IntSlots.create(newCapacity, myOffHeap);
+    myValues = IntSlots.create((newCapacity + 1) * myValueWidth, myOffHeap);
+    setCapacity(newCapacity);
+
+    for (int oldSlot = 0; oldSlot <= oldCapacity; oldSlot++) {
+      final int key = oldSlot == oldCapacity ? 0 : oldKeys.get(oldSlot);
+      final int slot;
+      if (oldSlot == oldCapacity) {
+        if (!myHasZeroKey) continue;
+        slot = zeroKeySlot();
+      }
+      else {
+        if (key == 0) continue;
+        int s = mix(key) & myMask;
+        while (myKeys.get(s) != 0) {
+          s = (s + 1) & myMask;
+        }
+        myKeys.set(s, key);
+        slot = s;
+      }
+      for (int i = 0; i < myValueWidth; i++) {
+        myValues.set(slot * myValueWidth + i, oldValues.get(oldSlot * myValueWidth + i));
+      }
+    }
+
+    oldKeys.dispose();
+    oldValues.dispose();
+  }
+
+  private void moveValues(int from, int to) {
+    for (int i = 0; i < myValueWidth; i++) {
+      myValues.set(to * myValueWidth + i, myValues.get(from * myValueWidth + i));
+    }
+  }
+
+  private void clearValues(int slot) {
+    for (int i = 0; i < myValueWidth; i++) {
+      myValues.set(slot * myValueWidth + i, 0);
+    }
+  }
+
+  /**
+   * Called when all entries are removed by {@link #clear}.
+   */
+  void slotsCleared() {
+  }
+}
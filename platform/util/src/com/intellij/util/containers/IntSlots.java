@@ -0,0 +1,101 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import com.intellij.util.io.DirectBufferWrapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Fixed size zero-initialized array of ints, either on the java heap or in a direct buffer outside of it.
+ */
+abstract class IntSlots {
+  abstract int get(int index);
+
+  abstract void set(int index, int value);
+
+  /**
+   * @return bytes occupied by the slots on the java heap
+   */
+  abstract long getHeapSize();
+
+  /**
+   * Frees off-heap memory at once instead of waiting for the buffer to be collected, the slots cannot be used afterwards.
+   */
+  void dispose() {
+  }
+
+  @NotNull
+  static IntSlots create(int size, boolean offHeap) {
+    return offHeap ? new DirectSlots(size) : new HeapSlots(size);
+  }
+
+  private static class HeapSlots extends IntSlots {
+    private final int[] mySlots;
+
+    private HeapSlots(int size) {
+      mySlots = new int[size];
+    }
+
+    @Override
+    int get(int index) {
+      return mySlots[index];
+    }
+
+    @Override
+    void set(int index, int value) {
+      mySlots[index] = value;
+    }
+
+    @Override
+    long getHeapSize() {
+      return 16 + 4L * mySlots.length;
+    }
+  }
+
+  private static class DirectSlots extends IntSlots {
+    private final ByteBuffer myBuffer;
+    private final IntBuffer mySlots;
+
+    private DirectSlots(int size) {
+      myBuffer = ByteBuffer.allocateDirect(4 * size).order(ByteOrder.nativeOrder());
+      mySlots = myBuffer.asIntBuffer();
+    }
+
+    @Override
+    int get(int index) {
+      return mySlots.get(index);
+    }
+
+    @Override
+    void set(int index, int value) {
+      mySlots.put(index, value);
+    }
+
+    @Override
+    long getHeapSize() {
+      return 0;
+    }
+
+    @Override
+    void dispose() {
+      DirectBufferWrapper.disposeDirectBuffer(myBuffer);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectProcedure;
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * int to set of ints multimap. Most keys of the dependency-like maps it is meant for have a single value, which is kept
+ * inline in the table; keys with several values refer to a {@link TIntHashSet} which is always on the java heap.
+ * <p/>
+ * Sets returned by {@link #get} are copies. The class is not thread safe.
+ */
+public class IntToIntSetOpenHashMap extends IntKeyOpenHashTable {
+  private static final int SINGLE = 1;
+  private static final int SET = 2;
+
+  private final List<TIntHashSet> mySets = new ArrayList<TIntHashSet>();
+  private final TIntArrayList myFreeSets = new TIntArrayList();
+
+  public IntToIntSetOpenHashMap() {
+    this(0);
+  }
+
+  public IntToIntSetOpenHashMap(int expectedSize) {
+    this(expectedSize, false);
+  }
+
+  public IntToIntSetOpenHashMap(int expectedSize, boolean offHeap) {
+    super(expectedSize, 2, offHeap);
+  }
+
+  /**
+   * @return false if the key was already mapped to the value
+   */
+  public boolean add(int key, int value) {
+    int slot = insert(key);
+    if (slot < 0) {
+      slot = ~slot;
+      myValues.set(2 * slot, SINGLE);
+      myValues.set(2 * slot + 1, value);
+      return true;
+    }
+
+    if (myValues.get(2 * slot) == SET) {
+      return mySets.get(myValues.get(2 * slot + 1)).add(value);
+    }
+    final int single = myValues.get(2 * slot + 1);
+    if (single == value) return false;
+
+    final TIntHashSet set = new TIntHashSet();
+    set.add(single);
+    set.add(value);
+    myValues.set(2 * slot, SET);
+    myValues.set(2 * slot + 1, allocateSet(set));
+    return true;
+  }
+
+  public void addAll(final int key, @NotNull TIntHashSet values) {
+    values.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        add(key, value);
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Maps the key to exactly the given values, empty or null values remove the key.
+   */
+  public void replace(int key, @Nullable TIntHashSet values) {
+    remove(key);
+    if (values != null) {
+      addAll(key, values);
+    }
+  }
+
+  /**
+   * Removes the value from values of the key, the key is removed along with its last value.
+   *
+   * @return false if the key was not mapped to the value
+   */
+  public boolean remove(int key, int value) {
+    final int slot = indexOf(key);
+    if (slot < 0) return false;
+
+    if (myValues.get(2 * slot) == SINGLE) {
+      if (myValues.get(2 * slot + 1) != value) return false;
+      removeAt(slot);
+      return true;
+    }
+    final int index = myValues.get(2 * slot + 1);
+    final TIntHashSet set = mySets.get(index);
+    if (!set.remove(value)) return false;
+    if (set.size() == 1) {
+      myValues.set(2 * slot, SINGLE);
+      myValues.set(2 * slot + 1, set.toArray()[0]);
+      releaseSet(index);
+    }
+    return true;
+  }
+
+  public void removeAll(final int key, @NotNull TIntHashSet values) {
+    values.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        remove(key, value);
+        return true;
+      }
+    });
+  }
+
+  public void remove(int key) {
+    final int slot = indexOf(key);
+    if (slot < 0) return;
+    if (myValues.get(2 * slot) == SET) {
+      releaseSet(myValues.get(2 * slot + 1));
+    }
+    removeAt(slot);
+  }
+
+  /**
+   * @return copy of values of the key or null if the key is absent
+   */
+  @Nullable
+  public TIntHashSet get(int key) {
+    final int slot = indexOf(key);
+    return slot >= 0 ? valuesAt(slot) : null;
+  }
+
+  /**
+   * @return false if iteration was stopped by the procedure
+   */
+  public boolean forEachValue(int key, @NotNull TIntProcedure procedure) {
+    final int slot = indexOf(key);
+    if (slot < 0) return true;
+    if (myValues.get(2 * slot) == SINGLE) return procedure.execute(myValues.get(2 * slot + 1));
+    return mySets.get(myValues.get(2 * slot + 1)).forEach(procedure);
+  }
+
+  /**
+   * Iterates over keys and copies of their values until the procedure returns false, the map must not be modified meanwhile.
+   *
+   * @return false if iteration was stopped by the procedure
+   */
+  public boolean forEachEntry(@NotNull TIntObjectProcedure<TIntHashSet> procedure) {
+    for (int slot = 0; slot <= capacity(); slot++) {
+      if (isUsed(slot) && !procedure.execute(keyAt(slot), valuesAt(slot))) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  public int[] keys() {
+    final int[] keys = new int[size()];
+    int i = 0;
+    for (int slot = 0; slot <= capacity(); slot++) {
+      if (isUsed(slot)) keys[i++] = keyAt(slot);
+    }
+    return keys;
+  }
+
+  @Override
+  public long getHeapSize() {
+    long size = super.getHeapSize() + 16 + 4L * mySets.size() + 16 + 4L * myFreeSets.size();
+    for (TIntHashSet set : mySets) {
+      // int and state arrays of a trove set are kept about half full
+      if (set != null) size += 40 + 10L * set.size();
+    }
+    return size;
+  }
+
+  @Override
+  void slotsCleared() {
+    mySets.clear();
+    myFreeSets.clear();
+  }
+
+  @NotNull
+  private TIntHashSet valuesAt(int slot) {
+    if (myValues.get(2 * slot) == SET) {
+      return (TIntHashSet)mySets.get(myValues.get(2 * slot + 1)).clone();
+    }
+    final TIntHashSet set = new TIntHashSet(1);
+    set.add(myValues.get(2 * slot + 1));
+    return set;
+  }
+
+  private int allocateSet(@NotNull TIntHashSet set) {
+    if (myFreeSets.isEmpty()) {
+      mySets.add(set);
+      return mySets.size() - 1;
+    }
+    final int index = myFreeSets.remove(myFreeSets.size() - 1);
+    mySets.set(index, set);
+    return index;
+  }
+
+  private void releaseSet(int index) {
+    mySets.set(index, null);
+    myFreeSets.add(index);
+  }
+}
@@ -20,12 +20,16 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class ByteBufferWrapper {
+  private static final int RETIRED_FLAG = 0x40000000;
+
   protected final File myFile;
   protected final long myPosition;
   protected final long myLength;
   protected volatile boolean myDirty;
+  private final AtomicInteger myReferences = new AtomicInteger(); // in-flight concurrent readers and writers, see PagedFileStorage
 
   protected ByteBufferWrapper(final File file, final long offset, final long length) {
     myFile = file;
@@ -54,6 +58,46 @@ public abstract class ByteBufferWrapper {
     unmap();
   }
 
+  /**
+   * Pins the buffer for a single access made without holding the storage lock.
+   * @return false if the buffer has already been evicted, caller should look it up again
+   */
+  final boolean tryAcquire() {
+    while (true) {
+      int references = myReferences.get();
+      if ((references & RETIRED_FLAG) != 0) return false;
+      if (myReferences.compareAndSet(references, references + 1)) return true;
+    }
+  }
+
+  final void release() {
+    myReferences.decrementAndGet();
+  }
+
+  /**
+   * Forbids further acquisitions, the buffer may be disposed once it is not {@link #isInUse() in use} any more.
+   */
+  final void retire() {
+    while (true) {
+      int references = myReferences.get();
+      if (myReferences.compareAndSet(references, references | RETIRED_FLAG)) break;
+    }
+  }
+
+  /**
+   * Allows acquisitions of a retired but not yet disposed buffer again.
+   */
+  final void revive() {
+    while (true) {
+      int references = myReferences.get();
+      if (myReferences.compareAndSet(references, references & ~RETIRED_FLAG)) break;
+    }
+  }
+
+  final boolean isInUse() {
+    return (myReferences.get() & ~RETIRED_FLAG) != 0;
+  }
+
   public static ByteBufferWrapper readWrite(final File file, final int offset, final int length) {
     return new ReadWriteDirectBufferWrapper(file, offset, length);
   }
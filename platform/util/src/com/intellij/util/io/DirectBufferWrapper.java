@@ -16,6 +16,7 @@
 package com.intellij.util.io;
 
 import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import sun.misc.Cleaner;
 import sun.nio.ch.DirectBuffer;
@@ -58,7 +59,16 @@ public abstract class DirectBufferWrapper extends ByteBufferWrapper {
     myBuffer = null;
   }
 
- static boolean disposeDirectBuffer(final DirectBuffer buffer) {
+  /**
+   * Frees memory of a direct buffer at once instead of waiting for the buffer to be collected, the buffer cannot be used afterwards
+   *
+   * @return false if the memory could not be freed
+   */
+  public static boolean disposeDirectBuffer(@NotNull ByteBuffer buffer) {
+    return buffer instanceof DirectBuffer && disposeDirectBuffer((DirectBuffer)buffer);
+  }
+
+  static boolean disposeDirectBuffer(final DirectBuffer buffer) {
     return AccessController.doPrivileged(new PrivilegedAction<Object>() {
       @Nullable
       public Object run() {
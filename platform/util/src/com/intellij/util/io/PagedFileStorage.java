@@ -33,7 +33,6 @@ import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * @author max
@@ -81,12 +80,19 @@ public class PagedFileStorage implements Forceable {
 
   private static final int MAX_PAGES_COUNT = 0xFFFF;
   private static final int MAX_LIVE_STORAGES_COUNT = 0xFFFF;
+  private static final int PAGE_LOCKS_COUNT = 32; // power of two
+
+  private final boolean myConcurrentReads;
+  private final Object[] myPageLocks;
 
   public void lock() {
     myStorageLockContext.myLock.lock();
   }
 
   public void unlock() {
+    if (myConcurrentReads && myStorageLockContext.myLock.getHoldCount() == 1) {
+      myStorageLockContext.releasePinnedBuffers();
+    }
     myStorageLockContext.myLock.unlock();
   }
 
@@ -113,6 +119,14 @@ public class PagedFileStorage implements Forceable {
     myValuesAreBufferAligned = valuesAreBufferAligned;
     myStorageIndex = myStorageLockContext.myStorageLock.registerPagedFileStorage(this);
     myTypedIOBuffer = valuesAreBufferAligned ? null:new byte[8];
+    myConcurrentReads = myStorageLockContext.myConcurrentReads;
+    if (myConcurrentReads) {
+      myPageLocks = new Object[PAGE_LOCKS_COUNT];
+      for (int i = 0; i < PAGE_LOCKS_COUNT; ++i) myPageLocks[i] = new Object();
+    }
+    else {
+      myPageLocks = null;
+    }
   }
   public PagedFileStorage(File file, StorageLock lock) throws IOException {
     this(file, lock, BUFFER_SIZE, false);
@@ -123,7 +137,26 @@ public class PagedFileStorage implements Forceable {
   }
 
   public void putInt(int addr, int value) {
-    if (myValuesAreBufferAligned) {
+    if (myConcurrentReads) {
+      if (fitsInPage(addr, 4)) {
+        int page = addr / myPageSize;
+        ByteBufferWrapper wrapper = acquirePage(page);
+        try {
+          // typed write, so that concurrent readers never see a partially written value
+          synchronized (getPageLock(page)) {
+            getMappedBuffer(wrapper).putInt(addr % myPageSize, value);
+            markDirty(wrapper);
+          }
+        }
+        finally {
+          wrapper.release();
+        }
+        return;
+      }
+      byte[] buffer = new byte[4];
+      Bits.putInt(buffer, 0, value);
+      put(addr, buffer, 0, 4);
+    } else if (myValuesAreBufferAligned) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
       getBuffer(page).putInt(page_offset, value);
@@ -134,7 +167,20 @@ public class PagedFileStorage implements Forceable {
   }
 
   public int getInt(int addr) {
-    if (myValuesAreBufferAligned) {
+    if (myConcurrentReads) {
+      if (fitsInPage(addr, 4)) {
+        ByteBufferWrapper wrapper = acquirePage(addr / myPageSize);
+        try {
+          return getMappedBuffer(wrapper).getInt(addr % myPageSize);
+        }
+        finally {
+          wrapper.release();
+        }
+      }
+      byte[] buffer = new byte[4];
+      get(addr, buffer, 0, 4);
+      return Bits.getInt(buffer, 0);
+    } else if (myValuesAreBufferAligned) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
       return getBuffer(page, false).getInt(page_offset);
@@ -145,7 +191,26 @@ public class PagedFileStorage implements Forceable {
   }
 
   public final void putShort(int addr, short value) {
-    if (myValuesAreBufferAligned) {
+    if (myConcurrentReads) {
+      if (fitsInPage(addr, 2)) {
+        int page = addr / myPageSize;
+        ByteBufferWrapper wrapper = acquirePage(page);
+        try {
+          // typed write, so that concurrent readers never see a partially written value
+          synchronized (getPageLock(page)) {
+            getMappedBuffer(wrapper).putShort(addr % myPageSize, value);
+            markDirty(wrapper);
+          }
+        }
+        finally {
+          wrapper.release();
+        }
+        return;
+      }
+      byte[] buffer = new byte[2];
+      Bits.putShort(buffer, 0, value);
+      put(addr, buffer, 0, 2);
+    } else if (myValuesAreBufferAligned) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
       getBuffer(page).putShort(page_offset, value);
@@ -164,7 +229,20 @@ public class PagedFileStorage implements Forceable {
   }
 
   public final short getShort(int addr) {
-    if (myValuesAreBufferAligned) {
+    if (myConcurrentReads) {
+      if (fitsInPage(addr, 2)) {
+        ByteBufferWrapper wrapper = acquirePage(addr / myPageSize);
+        try {
+          return getMappedBuffer(wrapper).getShort(addr % myPageSize);
+        }
+        finally {
+          wrapper.release();
+        }
+      }
+      byte[] buffer = new byte[2];
+      get(addr, buffer, 0, 2);
+      return Bits.getShort(buffer, 0);
+    } else if (myValuesAreBufferAligned) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
       return getBuffer(page, false).getShort(page_offset);
@@ -175,7 +253,26 @@ public class PagedFileStorage implements Forceable {
   }
 
   public void putLong(int addr, long value) {
-    if (myValuesAreBufferAligned) {
+    if (myConcurrentReads) {
+      if (fitsInPage(addr, 8)) {
+        int page = addr / myPageSize;
+        ByteBufferWrapper wrapper = acquirePage(page);
+        try {
+          // typed write, so that concurrent readers never see a partially written value
+          synchronized (getPageLock(page)) {
+            getMappedBuffer(wrapper).putLong(addr % myPageSize, value);
+            markDirty(wrapper);
+          }
+        }
+        finally {
+          wrapper.release();
+        }
+        return;
+      }
+      byte[] buffer = new byte[8];
+      Bits.putLong(buffer, 0, value);
+      put(addr, buffer, 0, 8);
+    } else if (myValuesAreBufferAligned) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
       getBuffer(page).putLong(page_offset, value);
@@ -195,7 +292,20 @@ public class PagedFileStorage implements Forceable {
   }
 
   public long getLong(int addr) {
-    if (myValuesAreBufferAligned) {
+    if (myConcurrentReads) {
+      if (fitsInPage(addr, 8)) {
+        ByteBufferWrapper wrapper = acquirePage(addr / myPageSize);
+        try {
+          return getMappedBuffer(wrapper).getLong(addr % myPageSize);
+        }
+        finally {
+          wrapper.release();
+        }
+      }
+      byte[] buffer = new byte[8];
+      get(addr, buffer, 0, 8);
+      return Bits.getLong(buffer, 0);
+    } else if (myValuesAreBufferAligned) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
       return getBuffer(page, false).getLong(page_offset);
@@ -209,6 +319,15 @@ public class PagedFileStorage implements Forceable {
     int page = index / myPageSize;
     int offset = index % myPageSize;
 
+    if (myConcurrentReads) {
+      ByteBufferWrapper wrapper = acquirePage(page);
+      try {
+        return getMappedBuffer(wrapper).get(offset);
+      }
+      finally {
+        wrapper.release();
+      }
+    }
     return getBuffer(page, false).get(offset);
   }
 
@@ -216,10 +335,27 @@ public class PagedFileStorage implements Forceable {
     int page = index / myPageSize;
     int offset = index % myPageSize;
 
+    if (myConcurrentReads) {
+      ByteBufferWrapper wrapper = acquirePage(page);
+      try {
+        synchronized (getPageLock(page)) {
+          getMappedBuffer(wrapper).put(offset, value);
+          markDirty(wrapper);
+        }
+      }
+      finally {
+        wrapper.release();
+      }
+      return;
+    }
     getBuffer(page).put(offset, value);
   }
 
   public void get(int index, byte[] dst, int offset, int length) {
+    if (myConcurrentReads) {
+      getConcurrently(index, dst, offset, length);
+      return;
+    }
     int i = index;
     int o = offset;
     int l = length;
@@ -249,6 +385,10 @@ public class PagedFileStorage implements Forceable {
   }
 
   public void put(int index, byte[] src, int offset, int length) {
+    if (myConcurrentReads) {
+      putConcurrently(index, src, offset, length);
+      return;
+    }
     int i = index;
     int o = offset;
     int l = length;
@@ -273,6 +413,107 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
+  private boolean fitsInPage(int addr, int length) {
+    return addr % myPageSize + length <= myPageSize;
+  }
+
+  private Object getPageLock(int page) {
+    return myPageLocks[page & (PAGE_LOCKS_COUNT - 1)];
+  }
+
+  private ByteBufferWrapper acquirePage(int page) {
+    assert page >= 0 && page <= MAX_PAGES_COUNT:page;
+    int storageIndex = myStorageIndex;
+    if (storageIndex == -1) {
+      synchronized (this) {
+        if (myStorageIndex == -1) {
+          myStorageIndex = myStorageLockContext.myStorageLock.registerPagedFileStorage(this);
+        }
+        storageIndex = myStorageIndex;
+      }
+    }
+    return myStorageLockContext.myStorageLock.acquire(storageIndex | page);
+  }
+
+  private static ByteBuffer getMappedBuffer(ByteBufferWrapper wrapper) {
+    try {
+      return wrapper.getBuffer();
+    }
+    catch (IOException e) {
+      throw new MappingFailedException("Cannot map buffer", e);
+    }
+  }
+
+  // buffers are shared between threads in concurrent mode, so we never touch their position and work with duplicates instead
+  private void getConcurrently(int index, byte[] dst, int offset, int length) {
+    int i = index;
+    int o = offset;
+    int l = length;
+
+    while (l > 0) {
+      int page = i / myPageSize;
+      int page_offset = i % myPageSize;
+
+      int page_len = Math.min(l, myPageSize - page_offset);
+      final ByteBufferWrapper wrapper = acquirePage(page);
+      try {
+        final ByteBuffer buffer = getMappedBuffer(wrapper).duplicate();
+        try {
+          buffer.position(page_offset);
+        }
+        catch (IllegalArgumentException iae) {
+          throw new IllegalArgumentException("can't position buffer to offset " + page_offset + ", " +
+                                             "buffer.limit=" + buffer.limit() + ", " +
+                                             "page=" + page + ", " +
+                                             "file=" + myFile.getName() + ", "+
+                                             "file.length=" + mySize);
+        }
+        buffer.get(dst, o, page_len);
+      }
+      finally {
+        wrapper.release();
+      }
+
+      l -= page_len;
+      o += page_len;
+      i += page_len;
+    }
+  }
+
+  private void putConcurrently(int index, byte[] src, int offset, int length) {
+    int i = index;
+    int o = offset;
+    int l = length;
+
+    while (l > 0) {
+      int page = i / myPageSize;
+      int page_offset = i % myPageSize;
+
+      int page_len = Math.min(l, myPageSize - page_offset);
+      final ByteBufferWrapper wrapper = acquirePage(page);
+      try {
+        final ByteBuffer buffer = getMappedBuffer(wrapper).duplicate();
+        try {
+          buffer.position(page_offset);
+        }
+        catch (IllegalArgumentException iae) {
+          throw new IllegalArgumentException("can't position buffer to offset " + page_offset);
+        }
+        synchronized (getPageLock(page)) {
+          buffer.put(src, o, page_len);
+          markDirty(wrapper);
+        }
+      }
+      finally {
+        wrapper.release();
+      }
+
+      l -= page_len;
+      o += page_len;
+      i += page_len;
+    }
+  }
+
   public void close() {
     try {
       force();
@@ -355,6 +596,16 @@ public class PagedFileStorage implements Forceable {
   }
 
   private ByteBuffer getBuffer(int page, boolean modify) {
+    if (myConcurrentReads) {
+      // the caller keeps using the buffer after we return, so the page stays pinned until the storage lock is released
+      if (!myStorageLockContext.myLock.isHeldByCurrentThread()) {
+        throw new IllegalStateException("Must hold StorageLock lock to access buffers of PagedFileStorage");
+      }
+      ByteBufferWrapper wrapper = acquirePage(page);
+      myStorageLockContext.pin(wrapper);
+      if (modify) markDirty(wrapper);
+      return getMappedBuffer(wrapper);
+    }
     if (myLastPage == page) {
       ByteBuffer buf = myLastBuffer.getCachedBuffer();
       if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount) {
@@ -441,10 +692,15 @@ public class PagedFileStorage implements Forceable {
 
     private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments;
     private final SequenceLock mySegmentsAccessLock = new SequenceLock(); // protects map operations of mySegments, needed for LRU order, mySize and myMappingChangeCount
-    // todo avoid locking for access
+    // lock free view of mySegments for lookups, updated together with mySegments under mySegmentsAccessLock
+    private final ConcurrentHashMap<Integer, ByteBufferWrapper> mySegmentsTable = new ConcurrentHashMap<Integer, ByteBufferWrapper>();
 
     private final SequenceLock mySegmentsAllocationLock = new SequenceLock();
-    private final ConcurrentLinkedQueue<ByteBufferWrapper> mySegmentsToRemove = new ConcurrentLinkedQueue<ByteBufferWrapper>();
+    // removed segments which are not disposed yet because concurrent accesses still use them, guarded by mySegmentsAccessLock.
+    // An evicted segment is revived when its page is requested again, so a page never has two buffers with different content
+    private final Map<Integer, ByteBufferWrapper> myEvictedSegments = new HashMap<Integer, ByteBufferWrapper>();
+    // segments removed by unmap or resize, they are never revived and their pages are not mapped again until they are disposed
+    private final Map<Integer, ByteBufferWrapper> myInvalidatedSegments = new HashMap<Integer, ByteBufferWrapper>();
     private volatile long mySize;
     private volatile long mySizeLimit;
     private volatile int myMappingChangeCount;
@@ -454,7 +710,7 @@ public class PagedFileStorage implements Forceable {
     }
 
     public StorageLock(boolean checkThreadAccess) {
-      myDefaultStorageLockContext = new StorageLockContext(this, checkThreadAccess);
+      myDefaultStorageLockContext = new StorageLockContext(this, checkThreadAccess, false);
 
       mySizeLimit = UPPER_LIMIT;
       mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f) {
@@ -469,8 +725,10 @@ public class PagedFileStorage implements Forceable {
           // this method can be called after removeEldestEntry
           ByteBufferWrapper wrapper = super.remove(key);
           if (wrapper != null) {
+            mySegmentsTable.remove(key);
             ++myMappingChangeCount;
-            mySegmentsToRemove.offer(wrapper);
+            wrapper.retire();
+            myEvictedSegments.put((Integer)key, wrapper);
             mySize -= wrapper.myLength;
           }
           return wrapper;
@@ -502,65 +760,173 @@ public class PagedFileStorage implements Forceable {
       return myIndex2Storage.get(index);
     }
 
+    private ByteBufferWrapper acquire(Integer key) {
+      return get(key, true);
+    }
+
     private ByteBufferWrapper get(Integer key) {
-      ByteBufferWrapper wrapper;
-      try {         // fast path
-        mySegmentsAccessLock.lock();
-        wrapper = mySegments.get(key);
-        if (wrapper != null) return wrapper;
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
+      return get(key, false);
+    }
+
+    /**
+     * @param acquire whether the segment should be pinned, it is done before anything is evicted to make room for the segment
+     */
+    private ByteBufferWrapper get(Integer key, boolean acquire) {
+      ByteBufferWrapper wrapper = mySegmentsTable.get(key); // fast path
+      // if the segment has been evicted after lookup, it is either revived or mapped again below
+      if (wrapper != null && (!acquire || wrapper.tryAcquire())) {
+        // LRU order is maintained on best effort basis, lookups never wait for the access lock
+        if (mySegmentsAccessLock.tryLock()) {
+          try {
+            mySegments.get(key);
+          }
+          finally {
+            mySegmentsAccessLock.unlock();
+          }
+        }
+        return wrapper;
       }
 
-      mySegmentsAllocationLock.lock();
-      try {
-        // check if anybody cared about our segment
-        mySegmentsAccessLock.lock();
+      while (true) {
+        ByteBufferWrapper invalidated;
+        mySegmentsAllocationLock.lock();
         try {
-          wrapper = mySegments.get(key);
-          if (wrapper != null) return wrapper;
-        } finally {
-          mySegmentsAccessLock.unlock();
-        }
+          // check if anybody cared about our segment
+          mySegmentsAccessLock.lock();
+          try {
+            wrapper = mySegments.get(key);
+            if (wrapper != null) {
+              if (acquire) pin(wrapper); // segments are retired only when removed, so it can't fail
+              return wrapper;
+            }
 
-        long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
-        wrapper = createValue(key);
+            wrapper = myEvictedSegments.remove(key);
+            if (wrapper != null) {
+              // evicted while somebody still used it, the buffer is still valid and has the latest content
+              wrapper.revive();
+              if (acquire) pin(wrapper);
+              mySegments.put(key, wrapper);
+              mySegmentsTable.put(key, wrapper);
+              mySize += wrapper.myLength;
+            }
+            invalidated = myInvalidatedSegments.get(key);
+          } finally {
+            mySegmentsAccessLock.unlock();
+          }
 
-        if (IOStatistics.DEBUG) {
-          long finished = System.currentTimeMillis();
-          if (finished - started > IOStatistics.MIN_IO_TIME_TO_REPORT) {
-            IOStatistics.dump(
-              "Mapping " + wrapper.myLength + " from " + wrapper.myPosition + " file:" + wrapper.myFile + " for " + (finished - started));
+          if (wrapper != null) {
+            ensureSize(mySizeLimit);
+            return wrapper;
           }
-        }
 
-        mySegmentsAccessLock.lock();
-        try {
-          mySegments.put(key, wrapper);
-          mySize += wrapper.myLength;
+          if (invalidated == null || !invalidated.isInUse()) {
+            disposeRemovedSegments();
+            return mapSegment(key, acquire);
+          }
         }
         finally {
-          mySegmentsAccessLock.unlock();
+          mySegmentsAllocationLock.unlock();
         }
 
-        ensureSize(mySizeLimit);
+        // the page is being unmapped or resized, its previous buffer must be written back before the page is mapped again
+        PagedFileStorage owner = getRegisteredPagedFileStorageByIndex(key & FILE_INDEX_MASK);
+        if (owner != null) owner.myStorageLockContext.releasePinnedBuffers(Collections.singletonList(invalidated));
+        Thread.yield();
+      }
+    }
 
-        return wrapper;
+    private static void pin(ByteBufferWrapper wrapper) {
+      boolean acquired = wrapper.tryAcquire();
+      assert acquired : wrapper;
+    }
+
+    private ByteBufferWrapper mapSegment(Integer key, boolean acquire) {
+      assert mySegmentsAllocationLock.isHeldByCurrentThread();
+
+      long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
+      ByteBufferWrapper wrapper = createValue(key);
+      if (acquire) pin(wrapper);
+
+      if (IOStatistics.DEBUG) {
+        long finished = System.currentTimeMillis();
+        if (finished - started > IOStatistics.MIN_IO_TIME_TO_REPORT) {
+          IOStatistics.dump(
+            "Mapping " + wrapper.myLength + " from " + wrapper.myPosition + " file:" + wrapper.myFile + " for " + (finished - started));
+        }
+      }
+
+      mySegmentsAccessLock.lock();
+      try {
+        mySegments.put(key, wrapper);
+        mySegmentsTable.put(key, wrapper);
+        mySize += wrapper.myLength;
       }
       finally {
-        mySegmentsAllocationLock.unlock();
+        mySegmentsAccessLock.unlock();
       }
+
+      ensureSize(mySizeLimit);
+
+      return wrapper;
     }
 
     private void disposeRemovedSegments() {
-      if (mySegmentsToRemove.isEmpty()) return;
-
       assert mySegmentsAllocationLock.isHeldByCurrentThread();
-      Iterator<ByteBufferWrapper> iterator = mySegmentsToRemove.iterator();
-      while(iterator.hasNext()) {
-        iterator.next().dispose();
-        iterator.remove();
+
+      List<ByteBufferWrapper> unused;
+      mySegmentsAccessLock.lock();
+      try {
+        unused = removeUnused(myEvictedSegments, null);
+        unused = removeUnused(myInvalidatedSegments, unused);
+      }
+      finally {
+        mySegmentsAccessLock.unlock();
+      }
+
+      // segments still in use stay where they are, one of the next calls disposes them
+      if (unused != null) {
+        for (ByteBufferWrapper wrapper : unused) {
+          wrapper.dispose();
+        }
+      }
+    }
+
+    @Nullable
+    private static List<ByteBufferWrapper> removeUnused(Map<Integer, ByteBufferWrapper> segments, @Nullable List<ByteBufferWrapper> result) {
+      for (Iterator<ByteBufferWrapper> iterator = segments.values().iterator(); iterator.hasNext(); ) {
+        ByteBufferWrapper wrapper = iterator.next();
+        if (!wrapper.isInUse()) { // retired buffers can't be acquired anymore, so this can't change
+          if (result == null) result = new ArrayList<ByteBufferWrapper>();
+          result.add(wrapper);
+          iterator.remove();
+        }
+      }
+      return result;
+    }
+
+    // removed segments of unmapped pages may still be in use by concurrent accesses, their buffers
+    // have to be written back before the pages are mapped again, evicted segments that belong to them must not be revived
+    private List<ByteBufferWrapper> invalidateRemovedSegments(int index, int mask) {
+      assert mySegmentsAccessLock.isHeldByCurrentThread();
+      List<ByteBufferWrapper> result = new ArrayList<ByteBufferWrapper>();
+      for (Iterator<Map.Entry<Integer, ByteBufferWrapper>> iterator = myEvictedSegments.entrySet().iterator(); iterator.hasNext(); ) {
+        Map.Entry<Integer, ByteBufferWrapper> entry = iterator.next();
+        if ((entry.getKey() & mask) == index) {
+          myInvalidatedSegments.put(entry.getKey(), entry.getValue());
+          result.add(entry.getValue());
+          iterator.remove();
+        }
+      }
+      return result;
+    }
+
+    // called without mySegmentsAllocationLock, so that other pages can be mapped while we wait for the accesses to complete
+    private static void waitUntilUnused(List<ByteBufferWrapper> buffers, @Nullable StorageLockContext storageLockContext) {
+      if (storageLockContext != null) storageLockContext.releasePinnedBuffers(buffers); // our own buffers can't be used after that
+      for (ByteBufferWrapper wrapper : buffers) {
+        while (wrapper.isInUse()) {
+          Thread.yield();
+        }
       }
     }
 
@@ -672,16 +1038,22 @@ public class PagedFileStorage implements Forceable {
     private void unmapBuffersForOwner(int index, StorageLockContext storageLockContext) {
       final Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext);
 
-      if (buffers != null) {
-        mySegmentsAccessLock.lock();
-        try {
+      List<ByteBufferWrapper> removed;
+      mySegmentsAccessLock.lock();
+      try {
+        if (buffers != null) {
           for (Integer key : buffers.keySet()) {
             mySegments.remove(key);
           }
         }
-        finally {
-          mySegmentsAccessLock.unlock();
-        }
+        removed = invalidateRemovedSegments(index, FILE_INDEX_MASK);
+      }
+      finally {
+        mySegmentsAccessLock.unlock();
+      }
+
+      if (!removed.isEmpty()) {
+        waitUntilUnused(removed, storageLockContext);
 
         mySegmentsAllocationLock.lock();
         try {
@@ -709,12 +1081,16 @@ public class PagedFileStorage implements Forceable {
     }
 
     public void invalidateBuffer(int page) {
+      List<ByteBufferWrapper> removed;
       mySegmentsAccessLock.lock();
       try {
         mySegments.remove(page);
+        removed = invalidateRemovedSegments(page, -1);
       } finally {
         mySegmentsAccessLock.unlock();
       }
+      PagedFileStorage owner = getRegisteredPagedFileStorageByIndex(page & FILE_INDEX_MASK);
+      waitUntilUnused(removed, owner != null ? owner.myStorageLockContext : null);
       mySegmentsAllocationLock.lock();
       try {
         disposeRemovedSegments();
@@ -727,22 +1103,54 @@ public class PagedFileStorage implements Forceable {
 
   public static class StorageLockContext {
     private final boolean myCheckThreadAccess;
+    private final boolean myConcurrentReads;
     private final SequenceLock myLock;
     private final StorageLock myStorageLock;
+    private final Set<ByteBufferWrapper> myPinnedBuffers; // buffers handed out under myLock in concurrent reads mode, accessed by the lock owner only
 
     @Deprecated
     public StorageLockContext(StorageLock lock) {
-      this(lock, true);
+      this(lock, true, false);
     }
 
-    private StorageLockContext(StorageLock lock, boolean checkAccess) {
+    private StorageLockContext(StorageLock lock, boolean checkAccess, boolean concurrentReads) {
       myLock = new SequenceLock();
       myStorageLock = lock;
-      myCheckThreadAccess = checkAccess;
+      myCheckThreadAccess = checkAccess && !concurrentReads;
+      myConcurrentReads = concurrentReads;
+      myPinnedBuffers = concurrentReads ? new HashSet<ByteBufferWrapper>() : null;
+    }
+
+    private void pin(ByteBufferWrapper wrapper) {
+      if (!myPinnedBuffers.add(wrapper)) wrapper.release(); // already pinned
+    }
+
+    private void releasePinnedBuffers() {
+      for (ByteBufferWrapper wrapper : myPinnedBuffers) {
+        wrapper.release();
+      }
+      myPinnedBuffers.clear();
+    }
+
+    private void releasePinnedBuffers(Collection<ByteBufferWrapper> buffers) {
+      if (myPinnedBuffers == null || !myLock.isHeldByCurrentThread()) return;
+      for (ByteBufferWrapper wrapper : buffers) {
+        if (myPinnedBuffers.remove(wrapper)) wrapper.release();
+      }
     }
 
     public StorageLockContext(boolean checkAccess) {
-      this(ourLock, checkAccess);
+      this(ourLock, checkAccess, false);
+    }
+
+    /**
+     * In concurrent reads mode storages of the context may be read by any number of threads without holding the lock:
+     * mapped segments are pinned for the duration of a single access and writes only synchronize on the page they change.
+     * Raw buffers (see {@link PagedFileStorage#getByteBuffer}) are only available under the lock and stay valid until it is released.
+     * Structural changes (resize, force, close) still require the lock to be held.
+     */
+    public static StorageLockContext createConcurrent() {
+      return new StorageLockContext(ourLock, false, true);
     }
   }
 }
@@ -20,9 +20,11 @@ import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -30,6 +32,9 @@ import org.jetbrains.annotations.TestOnly;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * @author Eugene Zhuravlev
@@ -63,6 +68,15 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = true;
 
+  // compact values on background thread instead of blocking the opening of the map
+  private static final boolean ONLINE_COMPACTION = System.getProperty("idea.persistent.hash.map.online.compaction") != null;
+  private static final int ONLINE_COMPACTION_BATCH_SIZE = 1024;
+  private static final int GARBAGE_CHECK_INTERVAL_MASK = 0xFFF;
+  private OnlineCompaction myOnlineCompaction; // guarded by myEnumerator
+  private Future<?> myOnlineCompactionFuture;
+  private Throwable myOnlineCompactionFailure; // guarded by myEnumerator
+  private int myGarbageUpdates;
+
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
       super(null);
@@ -134,7 +148,15 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
   
   public PersistentHashMap(@NotNull final File file, @NotNull KeyDescriptor<Key> keyDescriptor, @NotNull DataExternalizer<Value> valueExternalizer, final int initialSize) throws IOException {
-    super(checkDataFiles(file), keyDescriptor, initialSize);
+    this(file, keyDescriptor, valueExternalizer, initialSize, null);
+  }
+
+  public PersistentHashMap(@NotNull final File file,
+                           @NotNull KeyDescriptor<Key> keyDescriptor,
+                           @NotNull DataExternalizer<Value> valueExternalizer,
+                           final int initialSize,
+                           @Nullable PagedFileStorage.StorageLockContext lockContext) throws IOException {
+    super(checkDataFiles(file), keyDescriptor, initialSize, lockContext);
 
     final PersistentEnumeratorBase.RecordBufferHandler<PersistentEnumeratorBase> recordHandler = myEnumerator.getRecordHandler();
     myParentValueRefOffset = recordHandler.getRecordBuffer(myEnumerator).length;
@@ -182,7 +204,12 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
       if (makesSenseToCompact()) {
-        compact();
+        if (ONLINE_COMPACTION) {
+          compactInBackground();
+        }
+        else {
+          compact();
+        }
       }
     }
     catch (IOException e) {
@@ -231,6 +258,95 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return (int)myLiveAndGarbageKeysCounter;
   }
 
+  /**
+   * @return estimated fraction of the value storage occupied by unreachable values: overwritten or removed ones and chunks
+   * left behind by read compaction
+   */
+  public double getGarbageRatio() {
+    synchronized (myEnumerator) {
+      final long size = myValueStorage.getSize();
+      final int liveKeys = (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK);
+      final int deadKeys = (int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK);
+      if (size == 0 || liveKeys + deadKeys <= 0) return 0;
+
+      final long avgValueSize = size / (liveKeys + deadKeys);
+      return Math.min(1.0, (double)(avgValueSize * deadKeys + myReadCompactionGarbageSize) / size);
+    }
+  }
+
+  /**
+   * @return fraction of live values already relocated by running online compaction, -1 if there is no online compaction in progress
+   */
+  public double getCompactionProgress() {
+    synchronized (myEnumerator) {
+      return myOnlineCompaction != null ? myOnlineCompaction.getProgress() : -1;
+    }
+  }
+
+  /**
+   * Schedules compaction of the value storage on background thread. Live values are copied from the snapshot of the storage without
+   * holding the map lock, so the map remains readable and writable; values modified in the meantime are copied again when the storage
+   * is switched at the end.
+   */
+  public void compactInBackground() {
+    synchronized (myEnumerator) {
+      if (myOnlineCompaction != null) return;
+      myOnlineCompaction = new OnlineCompaction();
+      myOnlineCompactionFuture = CompactionExecutorHolder.ourExecutor.submit(myOnlineCompaction);
+    }
+  }
+
+  // the compaction thread is created when the first map is compacted in background, not when the class is loaded
+  @SuppressWarnings("UtilityClassWithoutPrivateConstructor")
+  private static class CompactionExecutorHolder {
+    private static final ExecutorService ourExecutor =
+      ConcurrencyUtil.newSingleThreadExecutor("PersistentHashMap online compaction", Thread.MIN_PRIORITY);
+  }
+
+  @TestOnly
+  public void waitForCompaction() throws IOException {
+    final Future<?> future;
+    synchronized (myEnumerator) {
+      future = myOnlineCompactionFuture;
+    }
+    if (future != null) {
+      waitFor(future);
+    }
+    rethrowOnlineCompactionFailure();
+  }
+
+  private void rethrowOnlineCompactionFailure() throws IOException {
+    final Throwable failure;
+    synchronized (myEnumerator) {
+      failure = myOnlineCompactionFailure;
+      myOnlineCompactionFailure = null;
+    }
+    if (failure != null) {
+      throw new IOException("Background compaction of " + myEnumerator.myFile.getPath() + " failed", failure);
+    }
+  }
+
+  private static void waitFor(final Future<?> future) throws IOException {
+    try {
+      future.get();
+    }
+    catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  // invoked under myEnumerator lock when garbage counters grow, makesSenseToCompact() touches the file system so it is checked periodically
+  private void garbageUpdated() {
+    if (!ONLINE_COMPACTION || myOnlineCompaction != null) return;
+    if ((++myGarbageUpdates & GARBAGE_CHECK_INTERVAL_MASK) != 0) return;
+    if (makesSenseToCompact()) {
+      compactInBackground();
+    }
+  }
+
   public File getBaseFile() {
     return myEnumerator.myFile;
   }
@@ -309,6 +425,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       long oldheader = readValueId(id);
       if (oldheader != NULL_ADDR) {
         myLiveAndGarbageKeysCounter++;
+        garbageUpdated();
       }
       else {
         myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
@@ -413,21 +530,29 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         updateValueId(id, readResult.offset, oldHeader, key, 0);
         myLiveAndGarbageKeysCounter++;
         myReadCompactionGarbageSize += readResult.buffer.length;
+        garbageUpdated();
       }
 
-      final DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(readResult.buffer));
-      try {
-        return myValueExternalizer.read(input);
-      }
-      finally {
-        input.close();
-      }
+      return readValue(readResult.buffer);
     }
     finally {
       myEnumerator.unlockStorage();
     }
   }
 
+  /**
+   * Deserializes value from the bytes read from the value storage. The array is not reused by the map, so the value may keep it.
+   */
+  protected Value readValue(@NotNull byte[] bytes) throws IOException {
+    final DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(bytes));
+    try {
+      return myValueExternalizer.read(input);
+    }
+    finally {
+      input.close();
+    }
+  }
+
   public final boolean containsMapping(Key key) throws IOException {
     synchronized (myEnumerator) {
       return doContainsMapping(key);
@@ -469,6 +594,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       if (record != NULL_ADDR) {
         myLiveAndGarbageKeysCounter++;
         myLiveAndGarbageKeysCounter -= LIVE_KEY_MASK;
+        garbageUpdated();
       }
 
       updateValueId(id, NULL_ADDR, record, key, 0);
@@ -514,15 +640,23 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   @Override
   public final void close() throws IOException {
+    final Future<?> compactionFuture;
     synchronized (myEnumerator) {
+      compactionFuture = myOnlineCompactionFuture;
       doClose();
     }
+    if (compactionFuture != null) {
+      // online compaction is cancelled by now, wait for it to release its files
+      waitFor(compactionFuture);
+    }
+    rethrowOnlineCompactionFailure();
   }
 
   protected void doClose() throws IOException {
     myEnumerator.lockStorage();
     try {
       try {
+        cancelOnlineCompaction();
         myAppendCacheFlusher.stop();
         myAppendCache.clear();
         final PersistentHashMapValueStorage valueStorage = myValueStorage;
@@ -556,6 +690,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // made public for tests
   public void compact() throws IOException {
     synchronized (myEnumerator) {
+      cancelOnlineCompaction();
       LOG.info("Compacting "+myEnumerator.myFile.getPath());
       LOG.info("Live keys:" + ((int)(myLiveAndGarbageKeysCounter  / LIVE_KEY_MASK)) +
                ", dead keys:" + ((int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK)) +
@@ -570,6 +705,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myLiveAndGarbageKeysCounter = 0;
       myReadCompactionGarbageSize = 0;
 
+      boolean compacted = false;
       try {
         if (doNewCompact()) {
           newCompact(newStorage);
@@ -588,9 +724,14 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
             }
           });
         }
+        compacted = true;
       }
       finally {
         newStorage.dispose();
+        if (!compacted) {
+          myValueStorage.switchFromCompactionMode();
+          FileUtil.delete(new File(newPath));
+        }
       }
 
       myValueStorage.dispose();
@@ -641,6 +782,199 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     LOG.info("Updated mappings:" + (System.currentTimeMillis() - started) + " ms");
   }
 
+  private void cancelOnlineCompaction() {
+    if (myOnlineCompaction != null) {
+      myOnlineCompaction.myCancelled = true;
+      myOnlineCompaction = null;
+    }
+  }
+
+  private class OnlineCompaction implements Runnable {
+    private volatile boolean myCancelled;
+    private volatile int myRelocated;
+    private volatile int myTotal;
+
+    double getProgress() {
+      final int total = myTotal;
+      return total == 0 ? 0 : (double)myRelocated / total;
+    }
+
+    @Override
+    public void run() {
+      final File dataFile = getDataFile(myEnumerator.myFile);
+      final File newFile = new File(dataFile.getPath() + ".compacting");
+      final List<CompactionRecordInfo> infos = new ArrayList<CompactionRecordInfo>(10000);
+      PersistentHashMapValueStorage snapshot = null;
+      PersistentHashMapValueStorage newStorage = null;
+      boolean switched = false;
+
+      try {
+        final long started = System.currentTimeMillis();
+        final long snapshotSize;
+        synchronized (myEnumerator) {
+          if (myOnlineCompaction != this) return;
+          LOG.info("Compacting in background " + myEnumerator.myFile.getPath() + ", garbage ratio:" + getGarbageRatio());
+          snapshotSize = collectLiveValues(infos);
+        }
+        myTotal = infos.size();
+
+        FileUtil.delete(newFile);
+        newStorage = PersistentHashMapValueStorage.create(newFile.getPath());
+        snapshot = PersistentHashMapValueStorage.createSnapshot(dataFile.getPath(), snapshotSize);
+
+        // values below snapshot size are never rewritten, so they are relocated without the map lock
+        Collections.sort(infos, new Comparator<CompactionRecordInfo>() {
+          @Override
+          public int compare(CompactionRecordInfo info, CompactionRecordInfo info2) {
+            return info.valueAddress < info2.valueAddress ? -1 : info.valueAddress > info2.valueAddress ? 1 : 0;
+          }
+        });
+        for (int i = 0; i < infos.size(); ++i) {
+          if (i % ONLINE_COMPACTION_BATCH_SIZE == 0) {
+            if (myCancelled) return;
+            myRelocated = i;
+          }
+          final CompactionRecordInfo info = infos.get(i);
+          final byte[] value = snapshot.readBytes(info.valueAddress).buffer;
+          info.newValueAddress = newStorage.appendBytes(value, 0, value.length, 0);
+        }
+        myRelocated = infos.size();
+
+        synchronized (myEnumerator) {
+          if (myOnlineCompaction != this) return;
+          final PersistentHashMapValueStorage storage = newStorage;
+          newStorage = null;
+          switched = true;
+          switchToRelocatedValues(infos, storage, newFile, started);
+        }
+      }
+      catch (Throwable t) {
+        LOG.info("Background compaction of " + myEnumerator.myFile.getPath() + " failed", t);
+        synchronized (myEnumerator) {
+          myOnlineCompactionFailure = t;
+        }
+      }
+      finally {
+        if (snapshot != null) {
+          snapshot.dispose();
+        }
+        if (newStorage != null) {
+          newStorage.dispose();
+          FileUtil.delete(newFile);
+        }
+        if (!switched) {
+          synchronized (myEnumerator) {
+            if (myOnlineCompaction == this) myOnlineCompaction = null;
+          }
+        }
+      }
+    }
+
+    private long collectLiveValues(final List<CompactionRecordInfo> infos) throws IOException {
+      myEnumerator.lockStorage();
+      try {
+        clearAppenderCaches();
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+
+      traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+        @Override
+        public boolean process(final int keyId) throws IOException {
+          final long record = readValueId(keyId);
+          if (record != NULL_ADDR) {
+            infos.add(new CompactionRecordInfo(getCurrentKey(), record, keyId));
+          }
+          return true;
+        }
+      });
+      return myValueStorage.getSize();
+    }
+
+    private void switchToRelocatedValues(List<CompactionRecordInfo> relocatedInfos,
+                                         final PersistentHashMapValueStorage newStorage,
+                                         File newFile,
+                                         long started) throws IOException {
+      final int relocatedCount = relocatedInfos.size();
+      final List<CompactionRecordInfo> infos = new ArrayList<CompactionRecordInfo>(relocatedCount);
+      final long sizeBefore;
+      final int[] copiedAgain = new int[1];
+      boolean valueIdsUpdated = false;
+      try {
+        myEnumerator.lockStorage();
+        try {
+          myAppendCache.clear();
+        }
+        finally {
+          myEnumerator.unlockStorage();
+        }
+
+        final TIntObjectHashMap<CompactionRecordInfo> relocated = new TIntObjectHashMap<CompactionRecordInfo>(relocatedCount);
+        for (CompactionRecordInfo info : relocatedInfos) {
+          relocated.put(info.address, info);
+        }
+        relocatedInfos.clear();
+
+        myValueStorage.switchToCompactionMode();
+        sizeBefore = myValueStorage.getSize();
+
+        // values changed since the snapshot was taken are copied once more, now under the map lock
+        traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+          @Override
+          public boolean process(final int keyId) throws IOException {
+            final long record = readValueId(keyId);
+            if (record != NULL_ADDR) {
+              CompactionRecordInfo info = relocated.get(keyId);
+              if (info == null || info.valueAddress != record) {
+                info = new CompactionRecordInfo(getCurrentKey(), record, keyId);
+                final byte[] value = myValueStorage.readBytes(record).buffer;
+                info.newValueAddress = newStorage.appendBytes(value, 0, value.length, 0);
+                ++copiedAgain[0];
+              }
+              infos.add(info);
+            }
+            return true;
+          }
+        });
+
+        myLiveAndGarbageKeysCounter = 0;
+        myReadCompactionGarbageSize = 0;
+        myEnumerator.lockStorage();
+        try {
+          for (CompactionRecordInfo info : infos) {
+            updateValueId(info.address, info.newValueAddress, info.valueAddress, null, info.key);
+            myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+          }
+        }
+        finally {
+          myEnumerator.unlockStorage();
+        }
+        valueIdsUpdated = true;
+      }
+      finally {
+        newStorage.dispose();
+        myOnlineCompaction = null;
+        if (!valueIdsUpdated) {
+          // the map keeps its values in the old storage, which must accept appends again
+          myValueStorage.switchFromCompactionMode();
+          FileUtil.delete(newFile);
+        }
+      }
+
+      myValueStorage.dispose();
+      final long newSize = newStorage.getSize();
+
+      FileUtil.rename(newFile, getDataFile(myEnumerator.myFile));
+
+      myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
+      LOG.info("Compacted in background " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize + " bytes in " +
+               (System.currentTimeMillis() - started) + "ms, values copied under lock:" + copiedAgain[0] + " of " + infos.size());
+      myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+      myEnumerator.putMetaData2(myLargeIndexWatermarkId);
+    }
+  }
+
   private long readValueId(final int keyId) {
     long address = myEnumerator.myStorage.getInt(keyId + myParentValueRefOffset);
     if (address == 0 || address == -POSITIVE_VALUE_SHIFT) {
@@ -40,6 +40,7 @@ public class PersistentHashMapValueStorage {
   private final File myFile;
   private final String myPath;
   private boolean myCompactionMode = false;
+  private final boolean mySnapshot;
 
   private static final int CACHE_PROTECTED_QUEUE_SIZE = 10;
   private static final int CACHE_PROBATIONAL_QUEUE_SIZE = 20;
@@ -67,12 +68,22 @@ public class PersistentHashMapValueStorage {
     myPath = path;
     myFile = new File(path);
     mySize = myFile.length();
+    mySnapshot = false;
 
     if (mySize == 0) {
       appendBytes(new ByteSequence("Header Record For PersistentHashMapValueStorage".getBytes()), 0);
     }
   }
 
+  private PersistentHashMapValueStorage(String path, long size) {
+    myPath = path;
+    myFile = new File(path);
+    mySize = size;
+    mySnapshot = true;
+    myCompactionModeReader = new FileReader(myFile);
+    myCompactionMode = true;
+  }
+
   private long smallWrites;
   private int smallWritesCount;
   private long largeWrites;
@@ -275,7 +286,7 @@ public class PersistentHashMapValueStorage {
    * Reads bytes pointed by tailChunkAddress into result passed, returns new address if linked list compactification have been performed
    */
   public ReadResult readBytes(long tailChunkAddress) throws IOException {
-    force();
+    if (!mySnapshot) force();
 
     long chunk = tailChunkAddress;
     int chunkCount = 0;
@@ -379,8 +390,10 @@ public class PersistentHashMapValueStorage {
   }
 
   public void dispose() {
-    ourReadersCache.remove(myPath);
-    ourAppendersCache.remove(myPath);
+    if (!mySnapshot) {
+      ourReadersCache.remove(myPath);
+      ourAppendersCache.remove(myPath);
+    }
 
     if (myCompactionModeReader != null) {
       myCompactionModeReader.dispose();
@@ -395,10 +408,29 @@ public class PersistentHashMapValueStorage {
     myCompactionMode = true;
   }
 
+  /**
+   * Leaves compaction mode without switching to the compacted storage, e.g. when the compaction failed
+   */
+  public void switchFromCompactionMode() {
+    if (myCompactionModeReader != null) {
+      myCompactionModeReader.dispose();
+      myCompactionModeReader = null;
+    }
+    myCompactionMode = false;
+  }
+
   public static PersistentHashMapValueStorage create(final String path) throws IOException {
     return new PersistentHashMapValueStorage(path);
   }
 
+  /**
+   * Creates read only view of the values appended to the storage before it reached given size. Chunks are never rewritten so such view
+   * can be read from another thread while the owner of the storage continues appending, provided the storage was forced beforehand.
+   */
+  public static PersistentHashMapValueStorage createSnapshot(final String path, long size) {
+    return new PersistentHashMapValueStorage(path, size);
+  }
+
   private interface RAReader {
     void get(long addr, byte[] dst, int off, int len) throws IOException;
     void dispose();
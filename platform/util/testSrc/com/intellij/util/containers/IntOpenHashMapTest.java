@@ -0,0 +1,177 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import gnu.trove.*;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class IntOpenHashMapTest extends TestCase {
+  private static Object ourMeasured;
+
+  public void testIntIntMapAgainstTrove() {
+    checkIntIntMap(new IntIntOpenHashMap(), 1);
+    checkIntIntMap(new IntIntOpenHashMap(0, true), 2);
+  }
+
+  private static void checkIntIntMap(IntIntOpenHashMap map, int seed) {
+    final TIntIntHashMap expected = new TIntIntHashMap();
+    final Random random = new Random(seed);
+    try {
+      for (int i = 0; i < 100000; i++) {
+        // small key range makes removals hit present keys and exercises the zero key
+        final int key = random.nextInt(4000) - 100;
+        final int op = random.nextInt(10);
+        if (op < 6) {
+          final int value = random.nextInt();
+          assertEquals(expected.put(key, value), map.put(key, value));
+        }
+        else if (op < 9) {
+          assertEquals(expected.remove(key), map.remove(key));
+        }
+        else {
+          assertEquals(expected.get(key), map.get(key));
+          assertEquals(expected.containsKey(key), map.containsKey(key));
+        }
+        assertEquals(expected.size(), map.size());
+      }
+      assertSameEntries(expected, map);
+      map.clear();
+      assertTrue(map.isEmpty());
+      assertFalse(map.containsKey(0));
+    }
+    finally {
+      map.dispose();
+    }
+  }
+
+  private static void assertSameEntries(final TIntIntHashMap expected, IntIntOpenHashMap map) {
+    final int[] count = {0};
+    assertTrue(map.forEachEntry(new TIntIntProcedure() {
+      @Override
+      public boolean execute(int key, int value) {
+        assertEquals(expected.get(key), value);
+        count[0]++;
+        return true;
+      }
+    }));
+    assertEquals(expected.size(), count[0]);
+    assertEquals(expected.size(), map.keys().length);
+  }
+
+  public void testIntToIntSetMapAgainstTrove() {
+    final IntToIntSetOpenHashMap map = new IntToIntSetOpenHashMap();
+    final TIntObjectHashMap<TIntHashSet> expected = new TIntObjectHashMap<TIntHashSet>();
+    final Random random = new Random(3);
+    for (int i = 0; i < 100000; i++) {
+      final int key = random.nextInt(1000);
+      final int value = random.nextInt(random.nextBoolean() ? 2 : 20);
+      final int op = random.nextInt(10);
+      TIntHashSet set = expected.get(key);
+      if (op < 6) {
+        if (set == null) expected.put(key, set = new TIntHashSet());
+        assertEquals(set.add(value), map.add(key, value));
+      }
+      else if (op < 9) {
+        final boolean removed = set != null && set.remove(value);
+        if (set != null && set.isEmpty()) expected.remove(key);
+        assertEquals(removed, map.remove(key, value));
+      }
+      else {
+        expected.remove(key);
+        map.remove(key);
+      }
+      assertEquals(expected.size(), map.size());
+    }
+
+    final int[] count = {0};
+    map.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet values) {
+        assertEquals(expected.get(key), values);
+        count[0]++;
+        return true;
+      }
+    });
+    assertEquals(expected.size(), count[0]);
+
+    final int key = expected.keys()[0];
+    final TIntHashSet values = map.get(key);
+    values.add(-1);
+    assertEquals(expected.get(key), map.get(key));
+    map.replace(key, new TIntHashSet(new int[]{5, 6}));
+    assertEquals(new TIntHashSet(new int[]{5, 6}), map.get(key));
+    map.replace(key, null);
+    assertNull(map.get(key));
+  }
+
+  /**
+   * Checks heap footprint of a million sequential ids: off-heap tables keep almost nothing on the java heap, and int->int sets
+   * take less than trove maps of sets.
+   */
+  public void testHeapFootprint() {
+    final int count = 1000000;
+
+    final IntIntOpenHashMap onHeap = new IntIntOpenHashMap();
+    final IntIntOpenHashMap offHeap = new IntIntOpenHashMap(0, true);
+    for (int i = 0; i < count; i++) {
+      onHeap.put(i, i);
+      offHeap.put(i, i);
+    }
+    assertTrue(offHeap.getHeapSize() < onHeap.getHeapSize() / 100);
+    offHeap.dispose();
+
+    final long troveMulti = measure(new Runnable() {
+      TIntObjectHashMap<TIntHashSet> map;
+
+      @Override
+      public void run() {
+        map = new TIntObjectHashMap<TIntHashSet>();
+        for (int i = 0; i < count; i++) {
+          final TIntHashSet set = new TIntHashSet();
+          set.add(i);
+          if (i % 10 == 0) set.add(i + 1);
+          map.put(i, set);
+        }
+      }
+    });
+    final IntToIntSetOpenHashMap multi = new IntToIntSetOpenHashMap();
+    for (int i = 0; i < count; i++) {
+      multi.add(i, i);
+      if (i % 10 == 0) multi.add(i, i + 1);
+    }
+    assertTrue("TIntObjectHashMap<TIntHashSet> " + troveMulti + " bytes, IntToIntSetOpenHashMap " + multi.getHeapSize() + " bytes",
+               multi.getHeapSize() < troveMulti);
+  }
+
+  private static long measure(Runnable allocation) {
+    final long before = usedMemory();
+    allocation.run();
+    ourMeasured = allocation; // keeps the allocated map reachable while memory is measured
+    final long result = usedMemory() - before;
+    ourMeasured = null;
+    return result;
+  }
+
+  private static long usedMemory() {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
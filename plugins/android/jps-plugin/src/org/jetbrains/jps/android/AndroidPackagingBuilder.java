@@ -252,7 +252,8 @@ public class AndroidPackagingBuilder extends TargetBuilder<BuildRootDescriptor,
       assetsStorage = new AndroidFileSetStorage(dataStorageRoot, assetsStorageName);
 
       final String manifestStorageName = releaseBuild ? "manifest_packaging_release" : "manifest_packaging_dev";
-      manifestStorage = new TimestampStorage(AndroidJpsUtil.getStorageFile(dataStorageRoot, manifestStorageName), context.getProjectDescriptor().getTargetsState());
+      manifestStorage = new TimestampStorage(AndroidJpsUtil.getStorageFile(dataStorageRoot, manifestStorageName), context.getProjectDescriptor().getTargetsState(),
+                                             context.getProjectDescriptor().dataManager.getPathIds());
 
       final Set<JpsModule> modulesToUpdateState = new HashSet<JpsModule>();
 